@@ -0,0 +1,305 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import mpi.MPI;
+import mpi.Request;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Dispatch loop and outstanding batch bookkeeping shared by {@link DispatcherThread} and
+ * {@link LongDispatcherThread}, parameterised on the batch type. Subclasses decide what goes in each batch.
+ * <br>
+ * READY messages which arrive together are serviced together, and batches are sent with non-blocking sends so that
+ * a process which is slow to receive doesn't hold up dispatching to others. See {@link BatchProtocol} for the
+ * message protocol.
+ *
+ * @author Kevin Milner
+ *
+ * @param <B> batch type
+ */
+abstract class AbstractDispatcherThread<B> extends Thread {
+
+	private static final boolean D = true;
+
+	// used as the log prefix, which MPJTaskLogStatsGen looks for
+	private final String name;
+	final int size;
+	private final BatchProtocol<B> protocol;
+
+	// concurrent so that state can be reported without the dispatch lock, see getStateString()
+	final Map<Integer, B> outstandingBatches = Maps.newConcurrentMap();
+	// System.nanoTime() when each outstanding batch was dispatched
+	final Map<Integer, Long> outstandingStarts = Maps.newConcurrentMap();
+	// processes reported as failed since they last asked for a batch
+	final Set<Integer> failedProcesses = new HashSet<>();
+
+	// time from receiving each READY message to posting the reply
+	private Utils.MinMaxAveTracker serviceLatency = new Utils.MinMaxAveTracker();
+
+	/**
+	 * @param name name used in log messages
+	 * @param size number of MPJ processes
+	 * @param protocol
+	 */
+	AbstractDispatcherThread(String name, int size, BatchProtocol<B> protocol) {
+		this.name = name;
+		this.size = size;
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Returns the next batch for the given process in response to a READY message, retiring the previous batch for
+	 * that process. Shouldn't wait on anything other than the dispatch lock, as other READY messages are waiting.
+	 *
+	 * @param processIndex
+	 * @return next batch, or an empty batch if no tasks are left
+	 */
+	abstract B getNextBatchForReady(int processIndex);
+
+	/**
+	 * @return number of tasks which haven't been dispatched yet, including those requeued
+	 */
+	abstract long getNumLeftToDispatch();
+
+	/**
+	 * Puts the given batch back to be dispatched to other processes first. Called with the dispatch lock held.
+	 *
+	 * @param batch
+	 */
+	abstract void requeue(B batch);
+
+	/**
+	 * @param batch
+	 * @return description of the given batch for {@link #getStateString()}
+	 */
+	abstract String describe(B batch);
+
+	/**
+	 * Records the capacity of the given process, as reported with each READY message. Ignored by default.
+	 *
+	 * @param processIndex
+	 * @param threads number of calculation threads
+	 * @param throughput measured tasks per hour, or 0 if not yet known
+	 */
+	void setProcessCapacity(int processIndex, int threads, int throughput) {}
+
+	/**
+	 * Clears the failed state of the given process once it asks for a new batch. Call with the dispatch lock held.
+	 *
+	 * @param processIndex
+	 */
+	void clearFailed(int processIndex) {
+		if (failedProcesses.remove(processIndex))
+			debug("process "+processIndex+" was reported as failed but is ready for a new batch");
+	}
+
+	/**
+	 * Called when a process is reported as failed (e.g. stalled) by its progress watchdog. Its outstanding batch (if
+	 * any) is requeued to be dispatched to other processes first, without running any post batch hook. If the process
+	 * recovers and asks for another batch it is dispatched to as usual, though the final barrier still requires every
+	 * process to finish.
+	 *
+	 * @param processIndex
+	 */
+	synchronized void processFailed(int processIndex) {
+		failedProcesses.add(processIndex);
+		requeueOutstanding(processIndex, "reported as failed");
+	}
+
+	/**
+	 * Requeues the outstanding batch of the given process, if any. Call with the dispatch lock held.
+	 *
+	 * @param processIndex
+	 * @param reason for log messages
+	 */
+	void requeueOutstanding(int processIndex, String reason) {
+		B batch = outstandingBatches.remove(processIndex);
+		outstandingStarts.remove(processIndex);
+		if (batch == null) {
+			debug("process "+processIndex+" "+reason+", no outstanding batch");
+			return;
+		}
+		debug("process "+processIndex+" "+reason+", requeueing outstanding batch of length "+protocol.size(batch));
+		requeue(batch);
+	}
+
+	/**
+	 * @return String representation of dispatcher state (tasks left, and outstanding batches, oldest first). Doesn't
+	 * acquire the dispatch lock so that it can be called if dispatching is stuck.
+	 */
+	String getStateString() {
+		List<Map.Entry<Integer, Long>> starts = new ArrayList<>(outstandingStarts.entrySet());
+		Collections.sort(starts, new Comparator<Map.Entry<Integer, Long>>() {
+
+			@Override
+			public int compare(Map.Entry<Integer, Long> o1, Map.Entry<Integer, Long> o2) {
+				return Long.compare(o1.getValue(), o2.getValue());
+			}
+		});
+		StringBuilder str = new StringBuilder();
+		str.append(getNumLeftToDispatch()).append(" left to dispatch, ").append(starts.size())
+			.append(" outstanding batches");
+		long now = System.nanoTime();
+		for (Map.Entry<Integer, Long> entry : starts) {
+			B batch = outstandingBatches.get(entry.getKey());
+			str.append("\n\tprocess ").append(entry.getKey()).append(": batch ")
+				.append(batch == null ? "?" : describe(batch)).append(" running for ")
+				.append(Utils.smartTimePrint(TimeUnit.NANOSECONDS.toMillis(now - entry.getValue())));
+		}
+		return str.toString();
+	}
+
+	long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the time taken to service a set of READY messages. Latency is measured from the first READY message, so
+	 * includes any time spent on the others.
+	 * 
+	 * @param readyNanos {@link #nanoTime()} when the first READY message was received
+	 * @param numServiced number of READY messages serviced
+	 */
+	void readyServiced(long readyNanos, int numServiced) {
+		double serviceMillis = (nanoTime() - readyNanos)/1e6;
+		for (int i=0; i<numServiced; i++)
+			serviceLatency.addValue(serviceMillis);
+	}
+
+	/**
+	 * @return READY service latency log message, or null if no READY messages have been serviced
+	 */
+	String getServiceLatencyString() {
+		if (serviceLatency.getNum() == 0)
+			return null;
+		return "READY service latency: "+Utils.latencySummary(serviceLatency);
+	}
+
+	@Override
+	public void run() {
+		try {
+			// this keeps track of if each process has finished once all batches have been sent out;
+			boolean[] dones = new boolean[size];
+			for (int i=0; i<size; i++)
+				dones[i] = false;
+
+			int[] ready_buf = new int[BatchProtocol.READY_LENGTH];
+			List<Integer> readyProcs = new ArrayList<>();
+			// sends which have been posted but may not have been received yet
+			List<Request> pendingSends = new ArrayList<>();
+			while (true) {
+				debug("waiting for READY message.");
+				// this receives a READY_FOR_BATCH message from any process. the process # is sent
+				readyProcs.clear();
+				MPI.COMM_WORLD.Recv(ready_buf, 0, ready_buf.length, MPI.INT, MPI.ANY_SOURCE,
+						MPJTaskCalculator.TAG_READY_FOR_BATCH);
+				long readyNanos = nanoTime();
+				addReady(ready_buf, readyProcs);
+				// drain any other READY messages which have already arrived so that they're all serviced together
+				while (MPI.COMM_WORLD.Iprobe(MPI.ANY_SOURCE, MPJTaskCalculator.TAG_READY_FOR_BATCH) != null) {
+					MPI.COMM_WORLD.Recv(ready_buf, 0, ready_buf.length, MPI.INT, MPI.ANY_SOURCE,
+							MPJTaskCalculator.TAG_READY_FOR_BATCH);
+					addReady(ready_buf, readyProcs);
+				}
+				if (readyProcs.isEmpty())
+					// only failure reports
+					continue;
+				if (readyProcs.size() > 1)
+					debug("servicing "+readyProcs.size()+" READY messages");
+
+				// compute every batch first, then post all of the sends without waiting for any to be received
+				List<B> batches = new ArrayList<>(readyProcs.size());
+				for (int proc_id : readyProcs)
+					batches.add(getNextBatchForReady(proc_id));
+
+				boolean anyDone = false;
+				for (int i=0; i<batches.size(); i++) {
+					int proc_id = readyProcs.get(i);
+					B batch = batches.get(i);
+					int batchSize = protocol.size(batch);
+
+					debug("sending batch length ("+batchSize+") to: "+proc_id);
+					int encodedLength = protocol.postBatch(proc_id, batch, pendingSends);
+					if (batchSize > 0) {
+						debug("sending batch of length "+batchSize+" to: "+proc_id+" ("+encodedLength+" encoded)");
+						dones[proc_id] = false;
+					} else {
+						// set the index for the process we just communicated with to "done"
+						dones[proc_id] = true;
+						anyDone = true;
+					}
+				}
+
+				readyServiced(readyNanos, batches.size());
+
+				// release any sends which have completed
+				for (int i=pendingSends.size(); --i>=0;)
+					if (pendingSends.get(i).Test() != null)
+						pendingSends.remove(i);
+
+				if (anyDone) {
+					// this means that we're done dispatching batches, and are waiting for everyone to report back
+					debug("checking if we're all done...");
+					List<Integer> notDones = Lists.newArrayList();
+					boolean allDone = true;
+					for (int i=1; i<size; i++) {
+						if (!dones[i]) {
+							allDone = false;
+							notDones.add(i);
+						}
+					}
+					if (allDone) {
+						// this means that all tasks have been calculated
+						debug("DONE!");
+						String latency = getServiceLatencyString();
+						if (latency != null)
+							debug(latency);
+						break;
+					}
+					debug("not yet. waiting on: "+Joiner.on(",").join(notDones));
+				}
+			}
+			// make sure that the final messages have gone out
+			if (!pendingSends.isEmpty())
+				Request.Waitall(pendingSends.toArray(new Request[pendingSends.size()]));
+		} catch (Throwable t) {
+			MPJTaskCalculator.abortAndExit(t);
+		}
+	}
+
+	/**
+	 * Handles a READY message, recording the capacity of the process and adding it to the given list unless it is a
+	 * failure report
+	 */
+	private void addReady(int[] ready_buf, List<Integer> readyProcs) {
+		int proc_id = ready_buf[0];
+		if (proc_id < 0) {
+			// sent by the progress watchdog of a stalled process as -(proc_id+1), no reply expected
+			processFailed(-proc_id-1);
+			return;
+		}
+		debug("received READY from "+proc_id+" (threads="+ready_buf[1]+", throughput="+ready_buf[2]+"/hr)");
+		setProcessCapacity(proc_id, ready_buf[1], ready_buf[2]);
+		readyProcs.add(proc_id);
+	}
+
+	void debug(String message) {
+		if (!D)
+			return;
+
+		System.out.println("["+MPJTaskCalculator.df.format(new Date())+" "+name+"]: "+message);
+	}
+
+}
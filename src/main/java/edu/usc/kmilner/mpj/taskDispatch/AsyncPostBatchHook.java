@@ -1,53 +1,119 @@
 package edu.usc.kmilner.mpj.taskDispatch;
 
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 
 /**
- * Asynchronous post batch hook, does not block Dispatcher.
- * 
+ * Asynchronous post batch hook, does not block Dispatcher unless the queue is full.
+ * <br>
+ * At most <code>maxQueuedBatches</code> batches can be waiting for a processing thread. Once full,
+ * {@link #batchProcessed(int[], int)} blocks until a batch finishes processing, which in turn slows down dispatching.
+ * If processing of any batch fails, the exception is rethrown from the next call to
+ * {@link #batchProcessed(int[], int)} (or {@link #shutdown()}).
+ *
  * @author Kevin Milner
  *
  */
 public abstract class AsyncPostBatchHook implements PostBatchHook {
-	
+
+	public static final int DEFAULT_MAX_QUEUED_BATCHES = 1000;
+
 	private ExecutorService exec;
-	private List<Future<?>> futures;
-	
-	private int numFinished;
-	private int numRunning;
-	private int numQueued;
-	
-	private long millisSpent;
-	
+	// permits for each batch that can be queued or running
+	private Semaphore permits;
+	private AtomicReference<Throwable> failure;
+
+	private LongAdder numFinished;
+	private LongAdder numRunning;
+	private LongAdder numQueued;
+
+	private LongAdder millisSpent;
+	private LongAdder millisBlocked;
+
 	public AsyncPostBatchHook(int threads) {
+		this(threads, DEFAULT_MAX_QUEUED_BATCHES);
+	}
+
+	/**
+	 * @param threads number of processing threads
+	 * @param maxQueuedBatches maximum number of batches waiting for a processing thread before
+	 * {@link #batchProcessed(int[], int)} blocks
+	 */
+	public AsyncPostBatchHook(int threads, int maxQueuedBatches) {
 		Preconditions.checkState(threads > 0);
-		
+		Preconditions.checkState(maxQueuedBatches > 0);
+
 		if (threads == 1)
 			exec = Executors.newSingleThreadExecutor();
 		else
 			exec = Executors.newFixedThreadPool(threads);
-		
-		futures = new LinkedList<Future<?>>();
+
+		permits = new Semaphore(threads + maxQueuedBatches);
+		failure = new AtomicReference<>();
+
+		numFinished = new LongAdder();
+		numRunning = new LongAdder();
+		numQueued = new LongAdder();
+		millisSpent = new LongAdder();
+		millisBlocked = new LongAdder();
 	}
-	
+
 	public void batchProcessed(int[] batch, int processIndex) {
+		checkFailure();
+		if (!permits.tryAcquire()) {
+			// queue is full, apply backpressure
+			Stopwatch watch = Stopwatch.createStarted();
+			permits.acquireUninterruptibly();
+			millisBlocked.add(watch.elapsed(TimeUnit.MILLISECONDS));
+			checkFailure();
+		}
 		ProcessHookRunnable run = new ProcessHookRunnable(batch, processIndex);
-		numQueued += batch.length;
-		futures.add(exec.submit(run));
+		numQueued.add(batch.length);
+		try {
+			getExecutor(batch, processIndex).execute(run);
+		} catch (RuntimeException e) {
+			numQueued.add(-batch.length);
+			permits.release();
+			throw e;
+		}
 	}
-	
+
+	/**
+	 * @param batch
+	 * @param processIndex
+	 * @return executor on which the given batch should be processed. Default implementation returns the shared
+	 * thread pool, subclasses can override to impose ordering.
+	 */
+	protected Executor getExecutor(int[] batch, int processIndex) {
+		return exec;
+	}
+
+	/**
+	 * @return the shared thread pool
+	 */
+	ExecutorService getThreadPool() {
+		return exec;
+	}
+
+	private void checkFailure() {
+		Throwable t = failure.get();
+		if (t != null)
+			throw new IllegalStateException("Asynchronous post batch hook failed", t);
+	}
+
 	private class ProcessHookRunnable implements Runnable {
 		private int[] batch;
 		private int processIndex;
-		
+
 		public ProcessHookRunnable(int[] batch, int processIndex) {
 			this.batch = batch;
 			this.processIndex = processIndex;
@@ -56,90 +122,115 @@ public abstract class AsyncPostBatchHook implements PostBatchHook {
 		@Override
 		public void run() {
 			Stopwatch watch = Stopwatch.createStarted();
-			numQueued -= batch.length;
-			numRunning += batch.length;
-			batchProcessedAsync(batch, processIndex);
-			numRunning -= batch.length;
-			numFinished += batch.length;
-			millisSpent += watch.elapsed(TimeUnit.MILLISECONDS);
+			numQueued.add(-batch.length);
+			numRunning.add(batch.length);
+			try {
+				batchProcessedAsync(batch, processIndex);
+				millisSpent.add(watch.elapsed(TimeUnit.MILLISECONDS));
+				numFinished.add(batch.length);
+			} catch (Throwable t) {
+				if (!failure.compareAndSet(null, t))
+					// already failed, don't lose this one entirely
+					failure.get().addSuppressed(t);
+			} finally {
+				numRunning.add(-batch.length);
+				permits.release();
+			}
 		}
 	}
-	
+
+	/**
+	 * Waits for all queued batches to finish processing, then shuts down the processing threads. Rethrows any
+	 * processing failure.
+	 */
 	public void shutdown() {
 		exec.shutdown();
-		for (Future<?> f : futures) {
-			try {
-				f.get();
-			} catch (Exception e) {
-				if (e instanceof RuntimeException)
-					throw (RuntimeException)e;
-				throw new RuntimeException(e);
-			}
+		try {
+			while (!exec.awaitTermination(1, TimeUnit.MINUTES));
+		} catch (InterruptedException e) {
+			throw Utils.asRuntimeException(e);
 		}
+		checkFailure();
 	}
-	
+
 	public List<Runnable> shutdownNow() {
 		return exec.shutdownNow();
 	}
-	
+
 	protected abstract void batchProcessedAsync(int[] batch, int processIndex);
 
 	/**
 	 * @return the number of completed tasks (not the number of batches)
 	 */
 	public int getNumFinished() {
-		return numFinished;
+		return numFinished.intValue();
 	}
 
 	/**
 	 * @return the number of running tasks in the current batch (or zero if no current processing)
 	 */
 	public int getNumRunning() {
-		return numRunning;
+		return numRunning.intValue();
 	}
 
 	/**
 	 * @return the number of queued tasks for processing (across all batches)
 	 */
 	public int getNumQueued() {
-		return numQueued;
+		return numQueued.intValue();
 	}
-	
+
+	/**
+	 * @return total time in milliseconds that {@link #batchProcessed(int[], int)} has spent blocked waiting for space
+	 * in the queue
+	 */
+	public long getMillisBlocked() {
+		return millisBlocked.sum();
+	}
+
 	/**
 	 * @return String representation of running/queued/finished tasks
 	 */
 	public String getCountsString() {
 		return "running="+getNumRunning()+", queued="+getNumQueued()+", finished="+getNumFinished();
 	}
-	
+
 	/**
 	 * @return average runtime in milliseconds of the post-processing for each task processed
 	 * thus far, or NaN if no batches finished processing. Threading effects ignored.
 	 */
 	public double getAverageTaskDurationMillis() {
+		// time is added before the count, so read the count first to never include tasks without their time
 		double finished = getNumFinished();
+		double millis = millisSpent.sum();
 		if (finished == 0)
 			return Double.NaN;
-		return (double)millisSpent/finished;
+		return millis/finished;
 	}
-	
+
 	/**
 	 * @return String representation of processing rate and (if applicable) time estimates
 	 * for running and queued batches.
 	 */
 	public String getRatesString() {
 		String str = "rate: ";
-		if (getNumFinished() > 0) {
-			str += Utils.smartRatePrint(getNumFinished(), millisSpent);
+		int finished = getNumFinished();
+		if (finished > 0) {
+			str += Utils.smartRatePrint(finished, millisSpent.sum());
 			double millisPerTask = getAverageTaskDurationMillis();
-			if (getNumRunning() > 0) {
-				double millis = getNumRunning() * millisPerTask;
+			int running = getNumRunning();
+			if (running > 0) {
+				double millis = running * millisPerTask;
 				str += ", time for running: "+Utils.smartTimePrint(millis);
 			}
-			if (getNumQueued() > 0) {
-				double millis = getNumQueued() * millisPerTask;
+			int queued = getNumQueued();
+			if (queued > 0) {
+				double millis = queued * millisPerTask;
 				str += ", time for queue: "+Utils.smartTimePrint(millis);
 			}
+			long blocked = getMillisBlocked();
+			if (blocked > 0)
+				str += ", time blocked on full queue: "+Utils.smartTimePrint(blocked);
 		} else {
 			str += "n/a";
 		}
@@ -0,0 +1,189 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Compact wire encoding for batches of task indexes sent from the dispatcher to workers. Each batch is encoded with
+ * whichever of the following is smallest, identified by the first byte:
+ * <ul>
+ * <li>{@link #RAW}: 4 byte big endian ints</li>
+ * <li>{@link #RUNS}: varint number of runs of consecutive indexes, then for each run a zigzag varint delta of its
+ * start from the end of the previous run, and a varint length</li>
+ * <li>{@link #DELTAS}: zigzag varint delta of each index from the previous one</li>
+ * </ul>
+ * Unshuffled batches are a single run (a few bytes regardless of size), and shuffled batches typically need 2-3 bytes
+ * per index as deltas.
+ *
+ * @author Kevin Milner
+ *
+ */
+class BatchEncoding {
+
+	static final byte RAW = 0;
+	static final byte RUNS = 1;
+	static final byte DELTAS = 2;
+
+	private BatchEncoding() {}
+
+	/**
+	 * @param batch
+	 * @return encoded batch
+	 */
+	static byte[] encode(int[] batch) {
+		int rawSize = 4*batch.length;
+		int deltaSize = 0;
+		int numRuns = 0;
+		int runsSize = 0;
+		int prev = 0;
+		int runStart = -1;
+		int prevRunEnd = 0;
+		for (int i=0; i<batch.length; i++) {
+			deltaSize += varIntSize(zigZag(batch[i] - prev));
+			if (i == 0 || batch[i] != prev + 1) {
+				if (i > 0) {
+					runsSize += varIntSize(zigZag(batch[runStart] - prevRunEnd)) + varIntSize(i - runStart);
+					prevRunEnd = prev + 1;
+				}
+				runStart = i;
+				numRuns++;
+			}
+			prev = batch[i];
+		}
+		if (batch.length > 0)
+			runsSize += varIntSize(zigZag(batch[runStart] - prevRunEnd)) + varIntSize(batch.length - runStart);
+		runsSize += varIntSize(numRuns);
+
+		byte[] encoded;
+		if (runsSize <= deltaSize && runsSize <= rawSize) {
+			encoded = new byte[1 + runsSize];
+			encoded[0] = RUNS;
+			int pos = putVarInt(encoded, 1, numRuns);
+			prevRunEnd = 0;
+			int i = 0;
+			while (i < batch.length) {
+				int start = i;
+				while (i+1 < batch.length && batch[i+1] == batch[i] + 1)
+					i++;
+				i++;
+				pos = putVarInt(encoded, pos, zigZag(batch[start] - prevRunEnd));
+				pos = putVarInt(encoded, pos, i - start);
+				prevRunEnd = batch[i-1] + 1;
+			}
+		} else if (deltaSize <= rawSize) {
+			encoded = new byte[1 + deltaSize];
+			encoded[0] = DELTAS;
+			int pos = 1;
+			prev = 0;
+			for (int index : batch) {
+				pos = putVarInt(encoded, pos, zigZag(index - prev));
+				prev = index;
+			}
+		} else {
+			encoded = new byte[1 + rawSize];
+			encoded[0] = RAW;
+			int pos = 1;
+			for (int index : batch) {
+				encoded[pos++] = (byte)(index >>> 24);
+				encoded[pos++] = (byte)(index >>> 16);
+				encoded[pos++] = (byte)(index >>> 8);
+				encoded[pos++] = (byte)index;
+			}
+		}
+		return encoded;
+	}
+
+	/**
+	 * @param encoded encoded batch, as returned by {@link #encode(int[])}
+	 * @param numTasks number of tasks in the batch
+	 * @return decoded batch
+	 */
+	static int[] decode(byte[] encoded, int numTasks) {
+		return decode(encoded, encoded.length, numTasks);
+	}
+
+	/**
+	 * @param encoded encoded batch, as returned by {@link #encode(int[])}
+	 * @param length number of bytes of the encoded batch
+	 * @param numTasks number of tasks in the batch
+	 * @return decoded batch
+	 */
+	static int[] decode(byte[] encoded, int length, int numTasks) {
+		Preconditions.checkArgument(length > 0, "Empty encoded batch");
+		int[] batch = new int[numTasks];
+		int[] pos = { 1 };
+		switch (encoded[0]) {
+		case RUNS:
+			int numRuns = getVarInt(encoded, length, pos);
+			int count = 0;
+			int runStart = 0;
+			for (int r=0; r<numRuns; r++) {
+				runStart += unZigZag(getVarInt(encoded, length, pos));
+				int runLength = getVarInt(encoded, length, pos);
+				Preconditions.checkState(count + runLength <= numTasks, "Encoded batch is longer than expected");
+				for (int i=0; i<runLength; i++)
+					batch[count++] = runStart + i;
+				runStart += runLength;
+			}
+			Preconditions.checkState(count == numTasks, "Encoded batch has %s tasks, expected %s", count, numTasks);
+			break;
+		case DELTAS:
+			int prev = 0;
+			for (int i=0; i<numTasks; i++) {
+				prev += unZigZag(getVarInt(encoded, length, pos));
+				batch[i] = prev;
+			}
+			break;
+		case RAW:
+			Preconditions.checkState(length == 1 + 4*numTasks, "Bad raw encoded batch length");
+			for (int i=0, p=1; i<numTasks; i++, p+=4)
+				batch[i] = (encoded[p] & 0xFF) << 24 | (encoded[p+1] & 0xFF) << 16
+						| (encoded[p+2] & 0xFF) << 8 | (encoded[p+3] & 0xFF);
+			break;
+		default:
+			throw new IllegalStateException("Unknown batch encoding: "+encoded[0]);
+		}
+		return batch;
+	}
+
+	private static int zigZag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unZigZag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static int varIntSize(int value) {
+		if ((value & ~0x7F) == 0)
+			return 1;
+		if ((value & ~0x3FFF) == 0)
+			return 2;
+		if ((value & ~0x1FFFFF) == 0)
+			return 3;
+		if ((value & ~0xFFFFFFF) == 0)
+			return 4;
+		return 5;
+	}
+
+	private static int putVarInt(byte[] buf, int pos, int value) {
+		while ((value & ~0x7F) != 0) {
+			buf[pos++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[pos++] = (byte)value;
+		return pos;
+	}
+
+	private static int getVarInt(byte[] buf, int length, int[] pos) {
+		int value = 0;
+		for (int shift=0; shift<35; shift+=7) {
+			Preconditions.checkState(pos[0] < length, "Truncated encoded batch");
+			byte b = buf[pos[0]++];
+			value |= (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IllegalStateException("Malformed varint in encoded batch");
+	}
+
+}
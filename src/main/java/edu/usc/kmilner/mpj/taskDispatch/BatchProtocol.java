@@ -0,0 +1,182 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.lang.reflect.Array;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+import mpi.Datatype;
+import mpi.MPI;
+import mpi.Request;
+
+/**
+ * MPJ message protocol between the dispatcher on rank 0 and the other processes, parameterised on the batch type so
+ * that it's shared by {@link MPJTaskCalculator} (int[] batches, see {@link #INT_BATCHES}) and
+ * {@link MPJLongTaskCalculator} ({@link LongTaskBatch}, see {@link #LONG_BATCHES}):
+ * <ul>
+ * <li>worker to dispatcher, {@link MPJTaskCalculator#TAG_READY_FOR_BATCH}: 3 ints, the process index, thread count,
+ * and measured throughput (tasks per hour, 0 if not yet known). A negative process index -(index+1) instead reports
+ * that process as failed, and no reply is sent</li>
+ * <li>dispatcher to worker, {@link MPJTaskCalculator#TAG_NEW_BATCH_LENGH}: 2 ints, the number of tasks in the batch
+ * (zero if done) and the length of the encoded batch</li>
+ * <li>dispatcher to worker, {@link MPJTaskCalculator#TAG_NEW_BATCH}: the encoded batch, unless empty</li>
+ * </ul>
+ *
+ * @author Kevin Milner
+ *
+ * @param <B> batch type
+ */
+abstract class BatchProtocol<B> {
+
+	static final int READY_LENGTH = 3;
+
+	/**
+	 * int[] batches, sent in the compact {@link BatchEncoding}
+	 */
+	static final BatchProtocol<int[]> INT_BATCHES = new BatchProtocol<int[]>() {
+
+		@Override
+		int size(int[] batch) {
+			return batch.length;
+		}
+
+		@Override
+		Object encode(int[] batch) {
+			return BatchEncoding.encode(batch);
+		}
+
+		@Override
+		Object allocate(int encodedLength) {
+			return new byte[encodedLength];
+		}
+
+		@Override
+		Datatype getType() {
+			return MPI.BYTE;
+		}
+
+		@Override
+		int[] decode(Object encoded, int size) {
+			return BatchEncoding.decode((byte[])encoded, size);
+		}
+	};
+
+	/**
+	 * {@link LongTaskBatch}es, sent as start/end pairs of longs
+	 */
+	static final BatchProtocol<LongTaskBatch> LONG_BATCHES = new BatchProtocol<LongTaskBatch>() {
+
+		@Override
+		int size(LongTaskBatch batch) {
+			// batches are never larger than the maximum dispatch size
+			return (int)batch.size();
+		}
+
+		@Override
+		Object encode(LongTaskBatch batch) {
+			return batch.getRanges();
+		}
+
+		@Override
+		Object allocate(int encodedLength) {
+			return new long[encodedLength];
+		}
+
+		@Override
+		Datatype getType() {
+			return MPI.LONG;
+		}
+
+		@Override
+		LongTaskBatch decode(Object encoded, int size) {
+			LongTaskBatch batch = new LongTaskBatch((long[])encoded);
+			Preconditions.checkState(batch.size() == size, "Expected %s tasks, got %s", size, batch.size());
+			return batch;
+		}
+	};
+
+	/**
+	 * @param batch
+	 * @return number of tasks in the given batch
+	 */
+	abstract int size(B batch);
+
+	/**
+	 * @param batch non empty batch
+	 * @return encoded batch, an array of {@link #getType()}
+	 */
+	abstract Object encode(B batch);
+
+	/**
+	 * @param encodedLength
+	 * @return array to receive an encoded batch of the given length into
+	 */
+	abstract Object allocate(int encodedLength);
+
+	/**
+	 * @return MPJ datatype of encoded batches. Not a constant as MPJ datatypes aren't set until MPJ is initialized
+	 */
+	abstract Datatype getType();
+
+	/**
+	 * @param encoded
+	 * @param size number of tasks in the batch
+	 * @return decoded batch
+	 */
+	abstract B decode(Object encoded, int size);
+
+	/**
+	 * Dispatcher side: posts non-blocking sends of the given batch (or an empty batch if done) to the given process
+	 *
+	 * @param processIndex
+	 * @param batch
+	 * @param pendingSends sends are added to this list, and must be completed later
+	 * @return encoded length of the batch, zero if empty
+	 */
+	int postBatch(int processIndex, B batch, List<Request> pendingSends) {
+		int size = size(batch);
+		Object encoded = size > 0 ? encode(batch) : null;
+		int encodedLength = encoded == null ? 0 : Array.getLength(encoded);
+		// each send has its own buffers as they complete later
+		int[] length_buf = { size, encodedLength };
+		pendingSends.add(MPI.COMM_WORLD.Isend(length_buf, 0, 2, MPI.INT, processIndex,
+				MPJTaskCalculator.TAG_NEW_BATCH_LENGH));
+		if (size > 0)
+			pendingSends.add(MPI.COMM_WORLD.Isend(encoded, 0, encodedLength, getType(), processIndex,
+					MPJTaskCalculator.TAG_NEW_BATCH));
+		return encodedLength;
+	}
+
+	/**
+	 * Worker side: reports this process as ready along with its current capacity, and receives the next batch
+	 *
+	 * @param rank
+	 * @param threads current number of calculation threads
+	 * @param throughput measured tasks per hour, or 0 if not yet known
+	 * @return next batch, or null if done
+	 */
+	B requestBatch(int rank, int threads, int throughput) {
+		int[] ready_buf = { rank, threads, throughput };
+		MPI.COMM_WORLD.Send(ready_buf, 0, READY_LENGTH, MPI.INT, 0, MPJTaskCalculator.TAG_READY_FOR_BATCH);
+
+		int[] length_buf = new int[2];
+		MPI.COMM_WORLD.Recv(length_buf, 0, 2, MPI.INT, 0, MPJTaskCalculator.TAG_NEW_BATCH_LENGH);
+		if (length_buf[0] == 0)
+			return null;
+
+		Object encoded = allocate(length_buf[1]);
+		MPI.COMM_WORLD.Recv(encoded, 0, length_buf[1], getType(), 0, MPJTaskCalculator.TAG_NEW_BATCH);
+		return decode(encoded, length_buf[0]);
+	}
+
+	/**
+	 * Worker side: reports the given process to the dispatcher as failed, e.g. by the progress watchdog
+	 *
+	 * @param rank
+	 */
+	static void reportFailed(int rank) {
+		MPI.COMM_WORLD.Send(new int[] { -(rank+1), 0, 0 }, 0, READY_LENGTH, MPI.INT, 0,
+				MPJTaskCalculator.TAG_READY_FOR_BATCH);
+	}
+
+}
@@ -0,0 +1,158 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * JVM telemetry for a single batch: stop-the-world garbage collection count and time, bytes allocated, and peak heap
+ * usage. Call
+ * {@link #start()} before a batch is calculated and {@link #finish()} after, then log {@link #toString()}, which is
+ * parsed by {@link MPJTaskLogStatsGen} to report GC overhead per node.
+ * <br>
+ * GC time only includes stop-the-world collectors, as concurrent collectors (e.g. "G1 Concurrent GC", CMS, and the
+ * ZGC/Shenandoah cycle beans) report time spent running alongside the application threads, which would otherwise
+ * be counted as overhead. Concurrent collectors are identified by name, see {@link #CONCURRENT_COLLECTORS}.
+ * <br>
+ * Allocated bytes are only available if the JVM's {@link ThreadMXBean} supports thread allocation tracking (HotSpot
+ * does), and only include threads which are still alive when the batch finishes, so this undercounts if calculation
+ * threads are created and destroyed within each batch. Peak heap is the sum of the peak usage of each heap pool, which
+ * can slightly overestimate the true peak.
+ *
+ * @author Kevin Milner
+ *
+ */
+class BatchTelemetry {
+
+	static final String MESSAGE = "batch telemetry:";
+
+	private static final long BYTES_PER_MB = 1024l*1024l;
+
+	/**
+	 * Names of {@link GarbageCollectorMXBean}s whose collection time is mostly concurrent with the application
+	 */
+	static final Set<String> CONCURRENT_COLLECTORS = ImmutableSet.of("G1 Concurrent GC", "ConcurrentMarkSweep",
+			"ZGC", "ZGC Cycles", "ZGC Major Cycles", "ZGC Minor Cycles", "Shenandoah Cycles");
+
+	private List<GarbageCollectorMXBean> gcBeans;
+	private List<MemoryPoolMXBean> heapPools;
+	private com.sun.management.ThreadMXBean threadBean;
+
+	private long startGCCount;
+	private long startGCMillis;
+	private long startAllocated;
+
+	private long gcCount = -1;
+	private long gcMillis = -1;
+	private long allocatedBytes = -1;
+	private long peakHeapBytes = -1;
+
+	BatchTelemetry() {
+		this(ManagementFactory.getGarbageCollectorMXBeans(), ManagementFactory.getMemoryPoolMXBeans());
+	}
+
+	/**
+	 * @param collectors garbage collectors to track, concurrent collectors are skipped
+	 * @param pools memory pools to track, non heap pools are skipped
+	 */
+	BatchTelemetry(List<GarbageCollectorMXBean> collectors, List<MemoryPoolMXBean> pools) {
+		gcBeans = new ArrayList<>();
+		for (GarbageCollectorMXBean bean : collectors)
+			if (!CONCURRENT_COLLECTORS.contains(bean.getName()))
+				gcBeans.add(bean);
+		heapPools = new ArrayList<>();
+		for (MemoryPoolMXBean pool : pools)
+			if (pool.getType() == MemoryType.HEAP)
+				heapPools.add(pool);
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		try {
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+				if (sunBean.isThreadAllocatedMemorySupported()) {
+					if (!sunBean.isThreadAllocatedMemoryEnabled())
+						sunBean.setThreadAllocatedMemoryEnabled(true);
+					threadBean = sunBean;
+				}
+			}
+		} catch (UnsupportedOperationException | SecurityException | NoClassDefFoundError e) {
+			// not supported on this JVM
+		}
+	}
+
+	void start() {
+		startGCCount = getGCCount();
+		startGCMillis = getGCMillis();
+		startAllocated = sumThreadAllocatedBytes();
+		for (MemoryPoolMXBean pool : heapPools)
+			pool.resetPeakUsage();
+	}
+
+	void finish() {
+		gcCount = getGCCount() - startGCCount;
+		gcMillis = getGCMillis() - startGCMillis;
+		allocatedBytes = threadBean == null ? -1 : Long.max(0l, sumThreadAllocatedBytes() - startAllocated);
+		peakHeapBytes = 0;
+		for (MemoryPoolMXBean pool : heapPools)
+			peakHeapBytes += pool.getPeakUsage().getUsed();
+	}
+
+	private long getGCCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean bean : gcBeans)
+			count += Long.max(0l, bean.getCollectionCount());
+		return count;
+	}
+
+	private long getGCMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean bean : gcBeans)
+			millis += Long.max(0l, bean.getCollectionTime());
+		return millis;
+	}
+
+	private long sumThreadAllocatedBytes() {
+		if (threadBean == null)
+			return -1;
+		long[] allocated = threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds());
+		long sum = 0;
+		for (long bytes : allocated)
+			if (bytes > 0)
+				sum += bytes;
+		return sum;
+	}
+
+	long getGCCountDelta() {
+		return gcCount;
+	}
+
+	long getGCMillisDelta() {
+		return gcMillis;
+	}
+
+	long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	long getPeakHeapBytes() {
+		return peakHeapBytes;
+	}
+
+	/**
+	 * @return log message, e.g. "batch telemetry: gcCount=3, gcMillis=120, allocMB=512, peakHeapMB=2048", with
+	 * allocMB=-1 if unknown. gcCount and gcMillis are for stop-the-world collections only
+	 */
+	@Override
+	public String toString() {
+		return MESSAGE+" gcCount="+gcCount+", gcMillis="+gcMillis
+				+", allocMB="+(allocatedBytes < 0 ? -1 : allocatedBytes/BYTES_PER_MB)
+				+", peakHeapMB="+peakHeapBytes/BYTES_PER_MB;
+	}
+
+}
@@ -0,0 +1,146 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Post batch hook wrapper which merges completed batches (across all processes) and passes them on to the underlying
+ * hook in larger chunks. Useful when tasks are short and the underlying hook has a high fixed cost per call, such
+ * as opening or syncing a file.
+ * <br>
+ * Accumulated task indexes are passed on once at least <code>maxTasks</code> have been accumulated, or once the
+ * oldest accumulated batch is <code>maxDelayMillis</code> old (checked in the background). Remaining tasks are passed
+ * on by {@link #flush()} or {@link #shutdown()}, which must be called once all batches are complete, e.g. from
+ * {@link MPJTaskCalculator#doFinalAssembly()}.
+ * <br>
+ * The underlying hook is never called concurrently. The process index passed to it is the process which completed
+ * every task in the merged batch, or -1 if they came from more than one process.
+ *
+ * @author Kevin Milner
+ *
+ */
+public class CoalescingPostBatchHook implements PostBatchHook {
+
+	private PostBatchHook hook;
+	private int maxTasks;
+	private long maxDelayMillis;
+
+	private int[] pending;
+	private int numPending;
+	private int pendingProcessIndex;
+	// System.nanoTime() of the first pending batch
+	private long pendingStart;
+
+	private ScheduledExecutorService flushScheduler;
+
+	private long numBatchesIn;
+	private long numBatchesOut;
+
+	/**
+	 * @param hook underlying hook
+	 * @param maxTasks number of accumulated tasks at which they will be passed on
+	 * @param maxDelayMillis maximum time that accumulated tasks will be held before being passed on, or <= 0 to only
+	 * pass them on when full (or flushed)
+	 */
+	public CoalescingPostBatchHook(PostBatchHook hook, int maxTasks, long maxDelayMillis) {
+		Preconditions.checkNotNull(hook);
+		Preconditions.checkArgument(maxTasks > 0, "maxTasks must be > 0");
+		this.hook = hook;
+		this.maxTasks = maxTasks;
+		this.maxDelayMillis = maxDelayMillis;
+
+		pending = new int[Integer.min(maxTasks, 1024)];
+
+		if (maxDelayMillis > 0) {
+			flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "CoalescingPostBatchHook flush");
+					// don't keep the JVM alive if shutdown is never called
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			long checkMillis = Long.max(1l, maxDelayMillis/4);
+			flushScheduler.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					flushIfExpired();
+				}
+			}, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public synchronized void batchProcessed(int[] batch, int processIndex) {
+		if (batch.length == 0)
+			return;
+		numBatchesIn++;
+		if (numPending == 0) {
+			pendingStart = System.nanoTime();
+			pendingProcessIndex = processIndex;
+		} else if (pendingProcessIndex != processIndex) {
+			pendingProcessIndex = -1;
+		}
+		if (numPending + batch.length > pending.length)
+			pending = Arrays.copyOf(pending, Integer.max(numPending + batch.length, pending.length*2));
+		System.arraycopy(batch, 0, pending, numPending, batch.length);
+		numPending += batch.length;
+
+		if (numPending >= maxTasks || isExpired())
+			flush();
+	}
+
+	private boolean isExpired() {
+		return maxDelayMillis > 0 && numPending > 0
+				&& System.nanoTime() - pendingStart >= TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+	}
+
+	private synchronized void flushIfExpired() {
+		if (isExpired())
+			flush();
+	}
+
+	/**
+	 * Passes any accumulated tasks on to the underlying hook
+	 */
+	public synchronized void flush() {
+		if (numPending == 0)
+			return;
+		int[] merged = Arrays.copyOf(pending, numPending);
+		int processIndex = pendingProcessIndex;
+		numPending = 0;
+		if (pending.length > maxTasks)
+			// don't hold on to an oversized buffer from a single large batch
+			pending = new int[Integer.min(maxTasks, 1024)];
+		numBatchesOut++;
+		hook.batchProcessed(merged, processIndex);
+	}
+
+	/**
+	 * Passes any accumulated tasks on to the underlying hook, and stops the background flush thread (if any). If the
+	 * underlying hook is an {@link AsyncPostBatchHook}, it is also shut down.
+	 */
+	public void shutdown() {
+		if (flushScheduler != null)
+			flushScheduler.shutdownNow();
+		flush();
+		if (hook instanceof AsyncPostBatchHook)
+			((AsyncPostBatchHook)hook).shutdown();
+	}
+
+	/**
+	 * @return String representation of the number of batches received and passed on to the underlying hook
+	 */
+	public synchronized String getCountsString() {
+		return "batches in="+numBatchesIn+", batches out="+numBatchesOut+", pending tasks="+numPending;
+	}
+
+}
@@ -13,9 +13,9 @@ import java.lang.management.ThreadMXBean;
 class DeadlockDetectionThread extends Thread {
 	
 	private long checkMillis;
-	private ThreadMXBean tmx;
+	protected ThreadMXBean tmx;
 	
-	private boolean killed = false;
+	private volatile boolean killed = false;
 	
 	public DeadlockDetectionThread(long checkMillis) {
 		this.checkMillis = checkMillis;
@@ -29,16 +29,7 @@ class DeadlockDetectionThread extends Thread {
 			tmx = ManagementFactory.getThreadMXBean();
 		
 		while (!killed) {
-//			System.out.print("Checking for deadlock...");
-			long[] ids = tmx.findDeadlockedThreads();
-//			System.out.println("DONE.");
-			if (ids != null) {
-				ThreadInfo[] infos = tmx.getThreadInfo(ids, true, true);
-				System.out.println("The following threads are deadlocked:");
-				for (ThreadInfo ti : infos) {
-					System.out.println(ti);
-				}
-			}
+			check();
 			
 			try {
 				Thread.sleep(checkMillis);
@@ -46,6 +37,22 @@ class DeadlockDetectionThread extends Thread {
 		}
 	}
 	
+	/**
+	 * Called every checkMillis, checks for deadlocked threads. Subclasses can override to add additional checks.
+	 */
+	protected void check() {
+//		System.out.print("Checking for deadlock...");
+		long[] ids = tmx.findDeadlockedThreads();
+//		System.out.println("DONE.");
+		if (ids != null) {
+			ThreadInfo[] infos = tmx.getThreadInfo(ids, true, true);
+			System.out.println("The following threads are deadlocked:");
+			for (ThreadInfo ti : infos) {
+				System.out.println(ti);
+			}
+		}
+	}
+	
 	public void kill() {
 		killed = true;
 	}
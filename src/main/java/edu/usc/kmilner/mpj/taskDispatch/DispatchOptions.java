@@ -0,0 +1,73 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+import org.apache.commons.cli.CommandLine;
+
+/**
+ * Command line options shared by {@link MPJTaskCalculator} and {@link MPJLongTaskCalculator}: thread count, batch
+ * size bounds, the task index range, the job end time, and deadlock detection. See
+ * {@link MPJTaskCalculator#createOptions()} for the options themselves.
+ *
+ * @author Kevin Milner
+ *
+ */
+class DispatchOptions {
+
+	int numThreads = Utils.getAvailableProcessors();
+	// --threads auto
+	boolean autoThreads = false;
+	int minDispatch = MPJTaskCalculator.MIN_DISPATCH_DEFAULT;
+	int maxDispatch = MPJTaskCalculator.MAX_DISPATCH_DEFAULT;
+	int exactDispatch = -1;
+	boolean rootDispatchOnly = false;
+	long startIndex = -1;
+	long endIndex = -1;
+	LocalDateTime endTime = null;
+	boolean deadlockDetection = false;
+
+	DispatchOptions(CommandLine cmd) {
+		if (cmd.hasOption("threads")) {
+			if (cmd.getOptionValue("threads").equalsIgnoreCase("auto"))
+				autoThreads = true;
+			else
+				numThreads = Integer.parseInt(cmd.getOptionValue("threads"));
+		}
+
+		if (cmd.hasOption("min-dispatch"))
+			minDispatch = Integer.parseInt(cmd.getOptionValue("min-dispatch"));
+
+		if (cmd.hasOption("max-dispatch"))
+			maxDispatch = Integer.parseInt(cmd.getOptionValue("max-dispatch"));
+
+		if (cmd.hasOption("exact-dispatch"))
+			exactDispatch = Integer.parseInt(cmd.getOptionValue("exact-dispatch"));
+
+		if (cmd.hasOption("root-dispatch-only"))
+			rootDispatchOnly = true;
+
+		deadlockDetection = cmd.hasOption("deadlock");
+
+		if (cmd.hasOption("start-index"))
+			startIndex = Long.parseLong(cmd.getOptionValue("start-index"));
+
+		if (cmd.hasOption("end-index"))
+			endIndex = Long.parseLong(cmd.getOptionValue("end-index"));
+
+		if (cmd.hasOption("end-time"))
+			endTime = LocalDateTime.parse(cmd.getOptionValue("end-time"), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+	}
+
+	/**
+	 * @param index start or end index
+	 * @return the given index as an int, for {@link MPJTaskCalculator}
+	 */
+	static int toIntIndex(long index) {
+		if (index > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Task index "+index+" is too large, use MPJLongTaskCalculator for more"
+					+ " than "+Integer.MAX_VALUE+" tasks");
+		return (int)index;
+	}
+
+}
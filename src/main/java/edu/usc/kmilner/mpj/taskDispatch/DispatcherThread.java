@@ -2,33 +2,44 @@ package edu.usc.kmilner.mpj.taskDispatch;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
+import java.util.Comparator;
 import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-
-import mpi.MPI;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 /**
  * Dispatcher thread handles dispatching of tasks to each worker. Tasks are dispatched in batches, whose size is dependent
- * on the number of tasks remaining, the number of workers, and pre-set bounds. Tasks are dispatched via MPI.
+ * on the number of tasks remaining, the number of workers, and pre-set bounds. Tasks are dispatched via MPI, see
+ * {@link AbstractDispatcherThread} for the dispatch loop. READY messages also carry each process's thread count and
+ * measured throughput, which are used to size batches by capacity if enabled with
+ * {@link #setCapacityWeighted(boolean)}.
  * 
  * @author Kevin Milner
  *
  */
-class DispatcherThread extends Thread {
-	
-	private static final boolean D = true;
+class DispatcherThread extends AbstractDispatcherThread<int[]> {
 	
-	private int size;
+	// elastic workers (see ElasticWorkerServer) have process indexes >= size
+	private volatile int numElasticWorkers;
+	private int nextElasticIndex;
 	private int maxPerDispatch;
 	private int minPerDispatch;
 	private int exactDispatch;
@@ -36,7 +47,38 @@ class DispatcherThread extends Thread {
 	private Deque<Integer> stack;
 	
 	private PostBatchHook postBatchHook;
-	private Map<Integer, int[]> outstandingBatches;
+	private volatile int numLeftToDispatch;
+	
+	private TaskCostProfile costProfile;
+	// estimated cost of each task from the cost profile at startup, null if no costs were known
+	private float[] estCosts;
+	private double remainingCost;
+	
+	// estimated memory of each task and maximum aggregate memory per batch, if capped
+	private long[] taskMemory;
+	private long maxBatchMemory;
+	// task space whose ordering the stack is in, batches are ended at tile boundaries if non null
+	private TaskSpace taskSpace;
+	// if true, batches are sized in proportion to each process's reported capacity
+	private boolean capacityWeighted;
+	// thread count and measured throughput (tasks per hour, 0 if not yet measured) last reported by each process
+	private Map<Integer, Integer> capacityThreads = Maps.newHashMap();
+	private Map<Integer, Integer> capacityThroughput = Maps.newHashMap();
+	// CPU to pin this thread to when it starts running, or -1
+	private int pinnedCPU = -1;
+	/**
+	 * Default maximum number of post batch hooks which can be queued or running at once, see
+	 * {@link #setMaxQueuedHooks(int)}
+	 */
+	static final int DEFAULT_MAX_QUEUED_HOOKS = 100;
+	
+	// single threaded stage where post batch hooks are run, created when first needed
+	private ExecutorService hookStage;
+	// permits for each hook that can be queued or running, held from submission until the hook completes
+	private Semaphore hookPermits = new Semaphore(DEFAULT_MAX_QUEUED_HOOKS);
+	private int maxQueuedHooks = DEFAULT_MAX_QUEUED_HOOKS;
+	private long hookBlockedNanos;
+	private AtomicReference<Throwable> hookFailure = new AtomicReference<>();
 	
 	DispatcherThread(int size, int numTasks, int minPerDispatch, int maxPerDispatch, boolean shuffle) {
 		this(size, numTasks, minPerDispatch, maxPerDispatch, -1, shuffle, 0, numTasks, null, null);
@@ -45,11 +87,36 @@ class DispatcherThread extends Thread {
 	DispatcherThread(int size, int numTasks, int minPerDispatch, int maxPerDispatch,
 			int exactDispatch, boolean shuffle, int startIndex, int endIndex, PostBatchHook postBatchHook,
 			Collection<Integer> doneIndexes) {
-		this.size = size;
+		this(size, numTasks, minPerDispatch, maxPerDispatch, exactDispatch, shuffle, startIndex, endIndex,
+				postBatchHook, doneIndexes, null);
+	}
+	
+	/**
+	 * 
+	 * @param size
+	 * @param numTasks
+	 * @param minPerDispatch
+	 * @param maxPerDispatch
+	 * @param exactDispatch
+	 * @param shuffle
+	 * @param startIndex
+	 * @param endIndex
+	 * @param postBatchHook
+	 * @param doneIndexes
+	 * @param costProfile optional cost profile from previous runs. If it has any known costs, batches are sized by
+	 * estimated cost rather than task count (within the min/max bounds), and if shuffle is enabled tasks are
+	 * dispatched longest first. Batch durations are recorded to it as batches are retired.
+	 */
+	DispatcherThread(int size, int numTasks, int minPerDispatch, int maxPerDispatch,
+			int exactDispatch, boolean shuffle, int startIndex, int endIndex, PostBatchHook postBatchHook,
+			Collection<Integer> doneIndexes, TaskCostProfile costProfile) {
+		super("DispatcherThread", size, BatchProtocol.INT_BATCHES);
+		this.nextElasticIndex = size;
 		this.minPerDispatch = minPerDispatch;
 		this.maxPerDispatch = maxPerDispatch;
 		this.exactDispatch = exactDispatch;
 		this.postBatchHook = postBatchHook;
+		this.costProfile = costProfile;
 		Preconditions.checkArgument(minPerDispatch <= maxPerDispatch, "min per dispatch must be <= max");
 		Preconditions.checkArgument(minPerDispatch >= 1, "min per dispatch must be >= 1");
 		Preconditions.checkArgument(size >= 1, "size must be >= 1");
@@ -60,7 +127,8 @@ class DispatcherThread extends Thread {
 				"End index must be > 0, greater than startIndex, and less than or equal to the number of tasks.");
 		
 		debug("starting with "+size+" processes and "+numTasks+" sites." +
-				" minPerDispatch="+minPerDispatch+", maxPerDispatch="+maxPerDispatch);
+				" minPerDispatch="+minPerDispatch+", maxPerDispatch="+maxPerDispatch
+				+(exactDispatch > 0 ? ", exactDispatch="+exactDispatch : ""));
 		if (startIndex > 0 || endIndex < numTasks)
 			debug("startIndex="+startIndex+", endIndex="+endIndex);
 		
@@ -76,29 +144,536 @@ class DispatcherThread extends Thread {
 			debug("shuffling stack");
 			Collections.shuffle(list, new Random(size*numTasks));
 		}
+		
+		if (costProfile != null && costProfile.getNumKnown() > 0) {
+			Preconditions.checkState(costProfile.getNumTasks() == numTasks,
+					"Cost profile is for %s tasks, have %s", costProfile.getNumTasks(), numTasks);
+			estCosts = new float[numTasks];
+			for (int index : list) {
+				estCosts[index] = (float)costProfile.getCostOrMean(index);
+				remainingCost += estCosts[index];
+			}
+			debug("loaded cost profile with "+costProfile.getNumKnown()+"/"+numTasks+" known task costs, "
+					+"estimated total cost: "+Utils.smartTimePrint(remainingCost));
+			if (shuffle) {
+				// longest first, stable so that ties keep the shuffled order
+				debug("sorting stack by estimated cost");
+				final float[] costs = estCosts;
+				Collections.sort(list, new Comparator<Integer>() {
+					
+					@Override
+					public int compare(Integer o1, Integer o2) {
+						return Float.compare(costs[o2], costs[o1]);
+					}
+				});
+			}
+		}
 		stack = new ArrayDeque<Integer>(list);
-		outstandingBatches = Maps.newHashMap();
+		numLeftToDispatch = stack.size();
 	}
 	
 	void setPostBatchHook(PostBatchHook postBatchHook) {
 		this.postBatchHook = postBatchHook;
 	}
 	
-	synchronized int[] getNextBatch(int processIndex) {
-		if (outstandingBatches.containsKey(processIndex)) {
-			int[] prevBatch = outstandingBatches.get(processIndex);
-			if (postBatchHook != null) {
-				debug("process "+processIndex+" just finished a batch of length "+prevBatch.length+". running post-batch hook");
-				outstandingBatches.remove(processIndex);
-				postBatchHook.batchProcessed(prevBatch, processIndex);
-				debug("done running post-batch hook for process "+processIndex);
+	/**
+	 * Caps the aggregate estimated memory of each batch, so that a single process isn't sent many large tasks at
+	 * once. Batches always contain at least one task, and may be smaller than the minimum batch size when capped.
+	 * Must be set before dispatching starts.
+	 * 
+	 * @param maxBatchMemory maximum aggregate memory per batch in bytes
+	 * @param taskMemory estimated memory of each task in bytes (indexed by task), with unknown estimates <= 0
+	 */
+	void setBatchMemoryCap(long maxBatchMemory, long[] taskMemory) {
+		Preconditions.checkArgument(maxBatchMemory > 0, "max batch memory must be > 0");
+		this.maxBatchMemory = maxBatchMemory;
+		this.taskMemory = taskMemory;
+		debug("capping batch memory at "+(maxBatchMemory/(1024l*1024l))+" MB");
+	}
+	
+	private boolean exceedsMemoryCap(long batchMemory, int nextIndex) {
+		return taskMemory != null && batchMemory + Long.max(0l, taskMemory[nextIndex]) > maxBatchMemory;
+	}
+	
+	/**
+	 * Reorders the undispatched tasks by the ordering policy of the given task space (replacing any shuffle or cost
+	 * ordering), and ends batches at tile boundaries once they contain at least the minimum batch size, so that
+	 * each batch covers as few tiles as possible. Must be set before dispatching starts.
+	 * 
+	 * @param taskSpace
+	 */
+	synchronized void setTaskSpace(final TaskSpace taskSpace) {
+		this.taskSpace = taskSpace;
+		debug("ordering stack by task space: "+taskSpace);
+		List<Integer> list = new ArrayList<>(stack);
+		final long[] keys = new long[taskSpace.getNumTasks()];
+		for (int index : list)
+			keys[index] = taskSpace.getOrderKey(index);
+		Collections.sort(list, new Comparator<Integer>() {
+			
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Long.compare(keys[o1], keys[o2]);
+			}
+		});
+		stack = new ArrayDeque<Integer>(list);
+	}
+	
+	/**
+	 * Reorders the undispatched tasks so that higher priority classes are dispatched first. The sort is stable, so
+	 * tasks within each class keep their existing order (shuffled, by cost, or by task space). Tasks requeued from
+	 * failed processes are still dispatched next regardless of priority. Must be set before dispatching starts, and
+	 * after {@link #setTaskSpace(TaskSpace)} if used.
+	 * 
+	 * @param priorities priority of each task (indexed by task), higher is dispatched first
+	 */
+	synchronized void setTaskPriorities(final int[] priorities) {
+		List<Integer> list = new ArrayList<>(stack);
+		Collections.sort(list, new Comparator<Integer>() {
+			
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Integer.compare(priorities[o2], priorities[o1]);
+			}
+		});
+		Map<Integer, Integer> classCounts = new TreeMap<>(Collections.reverseOrder());
+		for (int index : list) {
+			Integer count = classCounts.get(priorities[index]);
+			classCounts.put(priorities[index], count == null ? 1 : count + 1);
+		}
+		debug("ordering stack by priority class (priority=count): "+Joiner.on(", ").withKeyValueSeparator("=")
+				.join(classCounts));
+		stack = new ArrayDeque<Integer>(list);
+	}
+	
+	/**
+	 * Pins this thread to the given CPU once it starts running, see {@link Utils#pinCurrentThread(int)}. Must be
+	 * called before the thread is started.
+	 * 
+	 * @param cpu
+	 */
+	void setPinnedCPU(int cpu) {
+		this.pinnedCPU = cpu;
+	}
+	
+	/**
+	 * Enables batch sizes in proportion to each process's capacity (see {@link #setProcessCapacity(int, int, int)}),
+	 * rather than dividing the remaining tasks evenly among processes. Count based batches are also rounded to a
+	 * multiple of the thread count of the process, so that no thread sits idle at the end of a batch.
+	 * 
+	 * @param capacityWeighted
+	 */
+	void setCapacityWeighted(boolean capacityWeighted) {
+		this.capacityWeighted = capacityWeighted;
+	}
+	
+	/**
+	 * Records the capacity of the given process, as reported with each READY message. Processes which haven't
+	 * reported are assumed to have the average capacity of those which have.
+	 * 
+	 * @param processIndex
+	 * @param threads number of calculation threads
+	 * @param throughput measured tasks per hour, or 0 if not yet known
+	 */
+	@Override
+	synchronized void setProcessCapacity(int processIndex, int threads, int throughput) {
+		capacityThreads.put(processIndex, threads);
+		capacityThroughput.put(processIndex, throughput);
+	}
+	
+	/**
+	 * @param processIndex
+	 * @return fraction of the total capacity of all processes that the given process represents
+	 */
+	private double getCapacityShare(int processIndex) {
+		int numProcs = size + numElasticWorkers;
+		Integer procThreads = capacityThreads.get(processIndex);
+		if (procThreads == null || numProcs < 2)
+			return 1d/(double)numProcs;
+		// throughput per thread of those processes which have measured it, so that processes which haven't can be
+		// compared to those which have
+		long measuredThreads = 0;
+		long measuredThroughput = 0;
+		long totalThreads = 0;
+		for (int index : capacityThreads.keySet()) {
+			int threads = capacityThreads.get(index);
+			totalThreads += threads;
+			int throughput = capacityThroughput.get(index);
+			if (throughput > 0) {
+				measuredThreads += threads;
+				measuredThroughput += throughput;
 			}
 		}
+		double perThread = measuredThreads > 0 ? (double)measuredThroughput/(double)measuredThreads : 1d;
+		double totalWeight = 0d;
+		for (int index : capacityThreads.keySet())
+			totalWeight += getCapacityWeight(index, perThread);
+		// processes which haven't reported yet
+		int numUnreported = numProcs - capacityThreads.size();
+		if (numUnreported > 0)
+			totalWeight += numUnreported * perThread * (double)totalThreads/(double)capacityThreads.size();
+		return getCapacityWeight(processIndex, perThread)/totalWeight;
+	}
+	
+	private double getCapacityWeight(int processIndex, double perThread) {
+		int throughput = capacityThroughput.get(processIndex);
+		if (throughput > 0)
+			return throughput;
+		return perThread * capacityThreads.get(processIndex);
+	}
+	
+	private boolean crossesTile(int prevIndex, int nextIndex) {
+		return taskSpace != null && taskSpace.getTile(prevIndex) != taskSpace.getTile(nextIndex);
+	}
+	
+	/**
+	 * Returns the next batch for the given process, retiring the previous batch for that process. The post batch hook
+	 * (if any) for the previous batch is run outside of the dispatch lock on a separate single threaded stage, which
+	 * preserves the order that batches are retired in. This method waits for that hook to complete before returning,
+	 * but other processes can be dispatched to in the meantime.
+	 * 
+	 * @param processIndex
+	 * @return next batch, or an empty array if no tasks are left
+	 */
+	int[] getNextBatch(int processIndex) {
+		return getNextBatch(processIndex, true);
+	}
+	
+	/**
+	 * @param processIndex
+	 * @param waitForHook if true, wait for the post batch hook for the previous batch to complete before returning.
+	 * Either way, this blocks if the hook stage is full (see {@link #setMaxQueuedHooks(int)}).
+	 * @return next batch, or an empty array if no tasks are left
+	 */
+	int[] getNextBatch(int processIndex, boolean waitForHook) {
+		checkHookFailure();
+		Future<?> hookFuture = null;
+		int[] batch;
+		// reserve space on the hook stage before taking the dispatch lock, so that a full stage applies backpressure
+		// without blocking other processes from retiring batches that don't need a hook
+		boolean hookPermit = false;
+		if (postBatchHook != null && outstandingBatches.containsKey(processIndex)) {
+			if (!hookPermits.tryAcquire()) {
+				long start = System.nanoTime();
+				hookPermits.acquireUninterruptibly();
+				long blocked = System.nanoTime() - start;
+				synchronized (this) {
+					hookBlockedNanos += blocked;
+				}
+				checkHookFailure();
+			}
+			hookPermit = true;
+		}
+		synchronized (this) {
+			clearFailed(processIndex);
+			if (outstandingBatches.containsKey(processIndex)) {
+				int[] prevBatch = outstandingBatches.remove(processIndex);
+				long startNanos = outstandingStarts.remove(processIndex);
+				if (costProfile != null)
+					costProfile.recordBatch(prevBatch,
+							TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+				if (postBatchHook != null) {
+					if (!hookPermit) {
+						// dispatched to this process since we checked (rare). hooks don't take the dispatch lock, so
+						// waiting for space while holding it can't deadlock
+						hookPermits.acquireUninterruptibly();
+						hookPermit = true;
+					}
+					// submitted while holding the lock so that hooks run in the order that batches are retired
+					hookFuture = submitHook(prevBatch, processIndex);
+					hookPermit = false;
+				}
+			}
+			batch = nextBatch(processIndex);
+			if (processIndex >= size)
+				// an elastic worker retired a batch, see waitForElasticWorkers()
+				notifyAll();
+		}
+		if (hookPermit)
+			// previous batch was requeued (or retired) elsewhere in the meantime
+			hookPermits.release();
+		if (waitForHook && hookFuture != null) {
+			try {
+				hookFuture.get();
+			} catch (InterruptedException e) {
+				throw Utils.asRuntimeException(e);
+			} catch (ExecutionException e) {
+				throw Utils.asRuntimeException(e.getCause());
+			}
+		}
+		return batch;
+	}
+	
+	@Override
+	int[] getNextBatchForReady(int processIndex) {
+		// don't wait for hooks here, the batches can be sent while they run (this still blocks if the hook stage is
+		// full, see setMaxQueuedHooks)
+		return getNextBatch(processIndex, false);
+	}
+	
+	@Override
+	long getNumLeftToDispatch() {
+		return numLeftToDispatch;
+	}
+	
+	@Override
+	String describe(int[] batch) {
+		return "of "+batch.length;
+	}
+	
+	private int[] nextBatch(int processIndex) {
 		int numLeft = stack.size();
 		debug("getting batch with "+numLeft+" left");
 		if (numLeft == 0)
 			return new int[0];
 		
+		boolean weighted = capacityWeighted && capacityThreads.containsKey(processIndex);
+		// fraction of the remaining work which this process should get
+		double share = weighted ? getCapacityShare(processIndex) : 1d/(double)(size + numElasticWorkers);
+		
+		int[] batch;
+		if (estCosts != null && exactDispatch <= 0) {
+			batch = nextCostBatch(numLeft, share);
+		} else {
+			int numToDispatch;
+			if (weighted)
+				numToDispatch = calcWeightedBatchSize(numLeft, share, capacityThreads.get(processIndex),
+						minPerDispatch, maxPerDispatch, exactDispatch);
+			else
+				numToDispatch = calcBatchSize(numLeft, size + numElasticWorkers, minPerDispatch, maxPerDispatch,
+						exactDispatch);
+			
+			batch = new int[numToDispatch];
+			long batchMemory = 0l;
+			for (int i=0; i<numToDispatch; i++) {
+				if (i > 0 && exceedsMemoryCap(batchMemory, stack.peek())
+						|| i >= minPerDispatch && crossesTile(batch[i-1], stack.peek())) {
+					batch = Arrays.copyOf(batch, i);
+					break;
+				}
+				batch[i] = stack.pop();
+				if (taskMemory != null)
+					batchMemory += Long.max(0l, taskMemory[batch[i]]);
+			}
+			if (estCosts != null)
+				for (int index : batch)
+					remainingCost -= estCosts[index];
+		}
+		
+		numLeftToDispatch = stack.size();
+		debug("returning batch of size: "+batch.length);
+		
+		outstandingBatches.put(processIndex, batch);
+		outstandingStarts.put(processIndex, System.nanoTime());
+		
+		return batch;
+	}
+	
+	/**
+	 * Cost based equivalent of {@link #calcBatchSize(int, int, int, int, int)}: the given share of the estimated cost
+	 * remaining, within the min/max task count bounds. {@link MPJTaskLogStatsGen} simulates the count based rule, so
+	 * its estimates are approximate when a cost profile is used.
+	 */
+	private int[] nextCostBatch(int numLeft, double share) {
+		double targetCost = remainingCost * share;
+		int maxToDispatch = Integer.min(numLeft, maxPerDispatch);
+		int[] batch = new int[maxToDispatch];
+		int numToDispatch = 0;
+		double batchCost = 0d;
+		long batchMemory = 0l;
+		while (numToDispatch < maxToDispatch
+				&& (numToDispatch < minPerDispatch || batchCost < targetCost)) {
+			if (numToDispatch > 0 && exceedsMemoryCap(batchMemory, stack.peek()))
+				break;
+			if (numToDispatch >= minPerDispatch && crossesTile(batch[numToDispatch-1], stack.peek()))
+				break;
+			int index = stack.pop();
+			batch[numToDispatch++] = index;
+			batchCost += estCosts[index];
+			if (taskMemory != null)
+				batchMemory += Long.max(0l, taskMemory[index]);
+		}
+		remainingCost -= batchCost;
+		if (numToDispatch < maxToDispatch)
+			batch = Arrays.copyOf(batch, numToDispatch);
+		return batch;
+	}
+	
+	/**
+	 * Puts the given batch back at the front of the stack (see {@link #processFailed(int)})
+	 */
+	@Override
+	void requeue(int[] batch) {
+		for (int i=batch.length; --i>=0;) {
+			stack.push(batch[i]);
+			if (estCosts != null)
+				remainingCost += estCosts[batch[i]];
+		}
+		numLeftToDispatch = stack.size();
+	}
+	
+	/**
+	 * Registers a new elastic worker, which can then get batches through {@link #getNextBatch(int)} with the returned
+	 * process index, and is included in batch size calculations until it leaves
+	 * 
+	 * @return process index for the new worker
+	 */
+	synchronized int elasticWorkerJoined() {
+		int processIndex = nextElasticIndex++;
+		numElasticWorkers++;
+		debug("elastic worker "+processIndex+" joined, "+numElasticWorkers+" elastic workers");
+		return processIndex;
+	}
+	
+	/**
+	 * Called when an elastic worker leaves (or its connection is lost). Its outstanding batch (if any) is requeued as
+	 * in {@link #processFailed(int)}.
+	 * 
+	 * @param processIndex
+	 */
+	synchronized void elasticWorkerLeft(int processIndex) {
+		numElasticWorkers--;
+		capacityThreads.remove(processIndex);
+		capacityThroughput.remove(processIndex);
+		requeueOutstanding(processIndex, "left");
+		notifyAll();
+	}
+	
+	/**
+	 * @return true if there are no tasks left to dispatch, and no elastic workers have outstanding batches, in which
+	 * case nothing can be requeued by elastic workers leaving
+	 */
+	synchronized boolean isElasticDone() {
+		if (!stack.isEmpty())
+			return false;
+		for (int processIndex : outstandingBatches.keySet())
+			if (processIndex >= size)
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Waits until there are tasks to dispatch (e.g. requeued when an elastic worker left) or elastic workers are done
+	 * (see {@link #isElasticDone()}). Woken when an elastic worker leaves or asks for a new batch.
+	 * 
+	 * @throws InterruptedException
+	 */
+	synchronized void waitForElasticWorkers() throws InterruptedException {
+		while (stack.isEmpty() && !isElasticDone())
+			wait();
+	}
+	
+	private Future<?> submitHook(final int[] batch, final int processIndex) {
+		final PostBatchHook hook = postBatchHook;
+		Runnable run = new Runnable() {
+			
+			@Override
+			public void run() {
+				debug("process "+processIndex+" just finished a batch of length "+batch.length
+						+". running post-batch hook");
+				try {
+					hook.batchProcessed(batch, processIndex);
+				} catch (RuntimeException | Error e) {
+					hookFailure.compareAndSet(null, e);
+					throw e;
+				} finally {
+					hookPermits.release();
+				}
+				debug("done running post-batch hook for process "+processIndex);
+			}
+		};
+		if (hookStage == null)
+			hookStage = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "DispatcherThread post-batch hook");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		if (hookStage.isShutdown()) {
+			// hooks have already been drained, just run it here
+			FutureTask<?> task = new FutureTask<>(run, null);
+			task.run();
+			return task;
+		}
+		try {
+			return hookStage.submit(run);
+		} catch (RuntimeException e) {
+			hookPermits.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Sets the maximum number of post batch hooks which can be queued or running at once. Once full, retiring a batch
+	 * (and getting the next one) blocks until the oldest hook completes, so that a hook which is slower than the batch
+	 * rate slows down dispatching rather than queueing without limit. An {@link AsyncPostBatchHook} applies its own
+	 * backpressure by blocking in {@link PostBatchHook#batchProcessed(int[], int)}, which fills this stage in turn.
+	 * Must be called before any batches are retired.
+	 * 
+	 * @param maxQueuedHooks
+	 */
+	void setMaxQueuedHooks(int maxQueuedHooks) {
+		Preconditions.checkArgument(maxQueuedHooks > 0, "maxQueuedHooks must be > 0");
+		this.maxQueuedHooks = maxQueuedHooks;
+		this.hookPermits = new Semaphore(maxQueuedHooks);
+	}
+	
+	/**
+	 * @return number of post batch hooks which are currently queued or running
+	 */
+	int getNumQueuedHooks() {
+		return maxQueuedHooks - hookPermits.availablePermits();
+	}
+	
+	private void checkHookFailure() {
+		Throwable t = hookFailure.get();
+		if (t != null)
+			throw new IllegalStateException("Post-batch hook failed", t);
+	}
+	
+	/**
+	 * Waits for all post batch hooks for batches retired so far to complete, and rethrows any hook failure. Should be
+	 * called once all processes have finished (and retired their last batch).
+	 */
+	void waitForPostBatchHooks() {
+		ExecutorService stage;
+		synchronized (this) {
+			stage = hookStage;
+			if (stage != null)
+				stage.shutdown();
+		}
+		if (stage != null) {
+			debug("waiting for post-batch hooks to complete");
+			synchronized (this) {
+				if (hookBlockedNanos > 0)
+					debug("time blocked on full post-batch hook stage: "
+							+Utils.smartTimePrint(TimeUnit.NANOSECONDS.toMillis(hookBlockedNanos)));
+			}
+			try {
+				while (!stage.awaitTermination(1, TimeUnit.MINUTES));
+			} catch (InterruptedException e) {
+				throw Utils.asRuntimeException(e);
+			}
+		}
+		checkHookFailure();
+	}
+	
+	/**
+	 * Batch size rule: the number of tasks remaining divided evenly among all processes, within the min/max bounds,
+	 * unless an exact dispatch size is set. This is also used by {@link MPJTaskLogStatsGen} to simulate the
+	 * remainder of a job, so keep them in sync.
+	 * 
+	 * @param numLeft number of tasks left to dispatch
+	 * @param size number of processes
+	 * @param minPerDispatch
+	 * @param maxPerDispatch
+	 * @param exactDispatch exact batch size, or <= 0 to disable
+	 * @return number of tasks to dispatch in the next batch
+	 */
+	static int calcBatchSize(int numLeft, int size, int minPerDispatch, int maxPerDispatch, int exactDispatch) {
 		int numToDispatch;
 		if (exactDispatch > 0) {
 			numToDispatch = exactDispatch;
@@ -114,82 +689,56 @@ class DispatcherThread extends Thread {
 		
 		if (numToDispatch > numLeft)
 			numToDispatch = numLeft;
-		
-		int[] batch = new int[numToDispatch];
-		for (int i=0; i<numToDispatch; i++)
-			batch[i] = stack.pop();
-		
-		debug("returning batch of size: "+numToDispatch);
-		
-		outstandingBatches.put(processIndex, batch);
-		
-		return batch;
+		return numToDispatch;
 	}
 	
-	@Override
-	public void run() {
-		debug("now running.");
-		try {
-			// this keeps track of if each process has finished once all batches have been sent out;
-			boolean[] dones = new boolean[size];
-			for (int i=0; i<size; i++)
-				dones[i] = false;
-			
-			int[] single_int_buf = new int[1];
-			while (true) {
-				debug("waiting for READY message.");
-				// this receives a READY_FOR_BATCH message from any process. the process # is sent
-				MPI.COMM_WORLD.Recv(single_int_buf, 0, 1, MPI.INT, MPI.ANY_SOURCE, MPJTaskCalculator.TAG_READY_FOR_BATCH);
-				int proc_id = single_int_buf[0];
-				
-				debug("received READY from "+proc_id);
-				
-				int[] batch = getNextBatch(proc_id);
-				
-				// now we send the the length of the batch
-				single_int_buf[0] = batch.length;
-				debug("sending batch length ("+batch.length+") to: "+proc_id);
-				MPI.COMM_WORLD.Send(single_int_buf, 0, 1, MPI.INT, proc_id, MPJTaskCalculator.TAG_NEW_BATCH_LENGH);
-				
-				if (batch.length > 0) {
-					// now we send the batch to the process.
-					debug("sending batch of length "+batch.length+" to: "+proc_id);
-					MPI.COMM_WORLD.Send(batch, 0, batch.length, MPI.INT, proc_id, MPJTaskCalculator.TAG_NEW_BATCH);
-					dones[proc_id] = false;
-				} else {
-					// set the index for the process we just communicated with to "done"
-//					Preconditions.checkState(!dones[proc_id],
-//							"proc id "+proc_id+" has already been marked done!");
-					dones[proc_id] = true;
-					
-					// this means that we're done dispatching batches, and are waiting for everyone to report back
-					debug("checking if we're all done...");
-					List<Integer> notDones = Lists.newArrayList();
-					boolean allDone = true;
-					for (int i=1; i<size; i++) {
-						if (!dones[i]) {
-							allDone = false;
-							notDones.add(i);
-						}
-					}
-					if (allDone) {
-						// this means that all tasks have been calculated
-						debug("DONE!");
-						break;
-					}
-					debug("not yet. waiting on: "+Joiner.on(",").join(notDones));
-				}
+	/**
+	 * Capacity weighted equivalent of {@link #calcBatchSize(int, int, int, int, int)}: the given share of the tasks
+	 * remaining, within the min/max bounds, rounded up to a multiple of the thread count (or down if that would
+	 * exceed the maximum), unless an exact dispatch size is set.
+	 * 
+	 * @param numLeft number of tasks left to dispatch
+	 * @param share fraction of the total capacity of all processes that this process represents
+	 * @param threads number of threads of this process
+	 * @param minPerDispatch
+	 * @param maxPerDispatch
+	 * @param exactDispatch exact batch size, or <= 0 to disable
+	 * @return number of tasks to dispatch in the next batch
+	 */
+	static int calcWeightedBatchSize(int numLeft, double share, int threads, int minPerDispatch, int maxPerDispatch,
+			int exactDispatch) {
+		int numToDispatch;
+		if (exactDispatch > 0) {
+			numToDispatch = exactDispatch;
+		} else {
+			numToDispatch = (int)Math.ceil((double)numLeft * share);
+			if (numToDispatch > maxPerDispatch)
+				numToDispatch = maxPerDispatch;
+			if (numToDispatch < minPerDispatch)
+				numToDispatch = minPerDispatch;
+			if (threads > 1) {
+				int rounded = ((numToDispatch + threads - 1)/threads)*threads;
+				if (rounded > maxPerDispatch)
+					rounded = (maxPerDispatch/threads)*threads;
+				if (rounded > 0)
+					numToDispatch = rounded;
 			}
-		} catch (Throwable t) {
-			MPJTaskCalculator.abortAndExit(t);
 		}
+		
+		if (numToDispatch > numLeft)
+			numToDispatch = numLeft;
+		return numToDispatch;
 	}
 	
-	private static void debug(String message) {
-		if (!D)
-			return;
-		
-		System.out.println("["+MPJTaskCalculator.df.format(new Date())+" DispatcherThread]: "+message);
+	@Override
+	public void run() {
+		if (pinnedCPU >= 0) {
+			if (Utils.pinCurrentThread(pinnedCPU))
+				debug("pinned to CPU "+pinnedCPU);
+			else
+				debug("failed to pin to CPU "+pinnedCPU+", continuing unpinned");
+		}
+		super.run();
 	}
 
 }
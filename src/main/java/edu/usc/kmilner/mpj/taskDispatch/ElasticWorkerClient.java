@@ -0,0 +1,154 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Worker side of the elastic worker protocol, see {@link ElasticWorkerServer}. Once registered, heartbeats are sent
+ * from a background thread until the worker leaves or the connection is closed, so that the server can tell a worker
+ * which is calculating a long batch from one which is hung.
+ *
+ * @author Kevin Milner
+ *
+ */
+class ElasticWorkerClient implements Closeable {
+
+	private Socket socket;
+	private DataInputStream in;
+	private DataOutputStream out;
+
+	private String token;
+	private int processIndex = -1;
+	private boolean left;
+	private int heartbeatMillis;
+	private Thread heartbeat;
+
+	ElasticWorkerClient(String host, int port, String token) throws IOException {
+		this(host, port, token, ElasticWorkerServer.HEARTBEAT_MILLIS);
+	}
+
+	/**
+	 * @param host
+	 * @param port
+	 * @param token token shared with the dispatcher, see {@link ElasticWorkerServer#loadOrCreateToken(java.io.File)}
+	 * @param heartbeatMillis interval between heartbeats, must be well below the read timeout of the server
+	 * @throws IOException
+	 */
+	ElasticWorkerClient(String host, int port, String token, int heartbeatMillis) throws IOException {
+		this.token = token;
+		this.heartbeatMillis = heartbeatMillis;
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * Registers with the dispatcher
+	 *
+	 * @return process index assigned to this worker
+	 * @throws IOException if the connection fails, or the dispatcher rejected the token
+	 */
+	int register() throws IOException {
+		synchronized (out) {
+			out.writeInt(ElasticWorkerServer.MSG_REGISTER);
+			out.writeUTF(token);
+			out.flush();
+		}
+		int index = in.readInt();
+		if (index == ElasticWorkerServer.REGISTER_REJECTED)
+			throw new IOException("Elastic dispatcher rejected the token, check the token file");
+		processIndex = index;
+		if (heartbeat == null) {
+			heartbeat = new Thread("ElasticWorkerHeartbeat") {
+
+				@Override
+				public void run() {
+					sendHeartbeats();
+				}
+			};
+			heartbeat.setDaemon(true);
+			heartbeat.start();
+		}
+		return processIndex;
+	}
+
+	private void sendHeartbeats() {
+		try {
+			while (true) {
+				Thread.sleep(heartbeatMillis);
+				synchronized (out) {
+					if (left || socket.isClosed())
+						return;
+					out.writeInt(ElasticWorkerServer.MSG_HEARTBEAT);
+					out.flush();
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} catch (IOException e) {
+			// disconnected, which the next READY will also find
+		}
+	}
+
+	int getProcessIndex() {
+		return processIndex;
+	}
+
+	/**
+	 * Retires the previous batch (if any) and gets the next one
+	 *
+	 * @param threads number of calculation threads of this worker
+	 * @param throughput measured tasks per hour, or 0 if not yet known
+	 * @return next batch, or an empty array if no tasks are left
+	 * @throws IOException
+	 */
+	int[] nextBatch(int threads, int throughput) throws IOException {
+		synchronized (out) {
+			out.writeInt(ElasticWorkerServer.MSG_READY);
+			out.writeInt(threads);
+			out.writeInt(throughput);
+			out.flush();
+		}
+		int numTasks = in.readInt();
+		byte[] encoded = new byte[in.readInt()];
+		in.readFully(encoded);
+		if (numTasks == 0)
+			return new int[0];
+		return BatchEncoding.decode(encoded, numTasks);
+	}
+
+	/**
+	 * Leaves the worker pool, returning any outstanding batch to the dispatcher. Can be called from any thread, e.g. a
+	 * shutdown hook while a batch is being calculated.
+	 */
+	void leave() {
+		synchronized (out) {
+			if (left)
+				return;
+			left = true;
+			try {
+				out.writeInt(ElasticWorkerServer.MSG_LEAVE);
+				out.flush();
+			} catch (IOException e) {
+				// already disconnected, which is treated the same way
+			}
+		}
+		close();
+	}
+
+	@Override
+	public void close() {
+		if (heartbeat != null)
+			heartbeat.interrupt();
+		try {
+			socket.close();
+		} catch (IOException e) {}
+	}
+
+}
@@ -0,0 +1,260 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Date;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Socket transport for elastic workers: processes outside of the MPI job (e.g. on nodes added to the allocation after
+ * it started) which register with the dispatcher on rank 0, receive batches like any other process, and can leave at
+ * any time. Any batch which a worker has when it leaves (or its connection is lost) is requeued. Workers send
+ * heartbeats while calculating, and a worker which is silent for longer than the read timeout (e.g. hung, or on a
+ * node which has gone away without closing the connection) is treated as having left. See
+ * {@link ElasticWorkerClient} for the worker side.
+ * <br>
+ * Workers must present a token shared with the job (see {@link #loadOrCreateToken(File)}) when registering, and
+ * nothing else is accepted from a connection until it has registered. Otherwise anyone who can reach the port could
+ * take batches, or mark them as done without calculating them.
+ * <br>
+ * Message protocol (all big endian ints), worker to server:
+ * <ul>
+ * <li>{@link #MSG_REGISTER}, followed by the token (as {@link DataOutputStream#writeUTF(String)}): answered with the
+ * worker's process index, or {@link #REGISTER_REJECTED} (after which the connection is closed) if the token is
+ * wrong</li>
+ * <li>{@link #MSG_READY}, followed by the worker's thread count and throughput (tasks per hour, or 0 if not yet
+ * known): retires the previous batch, answered with the number of tasks in the next batch (zero if
+ * done), the number of encoded bytes, and the batch encoded with {@link BatchEncoding}</li>
+ * <li>{@link #MSG_LEAVE}: the worker is leaving, no answer</li>
+ * <li>{@link #MSG_HEARTBEAT}: sent every {@link #HEARTBEAT_MILLIS} by a connected worker, no answer</li>
+ * </ul>
+ *
+ * @author Kevin Milner
+ *
+ */
+class ElasticWorkerServer {
+
+	private static final boolean D = true;
+
+	static final int MSG_REGISTER = 1;
+	static final int MSG_READY = 2;
+	static final int MSG_LEAVE = 3;
+	static final int MSG_HEARTBEAT = 4;
+
+	static final int REGISTER_REJECTED = -1;
+
+	// interval between worker heartbeats
+	static final int HEARTBEAT_MILLIS = 30000;
+	// workers which are silent for this long are treated as having left
+	static final int DEFAULT_READ_TIMEOUT_MILLIS = 10*HEARTBEAT_MILLIS;
+
+	private DispatcherThread dispatcher;
+	private byte[] token;
+	private ServerSocket serverSocket;
+	private int readTimeoutMillis;
+	private Thread acceptor;
+
+	/**
+	 * Listens on all interfaces with the default read timeout
+	 * 
+	 * @param dispatcher
+	 * @param token token which workers must present to register
+	 * @param port port to listen on, or 0 for any free port
+	 * @throws IOException
+	 */
+	ElasticWorkerServer(DispatcherThread dispatcher, String token, int port) throws IOException {
+		this(dispatcher, token, null, port, DEFAULT_READ_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param dispatcher
+	 * @param token token which workers must present to register
+	 * @param bindAddress address to listen on, or null for all interfaces
+	 * @param port port to listen on, or 0 for any free port
+	 * @param readTimeoutMillis workers which send nothing (including heartbeats) for this long are treated as having
+	 * left, and their outstanding batch is requeued
+	 * @throws IOException
+	 */
+	ElasticWorkerServer(DispatcherThread dispatcher, String token, InetAddress bindAddress, int port,
+			int readTimeoutMillis) throws IOException {
+		Preconditions.checkArgument(token != null && !token.isEmpty(), "A token is required");
+		Preconditions.checkArgument(readTimeoutMillis > 0, "Read timeout must be positive");
+		this.dispatcher = dispatcher;
+		this.token = token.getBytes(StandardCharsets.UTF_8);
+		this.serverSocket = new ServerSocket(port, 0, bindAddress);
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+
+	int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Starts accepting worker connections
+	 */
+	void start() {
+		acceptor = new Thread("ElasticWorkerServer") {
+
+			@Override
+			public void run() {
+				while (!serverSocket.isClosed()) {
+					final Socket socket;
+					try {
+						socket = serverSocket.accept();
+					} catch (SocketException e) {
+						// closed
+						return;
+					} catch (IOException e) {
+						System.err.println("Exception accepting elastic worker connection");
+						e.printStackTrace();
+						continue;
+					}
+					Thread handler = new Thread("ElasticWorkerHandler "+socket.getRemoteSocketAddress()) {
+
+						@Override
+						public void run() {
+							handle(socket);
+						}
+					};
+					handler.setDaemon(true);
+					handler.start();
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		debug("listening for elastic workers on "+serverSocket.getLocalSocketAddress());
+	}
+
+	private void handle(Socket socket) {
+		int processIndex = -1;
+		try {
+			socket.setSoTimeout(readTimeoutMillis);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			while (true) {
+				int message = in.readInt();
+				if (message == MSG_REGISTER) {
+					// compared in constant time so that the token can't be guessed a byte at a time
+					if (!MessageDigest.isEqual(token, in.readUTF().getBytes(StandardCharsets.UTF_8))) {
+						out.writeInt(REGISTER_REJECTED);
+						out.flush();
+						debug("rejected elastic worker with the wrong token from "+socket.getRemoteSocketAddress());
+						break;
+					}
+					if (processIndex < 0)
+						processIndex = dispatcher.elasticWorkerJoined();
+					out.writeInt(processIndex);
+					out.flush();
+				} else if (processIndex < 0) {
+					throw new IOException("Message "+message+" from unregistered elastic worker");
+				} else if (message == MSG_READY) {
+					dispatcher.setProcessCapacity(processIndex, in.readInt(), in.readInt());
+					int[] batch = dispatcher.getNextBatch(processIndex);
+					byte[] encoded = batch.length > 0 ? BatchEncoding.encode(batch) : new byte[0];
+					out.writeInt(batch.length);
+					out.writeInt(encoded.length);
+					out.write(encoded);
+					out.flush();
+				} else if (message == MSG_LEAVE) {
+					break;
+				} else if (message == MSG_HEARTBEAT) {
+					continue;
+				} else {
+					throw new IOException("Unknown elastic worker message: "+message);
+				}
+			}
+		} catch (SocketTimeoutException e) {
+			debug("elastic worker "+processIndex+" timed out after "+readTimeoutMillis+" ms without a message");
+		} catch (IOException e) {
+			// connection lost, treated the same as leaving
+			debug("lost connection to elastic worker "+processIndex+": "+e);
+		} catch (RuntimeException e) {
+			// e.g. a post batch hook failed, abort as it would for any other process
+			MPJTaskCalculator.abortAndExit(e);
+		} finally {
+			if (processIndex >= 0)
+				dispatcher.elasticWorkerLeft(processIndex);
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Stops accepting new workers. Connected workers are still served (they will receive empty batches once done).
+	 */
+	void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			System.err.println("Exception closing elastic worker server");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads the token shared by a job and its elastic workers from the given file, first creating the file with a new
+	 * random token (readable only by its owner where supported) if it doesn't exist. The file is usually on a shared
+	 * file system, so that workers started by the same user can read it.
+	 * 
+	 * @param tokenFile
+	 * @return token
+	 * @throws IOException
+	 */
+	static String loadOrCreateToken(File tokenFile) throws IOException {
+		if (!tokenFile.exists()) {
+			byte[] bytes = new byte[32];
+			new SecureRandom().nextBytes(bytes);
+			String token = BaseEncoding.base16().lowerCase().encode(bytes);
+			try {
+				Files.createFile(tokenFile.toPath(),
+						PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+			} catch (UnsupportedOperationException e) {
+				// not a POSIX file system
+				Preconditions.checkState(tokenFile.createNewFile(), "Couldn't create token file: %s", tokenFile);
+				tokenFile.setReadable(false, false);
+				tokenFile.setReadable(true, true);
+			}
+			Files.write(tokenFile.toPath(), (token+"\n").getBytes(StandardCharsets.UTF_8));
+			debug("created elastic worker token file: "+tokenFile.getAbsolutePath());
+		}
+		return readToken(tokenFile);
+	}
+
+	/**
+	 * @param tokenFile
+	 * @return token from the given file, see {@link #loadOrCreateToken(File)}
+	 * @throws IOException
+	 */
+	static String readToken(File tokenFile) throws IOException {
+		String token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8).trim();
+		if (token.isEmpty())
+			throw new IOException("Token file is empty: "+tokenFile.getAbsolutePath());
+		return token;
+	}
+
+	private static void debug(String message) {
+		if (!D)
+			return;
+
+		System.out.println("["+MPJTaskCalculator.df.format(new Date())+" ElasticWorkerServer]: "+message);
+	}
+
+}
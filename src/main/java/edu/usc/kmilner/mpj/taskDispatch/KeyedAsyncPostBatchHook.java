@@ -0,0 +1,92 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Asynchronous post batch hook which processes tasks with the same key (e.g. the output file or shard that the
+ * results of a task are written to) in order, while tasks with different keys are processed in parallel on a shared
+ * thread pool.
+ * <br>
+ * Each batch is split up by key, and each sub-batch is passed to {@link #batchProcessedAsync(int[], int)} on a serial
+ * queue for that key. Sub-batches with the same key are processed one at a time, in the order that the batches were
+ * retired. The number of distinct keys should be modest (e.g. one per output shard), as a queue is kept for each.
+ * <br>
+ * Queue bounds, counters and error handling are as in {@link AsyncPostBatchHook}, with each sub-batch counted
+ * separately.
+ *
+ * @author Kevin Milner
+ *
+ * @param <K> key type
+ */
+public abstract class KeyedAsyncPostBatchHook<K> extends AsyncPostBatchHook {
+
+	private ConcurrentMap<K, Executor> keyExecutors;
+
+	public KeyedAsyncPostBatchHook(int threads) {
+		this(threads, DEFAULT_MAX_QUEUED_BATCHES);
+	}
+
+	public KeyedAsyncPostBatchHook(int threads, int maxQueuedBatches) {
+		super(threads, maxQueuedBatches);
+		keyExecutors = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * @param index task index
+	 * @return key for the given task. Tasks with equal keys will be processed in order.
+	 */
+	protected abstract K getKey(int index);
+
+	@Override
+	public synchronized void batchProcessed(int[] batch, int processIndex) {
+		if (batch.length == 0)
+			return;
+		K firstKey = getKey(batch[0]);
+		boolean singleKey = true;
+		for (int i=1; singleKey && i<batch.length; i++)
+			singleKey = firstKey.equals(getKey(batch[i]));
+		if (singleKey) {
+			super.batchProcessed(batch, processIndex);
+			return;
+		}
+
+		// split up by key, keeping the original order within each key
+		Map<K, int[]> subBatches = new LinkedHashMap<>();
+		Map<K, Integer> sizes = new LinkedHashMap<>();
+		for (int index : batch) {
+			K key = getKey(index);
+			int[] sub = subBatches.get(key);
+			int size = sizes.containsKey(key) ? sizes.get(key) : 0;
+			if (sub == null) {
+				sub = new int[Integer.min(batch.length, 16)];
+			} else if (size == sub.length) {
+				sub = Arrays.copyOf(sub, Integer.min(batch.length, sub.length*2));
+			}
+			sub[size++] = index;
+			subBatches.put(key, sub);
+			sizes.put(key, size);
+		}
+		for (K key : subBatches.keySet())
+			super.batchProcessed(Arrays.copyOf(subBatches.get(key), sizes.get(key)), processIndex);
+	}
+
+	@Override
+	protected Executor getExecutor(int[] batch, int processIndex) {
+		// batches have already been split up, so every task in this one has the same key
+		K key = getKey(batch[0]);
+		Executor executor = keyExecutors.get(key);
+		if (executor == null) {
+			executor = MoreExecutors.newSequentialExecutor(getThreadPool());
+			keyExecutors.put(key, executor);
+		}
+		return executor;
+	}
+
+}
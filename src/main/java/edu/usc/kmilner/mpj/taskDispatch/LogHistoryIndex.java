@@ -0,0 +1,516 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static edu.usc.kmilner.mpj.taskDispatch.Utils.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.CalcBatch;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.Node;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.ParsedLog;
+
+/**
+ * Local index of parsed {@link MPJTaskCalculator} logs for comparing task rates across many jobs. Each job is stored
+ * in its own compact binary file with a small header followed by one column per batch field, so that queries don't
+ * need to reparse the raw logs.
+ * <br>
+ * Logs only contain the time of day, so the absolute start time of each job is estimated from the last modified time
+ * of the log file, which is assumed to be the time of the last log message.
+ *
+ * @author Kevin Milner
+ *
+ */
+class LogHistoryIndex {
+
+	static final String INDEX_SUFFIX = ".mpjidx";
+
+	private static final int MAGIC = 0x4D504A49; // "MPJI"
+	private static final int VERSION = 1;
+
+	static final String UNKNOWN_HOST = "(unknown)";
+	static final String NO_TAG = "(none)";
+
+	private final File indexDir;
+
+	LogHistoryIndex(File indexDir) {
+		Preconditions.checkArgument(indexDir.isDirectory() || indexDir.mkdirs(),
+				"Couldn't create index directory: %s", indexDir.getAbsolutePath());
+		this.indexDir = indexDir;
+	}
+
+	/**
+	 * Indexed data for a single job. Batch fields are stored as parallel arrays (columns).
+	 */
+	static class JobRecord {
+		String name;
+		String tag;
+		String sourcePath;
+		long sourceLength;
+		long sourceModified;
+		// estimated epoch millis of the first log message
+		long startEpochMillis;
+		int numTasks;
+		int numDone;
+
+		String[] hosts;
+
+		// columns, one entry per batch
+		int[] processNums;
+		int[] hostIndexes;
+		int[] sizes;
+		// millis relative to startEpochMillis
+		long[] startOffsets;
+		// -1 if the batch was still running
+		long[] durations;
+
+		int getNumBatches() {
+			return sizes.length;
+		}
+
+		boolean isCompleted(int batch) {
+			return durations[batch] >= 0;
+		}
+	}
+
+	/**
+	 * Parses and indexes the given log files in parallel. Logs which are already indexed and unchanged since are
+	 * skipped.
+	 *
+	 * @param logFiles
+	 * @param tag optional tag (e.g. code version or node type) to store with each job, can be null
+	 * @param threads
+	 * @return number of logs (re)indexed
+	 * @throws IOException
+	 */
+	int ingest(List<File> logFiles, final String tag, int threads) throws IOException {
+		List<File> toIndex = Lists.newArrayList();
+		for (File logFile : logFiles) {
+			File indexFile = getIndexFile(logFile);
+			if (indexFile.exists() && isCurrent(readHeader(indexFile), logFile, tag)) {
+				System.out.println("Already indexed: "+logFile.getAbsolutePath());
+				continue;
+			}
+			toIndex.add(logFile);
+		}
+		if (toIndex.isEmpty())
+			return 0;
+
+		int jobThreads = Integer.min(threads, toIndex.size());
+		// split remaining threads between the parsers of each job
+		final int parseThreads = Integer.max(1, threads / jobThreads);
+
+		ExecutorService exec = Executors.newFixedThreadPool(jobThreads);
+		try {
+			List<Future<?>> futures = Lists.newArrayList();
+			for (final File logFile : toIndex) {
+				futures.add(exec.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						ParsedLog log = new ParallelLogParser(parseThreads).parse(logFile);
+						JobRecord record = build(logFile, tag, log);
+						write(record, getIndexFile(logFile));
+						System.out.println("Indexed "+record.getNumBatches()+" batches from: "+logFile.getAbsolutePath());
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw asRuntimeException(e);
+		} finally {
+			exec.shutdownNow();
+		}
+		return toIndex.size();
+	}
+
+	/**
+	 * Loads every job in the index in parallel
+	 *
+	 * @param threads
+	 * @return list of jobs, sorted by start time
+	 * @throws IOException
+	 */
+	List<JobRecord> load(int threads) throws IOException {
+		File[] indexFiles = indexDir.listFiles();
+		List<Future<JobRecord>> futures = Lists.newArrayList();
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		List<JobRecord> records = Lists.newArrayList();
+		try {
+			for (final File indexFile : indexFiles) {
+				if (!indexFile.getName().endsWith(INDEX_SUFFIX))
+					continue;
+				futures.add(exec.submit(new Callable<JobRecord>() {
+
+					@Override
+					public JobRecord call() throws Exception {
+						return read(indexFile);
+					}
+				}));
+			}
+			for (Future<JobRecord> future : futures)
+				records.add(future.get());
+		} catch (InterruptedException | ExecutionException e) {
+			throw asRuntimeException(e);
+		} finally {
+			exec.shutdownNow();
+		}
+		Collections.sort(records, new Comparator<JobRecord>() {
+
+			@Override
+			public int compare(JobRecord o1, JobRecord o2) {
+				return Long.compare(o1.startEpochMillis, o2.startEpochMillis);
+			}
+		});
+		return records;
+	}
+
+	private File getIndexFile(File logFile) {
+		String name = ParallelLogParser.stripCompressionSuffix(logFile.getName());
+		// logs from different directories can share a name
+		String pathHash = Integer.toHexString(logFile.getAbsolutePath().hashCode());
+		return new File(indexDir, name+"_"+pathHash+INDEX_SUFFIX);
+	}
+
+	private static boolean isCurrent(JobRecord header, File logFile, String tag) {
+		return header.sourceLength == logFile.length() && header.sourceModified == logFile.lastModified()
+				&& (tag == null || tag.equals(header.tag));
+	}
+
+	static JobRecord build(File logFile, String tag, ParsedLog log) {
+		JobRecord record = new JobRecord();
+		record.name = ParallelLogParser.stripCompressionSuffix(logFile.getName());
+		record.tag = tag;
+		record.sourcePath = logFile.getAbsolutePath();
+		record.sourceLength = logFile.length();
+		record.sourceModified = logFile.lastModified();
+		record.numTasks = log.numTasks;
+		record.numDone = log.numDone;
+
+		long firstMillis = log.firstDate == null ? 0l : log.firstDate.getTime();
+		long lastMillis = log.prevDate == null ? 0l : log.prevDate.getTime();
+		record.startEpochMillis = record.sourceModified - (lastMillis - firstMillis);
+
+		Map<String, Integer> hostIndexes = Maps.newHashMap();
+		List<String> hosts = Lists.newArrayList();
+		int numBatches = 0;
+		for (List<CalcBatch> batches : log.nodeBatches.values())
+			numBatches += batches.size();
+
+		record.processNums = new int[numBatches];
+		record.hostIndexes = new int[numBatches];
+		record.sizes = new int[numBatches];
+		record.startOffsets = new long[numBatches];
+		record.durations = new long[numBatches];
+
+		int index = 0;
+		for (Node node : log.nodeBatches.keySet()) {
+			String host = node.getHostName() == null ? UNKNOWN_HOST : node.getHostName();
+			Integer hostIndex = hostIndexes.get(host);
+			if (hostIndex == null) {
+				hostIndex = hosts.size();
+				hosts.add(host);
+				hostIndexes.put(host, hostIndex);
+			}
+			for (CalcBatch batch : log.nodeBatches.get(node)) {
+				record.processNums[index] = node.getProcessNum();
+				record.hostIndexes[index] = hostIndex;
+				record.sizes[index] = batch.getSize();
+				record.startOffsets[index] = batch.getStartDate().getTime() - firstMillis;
+				record.durations[index] = batch.isCompleted() ? batch.getDurationMillis() : -1l;
+				index++;
+			}
+		}
+		record.hosts = hosts.toArray(new String[hosts.size()]);
+		return record;
+	}
+
+	static void write(JobRecord record, File indexFile) throws IOException {
+		// write to a temporary file first so that an interrupted ingest never leaves a partial index behind
+		File tmpFile = new File(indexFile.getParentFile(), indexFile.getName()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+			writeHeader(record, out);
+			out.writeInt(record.hosts.length);
+			for (String host : record.hosts)
+				out.writeUTF(host);
+			int num = record.getNumBatches();
+			out.writeInt(num);
+			for (int i=0; i<num; i++)
+				out.writeInt(record.processNums[i]);
+			for (int i=0; i<num; i++)
+				out.writeInt(record.hostIndexes[i]);
+			for (int i=0; i<num; i++)
+				out.writeInt(record.sizes[i]);
+			for (int i=0; i<num; i++)
+				out.writeLong(record.startOffsets[i]);
+			for (int i=0; i<num; i++)
+				out.writeLong(record.durations[i]);
+		}
+		if (indexFile.exists())
+			Preconditions.checkState(indexFile.delete(), "Couldn't delete old index: %s", indexFile.getAbsolutePath());
+		Preconditions.checkState(tmpFile.renameTo(indexFile), "Couldn't rename index: %s", tmpFile.getAbsolutePath());
+	}
+
+	private static void writeHeader(JobRecord record, DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(record.name);
+		out.writeUTF(record.tag == null ? "" : record.tag);
+		out.writeUTF(record.sourcePath);
+		out.writeLong(record.sourceLength);
+		out.writeLong(record.sourceModified);
+		out.writeLong(record.startEpochMillis);
+		out.writeInt(record.numTasks);
+		out.writeInt(record.numDone);
+	}
+
+	private static JobRecord readHeader(DataInputStream in, File indexFile) throws IOException {
+		Preconditions.checkState(in.readInt() == MAGIC, "Not an index file: %s", indexFile.getAbsolutePath());
+		int version = in.readInt();
+		Preconditions.checkState(version == VERSION, "Unsupported index version %s: %s",
+				version, indexFile.getAbsolutePath());
+		JobRecord record = new JobRecord();
+		record.name = in.readUTF();
+		record.tag = in.readUTF();
+		if (record.tag.isEmpty())
+			record.tag = null;
+		record.sourcePath = in.readUTF();
+		record.sourceLength = in.readLong();
+		record.sourceModified = in.readLong();
+		record.startEpochMillis = in.readLong();
+		record.numTasks = in.readInt();
+		record.numDone = in.readInt();
+		return record;
+	}
+
+	static JobRecord readHeader(File indexFile) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			return readHeader(in, indexFile);
+		}
+	}
+
+	static JobRecord read(File indexFile) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(indexFile), 64*1024))) {
+			JobRecord record = readHeader(in, indexFile);
+			record.hosts = new String[in.readInt()];
+			for (int i=0; i<record.hosts.length; i++)
+				record.hosts[i] = in.readUTF();
+			int num = in.readInt();
+			record.processNums = new int[num];
+			record.hostIndexes = new int[num];
+			record.sizes = new int[num];
+			record.startOffsets = new long[num];
+			record.durations = new long[num];
+			for (int i=0; i<num; i++)
+				record.processNums[i] = in.readInt();
+			for (int i=0; i<num; i++)
+				record.hostIndexes[i] = in.readInt();
+			for (int i=0; i<num; i++)
+				record.sizes[i] = in.readInt();
+			for (int i=0; i<num; i++)
+				record.startOffsets[i] = in.readLong();
+			for (int i=0; i<num; i++)
+				record.durations[i] = in.readLong();
+			return record;
+		}
+	}
+
+	/*
+	 * Queries
+	 */
+
+	static class RateTracker {
+		long tasks;
+		long batches;
+		double millis;
+		int jobs;
+
+		void add(int size, long duration) {
+			tasks += size;
+			batches++;
+			millis += duration;
+		}
+
+		double getMillisEach() {
+			return tasks > 0 ? millis / tasks : Double.NaN;
+		}
+	}
+
+	private static void print(String groupType, Map<String, RateTracker> groups) {
+		List<String> keys = Lists.newArrayList(groups.keySet());
+		Collections.sort(keys);
+		System.out.println(groupType+"\tjobs\tbatches\ttasks\tavg");
+		for (String key : keys) {
+			RateTracker track = groups.get(key);
+			System.out.println(key+"\t"+track.jobs+"\t"+track.batches+"\t"+track.tasks
+					+"\t"+smartTimePrint(track.getMillisEach()));
+		}
+	}
+
+	private static RateTracker getTracker(Map<String, RateTracker> groups, String key) {
+		RateTracker track = groups.get(key);
+		if (track == null) {
+			track = new RateTracker();
+			groups.put(key, track);
+		}
+		return track;
+	}
+
+	/**
+	 * Prints mean time per task (completed batches only, threading effects ignored) for each host
+	 */
+	static void printHostStats(List<JobRecord> records) {
+		print("host", getHostStats(records));
+	}
+
+	/**
+	 * @param records
+	 * @return task rates of completed batches for each host
+	 */
+	static Map<String, RateTracker> getHostStats(List<JobRecord> records) {
+		Map<String, RateTracker> groups = Maps.newHashMap();
+		for (JobRecord record : records) {
+			boolean[] seen = new boolean[record.hosts.length];
+			for (int i=0; i<record.getNumBatches(); i++) {
+				if (!record.isCompleted(i))
+					continue;
+				int hostIndex = record.hostIndexes[i];
+				RateTracker track = getTracker(groups, record.hosts[hostIndex]);
+				track.add(record.sizes[i], record.durations[i]);
+				if (!seen[hostIndex]) {
+					seen[hostIndex] = true;
+					track.jobs++;
+				}
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Prints mean time per task (completed batches only, threading effects ignored) for each tag
+	 */
+	static void printTagStats(List<JobRecord> records) {
+		print("tag", getTagStats(records));
+	}
+
+	/**
+	 * @param records
+	 * @return task rates of completed batches for each tag
+	 */
+	static Map<String, RateTracker> getTagStats(List<JobRecord> records) {
+		Map<String, RateTracker> groups = Maps.newHashMap();
+		for (JobRecord record : records) {
+			RateTracker track = getTracker(groups, record.tag == null ? NO_TAG : record.tag);
+			track.jobs++;
+			for (int i=0; i<record.getNumBatches(); i++)
+				if (record.isCompleted(i))
+					track.add(record.sizes[i], record.durations[i]);
+		}
+		return groups;
+	}
+
+	/**
+	 * Prints a summary line for each job
+	 */
+	static void printJobStats(List<JobRecord> records) {
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+		System.out.println("job\ttag\tstart\tcompleted\tduration\trate\tavg");
+		for (JobRecord record : records) {
+			long endOffset = 0l;
+			RateTracker track = new RateTracker();
+			for (int i=0; i<record.getNumBatches(); i++) {
+				long end = record.startOffsets[i] + Long.max(0l, record.durations[i]);
+				if (end > endOffset)
+					endOffset = end;
+				if (record.isCompleted(i))
+					track.add(record.sizes[i], record.durations[i]);
+			}
+			System.out.println(record.name+"\t"+(record.tag == null ? NO_TAG : record.tag)
+					+"\t"+df.format(new Date(record.startEpochMillis))+"\t"+record.numDone+"/"+record.numTasks
+					+"\t"+smartTimePrint(endOffset)+"\t"+smartRatePrint(record.numDone, endOffset)
+					+"\t"+smartTimePrint(track.getMillisEach()));
+		}
+	}
+
+	/**
+	 * Prints the aggregate rate at which tasks were completed across all jobs in each time bucket. Batches are
+	 * attributed to the bucket in which they finished.
+	 */
+	static void printRateOverTime(List<JobRecord> records, long bucketMillis) {
+		Preconditions.checkArgument(bucketMillis > 0, "bucket size must be > 0");
+		if (records.isEmpty())
+			return;
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+		for (JobRecord record : records) {
+			for (int i=0; i<record.getNumBatches(); i++) {
+				if (!record.isCompleted(i))
+					continue;
+				long end = record.startEpochMillis + record.startOffsets[i] + record.durations[i];
+				minTime = Long.min(minTime, end);
+				maxTime = Long.max(maxTime, end);
+			}
+		}
+		if (minTime > maxTime)
+			return;
+		minTime -= minTime % bucketMillis;
+		int numBuckets = (int)((maxTime - minTime)/bucketMillis) + 1;
+		long[] tasks = new long[numBuckets];
+		for (JobRecord record : records) {
+			for (int i=0; i<record.getNumBatches(); i++) {
+				if (!record.isCompleted(i))
+					continue;
+				long end = record.startEpochMillis + record.startOffsets[i] + record.durations[i];
+				tasks[(int)((end - minTime)/bucketMillis)] += record.sizes[i];
+			}
+		}
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+		System.out.println("bucket start\ttasks\trate");
+		for (int i=0; i<numBuckets; i++) {
+			if (tasks[i] == 0)
+				continue;
+			System.out.println(df.format(new Date(minTime + i*bucketMillis))+"\t"+tasks[i]
+					+"\t"+smartRatePrint(tasks[i], bucketMillis));
+		}
+	}
+
+	/**
+	 * @param records
+	 * @param tags
+	 * @return records with one of the given tags
+	 */
+	static List<JobRecord> filterTags(List<JobRecord> records, String... tags) {
+		List<String> tagList = Arrays.asList(tags);
+		List<JobRecord> ret = new ArrayList<>();
+		for (JobRecord record : records)
+			if (tagList.contains(record.tag))
+				ret.add(record);
+		return ret;
+	}
+
+}
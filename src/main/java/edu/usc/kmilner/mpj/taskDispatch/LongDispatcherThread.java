@@ -0,0 +1,223 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Dispatcher for {@link MPJLongTaskCalculator}, equivalent to {@link DispatcherThread} but with 64-bit task indexes.
+ * Tasks are never materialized: undispatched tasks are a cursor into the index range (skipping any ranges which are
+ * already done), along with any ranges requeued from failed processes, and batches are sent as ranges. Memory is
+ * therefore proportional to the outstanding work rather than to the total task count.
+ * <br>
+ * Tasks are dispatched in index order, so unlike {@link DispatcherThread} there is no shuffling. Batch sizes follow
+ * the same rule, see {@link DispatcherThread#calcBatchSize(int, int, int, int, int)}.
+ * <br>
+ * The dispatch loop and message protocol are shared with {@link DispatcherThread}, see
+ * {@link AbstractDispatcherThread} and {@link BatchProtocol#LONG_BATCHES}. Batches are sent as start/end pairs of
+ * longs.
+ *
+ * @author Kevin Milner
+ *
+ */
+class LongDispatcherThread extends AbstractDispatcherThread<LongTaskBatch> {
+
+	private int maxPerDispatch;
+	private int minPerDispatch;
+	private int exactDispatch;
+
+	private long endIndex;
+	// next index which hasn't been dispatched yet (unless done)
+	private long cursor;
+	// sorted, non overlapping start/end pairs of ranges which are already done
+	private long[] doneRanges;
+	// index into doneRanges of the first range which could be after the cursor
+	private int doneIndex;
+	// ranges requeued from failed processes, dispatched before anything after the cursor
+	private Deque<long[]> requeued;
+
+	private volatile long numLeftToDispatch;
+
+	/**
+	 *
+	 * @param size
+	 * @param numTasks
+	 * @param minPerDispatch
+	 * @param maxPerDispatch
+	 * @param exactDispatch
+	 * @param startIndex
+	 * @param endIndex
+	 * @param doneRanges ranges of task indexes which are already done, as {start (inclusive), end (exclusive)}
+	 * pairs, or null
+	 */
+	LongDispatcherThread(int size, long numTasks, int minPerDispatch, int maxPerDispatch, int exactDispatch,
+			long startIndex, long endIndex, Collection<long[]> doneRanges) {
+		super("LongDispatcherThread", size, BatchProtocol.LONG_BATCHES);
+		this.minPerDispatch = minPerDispatch;
+		this.maxPerDispatch = maxPerDispatch;
+		this.exactDispatch = exactDispatch;
+		Preconditions.checkArgument(minPerDispatch <= maxPerDispatch, "min per dispatch must be <= max");
+		Preconditions.checkArgument(minPerDispatch >= 1, "min per dispatch must be >= 1");
+		Preconditions.checkArgument(size >= 1, "size must be >= 1");
+		Preconditions.checkArgument(numTasks >= 1, "num tasks must be >= 1");
+		Preconditions.checkState(startIndex >= 0 && startIndex < numTasks,
+				"Start index must be >= 0 and less than the number of tasks.");
+		Preconditions.checkState(endIndex > 0 && endIndex <= numTasks && endIndex > startIndex,
+				"End index must be > 0, greater than startIndex, and less than or equal to the number of tasks.");
+
+		debug("starting with "+size+" processes and "+numTasks+" sites." +
+				" minPerDispatch="+minPerDispatch+", maxPerDispatch="+maxPerDispatch
+				+(exactDispatch > 0 ? ", exactDispatch="+exactDispatch : ""));
+		if (startIndex > 0 || endIndex < numTasks)
+			debug("startIndex="+startIndex+", endIndex="+endIndex);
+
+		this.cursor = startIndex;
+		this.endIndex = endIndex;
+		this.doneRanges = mergeRanges(doneRanges, startIndex, endIndex);
+		long numDone = 0;
+		for (int i=0; i<this.doneRanges.length; i+=2)
+			numDone += this.doneRanges[i+1] - this.doneRanges[i];
+		if (numDone > 0)
+			debug("skipping "+numDone+" already done in "+this.doneRanges.length/2+" ranges");
+
+		requeued = new ArrayDeque<>();
+		numLeftToDispatch = endIndex - startIndex - numDone;
+	}
+
+	/**
+	 * @return sorted and merged start/end pairs of the given ranges, clipped to [startIndex, endIndex)
+	 */
+	static long[] mergeRanges(Collection<long[]> ranges, long startIndex, long endIndex) {
+		if (ranges == null || ranges.isEmpty())
+			return new long[0];
+		List<long[]> sorted = new ArrayList<>();
+		for (long[] range : ranges) {
+			Preconditions.checkArgument(range.length == 2, "Ranges must be start/end pairs");
+			long start = Long.max(range[0], startIndex);
+			long end = Long.min(range[1], endIndex);
+			if (end > start)
+				sorted.add(new long[] { start, end });
+		}
+		Collections.sort(sorted, new Comparator<long[]>() {
+
+			@Override
+			public int compare(long[] o1, long[] o2) {
+				return Long.compare(o1[0], o2[0]);
+			}
+		});
+		long[] merged = new long[2*sorted.size()];
+		int count = 0;
+		for (long[] range : sorted) {
+			if (count > 0 && range[0] <= merged[count-1]) {
+				merged[count-1] = Long.max(merged[count-1], range[1]);
+			} else {
+				merged[count++] = range[0];
+				merged[count++] = range[1];
+			}
+		}
+		return Arrays.copyOf(merged, count);
+	}
+
+	/**
+	 * Returns the next batch for the given process, retiring the previous batch for that process.
+	 *
+	 * @param processIndex
+	 * @return next batch, or an empty batch if no tasks are left
+	 */
+	synchronized LongTaskBatch getNextBatch(int processIndex) {
+		clearFailed(processIndex);
+		outstandingBatches.remove(processIndex);
+		outstandingStarts.remove(processIndex);
+
+		long numLeft = numLeftToDispatch;
+		debug("getting batch with "+numLeft+" left");
+		if (numLeft == 0)
+			return new LongTaskBatch(new long[0]);
+
+		// the batch size is bounded by the max per dispatch, so clamping the number left doesn't change it
+		int numToDispatch = DispatcherThread.calcBatchSize((int)Long.min(numLeft, Integer.MAX_VALUE), size,
+				minPerDispatch, maxPerDispatch, exactDispatch);
+
+		long[] ranges = new long[8];
+		int numRanges = 0;
+		long remaining = numToDispatch;
+		while (remaining > 0) {
+			long start, end;
+			if (!requeued.isEmpty()) {
+				long[] range = requeued.peekFirst();
+				start = range[0];
+				end = Long.min(range[1], start + remaining);
+				range[0] = end;
+				if (range[0] == range[1])
+					requeued.pollFirst();
+			} else {
+				// skip past any done ranges
+				while (doneIndex < doneRanges.length && doneRanges[doneIndex+1] <= cursor)
+					doneIndex += 2;
+				if (doneIndex < doneRanges.length && doneRanges[doneIndex] <= cursor) {
+					cursor = doneRanges[doneIndex+1];
+					doneIndex += 2;
+					continue;
+				}
+				long limit = doneIndex < doneRanges.length ? doneRanges[doneIndex] : endIndex;
+				Preconditions.checkState(cursor < limit, "Ran out of tasks with %s left", numLeft);
+				start = cursor;
+				end = Long.min(limit, start + remaining);
+				cursor = end;
+			}
+			remaining -= end - start;
+			if (numRanges > 0 && ranges[2*numRanges-1] == start) {
+				// contiguous with the previous range
+				ranges[2*numRanges-1] = end;
+			} else {
+				if (2*numRanges == ranges.length)
+					ranges = Arrays.copyOf(ranges, 2*ranges.length);
+				ranges[2*numRanges] = start;
+				ranges[2*numRanges+1] = end;
+				numRanges++;
+			}
+		}
+		LongTaskBatch batch = new LongTaskBatch(Arrays.copyOf(ranges, 2*numRanges));
+
+		numLeftToDispatch = numLeft - batch.size();
+		debug("returning batch of size: "+batch.size());
+
+		outstandingBatches.put(processIndex, batch);
+		outstandingStarts.put(processIndex, System.nanoTime());
+
+		return batch;
+	}
+
+	@Override
+	LongTaskBatch getNextBatchForReady(int processIndex) {
+		return getNextBatch(processIndex);
+	}
+
+	@Override
+	long getNumLeftToDispatch() {
+		return numLeftToDispatch;
+	}
+
+	/**
+	 * Puts the ranges of the given batch back to be dispatched before anything after the cursor
+	 */
+	@Override
+	void requeue(LongTaskBatch batch) {
+		for (int i=batch.getNumRanges(); --i>=0;)
+			requeued.addFirst(new long[] { batch.getRangeStart(i), batch.getRangeEnd(i) });
+		numLeftToDispatch += batch.size();
+	}
+
+	@Override
+	String describe(LongTaskBatch batch) {
+		return batch.toString();
+	}
+
+}
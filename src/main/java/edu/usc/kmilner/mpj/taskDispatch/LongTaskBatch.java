@@ -0,0 +1,118 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Batch of 64-bit task indexes for {@link MPJLongTaskCalculator}, stored as a list of ranges of consecutive indexes
+ * so that memory is proportional to the number of ranges rather than the number of tasks.
+ *
+ * @author Kevin Milner
+ *
+ */
+public class LongTaskBatch implements Iterable<Long> {
+
+	// start (inclusive) and end (exclusive) of each range
+	private long[] ranges;
+	private long size;
+
+	/**
+	 * @param ranges start (inclusive) and end (exclusive) of each range, interleaved
+	 */
+	LongTaskBatch(long[] ranges) {
+		Preconditions.checkArgument(ranges.length % 2 == 0, "Ranges must be start/end pairs");
+		this.ranges = ranges;
+		for (int i=0; i<ranges.length; i+=2) {
+			Preconditions.checkArgument(ranges[i] >= 0 && ranges[i+1] > ranges[i], "Bad range: [%s, %s)",
+					ranges[i], ranges[i+1]);
+			size += ranges[i+1] - ranges[i];
+		}
+	}
+
+	/**
+	 * @return total number of tasks in this batch
+	 */
+	public long size() {
+		return size;
+	}
+
+	public int getNumRanges() {
+		return ranges.length/2;
+	}
+
+	/**
+	 * @param range
+	 * @return first task index of the given range, inclusive
+	 */
+	public long getRangeStart(int range) {
+		return ranges[2*range];
+	}
+
+	/**
+	 * @param range
+	 * @return last task index of the given range, exclusive
+	 */
+	public long getRangeEnd(int range) {
+		return ranges[2*range+1];
+	}
+
+	/**
+	 * @return every task index in this batch. Batches are never larger than the maximum dispatch size, so this is
+	 * safe for batches received from the dispatcher.
+	 */
+	public long[] toArray() {
+		Preconditions.checkState(size <= Integer.MAX_VALUE, "Batch too large for an array: %s", size);
+		long[] indexes = new long[(int)size];
+		int count = 0;
+		for (int i=0; i<ranges.length; i+=2)
+			for (long index=ranges[i]; index<ranges[i+1]; index++)
+				indexes[count++] = index;
+		return indexes;
+	}
+
+	long[] getRanges() {
+		return ranges;
+	}
+
+	@Override
+	public PrimitiveIterator.OfLong iterator() {
+		return new PrimitiveIterator.OfLong() {
+
+			private int range = 0;
+			private long next = ranges.length > 0 ? ranges[0] : -1;
+
+			@Override
+			public boolean hasNext() {
+				return range < ranges.length;
+			}
+
+			@Override
+			public long nextLong() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				long ret = next;
+				next++;
+				if (next == ranges[range+1]) {
+					range += 2;
+					if (range < ranges.length)
+						next = ranges[range];
+				}
+				return ret;
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		for (int i=0; i<ranges.length; i+=2) {
+			if (i > 0)
+				str.append(",");
+			str.append("[").append(ranges[i]).append(",").append(ranges[i+1]).append(")");
+		}
+		return str.toString();
+	}
+
+}
@@ -0,0 +1,244 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+
+import mpi.MPI;
+
+/**
+ * Variant of {@link MPJTaskCalculator} with 64-bit task indexes, for jobs with more than {@link Integer#MAX_VALUE}
+ * tasks. Batches are dispatched as ranges of consecutive task indexes (see {@link LongTaskBatch}), and the dispatcher
+ * only keeps track of outstanding work, so memory doesn't scale with the total number of tasks.
+ * <br>
+ * Accepts the same command line options as {@link MPJTaskCalculator} (see {@link #createOptions()}), except that the
+ * following are ignored: --cost-profile, --result-cache, --static-partition, --task-memory-budget-mb,
+ * --max-batch-memory-mb, --reserve-dispatch-core, --dispatch-cpu, --capacity-weighted, and the progress watchdog.
+ * --threads auto uses the default thread count. Elastic workers (--elastic-port, --elastic-dispatcher and
+ * --elastic-token-file) are rejected rather than ignored, as a worker started with --elastic-dispatcher would otherwise
+ * run as its own job and calculate every task. Tasks are dispatched in index order rather than shuffled, and post batch hooks are not supported.
+ *
+ * @author Kevin Milner
+ *
+ */
+public abstract class MPJLongTaskCalculator {
+
+	private static final String[] UNSUPPORTED_OPTIONS = { "cost-profile", "result-cache", "result-cache-max-mb",
+			"static-partition", "task-memory-budget-mb", "max-batch-memory-mb", "watchdog-mins", "watchdog-multiple",
+			"watchdog-report-failed", "reserve-dispatch-core", "dispatch-cpu", "capacity-weighted" };
+	private static final String[] REJECTED_OPTIONS = { "elastic-port", "elastic-dispatcher", "elastic-token-file" };
+
+	protected int rank;
+	protected int size;
+	private int minDispatch;
+	private int maxDispatch;
+	private int exactDispatch;
+	private boolean rootDispatchOnly;
+	private int numThreads;
+
+	private long startIndex = -1;
+	private long endIndex = -1;
+
+	private LongDispatcherThread dispatcher;
+
+	protected String hostname;
+
+	private ScheduledExecutorService timeoutScheduler;
+
+	public MPJLongTaskCalculator(CommandLine cmd) {
+		for (String option : REJECTED_OPTIONS)
+			if (cmd.hasOption(option))
+				throw new IllegalArgumentException("--"+option+" isn't supported with 64-bit task indexes");
+
+		// options shared with MPJTaskCalculator
+		DispatchOptions opts = new DispatchOptions(cmd);
+
+		init(opts.numThreads, opts.minDispatch, opts.maxDispatch, opts.exactDispatch, opts.rootDispatchOnly);
+
+		startIndex = opts.startIndex;
+		endIndex = opts.endIndex;
+
+		if (opts.endTime != null)
+			timeoutScheduler = MPJTaskCalculator.scheduleTimeoutAbort(rank, hostname, opts.endTime);
+
+		if (opts.deadlockDetection) {
+			MPJTaskCalculator.deadlock = new DeadlockDetectionThread(5000);
+			MPJTaskCalculator.deadlock.start();
+		}
+
+		if (rank == 0) {
+			if (opts.autoThreads)
+				debug("thread count auto-tuning isn't supported with 64-bit task indexes, using "+numThreads);
+			for (String option : UNSUPPORTED_OPTIONS)
+				if (cmd.hasOption(option))
+					debug("--"+option+" isn't supported with 64-bit task indexes, ignoring");
+		}
+	}
+
+	public MPJLongTaskCalculator(int numThreads, int minDispatch, int maxDispatch, boolean rootDispatchOnly) {
+		init(numThreads, minDispatch, maxDispatch, -1, rootDispatchOnly);
+	}
+
+	private void init(int numThreads, int minDispatch, int maxDispatch, int exactDispatch, boolean rootDispatchOnly) {
+		this.rank = MPJTaskCalculator.getMPJRank();
+		this.size = MPJTaskCalculator.getMPJSize();
+		if (MPJTaskCalculator.SINGLE_NODE_NO_MPJ)
+			rootDispatchOnly = true;
+		hostname = MPJTaskCalculator.getLocalHostname();
+
+		this.numThreads = numThreads;
+		this.minDispatch = minDispatch;
+		this.maxDispatch = maxDispatch;
+		this.exactDispatch = exactDispatch;
+		this.rootDispatchOnly = rootDispatchOnly;
+	}
+
+	protected int getNumThreads() {
+		return numThreads;
+	}
+
+	protected void debug(String message) {
+		MPJTaskCalculator.debug(rank, hostname, message);
+	}
+
+	/**
+	 * @return the total number of tasks to be executed
+	 */
+	protected abstract long getNumTasks();
+
+	/**
+	 * @return ranges of task indexes which are already completed, e.g. if restarting, and can be skipped by the
+	 * dispatcher, as {start (inclusive), end (exclusive)} pairs (which may overlap), or null (default implementation)
+	 * if everything should be calculated. Only called on the process with rank 0
+	 */
+	protected Collection<long[]> getDoneRanges() {
+		return null;
+	}
+
+	public void run() throws IOException, InterruptedException {
+		if (rank == 0) {
+			// launch the dispatcher
+			if (startIndex < 0)
+				startIndex = 0;
+			if (endIndex < 0)
+				endIndex = getNumTasks();
+			dispatcher = new LongDispatcherThread(size, getNumTasks(), minDispatch, maxDispatch, exactDispatch,
+					startIndex, endIndex, getDoneRanges());
+			if (rootDispatchOnly) {
+				debug("starting dispatcher serially");
+				dispatcher.run();
+			} else {
+				debug("starting dispatcher threaded");
+				dispatcher.start();
+			}
+		}
+
+		while (true) {
+			if (rank == 0 && rootDispatchOnly)
+				break;
+
+			LongTaskBatch batch;
+			if (dispatcher == null) {
+				// this is a non-root thread, use MPJ to get the next batch
+
+				debug("sending READY message");
+				// report to dispatcher as ready. throughput isn't measured as batches aren't capacity weighted
+				batch = BatchProtocol.LONG_BATCHES.requestBatch(rank, getNumThreads(), 0);
+
+				if (batch == null) {
+					debug("DONE!");
+					// we're done
+					break;
+				}
+
+				debug("receiving batch of length "+batch.size());
+			} else {
+				debug("getting next batch directly");
+				batch = dispatcher.getNextBatch(rank);
+
+				if (batch.size() == 0) {
+					debug("DONE!");
+					// we're done
+					break;
+				} else {
+					debug("receiving batch of length "+batch.size());
+				}
+			}
+
+			// now calculate the batch
+			debug("calculating batch");
+			try {
+				calculateBatch(batch);
+			} catch (Exception e) {
+				abortAndExit(e);
+			}
+		}
+
+		debug("waiting for other processes with Barrier()");
+
+		// wait for everyone
+		if (!MPJTaskCalculator.SINGLE_NODE_NO_MPJ)
+			MPI.COMM_WORLD.Barrier();
+		try {
+			doFinalAssembly();
+		} catch (Exception e) {
+			abortAndExit(e);
+		}
+
+		debug("Process "+rank+" DONE!");
+
+		if (timeoutScheduler != null) {
+			try {
+				timeoutScheduler.shutdownNow();
+			} catch (Exception e) {
+				debug("Exception during timout cancellation");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Called when a set of tasks are to be executed by this worker. Threading is to be implemented here if applicable,
+	 * using getNumThreads().
+	 *
+	 * @param batch task indexes (0-based) which should be executed
+	 * @throws Exception
+	 */
+	protected abstract void calculateBatch(LongTaskBatch batch) throws Exception;
+
+	/**
+	 * Called when all tasks have been executed across all workers, see
+	 * {@link MPJTaskCalculator#doFinalAssembly()}.
+	 *
+	 * @throws Exception
+	 */
+	protected abstract void doFinalAssembly() throws Exception;
+
+	protected static Options createOptions() {
+		return MPJTaskCalculator.createOptions();
+	}
+
+	public static MPJTaskCalculator.ArgumentBuilder argumentBuilder() {
+		return MPJTaskCalculator.argumentBuilder();
+	}
+
+	protected static String[] initMPJ(String[] args) {
+		return MPJTaskCalculator.initMPJ(args);
+	}
+
+	protected static CommandLine parse(Options options, String args[], Class<?> clazz) {
+		return MPJTaskCalculator.parse(options, args, clazz);
+	}
+
+	protected static void finalizeMPJ() {
+		MPJTaskCalculator.finalizeMPJ();
+	}
+
+	public static void abortAndExit(Throwable t) {
+		MPJTaskCalculator.abortAndExit(t);
+	}
+
+}
@@ -3,21 +3,24 @@ package edu.usc.kmilner.mpj.taskDispatch;
 import static edu.usc.kmilner.mpj.taskDispatch.Utils.getClassNameWithoutPackage;
 import static edu.usc.kmilner.mpj.taskDispatch.Utils.smartTimePrint;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -27,6 +30,7 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
 
 import mpi.MPI;
 
@@ -41,6 +45,10 @@ public abstract class MPJTaskCalculator {
 	protected static final int TAG_READY_FOR_BATCH = 1;
 	protected static final int TAG_NEW_BATCH_LENGH = 2;
 	protected static final int TAG_NEW_BATCH = 3;
+	// work stealing in static partition mode, see WorkStealingPartition
+	protected static final int TAG_STEAL_REQUEST = 4;
+	protected static final int TAG_STEAL_LENGTH = 5;
+	protected static final int TAG_STEAL_BATCH = 6;
 
 	public static final int MIN_DISPATCH_DEFAULT = 5;
 	public static final int MAX_DISPATCH_DEFAULT = 100;
@@ -61,14 +69,49 @@ public abstract class MPJTaskCalculator {
 	private int exactDispatch;
 	private boolean rootDispatchOnly;
 	private int numThreads;
+	// non null if the thread count is being automatically tuned
+	private ThreadCountTuner threadTuner;
 	protected boolean shuffle = true;
+	private boolean staticPartition = false;
+	// if true and rank 0 also calculates, one core is left for the dispatcher which runs at max priority
+	private boolean reserveDispatchCore = false;
+	// CPU to pin the dispatcher to, or -1
+	private int dispatchCPU = -1;
+	// if true, batch sizes are weighted by the capacity (threads and throughput) that each process reports
+	private boolean capacityWeighted = false;
+	// totals over all batches calculated by this process, to report throughput to the dispatcher
+	private long numTasksCalculated;
+	private long calcNanos;
 
 	private int startIndex;
 	private int endIndex;
 
 	private DispatcherThread dispatcher;
-
-	private static DeadlockDetectionThread deadlock;
+	
+	private File costProfileFile;
+	private TaskCostProfile costProfile;
+	
+	private File resultCacheDir;
+	private long resultCacheMaxBytes;
+	private TaskResultCache resultCache;
+	
+	private long maxBatchMemory;
+	
+	// port to listen for elastic workers on (rank 0), or -1
+	private int elasticPort = -1;
+	// address to listen for elastic workers on, or null for all interfaces
+	private String elasticBindAddress;
+	private ElasticWorkerServer elasticServer;
+	// host:port of the dispatcher to join as an elastic worker, or null
+	private String elasticDispatcher;
+	// file holding the token which elastic workers must present, created by rank 0 if needed
+	private File elasticTokenFile;
+	private MemoryAdmissionController memoryAdmission;
+
+	static DeadlockDetectionThread deadlock;
+	private ProgressWatchdogThread watchdog;
+	// held by the main thread of non-root processes while communicating with the dispatcher
+	private final ReentrantLock dispatchCommLock = new ReentrantLock();
 
 	protected String hostname;
 
@@ -77,45 +120,83 @@ public abstract class MPJTaskCalculator {
 	private ScheduledExecutorService timeoutScheduler;
 
 	public MPJTaskCalculator(CommandLine cmd) {
-		int numThreads = Runtime.getRuntime().availableProcessors();
-		int minDispatch = MIN_DISPATCH_DEFAULT;
-		int maxDispatch = MAX_DISPATCH_DEFAULT;
-		int exactDispatch = -1;
-		int startIndex = -1;
-		int endIndex = -1;
-		boolean rootDispatchOnly = false;
+		// options shared with MPJLongTaskCalculator
+		DispatchOptions opts = new DispatchOptions(cmd);
 
-		if (cmd.hasOption("threads"))
-			numThreads = Integer.parseInt(cmd.getOptionValue("threads"));
+		if (cmd.hasOption("static-partition"))
+			staticPartition = true;
 
-		if (cmd.hasOption("min-dispatch"))
-			minDispatch = Integer.parseInt(cmd.getOptionValue("min-dispatch"));
+		if (cmd.hasOption("reserve-dispatch-core"))
+			reserveDispatchCore = true;
 
-		if (cmd.hasOption("max-dispatch"))
-			maxDispatch = Integer.parseInt(cmd.getOptionValue("max-dispatch"));
+		if (cmd.hasOption("dispatch-cpu")) {
+			dispatchCPU = Integer.parseInt(cmd.getOptionValue("dispatch-cpu"));
+			reserveDispatchCore = true;
+		}
 
-		if (cmd.hasOption("exact-dispatch"))
-			exactDispatch = Integer.parseInt(cmd.getOptionValue("exact-dispatch"));
+		if (cmd.hasOption("capacity-weighted"))
+			capacityWeighted = true;
 
-		if (cmd.hasOption("root-dispatch-only"))
-			rootDispatchOnly = true;
+		boolean deadlockDetection = opts.deadlockDetection;
 
-		if (cmd.hasOption("deadlock")) {
+		init(opts.numThreads, opts.minDispatch, opts.maxDispatch, opts.exactDispatch, opts.rootDispatchOnly,
+				DispatchOptions.toIntIndex(opts.startIndex), DispatchOptions.toIntIndex(opts.endIndex), opts.endTime);
+		
+		if (cmd.hasOption("watchdog-mins") || cmd.hasOption("watchdog-multiple")) {
+			long windowMillis = -1;
+			if (cmd.hasOption("watchdog-mins"))
+				windowMillis = (long)(Double.parseDouble(cmd.getOptionValue("watchdog-mins"))*60d*1000d);
+			double avgMultiple = ProgressWatchdogThread.DEFAULT_AVG_MULTIPLE;
+			if (cmd.hasOption("watchdog-multiple"))
+				avgMultiple = Double.parseDouble(cmd.getOptionValue("watchdog-multiple"));
+			watchdog = new ProgressWatchdogThread(this, 5000, deadlockDetection, windowMillis, avgMultiple,
+					cmd.hasOption("watchdog-report-failed"));
+			deadlock = watchdog;
+			deadlock.start();
+		} else if (deadlockDetection) {
 			deadlock = new DeadlockDetectionThread(5000);
 			deadlock.start();
 		}
-
-		if (cmd.hasOption("start-index"))
-			startIndex = Integer.parseInt(cmd.getOptionValue("start-index"));
-
-		if (cmd.hasOption("end-index"))
-			endIndex = Integer.parseInt(cmd.getOptionValue("end-index"));
 		
-		LocalDateTime endTime = null;
-		if (cmd.hasOption("end-time"))
-			endTime = LocalDateTime.parse(cmd.getOptionValue("end-time"), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-
-		init(numThreads, minDispatch, maxDispatch, exactDispatch, rootDispatchOnly, startIndex, endIndex, endTime);
+		if (opts.autoThreads) {
+			threadTuner = new ThreadCountTuner(numThreads);
+			debug("auto-tuning thread count, up to "+numThreads+" threads");
+		}
+		
+		if (cmd.hasOption("cost-profile"))
+			costProfileFile = new File(cmd.getOptionValue("cost-profile"));
+		
+		if (cmd.hasOption("task-memory-budget-mb"))
+			memoryAdmission = new MemoryAdmissionController(
+					Long.parseLong(cmd.getOptionValue("task-memory-budget-mb"))*1024l*1024l);
+		
+		if (cmd.hasOption("max-batch-memory-mb"))
+			maxBatchMemory = Long.parseLong(cmd.getOptionValue("max-batch-memory-mb"))*1024l*1024l;
+		
+		if (cmd.hasOption("result-cache")) {
+			resultCacheDir = new File(cmd.getOptionValue("result-cache"));
+			if (cmd.hasOption("result-cache-max-mb"))
+				resultCacheMaxBytes = Long.parseLong(cmd.getOptionValue("result-cache-max-mb"))*1024l*1024l;
+		}
+		
+		if (cmd.hasOption("elastic-port")) {
+			String elasticPortStr = cmd.getOptionValue("elastic-port");
+			int split = elasticPortStr.lastIndexOf(':');
+			if (split >= 0) {
+				elasticBindAddress = elasticPortStr.substring(0, split);
+				elasticPortStr = elasticPortStr.substring(split+1);
+			}
+			elasticPort = Integer.parseInt(elasticPortStr);
+		}
+		
+		if (cmd.hasOption("elastic-dispatcher"))
+			elasticDispatcher = cmd.getOptionValue("elastic-dispatcher");
+		
+		if (elasticPort >= 0 || elasticDispatcher != null) {
+			Preconditions.checkArgument(cmd.hasOption("elastic-token-file"),
+					"--elastic-token-file is required with --elastic-port and --elastic-dispatcher");
+			elasticTokenFile = new File(cmd.getOptionValue("elastic-token-file"));
+		}
 	}
 
 	public MPJTaskCalculator(int numThreads, int minDispatch, int maxDispatch, boolean rootDispatchOnly) {
@@ -128,18 +209,11 @@ public abstract class MPJTaskCalculator {
 
 	private void init(int numThreads, int minDispatch, int maxDispatch, int exactDispatch, boolean rootDispatchOnly,
 			int startIndex, int endIndex, LocalDateTime endTime) {
-		if (SINGLE_NODE_NO_MPJ) {
-			this.rank = 0;
-			this.size = 1;
+		this.rank = getMPJRank();
+		this.size = getMPJSize();
+		if (SINGLE_NODE_NO_MPJ)
 			rootDispatchOnly = true;
-		} else {
-			this.rank = MPI.COMM_WORLD.Rank();
-			this.size = MPI.COMM_WORLD.Size();
-		}
-
-		try {
-			hostname = java.net.InetAddress.getLocalHost().getHostName();
-		} catch (UnknownHostException e) {}
+		hostname = getLocalHostname();
 		
 		this.numThreads = numThreads;
 		this.minDispatch = minDispatch;
@@ -150,46 +224,126 @@ public abstract class MPJTaskCalculator {
 		this.startIndex = startIndex;
 		this.endIndex = endIndex;
 		
-		if (endTime != null) {
-			// if job end time is known, schedule a job to abort before wall time is reached
-			// this helps to ensure a clean exit. killed jobs that didn't shut down properly
-			// can sometimes inhibit future runs on the same compute node
-			try {
-				LocalDateTime now = LocalDateTime.now();
-				Duration duration = Duration.between(now, endTime);
-				long secs = duration.get(ChronoUnit.SECONDS);
+		if (endTime != null)
+			timeoutScheduler = scheduleTimeoutAbort(rank, hostname, endTime);
+	}
+
+	/**
+	 * @return true if a progress watchdog or timeout was started for this calculator, which are only stopped by
+	 * {@link #run()}
+	 */
+	boolean hasBackgroundThreads() {
+		return watchdog != null || timeoutScheduler != null;
+	}
+
+	/**
+	 * @return rank of this process, or 0 if MPJ is disabled
+	 */
+	static int getMPJRank() {
+		return SINGLE_NODE_NO_MPJ ? 0 : MPI.COMM_WORLD.Rank();
+	}
+	
+	/**
+	 * @return number of MPJ processes, or 1 if MPJ is disabled
+	 */
+	static int getMPJSize() {
+		return SINGLE_NODE_NO_MPJ ? 1 : MPI.COMM_WORLD.Size();
+	}
+	
+	/**
+	 * @return host name of this machine, or null if unknown
+	 */
+	static String getLocalHostname() {
+		try {
+			return java.net.InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Schedules an abort shortly before the given job end time, if far enough in the future
+	 * 
+	 * @param rank
+	 * @param hostname
+	 * @param endTime
+	 * @return the scheduler, which should be shut down once done, or null if not scheduled
+	 */
+	static ScheduledExecutorService scheduleTimeoutAbort(int rank, String hostname, LocalDateTime endTime) {
+		// if job end time is known, schedule a job to abort before wall time is reached
+		// this helps to ensure a clean exit. killed jobs that didn't shut down properly
+		// can sometimes inhibit future runs on the same compute node
+		try {
+			LocalDateTime now = LocalDateTime.now();
+			Duration duration = Duration.between(now, endTime);
+			long secs = duration.get(ChronoUnit.SECONDS);
+			if (rank == 0)
+				debug(rank, hostname, "End time in "+secs+" s = "+smartTimePrint(secs*1000l));
+			long buffer;
+			if (secs > 10*60*60)
+				// 120s buffer for 10+ hour jobs
+				buffer = 120;
+			else if (secs > 60*60)
+				// 60s buffer for 1+ hour jobs
+				buffer = 60;
+			else if (secs > 600)
+				// 30s buffer for 10m+ jobs
+				buffer = 30;
+			else
+				buffer = 0;
+			if (buffer > 0) {
+				// only bother for long running jobs
+				long terminateSecs = secs - buffer;
 				if (rank == 0)
-					debug("End time in "+secs+" s = "+smartTimePrint(secs*1000l));
-				long buffer;
-				if (secs > 10*60*60)
-					// 120s buffer for 10+ hour jobs
-					buffer = 120;
-				else if (secs > 60*60)
-					// 60s buffer for 1+ hour jobs
-					buffer = 60;
-				else if (secs > 600)
-					// 30s buffer for 10m+ jobs
-					buffer = 30;
-				else
-					buffer = 0;
-				if (buffer > 0) {
-					// only bother for long running jobs
-					long terminateSecs = secs - buffer;
-					if (rank == 0)
-						debug("Terminating in "+terminateSecs+" s = "+smartTimePrint(terminateSecs*1000l));
-					timeoutScheduler = Executors.newScheduledThreadPool(1);
-					timeoutScheduler.schedule(new TimeoutAbortRunnable(), terminateSecs, TimeUnit.SECONDS);
-//					System.out.println("Scheduled timeout");
-				}
-			} catch (Exception e) {
-				System.err.println("Exception creating wall clock abort thread");
-				e.printStackTrace();
+					debug(rank, hostname, "Terminating in "+terminateSecs+" s = "+smartTimePrint(terminateSecs*1000l));
+				ScheduledExecutorService timeoutScheduler = Executors.newScheduledThreadPool(1);
+				timeoutScheduler.schedule(new TimeoutAbortRunnable(), terminateSecs, TimeUnit.SECONDS);
+//				System.out.println("Scheduled timeout");
+				return timeoutScheduler;
 			}
+		} catch (Exception e) {
+			System.err.println("Exception creating wall clock abort thread");
+			e.printStackTrace();
 		}
+		return null;
 	}
 
+	/**
+	 * @return number of calculation threads to use for the current batch. If the thread count is being auto-tuned
+	 * (--threads auto), this can change between batches until tuning is complete, so subclasses must call this from
+	 * {@link #calculateBatch(int[])} for each batch rather than once at construction (e.g. to size a fixed thread
+	 * pool), otherwise tuning has no effect. One less on rank 0 if a core is reserved for the dispatcher
+	 * (--reserve-dispatch-core).
+	 */
 	protected int getNumThreads() {
-		return numThreads;
+		int threads = threadTuner == null ? numThreads : threadTuner.getNumThreads();
+		return calcNumThreads(threads, rank, reserveDispatchCore && !rootDispatchOnly && !staticPartition);
+	}
+
+	/**
+	 * @param threads number of calculation threads
+	 * @param rank
+	 * @param reserveDispatchCore true if a core should be left for a dispatcher thread running on rank 0
+	 * @return number of calculation threads to use on the given rank, at least 1
+	 */
+	static int calcNumThreads(int threads, int rank, boolean reserveDispatchCore) {
+		if (reserveDispatchCore && rank == 0)
+			// leave a core for the dispatcher
+			return Integer.max(1, threads - 1);
+		return threads;
+	}
+
+	/**
+	 * Keeps every thread of this process off the dispatch CPU, so that the dispatcher has it to itself once pinned
+	 * there. Calculation threads created afterwards inherit the affinity of the thread which creates them.
+	 */
+	private void reserveDispatchCPU() {
+		List<Integer> cpus = Utils.getAllowedCPUs();
+		if (cpus != null && cpus.remove((Integer)dispatchCPU) && !cpus.isEmpty()
+				&& Utils.restrictProcessAffinity(cpus))
+			debug("restricted calculation threads to CPUs "+Joiner.on(",").join(cpus));
+		else
+			debug("failed to keep calculation threads off CPU "+dispatchCPU+", they may still share it");
 	}
 
 	protected void debug(String message) {
@@ -222,35 +376,343 @@ public abstract class MPJTaskCalculator {
 	
 	/**
 	 * @return a collection (HashSet suggested for efficiency) of indexes which are already completed, e.g. if restarting,
-	 * and can be skipped by the dispatcher, or null (default implementation) if everything should be calculated
+	 * and can be skipped by the dispatcher, or null (default implementation) if everything should be calculated. Only
+	 * called on the process with rank 0, except in static partition mode where it is called on (and must return the
+	 * same indexes on) every process
 	 */
 	protected Collection<Integer> getDoneIndexes() {
 		return null;
 	}
+	
+	/**
+	 * @return the multi-dimensional task space (with the same number of tasks as {@link #getNumTasks()}), or null
+	 * (default implementation) if tasks are independent. If supplied, tasks are dispatched in the order given by its
+	 * tiling policy rather than shuffled, so that each batch covers few values along each axis and per-axis data can be
+	 * reused within a batch. Ignored in static partition mode. See {@link #getTaskCoordinates(int[])}.
+	 */
+	protected TaskSpace getTaskSpace() {
+		return null;
+	}
+	
+	/**
+	 * @param index
+	 * @return priority class of the given task, default 0. Higher priority tasks are dispatched before any lower
+	 * priority tasks (in the usual order within each class), e.g. so that a quick-look subset completes first. Only
+	 * called on the process with rank 0, and ignored in static partition mode
+	 */
+	protected int getTaskPriority(int index) {
+		return 0;
+	}
+	
+	/**
+	 * @param batch
+	 * @return coordinates in the task space (see {@link #getTaskSpace()}) of each task in the given batch, indexed as
+	 * [task][dimension]
+	 */
+	protected int[][] getTaskCoordinates(int[] batch) {
+		TaskSpace space = getTaskSpace();
+		if (space == null)
+			throw new IllegalStateException("No task space supplied, see getTaskSpace()");
+		return space.getCoordinates(batch);
+	}
+	
+	/**
+	 * Optional estimate of the peak heap memory needed to calculate the given task, used by
+	 * {@link #acquireTaskMemory(int)} and to cap the aggregate memory of each batch (--max-batch-memory-mb). Estimates
+	 * for all tasks are computed on the process with rank 0 if batch memory is capped, so this should be fast.
+	 * 
+	 * @param index
+	 * @return estimated memory in bytes, or a value <= 0 (default implementation) if unknown
+	 */
+	protected long getTaskMemoryEstimate(int index) {
+		return -1;
+	}
+	
+	/**
+	 * @return node local memory admission controller, with a budget set by --task-memory-budget-mb, or
+	 * {@link MemoryAdmissionController#DEFAULT_HEAP_FRACTION} of the maximum heap size by default
+	 */
+	protected synchronized MemoryAdmissionController getMemoryAdmissionController() {
+		if (memoryAdmission == null)
+			memoryAdmission = new MemoryAdmissionController();
+		return memoryAdmission;
+	}
+	
+	/**
+	 * Blocks until there is enough memory in the heap budget to calculate the given task, according to
+	 * {@link #getTaskMemoryEstimate(int)}. Calculation threads in {@link #calculateBatch(int[])} should call this before
+	 * each task, and {@link #releaseTaskMemory(int)} in a finally block once it is done, to avoid running many large
+	 * tasks at once.
+	 * 
+	 * @param index
+	 * @throws InterruptedException
+	 */
+	protected void acquireTaskMemory(int index) throws InterruptedException {
+		getMemoryAdmissionController().acquire(getTaskMemoryEstimate(index));
+	}
+	
+	/**
+	 * Releases memory acquired by {@link #acquireTaskMemory(int)} for the given task
+	 * 
+	 * @param index
+	 */
+	protected void releaseTaskMemory(int index) {
+		getMemoryAdmissionController().release(getTaskMemoryEstimate(index));
+	}
+	
+	/**
+	 * Records progress for the progress watchdog (if enabled with --watchdog-mins or --watchdog-multiple). Progress is
+	 * recorded automatically whenever a batch completes, but calculators with long batches can call this as each task
+	 * completes (from any thread) to avoid false stall detection.
+	 */
+	protected void reportTaskProgress() {
+		if (watchdog != null)
+			watchdog.progress();
+	}
+	
+	/**
+	 * Reports this process to the dispatcher as failed, so that its outstanding batch is dispatched elsewhere. Called
+	 * by the progress watchdog, from its own thread.
+	 * <br>
+	 * MPJ isn't guaranteed to support concurrent calls on the same communicator from multiple threads, so on
+	 * non-root processes the report is only sent if the main thread isn't communicating with the dispatcher (guarded
+	 * by {@link #dispatchCommLock}). That is the usual case for a stall, which happens in {@link #calculateBatch(int[])}.
+	 * If the main thread is stuck waiting on the dispatcher instead, reporting is skipped (retried at the next check),
+	 * as the dispatcher can't hand the batch out again before answering this process anyway.
+	 * 
+	 * @return false if the failure couldn't be reported yet and should be retried later
+	 */
+	boolean reportFailed() {
+		if (staticPartition) {
+			// no dispatcher to report to
+			debug("can't report failure in static partition mode");
+			return true;
+		}
+		if (elasticDispatcher != null) {
+			debug("can't report failure as an elastic worker");
+			return true;
+		}
+		if (dispatcher != null) {
+			dispatcher.processFailed(rank);
+			return true;
+		}
+		if (!dispatchCommLock.tryLock()) {
+			debug("can't report failure while communicating with the dispatcher");
+			return false;
+		}
+		try {
+			BatchProtocol.reportFailed(rank);
+		} finally {
+			dispatchCommLock.unlock();
+		}
+		return true;
+	}
+	
+	/**
+	 * Result caching (enabled with --result-cache) allows tasks which were calculated in a previous run to be skipped
+	 * entirely. The key should uniquely identify the inputs to the given task (e.g. site and model branch), as any
+	 * task with a previously cached result for the same key will not be dispatched. If caching is enabled, subclasses
+	 * must also implement {@link #serializeTaskResult(int)} and {@link #loadCachedTaskResult(int, byte[])}, which is
+	 * checked at startup (see {@link #isResultCacheSupported()}).
+	 * 
+	 * @param index
+	 * @return cache key for the given task, or null (default implementation) if it should not be cached
+	 */
+	protected String getTaskCacheKey(int index) {
+		return null;
+	}
+	
+	/**
+	 * Called after {@link #calculateBatch(int[])} for each task with a cache key, on the process that calculated it.
+	 * 
+	 * @param index
+	 * @return serialized result of the given task to be stored in the result cache, or null to not cache it
+	 * @throws Exception
+	 */
+	protected byte[] serializeTaskResult(int index) throws Exception {
+		throw new UnsupportedOperationException("Result caching is not supported by "
+				+getClassNameWithoutPackage(getClass()));
+	}
+	
+	/**
+	 * Called on the process with rank 0 before dispatching starts, for each task with a cached result. The task will
+	 * not be dispatched, so this result must be handled as if the task was calculated during this run.
+	 * 
+	 * @param index
+	 * @param result serialized result, as returned by {@link #serializeTaskResult(int)} in a previous run
+	 * @throws Exception
+	 */
+	protected void loadCachedTaskResult(int index, byte[] result) throws Exception {
+		throw new UnsupportedOperationException("Result caching is not supported by "
+				+getClassNameWithoutPackage(getClass()));
+	}
+	
+	/**
+	 * Checked at startup if --result-cache is supplied, so that a calculator which can't cache results fails before
+	 * any tasks are calculated rather than after the first batch. The default implementation returns true if this
+	 * class overrides both {@link #serializeTaskResult(int)} and {@link #loadCachedTaskResult(int, byte[])}.
+	 * 
+	 * @return true if this calculator supports result caching
+	 */
+	protected boolean isResultCacheSupported() {
+		return isResultCacheSupported(getClass());
+	}
+	
+	static boolean isResultCacheSupported(Class<?> clazz) {
+		return overrides(clazz, "serializeTaskResult", int.class)
+				&& overrides(clazz, "loadCachedTaskResult", int.class, byte[].class);
+	}
+	
+	/**
+	 * @return true if the given method is declared by a subclass of MPJTaskCalculator
+	 */
+	private static boolean overrides(Class<?> clazz, String name, Class<?>... parameterTypes) {
+		for (Class<?> c=clazz; c != null && c != MPJTaskCalculator.class; c=c.getSuperclass()) {
+			try {
+				c.getDeclaredMethod(name, parameterTypes);
+				return true;
+			} catch (NoSuchMethodException e) {
+				// check the superclass
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Loads cached results for all tasks which are to be dispatched and evicts entries if the cache is too large.
+	 * 
+	 * @param doneIndexes
+	 * @return indexes of tasks which were loaded from the cache
+	 */
+	private HashSet<Integer> loadCachedResults(Collection<Integer> doneIndexes) throws Exception {
+		HashSet<Integer> cached = new HashSet<>();
+		long totalBytes = resultCache.loadIndex();
+		for (int index=startIndex; index<endIndex; index++) {
+			if (doneIndexes != null && doneIndexes.contains(index))
+				continue;
+			String key = getTaskCacheKey(index);
+			if (key == null)
+				continue;
+			byte[] result = resultCache.get(TaskResultCache.hashKey(key));
+			if (result != null) {
+				loadCachedTaskResult(index, result);
+				cached.add(index);
+			}
+		}
+		resultCache.evict(totalBytes);
+		debug("result cache: "+resultCache.getStatsString());
+		return cached;
+	}
+	
+	private void storeCachedResults(int[] batch) throws Exception {
+		for (int index : batch) {
+			String key = getTaskCacheKey(index);
+			if (key == null)
+				continue;
+			byte[] result = serializeTaskResult(index);
+			if (result != null)
+				resultCache.put(TaskResultCache.hashKey(key), result);
+		}
+		resultCache.flush();
+	}
 
 	public void run() throws IOException, InterruptedException {
-		if (rank == 0) {
+		if (resultCacheDir != null && !isResultCacheSupported())
+			abortAndExit(new IllegalStateException("--result-cache was supplied, but "
+					+getClassNameWithoutPackage(getClass())+" doesn't support result caching (it must implement"
+					+ " serializeTaskResult and loadCachedTaskResult)"));
+		if (elasticDispatcher != null) {
+			runElasticWorker();
+			return;
+		}
+		if (resultCacheDir != null)
+			resultCache = new TaskResultCache(resultCacheDir, rank, resultCacheMaxBytes);
+		if (rank == 0 && !staticPartition) {
 			// launch the dispatcher
 			if (startIndex < 0)
 				startIndex = 0;
 			if (endIndex < 0)
 				endIndex = getNumTasks();
-			dispatcher = new DispatcherThread(size, getNumTasks(),
-					minDispatch, maxDispatch, exactDispatch, shuffle, startIndex, endIndex, postBatchHook, getDoneIndexes());
+			Collection<Integer> doneIndexes = getDoneIndexes();
+			if (resultCache != null) {
+				try {
+					HashSet<Integer> cached = loadCachedResults(doneIndexes);
+					if (!cached.isEmpty()) {
+						// cached tasks are skipped by the dispatcher just like those which are already done
+						if (doneIndexes != null)
+							cached.addAll(doneIndexes);
+						doneIndexes = cached;
+					}
+				} catch (Exception e) {
+					abortAndExit(e);
+				}
+			}
+			if (costProfileFile != null) {
+				debug("using cost profile: "+costProfileFile.getAbsolutePath());
+				costProfile = new TaskCostProfile(costProfileFile, getNumTasks());
+			}
+			dispatcher = new DispatcherThread(size, getNumTasks(), minDispatch, maxDispatch, exactDispatch, shuffle,
+					startIndex, endIndex, postBatchHook, doneIndexes, costProfile);
+			if (watchdog != null)
+				watchdog.setDispatcher(dispatcher);
+			if (maxBatchMemory > 0) {
+				long[] taskMemory = new long[getNumTasks()];
+				for (int index=startIndex; index<endIndex; index++)
+					taskMemory[index] = getTaskMemoryEstimate(index);
+				dispatcher.setBatchMemoryCap(maxBatchMemory, taskMemory);
+			}
+			TaskSpace taskSpace = getTaskSpace();
+			if (taskSpace != null) {
+				Preconditions.checkState(taskSpace.getNumTasks() == getNumTasks(),
+						"Task space has %s tasks, expected %s", taskSpace.getNumTasks(), getNumTasks());
+				dispatcher.setTaskSpace(taskSpace);
+			}
+			int[] priorities = null;
+			for (int index=startIndex; index<endIndex; index++) {
+				int priority = getTaskPriority(index);
+				if (priority != 0) {
+					if (priorities == null)
+						priorities = new int[getNumTasks()];
+					priorities[index] = priority;
+				}
+			}
+			if (priorities != null)
+				dispatcher.setTaskPriorities(priorities);
+			dispatcher.setCapacityWeighted(capacityWeighted);
+			if (elasticPort >= 0) {
+				InetAddress bindAddress = elasticBindAddress == null ? null : InetAddress.getByName(elasticBindAddress);
+				String token = ElasticWorkerServer.loadOrCreateToken(elasticTokenFile);
+				elasticServer = new ElasticWorkerServer(dispatcher, token, bindAddress, elasticPort,
+						ElasticWorkerServer.DEFAULT_READ_TIMEOUT_MILLIS);
+				elasticServer.start();
+			}
 			if (rootDispatchOnly) {
 				debug("starting dispatcher serially");
 				dispatcher.run();
 			} else {
 				debug("starting dispatcher threaded");
+				if (reserveDispatchCore) {
+					// note that thread priorities are ignored by some JVMs (e.g. HotSpot on Linux by default)
+					dispatcher.setPriority(Thread.MAX_PRIORITY);
+					if (dispatchCPU >= 0) {
+						reserveDispatchCPU();
+						dispatcher.setPinnedCPU(dispatchCPU);
+					}
+					debug("reserved a core for the dispatcher, calculating with "+getNumThreads()+" threads");
+				}
 				dispatcher.start();
 			}
 		}
 
-		int[] my_id = { rank };
+		BatchTelemetry telemetry = new BatchTelemetry();
+		
+		// time from asking the dispatcher for a batch to receiving it
+		Utils.MinMaxAveTracker responseLatency = new Utils.MinMaxAveTracker();
 
-		int[] batch_lengh_buf = new int[1];
+		if (staticPartition)
+			runStaticPartition(telemetry);
 
-		while (true) {
+		while (!staticPartition) {
 			if (rank == 0 && rootDispatchOnly)
 				break;
 
@@ -259,26 +721,30 @@ public abstract class MPJTaskCalculator {
 				// this is a non-root thread, use MPJ to get the next batch
 
 				debug("sending READY message");
-				// report to dispatcher as ready
-				MPI.COMM_WORLD.Send(my_id, 0, 1, MPI.INT, 0, TAG_READY_FOR_BATCH);
-
-				debug("receiving batch lengh");
-				// receive a new batch length
-				MPI.COMM_WORLD.Recv(batch_lengh_buf, 0, 1, MPI.INT, 0, TAG_NEW_BATCH_LENGH);
+				long readyNanos = System.nanoTime();
+				// the progress watchdog may also send to the dispatcher, see reportFailed()
+				dispatchCommLock.lock();
+				try {
+					// report to dispatcher as ready, along with our current capacity
+					batch = BatchProtocol.INT_BATCHES.requestBatch(rank, getNumThreads(), getThroughput());
+				} finally {
+					dispatchCommLock.unlock();
+				}
+				responseLatency.addValue((System.nanoTime() - readyNanos)/1e6);
 
-				if (batch_lengh_buf[0] == 0) {
+				if (batch == null) {
 					debug("DONE!");
 					// we're done
 					break;
 				}
 
-				batch = new int[batch_lengh_buf[0]];
-
 				debug("receiving batch of length "+batch.length);
-				MPI.COMM_WORLD.Recv(batch, 0, batch.length, MPI.INT, 0, TAG_NEW_BATCH);
 			} else {
 				debug("getting next batch directly");
+				long readyNanos = System.nanoTime();
+				dispatcher.setProcessCapacity(rank, getNumThreads(), getThroughput());
 				batch = dispatcher.getNextBatch(rank);
+				responseLatency.addValue((System.nanoTime() - readyNanos)/1e6);
 
 				if (batch == null || batch.length == 0) {
 					debug("DONE!");
@@ -289,14 +755,26 @@ public abstract class MPJTaskCalculator {
 				}
 			}
 
-			// now calculate the batch
-			debug("calculating batch");
-			try {
-				calculateBatch(batch);
-			} catch (Exception e) {
-				abortAndExit(e);
-			}
+			processBatch(batch, telemetry);
+		}
+		
+		if (elasticServer != null)
+			finishElasticWorkers(telemetry);
+		
+		if (watchdog != null)
+			// waiting on other processes from here on
+			watchdog.stopProgressChecks();
+		
+		if (responseLatency.getNum() > 0)
+			debug("dispatcher response latency: "+Utils.latencySummary(responseLatency));
+		
+		if (resultCache != null) {
+			resultCache.close();
+			debug("result cache: "+resultCache.getStatsString());
 		}
+		
+		if (memoryAdmission != null)
+			debug("memory admission: "+memoryAdmission.getStatsString());
 
 		debug("waiting for other processes with Barrier()");
 
@@ -304,6 +782,11 @@ public abstract class MPJTaskCalculator {
 		if (!SINGLE_NODE_NO_MPJ)
 			MPI.COMM_WORLD.Barrier();
 		try {
+			if (dispatcher != null)
+				// every process has retired its last batch by now, but post batch hooks may still be running
+				dispatcher.waitForPostBatchHooks();
+			if (costProfile != null)
+				costProfile.close();
 			doFinalAssembly();
 		} catch (Exception e) {
 			abortAndExit(e);
@@ -321,9 +804,157 @@ public abstract class MPJTaskCalculator {
 		}
 	}
 
+	/**
+	 * Calculates the given batch, along with any per batch bookkeeping (telemetry, thread tuning, watchdog, caching)
+	 */
+	private void processBatch(int[] batch, BatchTelemetry telemetry) {
+		// now calculate the batch
+		debug("calculating batch");
+		if (watchdog != null)
+			watchdog.batchStarted(batch.length);
+		long batchStartTime = System.nanoTime();
+		try {
+			telemetry.start();
+			if (threadTuner == null) {
+				calculateBatch(batch);
+			} else {
+				threadTuner.batchStarting(batch.length);
+				calculateBatch(batch);
+				if (threadTuner.batchFinished(batch.length,
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batchStartTime))) {
+					debug("auto-tuned thread count: "+threadTuner.getNumThreads()
+						+" ("+threadTuner.getTrialsString()+")");
+				}
+			}
+			telemetry.finish();
+			debug(telemetry.toString());
+			numTasksCalculated += batch.length;
+			calcNanos += System.nanoTime() - batchStartTime;
+			if (watchdog != null)
+				watchdog.batchFinished(batch.length,
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batchStartTime));
+			if (resultCache != null)
+				storeCachedResults(batch);
+		} catch (Exception e) {
+			abortAndExit(e);
+		}
+	}
+	
+	/**
+	 * @return measured throughput of this process in tasks per hour over all batches so far, or 0 if unknown. Reported
+	 * to the dispatcher with each READY message for capacity weighted batch sizes (--capacity-weighted).
+	 */
+	int getThroughput() {
+		if (numTasksCalculated == 0 || calcNanos <= 0)
+			return 0;
+		double perHour = (double)numTasksCalculated * TimeUnit.HOURS.toNanos(1) / (double)calcNanos;
+		return (int)Math.max(1l, Math.min(Integer.MAX_VALUE, Math.round(perHour)));
+	}
+	
+	/**
+	 * Waits for elastic workers to finish their outstanding batches on rank 0, once all other processes are done.
+	 * Batches returned by elastic workers which leave after this point are calculated here.
+	 */
+	private void finishElasticWorkers(BatchTelemetry telemetry) throws InterruptedException {
+		debug("waiting for elastic workers to finish");
+		while (true) {
+			dispatcher.waitForElasticWorkers();
+			dispatcher.setProcessCapacity(rank, getNumThreads(), getThroughput());
+			int[] batch = dispatcher.getNextBatch(rank);
+			if (batch.length > 0) {
+				debug("receiving batch of length "+batch.length);
+				processBatch(batch, telemetry);
+				// same message as when rank 0 gets batches directly, which marks the end of this batch in the log
+				debug("getting next batch directly");
+			} else if (dispatcher.isElasticDone()) {
+				break;
+			}
+		}
+		elasticServer.close();
+		debug("elastic workers done");
+	}
+	
+	/**
+	 * Elastic worker mode (--elastic-dispatcher): registers with the dispatcher of a running job over a socket, then
+	 * calculates batches until none are left or this JVM is shut down, in which case the current batch is returned to
+	 * the dispatcher. MPI isn't used, so {@link #doFinalAssembly()} is not called: results must be written somewhere
+	 * that the job can find them (e.g. a shared file system, or the result cache).
+	 */
+	private void runElasticWorker() throws IOException {
+		int split = elasticDispatcher.lastIndexOf(':');
+		if (split < 0)
+			throw new IllegalArgumentException("Elastic dispatcher must be host:port, got "+elasticDispatcher);
+		String host = elasticDispatcher.substring(0, split);
+		int port = Integer.parseInt(elasticDispatcher.substring(split+1));
+		final ElasticWorkerClient client = new ElasticWorkerClient(host, port,
+				ElasticWorkerServer.readToken(elasticTokenFile));
+		rank = client.register();
+		debug("registered with dispatcher at "+elasticDispatcher+" as elastic worker "+rank);
+		Thread leaveHook = new Thread() {
+			
+			@Override
+			public void run() {
+				client.leave();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(leaveHook);
+		
+		if (resultCacheDir != null)
+			resultCache = new TaskResultCache(resultCacheDir, rank, resultCacheMaxBytes);
+		BatchTelemetry telemetry = new BatchTelemetry();
+		while (true) {
+			debug("sending READY message");
+			int[] batch = client.nextBatch(getNumThreads(), getThroughput());
+			if (batch.length == 0) {
+				debug("DONE!");
+				break;
+			}
+			debug("receiving batch of length "+batch.length);
+			processBatch(batch, telemetry);
+		}
+		if (resultCache != null) {
+			resultCache.close();
+			debug("result cache: "+resultCache.getStatsString());
+		}
+		client.close();
+		Runtime.getRuntime().removeShutdownHook(leaveHook);
+		debug("Process "+rank+" DONE!");
+	}
+	
+	/**
+	 * Static partition mode: each process calculates its own share of the tasks without a dispatcher, then steals
+	 * from others once it runs out. See {@link WorkStealingPartition}.
+	 */
+	private void runStaticPartition(BatchTelemetry telemetry) throws InterruptedException {
+		if (postBatchHook != null)
+			throw new IllegalStateException("Post batch hooks are not supported in static partition mode");
+		if (startIndex < 0)
+			startIndex = 0;
+		if (endIndex < 0)
+			endIndex = getNumTasks();
+		if (costProfileFile != null || maxBatchMemory > 0 || resultCache != null)
+			debug("cost profile, batch memory cap, and result cache lookups are ignored in static partition mode");
+		WorkStealingPartition partition = new WorkStealingPartition(rank, size, rootDispatchOnly && size > 1,
+				startIndex, endIndex, getDoneIndexes(), SINGLE_NODE_NO_MPJ);
+		partition.start();
+		while (true) {
+			// same message as when rank 0 gets batches directly, which marks the end of the previous batch in the log
+			debug("getting next batch directly");
+			int[] batch = partition.nextChunk(minDispatch, maxDispatch, exactDispatch);
+			if (batch.length == 0) {
+				debug("DONE!");
+				break;
+			}
+			debug("receiving batch of length "+batch.length);
+			processBatch(batch, telemetry);
+		}
+		partition.finish();
+	}
+
 	/**
 	 * Called when a set of tasks are to be executed by this worker. The batch array contains task indexes (0-based)
-	 * of each task to be executed. Threading is to be implemented here if applicable, using getNumThreads().
+	 * of each task to be executed. Threading is to be implemented here if applicable, using getNumThreads() which
+	 * should be checked for every batch as it can change between batches.
 	 * 
 	 * @param batch array of task indexes (0-based) which should be executed
 	 * @throws Exception
@@ -342,8 +973,9 @@ public abstract class MPJTaskCalculator {
 		Options ops = new Options();
 
 		Option threadsOption = new Option("t", "threads", true,
-				"Number of calculation threads on each node. Default is the number" +
-						" of available processors (in this case: "+Runtime.getRuntime().availableProcessors()+")");
+				"Number of calculation threads on each node, or 'auto' to pick the fastest number of threads by measuring"
+						+ " throughput of the first few batches. Default is the number of available processors, limited"
+						+ " by any cgroup CPU quota (in this case: "+Utils.getAvailableProcessors()+")");
 		threadsOption.setRequired(false);
 		ops.addOption(threadsOption);
 
@@ -363,6 +995,34 @@ public abstract class MPJTaskCalculator {
 		exactDispatchOption.setRequired(false);
 		ops.addOption(exactDispatchOption);
 
+		Option staticPartitionOption = new Option("static", "static-partition", false, "Flag to partition tasks"
+				+ " statically instead of using the dispatcher: each process calculates a contiguous share of the tasks"
+				+ " and steals from others once it runs out. Best for uniform cost tasks. getDoneIndexes() must be"
+				+ " identical on every process, and post batch hooks are not supported.");
+		staticPartitionOption.setRequired(false);
+		ops.addOption(staticPartitionOption);
+
+		Option reserveDispatchOption = new Option("rdc", "reserve-dispatch-core", false, "Flag to reserve a core for the"
+				+ " dispatcher when rank 0 also calculates (i.e. without --root-dispatch-only): rank 0 uses one fewer"
+				+ " calculation thread, and the dispatcher thread runs at maximum priority. On its own this is a hint"
+				+ " to the OS scheduler, use --dispatch-cpu to dedicate a CPU. Dispatcher response latency is logged"
+				+ " by each process once done.");
+		reserveDispatchOption.setRequired(false);
+		ops.addOption(reserveDispatchOption);
+
+		Option dispatchCPUOption = new Option("dcpu", "dispatch-cpu", true, "If supplied, the dispatcher thread will be"
+				+ " pinned to this CPU, and all other threads of rank 0 (including calculation threads) kept off it,"
+				+ " with taskset (Linux only). Implies --reserve-dispatch-core.");
+		dispatchCPUOption.setRequired(false);
+		ops.addOption(dispatchCPUOption);
+
+		Option capacityWeightedOption = new Option("cw", "capacity-weighted", false, "Flag to size batches in"
+				+ " proportion to the capacity of each process (its measured throughput, or its thread count until that"
+				+ " is known) rather than evenly, rounded to a multiple of its thread count. Useful when nodes differ in"
+				+ " core count or speed.");
+		capacityWeightedOption.setRequired(false);
+		ops.addOption(capacityWeightedOption);
+
 		Option rootDispatchOnlyOption = new Option("rdo", "root-dispatch-only", false, "Flag for root node only" +
 				"dispatching tasks and not calculating itself");
 		rootDispatchOnlyOption.setRequired(false);
@@ -373,6 +1033,26 @@ public abstract class MPJTaskCalculator {
 		deadlockOption.setRequired(false);
 		ops.addOption(deadlockOption);
 
+		Option watchdogMinsOption = new Option("wdmins", "watchdog-mins", true, "If supplied, a progress watchdog will"
+				+ " dump all thread stacks (and dispatcher state on rank 0) if a process goes this many minutes without"
+				+ " completing a batch or task.");
+		watchdogMinsOption.setRequired(false);
+		ops.addOption(watchdogMinsOption);
+
+		Option watchdogMultipleOption = new Option("wdmult", "watchdog-multiple", true, "If supplied, enables the"
+				+ " progress watchdog, which will detect a stall if a process goes this multiple of its rolling average"
+				+ " batch time without progress (never less than "
+				+ (ProgressWatchdogThread.MIN_RELATIVE_STALL_MILLIS/60000l)+" minutes). Set to 0 to only use"
+				+ " --watchdog-mins. Default: "+(int)ProgressWatchdogThread.DEFAULT_AVG_MULTIPLE);
+		watchdogMultipleOption.setRequired(false);
+		ops.addOption(watchdogMultipleOption);
+
+		Option watchdogReportOption = new Option("wdreport", "watchdog-report-failed", false, "If supplied, the progress"
+				+ " watchdog will also report stalled processes to the dispatcher as failed, and their current batch will"
+				+ " be dispatched to other processes.");
+		watchdogReportOption.setRequired(false);
+		ops.addOption(watchdogReportOption);
+
 		Option startIndexOption = new Option("start", "start-index", true, "If supplied, will calculate tasks starting at the"
 				+ " given index, includsive. Default is zero.");
 		startIndexOption.setRequired(false);
@@ -389,6 +1069,60 @@ public abstract class MPJTaskCalculator {
 		endTimeOption.setRequired(false);
 		ops.addOption(endTimeOption);
 
+		Option costProfileOption = new Option("cost", "cost-profile", true, "If supplied, per-task durations will be"
+				+ " recorded to this file as batches complete. If it already exists (e.g. from a previous run), the"
+				+ " recorded durations are used to dispatch the longest tasks first and to size batches by estimated"
+				+ " duration rather than task count.");
+		costProfileOption.setRequired(false);
+		ops.addOption(costProfileOption);
+
+		Option memBudgetOption = new Option("membudget", "task-memory-budget-mb", true, "Heap budget in megabytes for"
+				+ " concurrently running tasks on each node, for calculators which support memory admission control."
+				+ " Default is "+(int)(MemoryAdmissionController.DEFAULT_HEAP_FRACTION*100d)+"% of the max heap size.");
+		memBudgetOption.setRequired(false);
+		ops.addOption(memBudgetOption);
+
+		Option maxBatchMemOption = new Option("maxbatchmem", "max-batch-memory-mb", true, "If supplied, the aggregate"
+				+ " estimated memory of the tasks in each batch will be capped at this many megabytes, for calculators"
+				+ " which supply memory estimates.");
+		maxBatchMemOption.setRequired(false);
+		ops.addOption(maxBatchMemOption);
+
+		Option resultCacheOption = new Option("cache", "result-cache", true, "If supplied, task results will be cached"
+				+ " in this directory and tasks with a cached result from a previous run will be skipped. Must be visible"
+				+ " to all processes, and requires support from the calculator.");
+		resultCacheOption.setRequired(false);
+		ops.addOption(resultCacheOption);
+
+		Option resultCacheMaxOption = new Option("cachemax", "result-cache-max-mb", true, "Maximum size of the result"
+				+ " cache in megabytes, enforced at the start of each run. Default is unbounded.");
+		resultCacheMaxOption.setRequired(false);
+		ops.addOption(resultCacheMaxOption);
+
+		Option elasticPortOption = new Option("eport", "elastic-port", true, "If supplied, the dispatcher will accept"
+				+ " elastic workers (see --elastic-dispatcher) on this port, which can join and leave at any time. Can"
+				+ " be given as address:port to only listen on that address, otherwise all interfaces are used. Workers"
+				+ " which are silent for "+(ElasticWorkerServer.DEFAULT_READ_TIMEOUT_MILLIS/60000)+" minutes (e.g. hung)"
+				+ " are dropped and their batches requeued. Once other processes are done, rank 0 calculates any"
+				+ " batches requeued by elastic workers, even with --root-dispatch-only. Requires"
+				+ " --elastic-token-file.");
+		elasticPortOption.setRequired(false);
+		ops.addOption(elasticPortOption);
+
+		Option elasticDispatcherOption = new Option("edisp", "elastic-dispatcher", true, "If supplied (as host:port),"
+				+ " this process will join a running job as an elastic worker rather than through MPI. Run with"
+				+ " -Dmpj.disable=true. doFinalAssembly() isn't called for elastic workers, so results must be written"
+				+ " somewhere that the job can find them, e.g. the result cache. Requires --elastic-token-file.");
+		elasticDispatcherOption.setRequired(false);
+		ops.addOption(elasticDispatcherOption);
+
+		Option elasticTokenOption = new Option("etoken", "elastic-token-file", true, "Token file shared by the"
+				+ " dispatcher and elastic workers, which must present its token to register. Created with a random"
+				+ " token (readable only by the owner) by the dispatcher if it doesn't exist, so it should be on a file"
+				+ " system which the workers can read.");
+		elasticTokenOption.setRequired(false);
+		ops.addOption(elasticTokenOption);
+
 		return ops;
 	}
 	
@@ -423,6 +1157,31 @@ public abstract class MPJTaskCalculator {
 			return this;
 		}
 		
+		public ArgumentBuilder autoThreads() {
+			args.add("--threads auto");
+			return this;
+		}
+		
+		public ArgumentBuilder staticPartition() {
+			args.add("--static-partition");
+			return this;
+		}
+		
+		public ArgumentBuilder reserveDispatchCore() {
+			args.add("--reserve-dispatch-core");
+			return this;
+		}
+		
+		public ArgumentBuilder dispatchCPU(int cpu) {
+			args.add("--dispatch-cpu "+cpu);
+			return this;
+		}
+		
+		public ArgumentBuilder capacityWeighted() {
+			args.add("--capacity-weighted");
+			return this;
+		}
+		
 		public ArgumentBuilder rootDispatchOnly() {
 			args.add("--root-dispatch-only");
 			return this;
@@ -433,21 +1192,97 @@ public abstract class MPJTaskCalculator {
 			return this;
 		}
 		
+		public ArgumentBuilder watchdogMins(double mins) {
+			args.add("--watchdog-mins "+mins);
+			return this;
+		}
+		
+		public ArgumentBuilder watchdogMultiple(double multiple) {
+			args.add("--watchdog-multiple "+multiple);
+			return this;
+		}
+		
+		public ArgumentBuilder watchdogReportFailed() {
+			args.add("--watchdog-report-failed");
+			return this;
+		}
+		
 		public ArgumentBuilder startIndex(int startIndex) {
 			args.add("--start-index "+startIndex);
 			return this;
 		}
 		
+		/**
+		 * 64-bit start index, for {@link MPJLongTaskCalculator}
+		 */
+		public ArgumentBuilder startIndex(long startIndex) {
+			args.add("--start-index "+startIndex);
+			return this;
+		}
+		
 		public ArgumentBuilder endIndex(int endIndex) {
 			args.add("--end-index "+endIndex);
 			return this;
 		}
 		
+		/**
+		 * 64-bit end index, for {@link MPJLongTaskCalculator}
+		 */
+		public ArgumentBuilder endIndex(long endIndex) {
+			args.add("--end-index "+endIndex);
+			return this;
+		}
+		
 		public ArgumentBuilder endTime(String endTime) {
 			args.add("--end-time "+endTime);
 			return this;
 		}
 		
+		public ArgumentBuilder costProfile(String costProfileFile) {
+			args.add("--cost-profile "+costProfileFile);
+			return this;
+		}
+		
+		public ArgumentBuilder taskMemoryBudgetMB(long budgetMB) {
+			args.add("--task-memory-budget-mb "+budgetMB);
+			return this;
+		}
+		
+		public ArgumentBuilder maxBatchMemoryMB(long maxMB) {
+			args.add("--max-batch-memory-mb "+maxMB);
+			return this;
+		}
+		
+		public ArgumentBuilder resultCache(String resultCacheDir) {
+			args.add("--result-cache "+resultCacheDir);
+			return this;
+		}
+		
+		public ArgumentBuilder resultCacheMaxMB(long maxMB) {
+			args.add("--result-cache-max-mb "+maxMB);
+			return this;
+		}
+		
+		public ArgumentBuilder elasticPort(int port) {
+			args.add("--elastic-port "+port);
+			return this;
+		}
+		
+		public ArgumentBuilder elasticPort(String bindAddress, int port) {
+			args.add("--elastic-port "+bindAddress+":"+port);
+			return this;
+		}
+		
+		public ArgumentBuilder elasticDispatcher(String hostAndPort) {
+			args.add("--elastic-dispatcher "+hostAndPort);
+			return this;
+		}
+		
+		public ArgumentBuilder elasticTokenFile(String tokenFile) {
+			args.add("--elastic-token-file "+tokenFile);
+			return this;
+		}
+		
 		public ArgumentBuilder endTimeSlurm() {
 			args.add("--end-time `scontrol show job $SLURM_JOB_ID | egrep --only-matching 'EndTime=[^ ]+' | cut -c 9-`");
 			return this;
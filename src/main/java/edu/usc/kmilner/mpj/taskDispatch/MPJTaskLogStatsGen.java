@@ -4,7 +4,6 @@ import static edu.usc.kmilner.mpj.taskDispatch.Utils.*;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.ParseException;
@@ -18,6 +17,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -30,9 +35,85 @@ import com.google.common.collect.Maps;
  */
 public class MPJTaskLogStatsGen {
 
+	private static Options createOptions() {
+		Options ops = new Options();
+
+		Option indexOption = new Option("idx", "index-dir", true, "Directory of the job history index. If supplied, "
+				+ "any log files/directories given are parsed and added to the index (in parallel) instead of printing "
+				+ "stats for a single log, and the --query option can be used to query all indexed jobs.");
+		indexOption.setRequired(false);
+		ops.addOption(indexOption);
+
+		Option tagOption = new Option("tag", "tag", true, "Tag to store with newly indexed jobs, e.g. a code version "
+				+ "or node type");
+		tagOption.setRequired(false);
+		ops.addOption(tagOption);
+
+		Option queryOption = new Option("q", "query", true, "Query to run against the job history index, one of: "
+				+ "host (mean time per task by host), tag (mean time per task by tag), job (per job summary), "
+				+ "rate (aggregate rate over time)");
+		queryOption.setRequired(false);
+		ops.addOption(queryOption);
+
+		Option queryTagsOption = new Option("qt", "query-tags", true, "Comma separated list of tags, if supplied "
+				+ "queries will only include jobs with one of these tags");
+		queryTagsOption.setRequired(false);
+		ops.addOption(queryTagsOption);
+
+		Option bucketOption = new Option("b", "bucket-hours", true, "Time bucket size in hours for the rate query. "
+				+ "Default: 24");
+		bucketOption.setRequired(false);
+		ops.addOption(bucketOption);
+
+		Option csvOption = new Option("csv", "timeseries-csv", true, "If supplied, task throughput over time for each "
+				+ "rank and overall will be written to this CSV file");
+		csvOption.setRequired(false);
+		ops.addOption(csvOption);
+
+		Option jsonOption = new Option("json", "timeseries-json", true, "If supplied, task throughput over time for "
+				+ "each rank and overall, and any throughput regime changes, will be written to this JSON file");
+		jsonOption.setRequired(false);
+		ops.addOption(jsonOption);
+
+		Option windowOption = new Option("w", "window-secs", true, "Time series window size in seconds. Default is "
+				+ "1/100th of the log duration, rounded to the nearest second");
+		windowOption.setRequired(false);
+		ops.addOption(windowOption);
+
+		Option threadsOption = new Option("t", "threads", true, "Number of parsing threads. Default is the number "
+				+ "of available processors");
+		threadsOption.setRequired(false);
+		ops.addOption(threadsOption);
+
+		return ops;
+	}
+
 	public static void main(String[] args) throws IOException {
-		Preconditions.checkArgument(args.length == 1,
-				"USAGE: "+getClassNameWithoutPackage(MPJTaskLogStatsGen.class)+" <log-file>");
+		Options options = createOptions();
+		CommandLine cmd;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		} catch (org.apache.commons.cli.ParseException e) {
+			System.out.println(e.getMessage());
+			printUsage(options);
+			System.exit(2);
+			return;
+		}
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (cmd.hasOption("threads"))
+			threads = Integer.parseInt(cmd.getOptionValue("threads"));
+
+		if (cmd.hasOption("index-dir")) {
+			indexMain(cmd, threads);
+			return;
+		}
+
+		args = cmd.getArgs();
+		if (args.length != 1) {
+			printUsage(options);
+			System.exit(2);
+		}
 		
 		File logFile = new File(args[0]);
 		Preconditions.checkArgument(logFile.exists(), "Log file doesn't exist: %s", logFile.getAbsolutePath());
@@ -43,117 +124,36 @@ public class MPJTaskLogStatsGen {
 			Arrays.sort(files, new FileNameComparator());
 			File match = null;
 			for (int i=files.length; --i>=0;) {
-				if (files[i].getName().contains(".pbs.o") || files[i].getName().contains(".slurm.o")) {
+				if (isLogFile(files[i])) {
 					match = files[i];
 					break;
 				}
 			}
 			Preconditions.checkState(match != null, "No *.pbs.o* or *.slurm.o* output file found in directory: %s",
 					logFile.getAbsolutePath());
+			String uncompressedName = ParallelLogParser.stripCompressionSuffix(match.getName());
+			if (!uncompressedName.equals(match.getName())) {
+				// prefer the uncompressed version if both exist
+				File uncompressed = new File(logFile, uncompressedName);
+				if (uncompressed.exists())
+					match = uncompressed;
+			}
 			System.out.println("Found match in directory: "+match.getAbsolutePath());
 			logFile = match;
 		}
 		
-		BufferedReader read = new BufferedReader(new FileReader(logFile), 81920);
+		ParsedLog log = new ParallelLogParser(threads).parse(logFile);
 		
-		Map<Node, Node> nodeSet = Maps.newHashMap();
-		Map<Node, Date> lastHeardFromMap = Maps.newHashMap();
-		Map<Node, List<CalcBatch>> nodeBatches = Maps.newHashMap();
+		Map<Node, Node> nodeSet = log.nodeSet;
+		Map<Node, Date> lastHeardFromMap = log.lastHeardFromMap;
+		Map<Node, List<CalcBatch>> nodeBatches = log.nodeBatches;
 		
+		Date prevDate = log.prevDate;
+		Date firstDate = log.firstDate;
 		
-		// used to detect midnight transitions
-		Date prevDate = null;
-		
-		Date firstDate = null;
-		
-		int numTasks = -1;
-		int numLeft = -1;
-		int prevDispatch = 0;
-		int numDone = 0;
-		
-		boolean nodeZeroDirect = false;
-		
-//		String line;
-//		while ((line = read.readLine()) != null) {
-		for (String line : new LogFileIterable(read)) {
-			if (line.contains("DispatcherThread]:")) {
-				if (line.contains("getting batch with ")) {
-					line = line.substring(line.indexOf("]:")+2, line.indexOf(" left"));
-					String[] split = line.split(" ");
-					try {
-						numLeft = Integer.parseInt(split[split.length-1]);
-					} catch (NumberFormatException e) {
-						System.err.println("Bad num left parse: "+e.getMessage());
-					}
-					if (numTasks < 0)
-						numTasks = numLeft; 
-				} else if (line.contains("returning batch of size:")) {
-					String[] split = line.trim().split(" ");
-					try {
-						prevDispatch = Integer.parseInt(split[split.length-1]);
-						// first states num left, then removes and returns, so this updates to actual post dispatch count
-						numLeft -= prevDispatch;
-					} catch (NumberFormatException e) {
-						System.err.println("Bad num dispatch size parse: "+e.getMessage());
-					}
-				}
-			}
-			Node node = parseNodeLine(line);
-			if (node == null)
-				continue;
-			
-			if (nodeSet.containsKey(node)) {
-				// don't want duplicates in memory, use the one we already have
-				node = nodeSet.get(node);
-			} else {
-				nodeSet.put(node, node);
-				nodeBatches.put(node, new ArrayList<MPJTaskLogStatsGen.CalcBatch>());
-			}
-			
-			Date date = parseDate(line, prevDate);
-			if (date == null)
-				continue;
-			if (firstDate == null)
-				firstDate = date;
-			
-			lastHeardFromMap.put(node, date);
-			
-			List<CalcBatch> batches = nodeBatches.get(node);
-			
-			if (line.contains("receiving batch of length")) {
-				// new batch
-				batches.add(parseBatchLine(line, node, date));
-//			} else if (!nodeZeroDirect && line.contains("getting next batch directly")) {
-//				nodeZeroDirect = true;
-//			} else if (nodeZeroDirect && node.getProcessNum() == 0) {
-//				boolean newCalc = line.contains("calculating batch");
-//				boolean done = line.contains("DONE!");
-//				if ((newCalc && prevDispatch > 0) || done) {
-//					if (!batches.isEmpty()) {
-//						CalcBatch batch = getLastInProgress(batches);
-//						if (batch != null) {
-//							batch.setEndDate(date);
-//							numDone += batch.size;
-//						}
-//					}
-//				}
-//				if (newCalc)
-//					batches.add(new CalcBatch(prevDispatch, node, date));
-			} else if (line.contains("sending READY message") || line.contains("getting next batch directly")) {
-				if (!batches.isEmpty()) {
-					// finished a batch
-					CalcBatch batch = getLastInProgress(batches);
-					if (batch != null) {
-						batch.setEndDate(date);
-						numDone += batch.size;
-					}
-				}
-			}
-			
-			prevDate = date;
-		}
-		
-		read.close();
+		int numTasks = log.numTasks;
+		int numLeft = log.numLeft;
+		int numDone = log.numDone;
 		
 		System.out.println("Done parsing log");
 		
@@ -295,6 +295,8 @@ public class MPJTaskLogStatsGen {
 		System.out.println("\tAverage: "+smartTimePrint(allBatchDurationTrack.getAverage()));
 		System.out.println("\tTotal: "+smartTimePrint(allBatchDurationTrack.getAverage()*allBatchDurationTrack.getNum()));
 		
+		printGCStats(nodes, nodeBatches);
+		
 		System.out.println();
 		boolean done = numDone == numTasks;
 		System.out.println("DONE? "+done);
@@ -345,8 +347,150 @@ public class MPJTaskLogStatsGen {
 				System.out.println("\tTime left: "+smartTimePrint(timeLeftFromCur));
 			System.out.println("Estimated total duration: "+smartTimePrint(totDuration+timeLeftFromLast));
 		}
+		
+		long windowMillis;
+		if (cmd.hasOption("window-secs"))
+			windowMillis = (long)(Double.parseDouble(cmd.getOptionValue("window-secs"))*1000d);
+		else
+			windowMillis = Long.max(1000l, Math.round(totDuration/100d/1000d)*1000l);
+		ThroughputTimeSeries timeSeries = new ThroughputTimeSeries(log, windowMillis);
+		List<ThroughputTimeSeries.RegimeChange> regimeChanges = timeSeries.detectRegimeChanges();
+		if (!regimeChanges.isEmpty()) {
+			System.out.println();
+			System.out.println("Throughput regime changes ("+smartTimePrint(windowMillis)+" windows):");
+			for (ThroughputTimeSeries.RegimeChange change : regimeChanges)
+				System.out.println("\t"+change);
+		}
+		if (cmd.hasOption("timeseries-csv")) {
+			File csvFile = new File(cmd.getOptionValue("timeseries-csv"));
+			timeSeries.writeCSV(csvFile);
+			System.out.println("Wrote throughput time series to: "+csvFile.getAbsolutePath());
+		}
+		if (cmd.hasOption("timeseries-json")) {
+			File jsonFile = new File(cmd.getOptionValue("timeseries-json"));
+			timeSeries.writeJSON(jsonFile, regimeChanges);
+			System.out.println("Wrote throughput time series to: "+jsonFile.getAbsolutePath());
+		}
+		
+		if (!done && numDone > 0 && numTasks > 0) {
+			RemainingTimeEstimator estimator = new RemainingTimeEstimator(log, threads);
+			System.out.println();
+			System.out.println("Estimating time left using per node rates & actual dispatch rule ("
+					+estimator.getDispatchRule()+").");
+			RemainingTimeEstimator.Estimate estimate = estimator.estimate(prevDate);
+			System.out.println("Estimating time left from last known date ("+MPJTaskCalculator.df.format(prevDate)
+					+"), "+estimate.numTrials+" trials:");
+			System.out.println("\tTime left: "+smartTimePrint(estimate.getPercentile(0.5))
+					+"\t(P10: "+smartTimePrint(estimate.getPercentile(0.1))
+					+", P90: "+smartTimePrint(estimate.getPercentile(0.9))+")");
+			System.out.println("Estimated total duration: "+smartTimePrint(totDuration+estimate.getPercentile(0.5))
+					+"\t(P10: "+smartTimePrint(totDuration+estimate.getPercentile(0.1))
+					+", P90: "+smartTimePrint(totDuration+estimate.getPercentile(0.9))+")");
+			if (!estimate.stragglers.isEmpty()) {
+				System.out.println("Predicted stragglers:");
+				for (RemainingTimeEstimator.Straggler straggler : estimate.stragglers) {
+					String str = "\t"+straggler.node+":\tavg: "+smartTimePrint(straggler.millisPerTask)
+						+" ("+ratioDF.format(straggler.millisPerTask/straggler.medianMillisPerTask)+"x median)"
+						+"\tlast to finish in "+percentDF.format(straggler.fractLast)+" of trials";
+					if (straggler.isOverdue())
+						str += "\tOVERDUE: current batch running for "+smartTimePrint(straggler.inProgressElapsed)
+							+", expected at most "+smartTimePrint(straggler.inProgressExpected);
+					System.out.println(str);
+				}
+			}
+		}
+	}
+	
+	private static void printUsage(Options options) {
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp(getClassNameWithoutPackage(MPJTaskLogStatsGen.class)
+				+" [options] <log-file>[.gz|.zst] [<log-file/dir> ...]", options);
+	}
+	
+	/**
+	 * @param file
+	 * @return true if this is a (possibly compressed) PBS or Slurm output file
+	 */
+	private static boolean isLogFile(File file) {
+		// match compressed output files as well
+		String name = ParallelLogParser.stripCompressionSuffix(file.getName());
+		return file.isFile() && (name.contains(".pbs.o") || name.contains(".slurm.o"));
+	}
+	
+	/**
+	 * Adds all log files in the given directory (and any subdirectories) to the list. If both compressed and
+	 * uncompressed versions exist, only the uncompressed one is added.
+	 */
+	private static void findLogFiles(File dir, List<File> logFiles) {
+		File[] files = dir.listFiles();
+		Arrays.sort(files, new FileNameComparator());
+		for (File file : files) {
+			if (file.isDirectory()) {
+				findLogFiles(file, logFiles);
+			} else if (isLogFile(file)) {
+				String uncompressedName = ParallelLogParser.stripCompressionSuffix(file.getName());
+				if (uncompressedName.equals(file.getName()) || !new File(dir, uncompressedName).exists())
+					logFiles.add(file);
+			}
+		}
+	}
+	
+	/**
+	 * Job history index mode: indexes any logs supplied, then runs the given query against all indexed jobs
+	 */
+	private static void indexMain(CommandLine cmd, int threads) throws IOException {
+		LogHistoryIndex index = new LogHistoryIndex(new File(cmd.getOptionValue("index-dir")));
+		
+		List<File> logFiles = Lists.newArrayList();
+		for (String arg : cmd.getArgs()) {
+			File file = new File(arg);
+			Preconditions.checkArgument(file.exists(), "Log file doesn't exist: %s", file.getAbsolutePath());
+			if (file.isDirectory())
+				findLogFiles(file, logFiles);
+			else
+				logFiles.add(file);
+		}
+		if (!logFiles.isEmpty()) {
+			int num = index.ingest(logFiles, cmd.getOptionValue("tag"), threads);
+			System.out.println("Indexed "+num+"/"+logFiles.size()+" logs");
+		}
+		
+		if (!cmd.hasOption("query"))
+			return;
+		List<LogHistoryIndex.JobRecord> records = index.load(threads);
+		if (cmd.hasOption("query-tags"))
+			records = LogHistoryIndex.filterTags(records, cmd.getOptionValue("query-tags").split(","));
+		System.out.println("Querying "+records.size()+" jobs");
+		System.out.println();
+		String query = cmd.getOptionValue("query");
+		switch (query) {
+		case "host":
+			LogHistoryIndex.printHostStats(records);
+			break;
+		case "tag":
+			LogHistoryIndex.printTagStats(records);
+			break;
+		case "job":
+			LogHistoryIndex.printJobStats(records);
+			break;
+		case "rate":
+			double bucketHours = 24d;
+			if (cmd.hasOption("bucket-hours"))
+				bucketHours = Double.parseDouble(cmd.getOptionValue("bucket-hours"));
+			LogHistoryIndex.printRateOverTime(records, (long)(bucketHours*60d*60d*1000d));
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown query: "+query);
+		}
 	}
 	
+	/**
+	 * Iterates over the lines of a log, splitting out any lines that were merged together by concurrent output.
+	 * 
+	 * @deprecated logs are now parsed in bulk by {@link ParallelLogParser}, which this delegates to for each line.
+	 * Kept for external callers.
+	 */
+	@Deprecated
 	public static class LogFileIterable implements Iterable<String> {
 		
 		private BufferedReader read;
@@ -367,8 +511,6 @@ public class MPJTaskLogStatsGen {
 		private BufferedReader read;
 		private LinkedList<String> queue;
 		
-		final int buffer_size = 10;
-		
 		public LogFileIterator(BufferedReader read) {
 			this.read = read;
 			
@@ -377,35 +519,12 @@ public class MPJTaskLogStatsGen {
 		
 		private void checkFillQueue() {
 			if (queue.isEmpty()) {
-				while (queue.size() < buffer_size) {
-					try {
-						String line = read.readLine();
-						if (line == null)
-							// we're done
-							break;
-						List<String> extraLines = null;
-						while (line.lastIndexOf('[') > 0) {
-							// have an extra line that was merged in with the previous
-							int ind = line.lastIndexOf('[');
-							String subLine = line.substring(ind);
-							if (subLine.contains("]:")) {
-								// it's a valid extra log line
-								
-								// trim away the extra part
-								line = line.substring(0, ind);
-								if (extraLines == null)
-									extraLines = Lists.newArrayList();
-								extraLines.add(0, subLine);
-							} else {
-								break;
-							}
-						}
-						queue.add(line);
-						if (extraLines != null)
-							queue.addAll(extraLines);
-					} catch (IOException e) {
-						throw asRuntimeException(e);
-					}
+				try {
+					String line = read.readLine();
+					if (line != null)
+						queue.addAll(ParallelLogParser.splitMergedLines(line));
+				} catch (IOException e) {
+					throw asRuntimeException(e);
 				}
 			}
 		}
@@ -521,11 +640,11 @@ public class MPJTaskLogStatsGen {
 		return end.getTime() - start.getTime();
 	}
 	
-	private static class Node {
+	static class Node {
 		private final int processNum;
 		private final String hostName;
 		
-		private Node(int processNum, String hostName) {
+		Node(int processNum, String hostName) {
 			this.processNum = processNum;
 			this.hostName = hostName;
 		}
@@ -576,43 +695,19 @@ public class MPJTaskLogStatsGen {
 		}
 	}
 	
-	public static Node parseNodeLine(String line) {
-		if (!line.startsWith("["))
-			return null;
-		int endBracketIndex = line.indexOf("]:");
-		if (endBracketIndex < 0)
-			return null;
-		line = line.substring(0, endBracketIndex);
-		if (!line.contains("Process"))
-			return null;
-		String[] split = line.split(" ");
-		if (split.length < 2)
-			return null;
-		// last token is process num
-		int processNum;
-		try {
-			processNum = Integer.parseInt(split[split.length-1]);
-		} catch (NumberFormatException e) {
-			return null;
-		}
-		
-		String hostName = null;
-		if (split[1].startsWith("(") && split[1].endsWith(")")) {
-			// we have hostNames
-			hostName = split[1].substring(1);
-			hostName = hostName.substring(0, hostName.length()-1);
-		}
-		
-		return new Node(processNum, hostName);
-	}
-	
-	private static class CalcBatch {
+	static class CalcBatch {
 		private final int size;
 		private final Node node;
 		private final Date startDate;
 		private Date endDate;
 		
-		private CalcBatch(int size, Node node, Date startDate) {
+		// telemetry, -1 if unknown
+		private int gcCount = -1;
+		private int gcMillis = -1;
+		private int allocMB = -1;
+		private int peakHeapMB = -1;
+		
+		CalcBatch(int size, Node node, Date startDate) {
 			super();
 			this.size = size;
 			this.node = node;
@@ -640,43 +735,230 @@ public class MPJTaskLogStatsGen {
 		public int getSize() {
 			return size;
 		}
+		
+		public Date getStartDate() {
+			return startDate;
+		}
+		
+		public Date getEndDate() {
+			return endDate;
+		}
+		
+		void setTelemetry(int gcCount, int gcMillis, int allocMB, int peakHeapMB) {
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+			this.allocMB = allocMB;
+			this.peakHeapMB = peakHeapMB;
+		}
+		
+		public boolean hasTelemetry() {
+			return gcMillis >= 0;
+		}
+		
+		public int getGCCount() {
+			return gcCount;
+		}
+		
+		public int getGCMillis() {
+			return gcMillis;
+		}
+		
+		/**
+		 * @return megabytes allocated during this batch, or -1 if unknown
+		 */
+		public int getAllocMB() {
+			return allocMB;
+		}
+		
+		public int getPeakHeapMB() {
+			return peakHeapMB;
+		}
 	}
 	
-	private static final DecimalFormat percentDF = new DecimalFormat("0.00 %");
+	/**
+	 * Parsed state of a log file. Parsers feed it log events in the order that they appear in the log, and the
+	 * stats are then computed from the resulting per node batch lists.
+	 * 
+	 * @author Kevin Milner
+	 *
+	 */
+	static class ParsedLog {
+		final Map<Node, Node> nodeSet = Maps.newHashMap();
+		final Map<Node, Date> lastHeardFromMap = Maps.newHashMap();
+		final Map<Node, List<CalcBatch>> nodeBatches = Maps.newHashMap();
+		
+		Date firstDate = null;
+		// last date encountered, also used to detect midnight transitions
+		Date prevDate = null;
+		
+		int numTasks = -1;
+		int numLeft = -1;
+		int numDone = 0;
+		
+		// dispatcher settings, if the dispatcher startup message was found
+		int dispatchSize = -1;
+		int minPerDispatch = -1;
+		int maxPerDispatch = -1;
+		int exactDispatch = -1;
+		
+		/**
+		 * @param node
+		 * @return the instance of this node already in memory, registering it if this is the first encounter
+		 */
+		Node getNode(Node node) {
+			Node prev = nodeSet.get(node);
+			if (prev != null)
+				// don't want duplicates in memory, use the one we already have
+				return prev;
+			nodeSet.put(node, node);
+			nodeBatches.put(node, new ArrayList<CalcBatch>());
+			return node;
+		}
+		
+		void heardFrom(Node node, Date date) {
+			if (firstDate == null)
+				firstDate = date;
+			lastHeardFromMap.put(node, date);
+			prevDate = date;
+		}
+		
+		void batchStarted(Node node, int size, Date date) {
+			nodeBatches.get(node).add(new CalcBatch(size, node, date));
+		}
+		
+		void batchFinished(Node node, Date date) {
+			CalcBatch batch = getLastInProgress(nodeBatches.get(node));
+			if (batch != null) {
+				batch.setEndDate(date);
+				numDone += batch.size;
+			}
+		}
+		
+		void batchTelemetry(Node node, int gcCount, int gcMillis, int allocMB, int peakHeapMB) {
+			CalcBatch batch = getLastInProgress(nodeBatches.get(node));
+			if (batch != null)
+				batch.setTelemetry(gcCount, gcMillis, allocMB, peakHeapMB);
+		}
+		
+		void dispatcherNumLeft(int numLeft) {
+			this.numLeft = numLeft;
+			if (numTasks < 0)
+				numTasks = numLeft;
+		}
+		
+		void dispatcherStarted(int size, int minPerDispatch, int maxPerDispatch, int exactDispatch) {
+			this.dispatchSize = size;
+			this.minPerDispatch = minPerDispatch;
+			this.maxPerDispatch = maxPerDispatch;
+			this.exactDispatch = exactDispatch;
+		}
+		
+		void dispatcherBatchReturned(int size) {
+			// first states num left, then removes and returns, so this updates to actual post dispatch count
+			numLeft -= size;
+		}
+	}
 	
-	private static final String receive_message = "receiving batch of length";
+	/**
+	 * Fraction of batch time spent in stop-the-world GC pauses above which a node is flagged as thrashing
+	 */
+	static final double GC_THRASHING_FRACTION = 0.2;
 	
-	private static CalcBatch parseBatchLine(String line, Node node, Date date) {
-		Preconditions.checkState(line.contains(receive_message));
-		
-		int size;
-		try {
-			size = Integer.parseInt(line.substring(line.indexOf(receive_message)+receive_message.length()).trim());
-		} catch (NumberFormatException e) {
-			System.err.println("Couldn't parse node size: "+e.getMessage());
-			return null;
+	/**
+	 * GC totals over the completed batches of a single node which have telemetry
+	 */
+	static class NodeGCStats {
+		long gcMillis;
+		long millis;
+		long gcCount;
+		int peakHeapMB = -1;
+		long allocMB;
+		
+		NodeGCStats(List<CalcBatch> batches) {
+			for (CalcBatch batch : batches) {
+				if (!batch.isCompleted() || !batch.hasTelemetry())
+					continue;
+				gcMillis += batch.getGCMillis();
+				gcCount += batch.getGCCount();
+				// GC time is measured within the batch, so can't be longer than it
+				millis += Long.max(batch.getDurationMillis(), batch.getGCMillis());
+				peakHeapMB = Integer.max(peakHeapMB, batch.getPeakHeapMB());
+				if (batch.getAllocMB() >= 0)
+					allocMB += batch.getAllocMB();
+			}
 		}
 		
-		return new CalcBatch(size,  node, date);
+		/**
+		 * @return fraction of batch time spent in stop-the-world GC pauses, or NaN if no batches had telemetry
+		 */
+		double getGCFraction() {
+			return millis > 0 ? (double)gcMillis/(double)millis : Double.NaN;
+		}
+	}
+	
+	/**
+	 * Prints GC overhead (fraction of batch time spent in stop-the-world GC pauses) per node from batch telemetry, if any, and flags nodes
+	 * that are likely thrashing
+	 */
+	private static void printGCStats(List<Node> nodes, Map<Node, List<CalcBatch>> nodeBatches) {
+		long totGCMillis = 0;
+		long totMillis = 0;
+		MinMaxAveTracker fractionTrack = new MinMaxAveTracker();
+		List<String> thrashing = Lists.newArrayList();
+		int maxPeakHeapMB = -1;
+		Node maxPeakHeapNode = null;
+		for (Node node : nodes) {
+			NodeGCStats stats = new NodeGCStats(nodeBatches.get(node));
+			if (stats.millis == 0)
+				continue;
+			totGCMillis += stats.gcMillis;
+			totMillis += stats.millis;
+			double fraction = stats.getGCFraction();
+			fractionTrack.addValue(fraction);
+			if (fraction >= GC_THRASHING_FRACTION)
+				thrashing.add(node+": "+percentDF.format(fraction)+" in GC ("+stats.gcCount+" collections, "
+						+smartTimePrint(stats.gcMillis)+"), peak heap: "+stats.peakHeapMB+" MB, allocated: "
+						+stats.allocMB+" MB");
+			if (stats.peakHeapMB > maxPeakHeapMB) {
+				maxPeakHeapMB = stats.peakHeapMB;
+				maxPeakHeapNode = node;
+			}
+		}
+		if (fractionTrack.getNum() == 0)
+			return;
+		System.out.println("GC overhead (fraction of batch time in stop-the-world GC pauses):");
+		System.out.println("\tOverall: "+percentDF.format((double)totGCMillis/(double)totMillis)
+				+" ("+smartTimePrint(totGCMillis)+")");
+		System.out.println("\tNode range: ["+percentDF.format(fractionTrack.getMin())
+				+" "+percentDF.format(fractionTrack.getMax())+"]");
+		System.out.println("\tMax peak heap: "+maxPeakHeapMB+" MB ("+maxPeakHeapNode+")");
+		if (!thrashing.isEmpty()) {
+			System.out.println("\tThrashing nodes (>= "+percentDF.format(GC_THRASHING_FRACTION)+" in GC):");
+			for (String str : thrashing)
+				System.out.println("\t\t"+str);
+		}
 	}
 	
+	private static final DecimalFormat percentDF = new DecimalFormat("0.00 %");
+	private static final DecimalFormat ratioDF = new DecimalFormat("0.00");
+	
 	private final static long MILLISEC_PER_DAY = 1000*60*60*24;
-	private static final long HALF_DAY_MILLIS = MILLISEC_PER_DAY/2;
 	
+	// single threaded parser for the deprecated line based API
+	private static final ParallelLogParser lineParser = new ParallelLogParser(1);
+	
+	/**
+	 * Parses the date from the header of a single log line
+	 * 
+	 * @param line
+	 * @param prevDate date of the previous line, used to handle midnight transitions, or null
+	 * @return date, or null if it could not be parsed
+	 * @deprecated logs are now parsed in bulk by {@link ParallelLogParser}, which this delegates to. Kept for external
+	 * callers.
+	 */
+	@Deprecated
 	public static Date parseDate(String line, Date prevDate) {
-		line = line.substring(1).split(" ")[0];
-		try {
-			Date date =  MPJTaskCalculator.df.parse(line);
-			if (prevDate != null) {
-				// properly handle midnight, if this date is before, then add 24 hours (but make sure it's at least 12 hours before)
-				
-				while (date.getTime() < (prevDate.getTime() - HALF_DAY_MILLIS))
-					date = new Date(date.getTime()+MILLISEC_PER_DAY);
-			}
-			return date;
-		} catch (ParseException e) {
-			return null;
-		}
+		return lineParser.parseDate(line, prevDate);
 	}
 
 }
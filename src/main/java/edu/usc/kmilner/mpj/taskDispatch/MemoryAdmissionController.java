@@ -0,0 +1,110 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Node local admission controller which limits concurrently running tasks by their estimated heap usage. Calculation
+ * threads should call {@link #acquire(long)} before starting a task and {@link #release(long)} once it is done (in a
+ * finally block), see {@link MPJTaskCalculator#acquireTaskMemory(int)}.
+ * <br>
+ * A task whose estimate is larger than the entire budget is admitted once nothing else is running, so it can never
+ * block forever. Waiting tasks are admitted in no particular order, so small tasks can run while a large task waits
+ * for enough memory to be freed.
+ *
+ * @author Kevin Milner
+ *
+ */
+public class MemoryAdmissionController {
+
+	/**
+	 * Default fraction of the maximum heap size used as the budget
+	 */
+	public static final double DEFAULT_HEAP_FRACTION = 0.8;
+
+	private long budgetBytes;
+	private long reservedBytes;
+	private int numRunning;
+
+	private long peakReservedBytes;
+	private long numWaits;
+	private long nanosWaited;
+
+	/**
+	 * Creates a controller with a budget of {@link #DEFAULT_HEAP_FRACTION} of the maximum heap size
+	 */
+	public MemoryAdmissionController() {
+		this((long)(Runtime.getRuntime().maxMemory()*DEFAULT_HEAP_FRACTION));
+	}
+
+	/**
+	 * @param budgetBytes total estimated memory of tasks which can run at once
+	 */
+	public MemoryAdmissionController(long budgetBytes) {
+		Preconditions.checkArgument(budgetBytes > 0, "budget must be > 0");
+		this.budgetBytes = budgetBytes;
+	}
+
+	/**
+	 * Blocks until a task with the given memory estimate can be run
+	 *
+	 * @param bytes estimated memory, or <= 0 if unknown (admitted immediately)
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire(long bytes) throws InterruptedException {
+		if (bytes > 0 && !fits(bytes)) {
+			long start = System.nanoTime();
+			numWaits++;
+			try {
+				while (!fits(bytes))
+					wait();
+			} finally {
+				nanosWaited += System.nanoTime() - start;
+			}
+		}
+		numRunning++;
+		if (bytes > 0) {
+			reservedBytes += bytes;
+			peakReservedBytes = Long.max(peakReservedBytes, reservedBytes);
+		}
+	}
+
+	private boolean fits(long bytes) {
+		return numRunning == 0 || reservedBytes + bytes <= budgetBytes;
+	}
+
+	/**
+	 * Releases memory previously acquired via {@link #acquire(long)}
+	 *
+	 * @param bytes the same estimate passed to {@link #acquire(long)}
+	 */
+	public synchronized void release(long bytes) {
+		Preconditions.checkState(numRunning > 0, "release called without acquire");
+		numRunning--;
+		if (bytes > 0)
+			reservedBytes -= bytes;
+		notifyAll();
+	}
+
+	public long getBudgetBytes() {
+		return budgetBytes;
+	}
+
+	public synchronized long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	/**
+	 * @return String representation of the budget, peak reserved memory, and time spent waiting for memory
+	 */
+	public synchronized String getStatsString() {
+		return "budget="+toMB(budgetBytes)+" MB, peak reserved="+toMB(peakReservedBytes)+" MB, waits="+numWaits
+				+", time waited="+Utils.smartTimePrint(TimeUnit.NANOSECONDS.toMillis(nanosWaited));
+	}
+
+	private static long toMB(long bytes) {
+		return bytes/(1024l*1024l);
+	}
+
+}
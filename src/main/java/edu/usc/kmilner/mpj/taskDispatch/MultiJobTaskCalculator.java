@@ -0,0 +1,279 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Runs several independent {@link MPJTaskCalculator} jobs in a single MPI allocation, through a single dispatcher.
+ * The tasks of each job are concatenated into one task space, so job j's task i has the global index
+ * getJobOffset(j)+i. Each batch is split by job and passed to the {@link MPJTaskCalculator#calculateBatch(int[])}
+ * method of each job with its local task indexes, and the same is done for post batch hooks, done indexes, task
+ * priorities, memory estimates, and result caching.
+ * <br>
+ * The same jobs must be constructed (in the same order) on every process. Only their task related methods are used:
+ * dispatch settings (batch sizes, threads, etc.) come from this calculator, and calculators should be created with
+ * the same settings as it so that {@link MPJTaskCalculator#getNumThreads()} is consistent. Jobs should be created with
+ * the numeric constructor ({@link MPJTaskCalculator#MPJTaskCalculator(int, int, int, boolean)}) rather than from the
+ * command line: the command line constructor starts background threads (the progress watchdog, --end-time timeout,
+ * and deadlock detection) which are only stopped by {@link MPJTaskCalculator#run()}, which isn't called for jobs.
+ * Jobs with a progress watchdog or timeout are rejected, and --deadlock should only be given to this calculator.
+ * Completion of each job is logged on rank 0 as it happens, but each job's
+ * {@link MPJTaskCalculator#doFinalAssembly()} is called (in job order) once all jobs are done, so that final assembly
+ * can still use MPI collectives. Static partition mode is not supported.
+ *
+ * @author Kevin Milner
+ *
+ */
+public class MultiJobTaskCalculator extends MPJTaskCalculator {
+
+	private List<MPJTaskCalculator> jobs;
+	// global index of the first task of each job, with the total number of tasks at the end
+	private int[] offsets;
+
+	// number of tasks of each job which were already done at the start (on rank 0), see getDoneIndexes()
+	private int[] jobNumPreviouslyDone;
+	// number of tasks of each job which have been completed or loaded from the cache (on rank 0), to log completion
+	private int[] jobNumDone;
+
+	public MultiJobTaskCalculator(CommandLine cmd, List<? extends MPJTaskCalculator> jobs) {
+		super(cmd);
+		init(jobs);
+	}
+
+	public MultiJobTaskCalculator(int numThreads, int minDispatch, int maxDispatch, boolean rootDispatchOnly,
+			List<? extends MPJTaskCalculator> jobs) {
+		super(numThreads, minDispatch, maxDispatch, rootDispatchOnly);
+		init(jobs);
+	}
+
+	private void init(List<? extends MPJTaskCalculator> jobs) {
+		Preconditions.checkArgument(!jobs.isEmpty(), "Must supply at least one job");
+		this.jobs = new ArrayList<>(jobs);
+		offsets = new int[jobs.size()+1];
+		long total = 0;
+		for (int j=0; j<jobs.size(); j++) {
+			Preconditions.checkArgument(!jobs.get(j).hasBackgroundThreads(), "Job %s has a progress watchdog or"
+					+ " timeout, which would never be stopped. Create jobs with the numeric constructor", j);
+			offsets[j] = (int)total;
+			total += jobs.get(j).getNumTasks();
+			Preconditions.checkState(total <= Integer.MAX_VALUE, "Too many tasks across all jobs: %s", total);
+		}
+		offsets[jobs.size()] = (int)total;
+		jobNumPreviouslyDone = new int[jobs.size()];
+		jobNumDone = new int[jobs.size()];
+		postBatchHook = new JobRoutingPostBatchHook();
+		if (rank == 0)
+			debug("packed "+jobs.size()+" jobs with "+total+" total tasks");
+	}
+
+	public int getNumJobs() {
+		return jobs.size();
+	}
+
+	public MPJTaskCalculator getJob(int job) {
+		return jobs.get(job);
+	}
+
+	/**
+	 * @param job
+	 * @return global index of the first task of the given job
+	 */
+	public int getJobOffset(int job) {
+		return offsets[job];
+	}
+
+	/**
+	 * @param index global task index
+	 * @return index of the job which the given task belongs to
+	 */
+	public int getJobIndex(int index) {
+		return getJobIndex(offsets, index);
+	}
+
+	/**
+	 * @param offsets global index of the first task of each job, with the total number of tasks at the end
+	 * @param index global task index
+	 * @return index of the job which the given task belongs to
+	 */
+	static int getJobIndex(int[] offsets, int index) {
+		int numJobs = offsets.length-1;
+		Preconditions.checkElementIndex(index, offsets[numJobs]);
+		int job = Arrays.binarySearch(offsets, 0, numJobs, index);
+		if (job < 0)
+			// insertion point - 1
+			job = -job - 2;
+		// jobs with no tasks share their offset with the next job, skip past them
+		while (job < numJobs-1 && offsets[job+1] <= index)
+			job++;
+		return job;
+	}
+
+	private String getJobName(int job) {
+		return job+" ("+Utils.getClassNameWithoutPackage(jobs.get(job).getClass())+")";
+	}
+
+	@Override
+	protected int getNumTasks() {
+		return offsets[jobs.size()];
+	}
+
+	private int[][] splitBatch(int[] batch) {
+		return splitBatch(offsets, batch);
+	}
+
+	/**
+	 * Splits the given batch of global task indexes by job
+	 *
+	 * @param offsets global index of the first task of each job, with the total number of tasks at the end
+	 * @param batch
+	 * @return local task indexes for each job, null for jobs with no tasks in this batch
+	 */
+	static int[][] splitBatch(int[] offsets, int[] batch) {
+		int numJobs = offsets.length-1;
+		int[] counts = new int[numJobs];
+		int[] jobIndexes = new int[batch.length];
+		for (int i=0; i<batch.length; i++) {
+			jobIndexes[i] = getJobIndex(offsets, batch[i]);
+			counts[jobIndexes[i]]++;
+		}
+		int[][] split = new int[numJobs][];
+		for (int j=0; j<split.length; j++)
+			if (counts[j] > 0)
+				split[j] = new int[counts[j]];
+		Arrays.fill(counts, 0);
+		for (int i=0; i<batch.length; i++) {
+			int job = jobIndexes[i];
+			split[job][counts[job]++] = batch[i] - offsets[job];
+		}
+		return split;
+	}
+
+	@Override
+	protected void calculateBatch(int[] batch) throws Exception {
+		int[][] split = splitBatch(batch);
+		for (int j=0; j<split.length; j++)
+			if (split[j] != null)
+				jobs.get(j).calculateBatch(split[j]);
+	}
+
+	/**
+	 * Done indexes of every job, mapped to global indexes. Can be called more than once, each call replaces the
+	 * counts of previously done tasks used to log job completion.
+	 */
+	@Override
+	protected Collection<Integer> getDoneIndexes() {
+		HashSet<Integer> done = null;
+		for (int j=0; j<jobs.size(); j++) {
+			jobNumPreviouslyDone[j] = 0;
+			Collection<Integer> jobDone = jobs.get(j).getDoneIndexes();
+			if (jobDone == null || jobDone.isEmpty())
+				continue;
+			if (done == null)
+				done = new HashSet<>();
+			for (int index : jobDone)
+				// only count each task once, even if listed more than once
+				if (done.add(offsets[j] + index))
+					jobNumPreviouslyDone[j]++;
+		}
+		return done;
+	}
+
+	/**
+	 * @param job
+	 * @return number of tasks of the given job which are done (on rank 0)
+	 */
+	int getJobNumDone(int job) {
+		return jobNumPreviouslyDone[job] + jobNumDone[job];
+	}
+
+	/**
+	 * @param job
+	 * @return true if every task of the given job is done (on rank 0)
+	 */
+	boolean isJobComplete(int job) {
+		return getJobNumDone(job) == offsets[job+1] - offsets[job];
+	}
+
+	@Override
+	protected int getTaskPriority(int index) {
+		int job = getJobIndex(index);
+		return jobs.get(job).getTaskPriority(index - offsets[job]);
+	}
+
+	@Override
+	protected long getTaskMemoryEstimate(int index) {
+		int job = getJobIndex(index);
+		return jobs.get(job).getTaskMemoryEstimate(index - offsets[job]);
+	}
+
+	@Override
+	protected boolean isResultCacheSupported() {
+		for (MPJTaskCalculator job : jobs)
+			if (job.isResultCacheSupported())
+				return true;
+		return false;
+	}
+
+	@Override
+	protected String getTaskCacheKey(int index) {
+		int job = getJobIndex(index);
+		if (!jobs.get(job).isResultCacheSupported())
+			// other jobs may be cached, but this one can't be
+			return null;
+		String key = jobs.get(job).getTaskCacheKey(index - offsets[job]);
+		// keys only need to be unique within each job
+		return key == null ? null : "job"+job+":"+key;
+	}
+
+	@Override
+	protected byte[] serializeTaskResult(int index) throws Exception {
+		int job = getJobIndex(index);
+		return jobs.get(job).serializeTaskResult(index - offsets[job]);
+	}
+
+	@Override
+	protected void loadCachedTaskResult(int index, byte[] result) throws Exception {
+		int job = getJobIndex(index);
+		jobs.get(job).loadCachedTaskResult(index - offsets[job], result);
+		// cached results count as done
+		jobNumDone[job]++;
+	}
+
+	@Override
+	protected void doFinalAssembly() throws Exception {
+		for (int j=0; j<jobs.size(); j++) {
+			debug("final assembly for job "+getJobName(j));
+			jobs.get(j).doFinalAssembly();
+		}
+	}
+
+	/**
+	 * Post batch hook which passes each job's share of a batch to its own hook (if any), and logs when each job
+	 * completes. Always run on a single thread, see {@link PostBatchHook}.
+	 */
+	private class JobRoutingPostBatchHook implements PostBatchHook {
+
+		@Override
+		public void batchProcessed(int[] batch, int processIndex) {
+			int[][] split = splitBatch(batch);
+			for (int j=0; j<split.length; j++) {
+				if (split[j] == null)
+					continue;
+				PostBatchHook hook = jobs.get(j).postBatchHook;
+				if (hook != null)
+					hook.batchProcessed(split[j], processIndex);
+				jobNumDone[j] += split[j].length;
+				if (isJobComplete(j))
+					debug("job "+getJobName(j)+" complete");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,308 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static edu.usc.kmilner.mpj.taskDispatch.Utils.asRuntimeException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decompresses gzip files, inflating members in parallel when the file contains more than one (e.g. files written by
+ * bgzip/pigz --independent, or compressed logs that were appended to each other).
+ * <br>
+ * Member boundaries can't be known without inflating the previous member, so this speculatively inflates from every
+ * offset that looks like a gzip header. A speculative member is only used if it starts exactly where the previous
+ * verified member ended and its CRC32 and size match the member trailer, so false header matches within compressed
+ * data are discarded. If the chain breaks (or a member is too large to buffer), the remainder of the file is
+ * decompressed serially with {@link GZIPInputStream}.
+ *
+ * @author Kevin Milner
+ *
+ */
+class ParallelGzipReader {
+
+	private static final int MAX_MEMBER_SIZE = 32*1024*1024;
+	private static final int INITIAL_MEMBER_SIZE = 1024*1024;
+	private static final int READ_SIZE = 64*1024;
+	private static final int MAX_HEADER_SIZE = 64*1024;
+
+	private static final int FHCRC = 1 << 1;
+	private static final int FEXTRA = 1 << 2;
+	private static final int FNAME = 1 << 3;
+	private static final int FCOMMENT = 1 << 4;
+	private static final int FRESERVED = 0xE0;
+
+	private ExecutorService exec;
+	private int maxInFlight;
+
+	ParallelGzipReader(ExecutorService exec, int maxInFlight) {
+		Preconditions.checkArgument(maxInFlight > 0, "maxInFlight must be > 0");
+		this.exec = exec;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Decompresses the gzip file in the given channel, writing uncompressed data in order to the given output stream
+	 *
+	 * @param channel
+	 * @param out
+	 * @throws IOException
+	 */
+	public void read(FileChannel channel, OutputStream out) throws IOException {
+		long size = channel.size();
+		HeaderScanner scanner = new HeaderScanner(channel);
+		Deque<Future<Member>> futures = new ArrayDeque<>();
+
+		long cur = 0;
+		int members = 0;
+		boolean broken = false;
+		try {
+			while (true) {
+				while (futures.size() < maxInFlight && scanner.hasNext()) {
+					final long start = scanner.next();
+					futures.add(exec.submit(new Callable<Member>() {
+
+						@Override
+						public Member call() throws Exception {
+							return inflate(channel, start);
+						}
+					}));
+				}
+				if (futures.isEmpty())
+					break;
+				Member member = futures.removeFirst().get();
+				if (member.start < cur)
+					// false header match within a previous member
+					continue;
+				if (member.start > cur || member.data == null) {
+					// chain broken, decompress the rest serially
+					broken = true;
+					break;
+				}
+				out.write(member.data, 0, member.length);
+				cur = member.end;
+				members++;
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw asRuntimeException(e);
+		} finally {
+			// don't interrupt speculative inflates: they read from the shared channel, which is closed if a thread is
+			// interrupted while reading from it. just skip any which haven't started and wait for the rest
+			for (Future<Member> future : futures)
+				future.cancel(false);
+			for (Future<Member> future : futures) {
+				try {
+					future.get();
+				} catch (CancellationException | ExecutionException e) {
+					// result isn't needed
+				} catch (InterruptedException e) {
+					throw asRuntimeException(e);
+				}
+			}
+		}
+
+		// if we ran out of candidate headers after a verified member, anything left is trailing garbage which
+		// GZIPInputStream would also ignore
+		if (cur < size && (broken || members == 0)) {
+			channel.position(cur);
+			try (InputStream in = new GZIPInputStream(Channels.newInputStream(channel), READ_SIZE)) {
+				byte[] buf = new byte[READ_SIZE];
+				int read;
+				while ((read = in.read(buf)) >= 0)
+					out.write(buf, 0, read);
+			}
+		}
+	}
+
+	private static class Member {
+		final long start;
+		final long end;
+		final byte[] data;
+		final int length;
+
+		public Member(long start, long end, byte[] data, int length) {
+			this.start = start;
+			this.end = end;
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Attempts to inflate a single gzip member starting at the given position.
+	 *
+	 * @return member; member data will be null if this isn't a valid member, or if it's larger than
+	 * {@link #MAX_MEMBER_SIZE}
+	 */
+	private static Member inflate(FileChannel channel, long start) throws IOException {
+		Member invalid = new Member(start, -1, null, 0);
+
+		ByteBuffer header = ByteBuffer.allocate(MAX_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, header, start);
+		int headerLen = headerLength(header);
+		if (headerLen < 0)
+			return invalid;
+
+		Inflater inflater = new Inflater(true);
+		try {
+			CRC32 crc = new CRC32();
+			byte[] in = new byte[READ_SIZE];
+			byte[] data = new byte[INITIAL_MEMBER_SIZE];
+			int length = 0;
+			long pos = start + headerLen;
+			while (!inflater.finished()) {
+				if (inflater.needsInput()) {
+					int read = channel.read(ByteBuffer.wrap(in), pos);
+					if (read <= 0)
+						return invalid;
+					pos += read;
+					inflater.setInput(in, 0, read);
+				}
+				if (length == data.length) {
+					if (data.length == MAX_MEMBER_SIZE)
+						return invalid;
+					data = Arrays.copyOf(data, Integer.min(data.length*2, MAX_MEMBER_SIZE));
+				}
+				int inflated;
+				try {
+					inflated = inflater.inflate(data, length, data.length - length);
+				} catch (DataFormatException e) {
+					return invalid;
+				}
+				if (inflated == 0 && inflater.needsDictionary())
+					return invalid;
+				crc.update(data, length, inflated);
+				length += inflated;
+			}
+			long trailerPos = pos - inflater.getRemaining();
+			ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, trailer, trailerPos);
+			if (trailer.limit() < 8)
+				return invalid;
+			long expectedCRC = trailer.getInt(0) & 0xFFFFFFFFl;
+			long expectedSize = trailer.getInt(4) & 0xFFFFFFFFl;
+			if (expectedCRC != crc.getValue() || expectedSize != (length & 0xFFFFFFFFl))
+				return invalid;
+			return new Member(start, trailerPos + 8, data, length);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Reads as much as possible into the given buffer from the given position, then flips it
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			int read = channel.read(buf, pos);
+			if (read < 0)
+				break;
+			pos += read;
+		}
+		buf.flip();
+	}
+
+	/**
+	 * @return length of the gzip member header at the start of the given buffer, or -1 if it isn't a valid header
+	 */
+	private static int headerLength(ByteBuffer buf) {
+		if (buf.limit() < 10 || !isHeaderStart(buf.get(0), buf.get(1), buf.get(2), buf.get(3)))
+			return -1;
+		int flags = buf.get(3) & 0xFF;
+		int pos = 10;
+		if ((flags & FEXTRA) != 0) {
+			if (pos + 2 > buf.limit())
+				return -1;
+			pos += 2 + (buf.getShort(pos) & 0xFFFF);
+		}
+		if ((flags & FNAME) != 0)
+			pos = skipString(buf, pos);
+		if (pos >= 0 && (flags & FCOMMENT) != 0)
+			pos = skipString(buf, pos);
+		if (pos >= 0 && (flags & FHCRC) != 0)
+			pos += 2;
+		if (pos < 0 || pos > buf.limit())
+			return -1;
+		return pos;
+	}
+
+	private static int skipString(ByteBuffer buf, int pos) {
+		for (int i=pos; i<buf.limit(); i++)
+			if (buf.get(i) == 0)
+				return i+1;
+		return -1;
+	}
+
+	private static boolean isHeaderStart(byte b0, byte b1, byte b2, byte flags) {
+		return b0 == (byte)0x1f && b1 == (byte)0x8b && b2 == 8 && (flags & FRESERVED) == 0;
+	}
+
+	/**
+	 * Sequentially scans the file for offsets which look like the start of a gzip member
+	 */
+	private static class HeaderScanner {
+
+		private FileChannel channel;
+		private long size;
+		private ByteBuffer buf;
+		// file position of the start of buf
+		private long bufStart;
+		private int index;
+		private long next = -1;
+
+		public HeaderScanner(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+			buf = ByteBuffer.allocate(1024*1024);
+			buf.flip();
+		}
+
+		boolean hasNext() throws IOException {
+			if (next >= 0)
+				return true;
+			while (true) {
+				for (; index+4 <= buf.limit(); index++) {
+					if (isHeaderStart(buf.get(index), buf.get(index+1), buf.get(index+2), buf.get(index+3))) {
+						next = bufStart + index;
+						index++;
+						return true;
+					}
+				}
+				long pos = bufStart + index;
+				if (pos + 4 > size)
+					return false;
+				// refill, keeping the unscanned tail
+				bufStart = pos;
+				index = 0;
+				buf.clear();
+				readFully(channel, buf, pos);
+			}
+		}
+
+		long next() throws IOException {
+			Preconditions.checkState(hasNext());
+			long ret = next;
+			next = -1;
+			return ret;
+		}
+	}
+
+}
@@ -0,0 +1,1063 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static edu.usc.kmilner.mpj.taskDispatch.Utils.asRuntimeException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.Node;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.ParsedLog;
+
+/**
+ * Parallel parser for large {@link MPJTaskCalculator} log files. The file is memory mapped and split into line
+ * aligned chunks which are scanned in parallel directly as bytes (no String/Date instances are created for each line).
+ * Each chunk produces a compact list of events with times relative to the first timestamp in that chunk, and chunks are
+ * then replayed in order into a {@link ParsedLog}, correcting for midnight transitions at chunk boundaries.
+ * <br>
+ * Compressed logs (.gz or .zst) are decompressed as a stream and cut into line aligned chunks in memory, which are
+ * then parsed in the same way.
+ *
+ * @author Kevin Milner
+ *
+ */
+class ParallelLogParser {
+
+	private static final long MILLISEC_PER_DAY = 1000l*60l*60l*24l;
+	private static final long HALF_DAY_MILLIS = MILLISEC_PER_DAY/2;
+
+	private static final long MIN_CHUNK_SIZE = 1024l*1024l;
+	private static final long MAX_CHUNK_SIZE = 64l*1024l*1024l;
+
+	private static final byte[] DISPATCHER_TAG = bytes("DispatcherThread");
+	private static final byte[] HEADER_END = bytes("]:");
+	private static final byte[] PROCESS = bytes("Process");
+	private static final byte[] NUM_LEFT_MESSAGE = bytes("getting batch with ");
+	private static final byte[] LEFT = bytes(" left");
+	private static final byte[] RETURNING_MESSAGE = bytes("returning batch of size:");
+	private static final byte[] RECEIVE_MESSAGE = bytes("receiving batch of length");
+	private static final byte[] READY_MESSAGE = bytes("sending READY message");
+	private static final byte[] DIRECT_MESSAGE = bytes("getting next batch directly");
+	private static final byte[] STARTING_MESSAGE = bytes("starting with ");
+	private static final byte[] TELEMETRY_MESSAGE = bytes(BatchTelemetry.MESSAGE);
+	// gcCount, gcMillis, allocMB, peakHeapMB
+	private static final int TELEMETRY_VALUES = 4;
+	private static final Pattern STARTING_PATTERN = Pattern.compile("starting with (\\d+) processes and \\d+ sites\\."
+			+ " minPerDispatch=(\\d+), maxPerDispatch=(\\d+)(?:, exactDispatch=(\\d+))?");
+
+	// event types
+	private static final int EVENT_BATCH_START = 0;
+	private static final int EVENT_BATCH_END = 1;
+	private static final int EVENT_NUM_LEFT = 2;
+	private static final int EVENT_BATCH_RETURNED = 3;
+	private static final int EVENT_BATCH_TELEMETRY = 4;
+
+	static final String GZIP_SUFFIX = ".gz";
+	static final String ZSTD_SUFFIX = ".zst";
+
+	private static final int STREAM_CHUNK_SIZE = 8*1024*1024;
+
+	// message matches
+	private static final int MATCH_NUM_LEFT = 1;
+	private static final int MATCH_RETURNING = 1 << 1;
+	private static final int MATCH_RECEIVE = 1 << 2;
+	private static final int MATCH_READY = 1 << 3;
+	private static final int MATCH_DIRECT = 1 << 4;
+
+	private static final int WINDOW_SIZE = 1024*1024;
+	private static final ThreadLocal<byte[]> WINDOWS = new ThreadLocal<byte[]>() {
+
+		@Override
+		protected byte[] initialValue() {
+			return new byte[WINDOW_SIZE];
+		}
+	};
+
+	private final int threads;
+
+	// epoch millis of midnight as parsed by MPJTaskCalculator.df, which parses times on 1/1/1970 local time
+	private final long dayStartMillis;
+
+	ParallelLogParser() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	ParallelLogParser(int threads) {
+		Preconditions.checkArgument(threads > 0, "threads must be > 0");
+		this.threads = threads;
+		try {
+			synchronized (MPJTaskCalculator.df) {
+				dayStartMillis = MPJTaskCalculator.df.parse("00:00:00.000").getTime();
+			}
+		} catch (ParseException e) {
+			throw asRuntimeException(e);
+		}
+	}
+
+	/**
+	 * Parses the given log file. Plain text files are memory mapped, and files ending in .gz or .zst are decompressed
+	 * as a stream.
+	 *
+	 * @param logFile
+	 * @return parsed log
+	 * @throws IOException
+	 */
+	public ParsedLog parse(File logFile) throws IOException {
+		String name = logFile.getName();
+		if (name.endsWith(GZIP_SUFFIX))
+			return parseGzip(logFile);
+		if (name.endsWith(ZSTD_SUFFIX))
+			return parseZstd(logFile);
+		return parseMapped(logFile);
+	}
+
+	/**
+	 * Memory maps and parses the given log file
+	 *
+	 * @param logFile
+	 * @return parsed log
+	 * @throws IOException
+	 */
+	public ParsedLog parseMapped(File logFile) throws IOException {
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		try (RandomAccessFile raf = new RandomAccessFile(logFile, "r")) {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			long chunkSize = size / (threads*8l);
+			if (chunkSize < MIN_CHUNK_SIZE)
+				chunkSize = MIN_CHUNK_SIZE;
+			if (chunkSize > MAX_CHUNK_SIZE)
+				chunkSize = MAX_CHUNK_SIZE;
+
+			ChunkPipeline pipeline = new ChunkPipeline(exec);
+			long start = 0;
+			while (start < size) {
+				long end = nextLineStart(channel, start + chunkSize, size);
+				pipeline.submit(new MappedChunkCallable(channel, start, end));
+				start = end;
+			}
+			return pipeline.finish();
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	/**
+	 * Parses a log from the given stream. The stream is read (and decompressed, if applicable) on the calling thread
+	 * while line aligned chunks are parsed in parallel.
+	 *
+	 * @param in
+	 * @return parsed log
+	 * @throws IOException
+	 */
+	public ParsedLog parse(InputStream in) throws IOException {
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		try {
+			ChunkPipeline pipeline = new ChunkPipeline(exec);
+			try (LineChunkOutputStream out = new LineChunkOutputStream(pipeline)) {
+				ByteStreams.copy(in, out);
+			}
+			return pipeline.finish();
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	/**
+	 * Parses a gzip compressed log. Multi-member files (e.g. logs compressed with bgzip, or compressed pieces
+	 * appended to each other) are decompressed in parallel, see {@link ParallelGzipReader}.
+	 *
+	 * @param logFile
+	 * @return parsed log
+	 * @throws IOException
+	 */
+	public ParsedLog parseGzip(File logFile) throws IOException {
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		try (RandomAccessFile raf = new RandomAccessFile(logFile, "r")) {
+			ChunkPipeline pipeline = new ChunkPipeline(exec);
+			try (LineChunkOutputStream out = new LineChunkOutputStream(pipeline)) {
+				new ParallelGzipReader(exec, threads+1).read(raf.getChannel(), out);
+			}
+			return pipeline.finish();
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	/**
+	 * Parses a zstd compressed log. There is no zstd implementation in the JDK, so this streams the output of the
+	 * external <code>zstd</code> command, which must be on the PATH.
+	 *
+	 * @param logFile
+	 * @return parsed log
+	 * @throws IOException
+	 */
+	public ParsedLog parseZstd(File logFile) throws IOException {
+		Process p;
+		try {
+			p = new ProcessBuilder("zstd", "-dc", "--", logFile.getAbsolutePath())
+					.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		} catch (IOException e) {
+			throw new IOException("Couldn't execute 'zstd' to decompress "+logFile.getName()
+				+", is it installed and on the PATH?", e);
+		}
+		ParsedLog log;
+		try (InputStream in = p.getInputStream()) {
+			log = parse(in);
+		}
+		try {
+			int ret = p.waitFor();
+			if (ret != 0)
+				throw new IOException("zstd exited with status "+ret+" decompressing "+logFile.getName());
+		} catch (InterruptedException e) {
+			throw asRuntimeException(e);
+		}
+		return log;
+	}
+
+	/**
+	 * Strips any supported compression suffix from the given file name
+	 *
+	 * @param name
+	 * @return name without a .gz or .zst suffix
+	 */
+	static String stripCompressionSuffix(String name) {
+		if (name.endsWith(GZIP_SUFFIX))
+			return name.substring(0, name.length()-GZIP_SUFFIX.length());
+		if (name.endsWith(ZSTD_SUFFIX))
+			return name.substring(0, name.length()-ZSTD_SUFFIX.length());
+		return name;
+	}
+
+	/**
+	 * Parses chunks in parallel and merges the results in order, keeping a limited number of chunks in flight so that
+	 * memory use doesn't scale with file size
+	 */
+	private class ChunkPipeline {
+
+		private ExecutorService exec;
+		private int maxInFlight;
+		private Deque<Future<ChunkResult>> futures;
+		private ParsedLog log;
+		private ChunkMerger merger;
+
+		public ChunkPipeline(ExecutorService exec) {
+			this.exec = exec;
+			this.maxInFlight = threads*2;
+			futures = new ArrayDeque<>();
+			log = new ParsedLog();
+			merger = new ChunkMerger(log);
+		}
+
+		void submit(Callable<ChunkResult> chunk) {
+			while (futures.size() >= maxInFlight)
+				mergeNext();
+			futures.add(exec.submit(chunk));
+		}
+
+		private void mergeNext() {
+			try {
+				merger.merge(futures.removeFirst().get());
+			} catch (InterruptedException | ExecutionException e) {
+				throw asRuntimeException(e);
+			}
+		}
+
+		ParsedLog finish() {
+			while (!futures.isEmpty())
+				mergeNext();
+			return log;
+		}
+	}
+
+	/**
+	 * Output stream which buffers written bytes into line aligned chunks, submitting each to the pipeline when full
+	 */
+	private class LineChunkOutputStream extends OutputStream {
+
+		private ChunkPipeline pipeline;
+		private byte[] buf;
+		private int len;
+
+		public LineChunkOutputStream(ChunkPipeline pipeline) {
+			this.pipeline = pipeline;
+			buf = new byte[STREAM_CHUNK_SIZE];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (len == buf.length)
+				flushChunk();
+			buf[len++] = (byte)b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int num) throws IOException {
+			while (num > 0) {
+				if (len == buf.length)
+					flushChunk();
+				int copy = Math.min(num, buf.length - len);
+				System.arraycopy(b, off, buf, len, copy);
+				len += copy;
+				off += copy;
+				num -= copy;
+			}
+		}
+
+		/**
+		 * Submits everything up to the last full line, and carries the remainder into a new buffer
+		 */
+		private void flushChunk() {
+			int end = len;
+			while (end > 0 && buf[end-1] != '\n')
+				end--;
+			byte[] next;
+			if (end == 0) {
+				// line longer than the buffer
+				buf = Arrays.copyOf(buf, buf.length*2);
+				return;
+			}
+			next = new byte[buf.length];
+			System.arraycopy(buf, end, next, 0, len - end);
+			pipeline.submit(new BytesChunkCallable(buf, end));
+			buf = next;
+			len = len - end;
+		}
+
+		@Override
+		public void close() {
+			if (len > 0)
+				pipeline.submit(new BytesChunkCallable(buf, len));
+			buf = null;
+			len = 0;
+		}
+	}
+
+	private class BytesChunkCallable implements Callable<ChunkResult> {
+
+		private byte[] buf;
+		private int len;
+
+		public BytesChunkCallable(byte[] buf, int len) {
+			this.buf = buf;
+			this.len = len;
+		}
+
+		@Override
+		public ChunkResult call() throws Exception {
+			ChunkResult result = new ChunkResult();
+			result.parse(buf, 0, len);
+			return result;
+		}
+
+	}
+
+	/**
+	 * @return the position of the start of the first line beginning at or after the given position, or size if none
+	 */
+	private static long nextLineStart(FileChannel channel, long pos, long size) throws IOException {
+		if (pos >= size)
+			return size;
+		// the previous byte could be the end of a line
+		pos--;
+		ByteBuffer buf = ByteBuffer.allocate(8192);
+		while (pos < size) {
+			buf.clear();
+			int read = channel.read(buf, pos);
+			if (read <= 0)
+				break;
+			for (int i=0; i<read; i++)
+				if (buf.get(i) == '\n')
+					return pos + i + 1;
+			pos += read;
+		}
+		return size;
+	}
+
+	private class MappedChunkCallable implements Callable<ChunkResult> {
+
+		private FileChannel channel;
+		private long start;
+		private long end;
+
+		public MappedChunkCallable(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public ChunkResult call() throws Exception {
+			ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			ChunkResult result = new ChunkResult();
+			// bulk copy line aligned windows out of the mapped buffer, scanning a byte[] is much faster than
+			// individual ByteBuffer.get(int) calls
+			byte[] window = WINDOWS.get();
+			int pos = 0;
+			int limit = mapped.limit();
+			while (pos < limit) {
+				int len = Math.min(window.length, limit - pos);
+				mapped.position(pos);
+				mapped.get(window, 0, len);
+				int parseEnd = len;
+				if (pos + len < limit) {
+					// stop at the last full line
+					while (parseEnd > 0 && window[parseEnd-1] != '\n')
+						parseEnd--;
+					if (parseEnd == 0) {
+						// line longer than the window
+						window = new byte[window.length*2];
+						WINDOWS.set(window);
+						continue;
+					}
+				}
+				result.parse(window, 0, parseEnd);
+				pos += parseEnd;
+			}
+			return result;
+		}
+
+	}
+
+	/**
+	 * Replays chunk results in order into a {@link ParsedLog}, mapping chunk local nodes onto global nodes and
+	 * correcting chunk relative times for midnight transitions.
+	 */
+	private class ChunkMerger {
+
+		private ParsedLog log;
+
+		public ChunkMerger(ParsedLog log) {
+			this.log = log;
+		}
+
+		void merge(ChunkResult chunk) {
+			Node[] nodes = new Node[chunk.numNodes];
+			for (int i=0; i<chunk.numNodes; i++) {
+				String hostName = chunk.nodeHosts[i] == null ? null
+						: new String(chunk.nodeHosts[i], StandardCharsets.UTF_8);
+				nodes[i] = log.getNode(new Node(chunk.nodeProcessNums[i], hostName));
+			}
+
+			// chunk times are relative to the day of the first timestamp in the chunk. shift them by as many days as
+			// needed so that the first one is no more than 12 hours before the last date from the previous chunk
+			long offset = dayStartMillis;
+			if (chunk.hasTime && log.prevDate != null) {
+				long minTime = log.prevDate.getTime() - HALF_DAY_MILLIS;
+				while (offset + chunk.firstTime < minTime)
+					offset += MILLISEC_PER_DAY;
+			}
+
+			for (int i=0; i<chunk.numEvents; i++) {
+				int value = chunk.eventValues[i];
+				switch (chunk.eventTypes[i]) {
+				case EVENT_BATCH_START:
+					log.batchStarted(nodes[chunk.eventNodes[i]], value, new Date(offset + chunk.eventTimes[i]));
+					break;
+				case EVENT_BATCH_END:
+					log.batchFinished(nodes[chunk.eventNodes[i]], new Date(offset + chunk.eventTimes[i]));
+					break;
+				case EVENT_NUM_LEFT:
+					log.dispatcherNumLeft(value);
+					break;
+				case EVENT_BATCH_RETURNED:
+					log.dispatcherBatchReturned(value);
+					break;
+				case EVENT_BATCH_TELEMETRY:
+					int t = value*TELEMETRY_VALUES;
+					log.batchTelemetry(nodes[chunk.eventNodes[i]], chunk.telemetry[t], chunk.telemetry[t+1],
+							chunk.telemetry[t+2], chunk.telemetry[t+3]);
+					break;
+				default:
+					throw new IllegalStateException("Unknown event type: "+chunk.eventTypes[i]);
+				}
+			}
+
+			if (chunk.dispatchConfig != null)
+				log.dispatcherStarted(chunk.dispatchConfig[0], chunk.dispatchConfig[1], chunk.dispatchConfig[2],
+						chunk.dispatchConfig[3]);
+
+			// last contact dates, in order of last contact so that the last/first dates are updated correctly
+			int[] order = new int[chunk.numNodes];
+			int num = 0;
+			for (int i=0; i<chunk.numNodes; i++)
+				if (chunk.nodeLastSeq[i] >= 0)
+					order[num++] = i;
+			Integer[] sorted = new Integer[num];
+			for (int i=0; i<num; i++)
+				sorted[i] = order[i];
+			Arrays.sort(sorted, (a, b) -> Long.compare(chunk.nodeLastSeq[a], chunk.nodeLastSeq[b]));
+			if (num > 0 && log.firstDate == null)
+				log.firstDate = new Date(offset + chunk.firstTime);
+			for (Integer i : sorted)
+				log.heardFrom(nodes[i], new Date(offset + chunk.nodeLastTimes[i]));
+		}
+	}
+
+	/**
+	 * Results of parsing a single chunk. All arrays are grown as needed, and no objects are allocated for individual
+	 * lines unless a new node is encountered (or for unusual timestamp formats).
+	 */
+	private class ChunkResult {
+
+		// chunk local node table, open addressed hash of (process num, host name bytes) -> node index
+		private int numNodes = 0;
+		private int[] nodeProcessNums = new int[16];
+		private byte[][] nodeHosts = new byte[16][];
+		private int[] nodeHashes = new int[16];
+		private long[] nodeLastTimes = new long[16];
+		private long[] nodeLastSeq = new long[16];
+		private int[] nodeTable = newTable(64);
+
+		private int numEvents = 0;
+		private int[] eventTypes = new int[1024];
+		private int[] eventNodes = new int[1024];
+		private int[] eventValues = new int[1024];
+		private long[] eventTimes = new long[1024];
+
+		// whether any time has been parsed, and the first/previous (corrected for midnight) chunk relative times
+		private boolean hasTime = false;
+		private long firstTime;
+		private long prevTime;
+		private long numLines = 0;
+
+		// dispatcher settings from the startup message if encountered: size, min, max, exact
+		private int[] dispatchConfig;
+
+		// batch telemetry values, TELEMETRY_VALUES per telemetry event
+		private int numTelemetry = 0;
+		private int[] telemetry = new int[64];
+
+		// positions of '[' characters after the start of the current line, used to detect merged lines
+		private int[] brackets = new int[8];
+
+		private byte[] buf;
+
+		void parse(byte[] buf, int start, int end) {
+			this.buf = buf;
+			int pos = start;
+			while (pos < end) {
+				// single pass to find the end of the line and any potential merged lines
+				int numBrackets = 0;
+				int eol = pos;
+				while (eol < end) {
+					byte b = buf[eol];
+					if (b == '\n')
+						break;
+					if (b == '[' && eol > pos) {
+						if (numBrackets == brackets.length)
+							brackets = Arrays.copyOf(brackets, numBrackets*2);
+						brackets[numBrackets++] = eol;
+					}
+					eol++;
+				}
+				int lineEnd = eol;
+				if (lineEnd > pos && buf[lineEnd-1] == '\r')
+					lineEnd--;
+				if (numBrackets == 0)
+					parseSegment(pos, lineEnd);
+				else
+					parseLine(pos, lineEnd, numBrackets);
+				pos = eol+1;
+			}
+			this.buf = null;
+		}
+
+		private void parseLine(int start, int end, int numBrackets) {
+			int firstSegment = firstMergedLine(buf, end, brackets, numBrackets);
+			parseSegment(start, firstSegment < numBrackets ? brackets[firstSegment] : end);
+			for (int i=firstSegment; i<numBrackets; i++) {
+				int segEnd = i == numBrackets-1 ? end : brackets[i+1];
+				parseSegment(brackets[i], segEnd);
+			}
+		}
+
+		private void parseSegment(int start, int end) {
+			numLines++;
+			if (end - start < 2 || buf[start] != '[')
+				return;
+			int headerEnd = indexOf(buf, HEADER_END, start, end);
+			if (headerEnd < 0)
+				return;
+			int messageStart = headerEnd + HEADER_END.length;
+
+			if (endsWith(buf, start, headerEnd, DISPATCHER_TAG)) {
+				int match = matchMessage(buf, messageStart, end);
+				if ((match & MATCH_NUM_LEFT) != 0) {
+					int leftIndex = indexOf(buf, LEFT, messageStart, end);
+					long numLeft = leftIndex < 0 ? Long.MIN_VALUE : parseLastInt(buf, messageStart, leftIndex);
+					if (numLeft == Long.MIN_VALUE)
+						System.err.println("Bad num left parse: "+string(buf, start, end));
+					else
+						addEvent(EVENT_NUM_LEFT, -1, (int)numLeft, 0l);
+				} else if ((match & MATCH_RETURNING) != 0) {
+					long size = parseLastInt(buf, messageStart, end);
+					if (size == Long.MIN_VALUE)
+						System.err.println("Bad num dispatch size parse: "+string(buf, start, end));
+					else
+						addEvent(EVENT_BATCH_RETURNED, -1, (int)size, 0l);
+				} else if (match == 0 && startsWith(buf, messageStart+1, end, STARTING_MESSAGE)) {
+					// dispatcher startup line, only once per job so just use a regex
+					Matcher m = STARTING_PATTERN.matcher(string(buf, messageStart, end));
+					if (m.find()) {
+						dispatchConfig = new int[4];
+						for (int i=0; i<3; i++)
+							dispatchConfig[i] = Integer.parseInt(m.group(i+1));
+						dispatchConfig[3] = m.group(4) == null ? -1 : Integer.parseInt(m.group(4));
+					}
+				}
+				return;
+			}
+
+			// process lines: "[<time> (<hostname>) Process <rank>]: <message>" or "[<time> Process <rank>]: <message>"
+			int numEnd = headerEnd;
+			int numStart = numEnd;
+			while (numStart > start && isDigit(buf[numStart-1]))
+				numStart--;
+			if (!isInt(buf, numStart, numEnd) || numStart - start < 2 || buf[numStart-1] != ' ')
+				return;
+			// usually directly precedes the process number
+			int processStart = numStart - 1 - PROCESS.length;
+			if (!(processStart > start && startsWith(buf, processStart, PROCESS))
+					&& indexOf(buf, PROCESS, start, headerEnd) < 0)
+				return;
+			int processNum = parseInt(buf, numStart, numEnd);
+
+			int timeEnd = indexOf(buf, (byte)' ', start+1, headerEnd);
+			int hostStart = -1;
+			int hostEnd = -1;
+			if (timeEnd > 0) {
+				int tokenEnd = indexOf(buf, (byte)' ', timeEnd+1, headerEnd);
+				if (tokenEnd < 0)
+					tokenEnd = headerEnd;
+				if (tokenEnd - timeEnd > 2 && buf[timeEnd+1] == '(' && buf[tokenEnd-1] == ')') {
+					hostStart = timeEnd+2;
+					hostEnd = tokenEnd-1;
+				}
+			}
+			int node = getNode(processNum, hostStart, hostEnd);
+
+			if (timeEnd < 0)
+				return;
+			long time = parseTime(buf, start+1, timeEnd);
+			if (time == Long.MIN_VALUE)
+				return;
+			if (!hasTime) {
+				hasTime = true;
+				firstTime = time;
+			} else {
+				time = correctForMidnight(time, prevTime);
+			}
+			prevTime = time;
+			nodeLastTimes[node] = time;
+			nodeLastSeq[node] = numLines;
+
+			int match = matchMessage(buf, messageStart, end);
+			if ((match & MATCH_RECEIVE) != 0) {
+				int receiveIndex = indexOf(buf, RECEIVE_MESSAGE, messageStart, end);
+				// new batch
+				int sizeStart = receiveIndex + RECEIVE_MESSAGE.length;
+				while (sizeStart < end && buf[sizeStart] == ' ')
+					sizeStart++;
+				int sizeEnd = end;
+				while (sizeEnd > sizeStart && buf[sizeEnd-1] == ' ')
+					sizeEnd--;
+				if (!isInt(buf, sizeStart, sizeEnd))
+					System.err.println("Couldn't parse node size: "+string(buf, start, end));
+				else
+					addEvent(EVENT_BATCH_START, node, parseInt(buf, sizeStart, sizeEnd), time);
+			} else if ((match & (MATCH_READY | MATCH_DIRECT)) != 0) {
+				// finished a batch
+				addEvent(EVENT_BATCH_END, node, 0, time);
+			} else if (match == 0 && startsWith(buf, messageStart+1, end, TELEMETRY_MESSAGE)) {
+				parseTelemetry(node, messageStart+1+TELEMETRY_MESSAGE.length, end, time);
+			}
+		}
+
+		/**
+		 * Parses the "key=value" pairs of a {@link BatchTelemetry} message, in order
+		 */
+		private void parseTelemetry(int node, int start, int end, long time) {
+			if ((numTelemetry+1)*TELEMETRY_VALUES > telemetry.length)
+				telemetry = Arrays.copyOf(telemetry, telemetry.length*2);
+			int offset = numTelemetry*TELEMETRY_VALUES;
+			int pos = start;
+			for (int i=0; i<TELEMETRY_VALUES; i++) {
+				int valStart = indexOf(buf, (byte)'=', pos, end);
+				if (valStart < 0)
+					return;
+				int valEnd = indexOf(buf, (byte)',', valStart, end);
+				if (valEnd < 0)
+					valEnd = end;
+				long val = parseLastInt(buf, valStart+1, valEnd);
+				if (val == Long.MIN_VALUE)
+					return;
+				telemetry[offset+i] = (int)val;
+				pos = valEnd;
+			}
+			addEvent(EVENT_BATCH_TELEMETRY, node, numTelemetry++, time);
+		}
+
+		private int getNode(int processNum, int hostStart, int hostEnd) {
+			int hash = processNum;
+			for (int i=hostStart; i<hostEnd; i++)
+				hash = 31*hash + buf[i];
+			int mask = nodeTable.length-1;
+			int slot = mix(hash) & mask;
+			while (true) {
+				int index = nodeTable[slot];
+				if (index < 0)
+					break;
+				if (nodeHashes[index] == hash && nodeProcessNums[index] == processNum
+						&& hostEquals(nodeHosts[index], hostStart, hostEnd))
+					return index;
+				slot = (slot+1) & mask;
+			}
+			// new node
+			int index = numNodes++;
+			if (index == nodeProcessNums.length) {
+				int len = index*2;
+				nodeProcessNums = Arrays.copyOf(nodeProcessNums, len);
+				nodeHosts = Arrays.copyOf(nodeHosts, len);
+				nodeHashes = Arrays.copyOf(nodeHashes, len);
+				nodeLastTimes = Arrays.copyOf(nodeLastTimes, len);
+				nodeLastSeq = Arrays.copyOf(nodeLastSeq, len);
+			}
+			nodeProcessNums[index] = processNum;
+			nodeHashes[index] = hash;
+			nodeLastSeq[index] = -1;
+			if (hostStart >= 0) {
+				byte[] host = new byte[hostEnd - hostStart];
+				for (int i=0; i<host.length; i++)
+					host[i] = buf[hostStart+i];
+				nodeHosts[index] = host;
+			}
+			if (numNodes*2 > nodeTable.length) {
+				// rehash
+				nodeTable = newTable(nodeTable.length*2);
+				mask = nodeTable.length-1;
+				for (int i=0; i<numNodes; i++) {
+					int s = mix(nodeHashes[i]) & mask;
+					while (nodeTable[s] >= 0)
+						s = (s+1) & mask;
+					nodeTable[s] = i;
+				}
+			} else {
+				nodeTable[slot] = index;
+			}
+			return index;
+		}
+
+		private boolean hostEquals(byte[] host, int hostStart, int hostEnd) {
+			if (host == null)
+				return hostStart < 0;
+			if (hostStart < 0 || host.length != hostEnd - hostStart)
+				return false;
+			for (int i=0; i<host.length; i++)
+				if (host[i] != buf[hostStart+i])
+					return false;
+			return true;
+		}
+
+		private void addEvent(int type, int node, int value, long time) {
+			if (numEvents == eventTypes.length) {
+				int len = numEvents*2;
+				eventTypes = Arrays.copyOf(eventTypes, len);
+				eventNodes = Arrays.copyOf(eventNodes, len);
+				eventValues = Arrays.copyOf(eventValues, len);
+				eventTimes = Arrays.copyOf(eventTimes, len);
+			}
+			eventTypes[numEvents] = type;
+			eventNodes[numEvents] = node;
+			eventValues[numEvents] = value;
+			eventTimes[numEvents] = time;
+			numEvents++;
+		}
+	}
+
+	/**
+	 * Finds extra log lines that were merged in with a line (process output written concurrently), working backwards
+	 * from the last '['. Each merged line starts at a '[' and contains "]:".
+	 *
+	 * @param buf
+	 * @param end end of the line
+	 * @param brackets positions of '[' characters after the start of the line, in order
+	 * @param numBrackets
+	 * @return index in brackets of the start of the first merged line, or numBrackets if there are none
+	 */
+	private static int firstMergedLine(byte[] buf, int end, int[] brackets, int numBrackets) {
+		int firstSegment = numBrackets;
+		int lineEnd = end;
+		while (firstSegment > 0) {
+			int index = brackets[firstSegment-1];
+			if (index >= lineEnd || indexOf(buf, HEADER_END, index, lineEnd) < 0)
+				break;
+			// it's a valid extra log line
+			firstSegment--;
+			lineEnd = index;
+		}
+		return firstSegment;
+	}
+
+	/**
+	 * Splits a single line of a log into the log lines that were merged into it, in the same way as when parsing a
+	 * log. Used by the deprecated line based API in {@link MPJTaskLogStatsGen}.
+	 *
+	 * @param line
+	 * @return the line itself, followed by any log lines that were merged in with it
+	 */
+	static List<String> splitMergedLines(String line) {
+		byte[] buf = line.getBytes(StandardCharsets.UTF_8);
+		int[] brackets = new int[8];
+		int numBrackets = 0;
+		for (int i=1; i<buf.length; i++) {
+			if (buf[i] == '[') {
+				if (numBrackets == brackets.length)
+					brackets = Arrays.copyOf(brackets, numBrackets*2);
+				brackets[numBrackets++] = i;
+			}
+		}
+		int firstSegment = firstMergedLine(buf, buf.length, brackets, numBrackets);
+		if (firstSegment == numBrackets)
+			return Collections.singletonList(line);
+		List<String> lines = new ArrayList<>(numBrackets - firstSegment + 1);
+		lines.add(string(buf, 0, brackets[firstSegment]));
+		for (int i=firstSegment; i<numBrackets; i++)
+			lines.add(string(buf, brackets[i], i == numBrackets-1 ? buf.length : brackets[i+1]));
+		return lines;
+	}
+
+	/**
+	 * Properly handles midnight: if this time is before the previous time, then add 24 hours (but make sure it's at
+	 * least 12 hours before)
+	 *
+	 * @param time
+	 * @param prevTime
+	 * @return time, shifted forward by whole days if needed
+	 */
+	private static long correctForMidnight(long time, long prevTime) {
+		while (time < prevTime - HALF_DAY_MILLIS)
+			time += MILLISEC_PER_DAY;
+		return time;
+	}
+
+	/**
+	 * Parses the date from the header of a single log line, in the same way as when parsing a log. Used by the
+	 * deprecated line based API in {@link MPJTaskLogStatsGen}.
+	 *
+	 * @param line
+	 * @param prevDate date of the previous line, used to handle midnight transitions, or null
+	 * @return date, or null if it could not be parsed
+	 */
+	Date parseDate(String line, Date prevDate) {
+		byte[] buf = line.getBytes(StandardCharsets.UTF_8);
+		if (buf.length < 2)
+			return null;
+		int timeEnd = indexOf(buf, (byte)' ', 1, buf.length);
+		long time = parseTime(buf, 1, timeEnd < 0 ? buf.length : timeEnd);
+		if (time == Long.MIN_VALUE)
+			return null;
+		time += dayStartMillis;
+		if (prevDate != null)
+			time = correctForMidnight(time, prevDate.getTime());
+		return new Date(time);
+	}
+
+	/**
+	 * Parses a time of day with the {@link MPJTaskCalculator#df} format (HH:mm:ss.SSS).
+	 *
+	 * @return millis since midnight, or Long.MIN_VALUE if it could not be parsed
+	 */
+	private long parseTime(byte[] buf, int start, int end) {
+		if (end - start == 12 && buf[start+2] == ':' && buf[start+5] == ':' && buf[start+8] == '.'
+				&& allDigits(buf, start, start+2) && allDigits(buf, start+3, start+5)
+				&& allDigits(buf, start+6, start+8) && allDigits(buf, start+9, start+12)) {
+			// fast path
+			return parseInt(buf, start, start+2)*3600000l + parseInt(buf, start+3, start+5)*60000l
+					+ parseInt(buf, start+6, start+8)*1000l + parseInt(buf, start+9, start+12);
+		}
+		// something unusual, fall back to the date format
+		try {
+			synchronized (MPJTaskCalculator.df) {
+				return MPJTaskCalculator.df.parse(string(buf, start, end)).getTime() - dayStartMillis;
+			}
+		} catch (ParseException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	private static int[] newTable(int size) {
+		int[] table = new int[size];
+		Arrays.fill(table, -1);
+		return table;
+	}
+
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private static boolean allDigits(byte[] buf, int start, int end) {
+		for (int i=start; i<end; i++)
+			if (!isDigit(buf[i]))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Parses a non-negative integer, digits must already have been validated
+	 */
+	private static int parseInt(byte[] buf, int start, int end) {
+		int val = 0;
+		for (int i=start; i<end; i++)
+			val = val*10 + (buf[i] - '0');
+		return val;
+	}
+
+	/**
+	 * Parses the last space separated token before the given end index as an integer
+	 *
+	 * @return parsed value, or Long.MIN_VALUE if not an integer
+	 */
+	private static long parseLastInt(byte[] buf, int start, int end) {
+		while (end > start && buf[end-1] == ' ')
+			end--;
+		int tokenStart = end;
+		while (tokenStart > start && buf[tokenStart-1] != ' ')
+			tokenStart--;
+		boolean negative = tokenStart < end && buf[tokenStart] == '-';
+		int digitStart = negative ? tokenStart+1 : tokenStart;
+		if (!isInt(buf, digitStart, end))
+			return Long.MIN_VALUE;
+		int val = parseInt(buf, digitStart, end);
+		return negative ? -val : val;
+	}
+	
+	/**
+	 * @return true if the given range is a non-negative integer that fits in an int
+	 */
+	private static boolean isInt(byte[] buf, int start, int end) {
+		if (start == end || end - start > 10 || !allDigits(buf, start, end))
+			return false;
+		long val = 0;
+		for (int i=start; i<end; i++)
+			val = val*10 + (buf[i] - '0');
+		return val <= Integer.MAX_VALUE;
+	}
+
+	private static int indexOf(byte[] buf, byte b, int start, int end) {
+		for (int i=start; i<end; i++)
+			if (buf[i] == b)
+				return i;
+		return -1;
+	}
+
+	private static int indexOf(byte[] buf, byte[] pattern, int start, int end) {
+		byte first = pattern[0];
+		int max = end - pattern.length;
+		outer:
+		for (int i=start; i<=max; i++) {
+			if (buf[i] != first)
+				continue;
+			for (int j=1; j<pattern.length; j++)
+				if (buf[i+j] != pattern[j])
+					continue outer;
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Scans the given message once for each of the messages of interest.
+	 * 
+	 * @return bitwise or of the MATCH_* flags for each message contained
+	 */
+	private static int matchMessage(byte[] buf, int start, int end) {
+		int match = 0;
+		for (int i=start; i<end; i++) {
+			switch (buf[i]) {
+			case 'r':
+				if (startsWith(buf, i, end, RECEIVE_MESSAGE))
+					match |= MATCH_RECEIVE;
+				else if (startsWith(buf, i, end, RETURNING_MESSAGE))
+					match |= MATCH_RETURNING;
+				break;
+			case 's':
+				if (startsWith(buf, i, end, READY_MESSAGE))
+					match |= MATCH_READY;
+				break;
+			case 'g':
+				if (startsWith(buf, i, end, DIRECT_MESSAGE))
+					match |= MATCH_DIRECT;
+				else if (startsWith(buf, i, end, NUM_LEFT_MESSAGE))
+					match |= MATCH_NUM_LEFT;
+				break;
+			default:
+				break;
+			}
+		}
+		return match;
+	}
+
+	private static boolean startsWith(byte[] buf, int start, byte[] pattern) {
+		return startsWith(buf, start, buf.length, pattern);
+	}
+
+	private static boolean startsWith(byte[] buf, int start, int end, byte[] pattern) {
+		if (end - start < pattern.length)
+			return false;
+		for (int i=0; i<pattern.length; i++)
+			if (buf[start+i] != pattern[i])
+				return false;
+		return true;
+	}
+
+	private static boolean endsWith(byte[] buf, int start, int end, byte[] pattern) {
+		if (end - start < pattern.length)
+			return false;
+		int offset = end - pattern.length;
+		for (int i=0; i<pattern.length; i++)
+			if (buf[offset+i] != pattern[i])
+				return false;
+		return true;
+	}
+
+	private static String string(byte[] buf, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i=0; i<bytes.length; i++)
+			bytes[i] = buf[start+i];
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] bytes(String str) {
+		return str.getBytes(StandardCharsets.US_ASCII);
+	}
+
+}
@@ -2,9 +2,11 @@ package edu.usc.kmilner.mpj.taskDispatch;
 
 /**
  * Interface for a hook to be run on the worker with rank=0 after the completion of each batch.
- * Can be used to do post batch assembly. Blocks the {@link DispatcherThread} until the batch is
- * processed, for asynchronous implementation, see {@link AsyncPostBatchHook}. Hook is executed the
- * next time a given process requests a batch.
+ * Can be used to do post batch assembly. Hook is executed the next time a given process requests a batch,
+ * on a single dedicated thread (so calls are never concurrent, and are in the order that batches were
+ * retired). Hooks don't block dispatching to other processes, but a slow hook will delay all hooks after it,
+ * for asynchronous implementation, see {@link AsyncPostBatchHook}. To merge many small batches into fewer
+ * hook calls, see {@link CoalescingPostBatchHook}.
  * @author Kevin Milner
  *
  */
@@ -0,0 +1,234 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Progress watchdog which detects stalls that {@link DeadlockDetectionThread} can't: livelocks, stuck I/O, and MPI
+ * waits. A rank is considered stalled if no progress has been made (a batch or a task completing) within a fixed
+ * window, or within a multiple of the expected time for the current batch based on the rolling average time per task.
+ * When a stall is first detected, all thread stacks (and the dispatcher state on rank 0) are dumped once, and the
+ * rank is optionally reported to the dispatcher as failed so that its outstanding tasks are dispatched elsewhere.
+ * <br>
+ * Progress is recorded through volatile fields only, so the overhead for calculation threads is negligible.
+ *
+ * @author Kevin Milner
+ *
+ */
+class ProgressWatchdogThread extends DeadlockDetectionThread {
+
+	/**
+	 * Default multiple of the expected batch time after which a rank is considered stalled
+	 */
+	static final double DEFAULT_AVG_MULTIPLE = 10d;
+	/**
+	 * Stalls relative to the average time are never detected sooner than this, to avoid false positives with short
+	 * tasks
+	 */
+	static final long MIN_RELATIVE_STALL_MILLIS = 5l*60l*1000l;
+
+	// weight of each new batch in the rolling average time per task
+	private static final double AVG_ALPHA = 0.2;
+
+	private MPJTaskCalculator calc;
+	private boolean detectDeadlocks;
+	private long windowMillis;
+	private double avgMultiple;
+	private boolean reportFailed;
+
+	private volatile long lastProgressNanos;
+	private volatile int currentBatchSize;
+	// rolling average time per task, NaN until the first batch completes
+	private volatile double avgMillisPerTask = Double.NaN;
+
+	private volatile DispatcherThread dispatcher;
+	private volatile boolean progressChecks = true;
+
+	private boolean dumped;
+	private boolean reported;
+
+	/**
+	 * @param calc
+	 * @param checkMillis how often to check for stalls (and deadlock)
+	 * @param detectDeadlocks if true, deadlocks are also detected as in {@link DeadlockDetectionThread}
+	 * @param windowMillis time without progress after which a rank is stalled, or <= 0 to only use the average
+	 * @param avgMultiple multiple of the expected batch time after which a rank is stalled, or <= 0 to only use the
+	 * fixed window
+	 * @param reportFailed if true, stalled ranks are reported to the dispatcher as failed
+	 */
+	ProgressWatchdogThread(MPJTaskCalculator calc, long checkMillis, boolean detectDeadlocks, long windowMillis,
+			double avgMultiple, boolean reportFailed) {
+		super(checkMillis);
+		Preconditions.checkArgument(windowMillis > 0 || avgMultiple > 0, "Must supply a window or average multiple");
+		this.calc = calc;
+		this.detectDeadlocks = detectDeadlocks;
+		this.windowMillis = windowMillis;
+		this.avgMultiple = avgMultiple;
+		this.reportFailed = reportFailed;
+		this.lastProgressNanos = nanoTime();
+		setName("ProgressWatchdog");
+	}
+
+	void setDispatcher(DispatcherThread dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Called when a batch is received
+	 *
+	 * @param size
+	 */
+	void batchStarted(int size) {
+		currentBatchSize = size;
+		progress();
+	}
+
+	/**
+	 * Called when a batch has been completed
+	 *
+	 * @param size
+	 * @param millis
+	 */
+	void batchFinished(int size, long millis) {
+		if (size > 0) {
+			double perTask = (double)millis/(double)size;
+			double prev = avgMillisPerTask;
+			avgMillisPerTask = Double.isNaN(prev) ? perTask : prev + AVG_ALPHA*(perTask - prev);
+		}
+		currentBatchSize = 0;
+		progress();
+	}
+
+	/**
+	 * Called when any progress is made, e.g. a task completes
+	 */
+	void progress() {
+		lastProgressNanos = nanoTime();
+	}
+
+	/**
+	 * Stops checking for progress, e.g. once this process has finished all of its batches and is waiting for others.
+	 * Deadlock detection (if enabled) continues.
+	 */
+	void stopProgressChecks() {
+		progressChecks = false;
+	}
+
+	/**
+	 * @return time after which the current state is considered stalled, or Long.MAX_VALUE if unknown
+	 */
+	long getStallMillis() {
+		long stallMillis = windowMillis > 0 ? windowMillis : Long.MAX_VALUE;
+		double perTask = avgMillisPerTask;
+		if (avgMultiple > 0 && !Double.isNaN(perTask)) {
+			double expected = perTask*Integer.max(1, currentBatchSize);
+			long relative = Long.max(MIN_RELATIVE_STALL_MILLIS, (long)(avgMultiple*expected));
+			stallMillis = Long.min(stallMillis, relative);
+		}
+		return stallMillis;
+	}
+
+	@Override
+	protected void check() {
+		if (detectDeadlocks)
+			super.check();
+		if (!progressChecks)
+			return;
+		long sinceMillis = TimeUnit.NANOSECONDS.toMillis(nanoTime() - lastProgressNanos);
+		long stallMillis = getStallMillis();
+		if (sinceMillis < stallMillis) {
+			if (dumped) {
+				log("progress watchdog: progress resumed");
+				// a later stall is dumped and reported again
+				dumped = false;
+				reported = false;
+			}
+			return;
+		}
+		if (dumped) {
+			if (reportFailed && !reported)
+				// couldn't report last time, e.g. because the main thread was communicating with the dispatcher
+				report();
+			return;
+		}
+		dumped = true;
+		String message = "progress watchdog: no progress for "+Utils.smartTimePrint(sinceMillis)
+				+" (stall threshold: "+Utils.smartTimePrint(stallMillis)+", current batch size: "+currentBatchSize
+				+", avg per task: "+Utils.smartTimePrint(avgMillisPerTask)+")";
+		log(message);
+		dumpThreads();
+		DispatcherThread dispatcher = this.dispatcher;
+		if (dispatcher != null)
+			log("progress watchdog: dispatcher state: "+dispatcher.getStateString());
+		if (reportFailed && !reported)
+			report();
+	}
+
+	private void report() {
+		log("progress watchdog: reporting this process as failed to the dispatcher");
+		try {
+			reported = reportFailed();
+		} catch (Exception e) {
+			reported = true;
+			System.err.println("Exception reporting failed process");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return current time in nanoseconds, overridden in tests
+	 */
+	long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Logs the given message through the calculator, overridden in tests
+	 */
+	void log(String message) {
+		calc.debug(message);
+	}
+
+	/**
+	 * Reports this process to the dispatcher as failed, overridden in tests
+	 *
+	 * @return false if the failure couldn't be reported yet and should be retried, see
+	 * {@link MPJTaskCalculator#reportFailed()}
+	 */
+	boolean reportFailed() {
+		return calc.reportFailed();
+	}
+
+	private void dumpThreads() {
+		if (tmx == null)
+			// only set once running
+			tmx = ManagementFactory.getThreadMXBean();
+		StringBuilder str = new StringBuilder("progress watchdog: thread dump");
+		for (ThreadInfo info : tmx.dumpAllThreads(tmx.isObjectMonitorUsageSupported(),
+				tmx.isSynchronizerUsageSupported())) {
+			str.append("\n\"").append(info.getThreadName()).append("\" id=").append(info.getThreadId())
+				.append(" ").append(info.getThreadState());
+			if (info.getLockName() != null)
+				str.append(" on ").append(info.getLockName());
+			if (info.getLockOwnerName() != null)
+				str.append(" owned by \"").append(info.getLockOwnerName()).append("\"");
+			StackTraceElement[] stack = info.getStackTrace();
+			MonitorInfo[] monitors = info.getLockedMonitors();
+			for (int i=0; i<stack.length; i++) {
+				str.append("\n\tat ").append(stack[i]);
+				for (MonitorInfo monitor : monitors)
+					if (monitor.getLockedStackDepth() == i)
+						str.append("\n\t- locked ").append(monitor);
+			}
+			for (LockInfo lock : info.getLockedSynchronizers())
+				str.append("\n\t- locked synchronizer ").append(lock);
+		}
+		log(str.toString());
+	}
+
+}
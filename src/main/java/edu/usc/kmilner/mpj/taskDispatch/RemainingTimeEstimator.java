@@ -0,0 +1,367 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static edu.usc.kmilner.mpj.taskDispatch.Utils.asRuntimeException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.CalcBatch;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.Node;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.ParsedLog;
+
+/**
+ * Monte Carlo estimate of the time left in a job which accounts for differences in speed between nodes. Each trial
+ * drains the remaining (undispatched) tasks using the same batch size rule as {@link DispatcherThread}, where the
+ * duration of each simulated batch on a node is drawn from that node's recent completed batches (falling back to all
+ * nodes for nodes with few completed batches). Batches currently in progress are finished first, conditioned on how
+ * long they have already been running.
+ *
+ * @author Kevin Milner
+ *
+ */
+class RemainingTimeEstimator {
+
+	// only use the most recent batches from each node, in case rates change over time
+	private static final int MAX_NODE_SAMPLES = 100;
+	// nodes with fewer completed batches than this will partially sample from all nodes
+	private static final int MIN_NODE_SAMPLES = 5;
+
+	private static final int MIN_TRIALS = 20;
+	private static final int MAX_TRIALS = 2000;
+	// target total number of simulated batches across all trials
+	private static final long TARGET_SIM_BATCHES = 50000000l;
+
+	// a node is flagged as a straggler if it's the last to finish in at least this fraction of trials
+	private static final double STRAGGLER_LAST_FRACT = 0.1;
+
+	private final Node[] nodes;
+	// ms/task for recent completed batches of each node
+	private final double[][] nodeSamples;
+	private final double[] allSamples;
+	// median time between finishing one batch and starting the next
+	private final double dispatchOverheadMillis;
+
+	// in progress batch for each node, if any
+	private final int[] inProgressSizes;
+	private final long[] inProgressStarts;
+
+	private final int numLeft;
+	private final int dispatchSize;
+	private final int minPerDispatch;
+	private final int maxPerDispatch;
+	private final int exactDispatch;
+
+	private final int threads;
+
+	RemainingTimeEstimator(ParsedLog log, int threads) {
+		Preconditions.checkArgument(threads > 0, "threads must be > 0");
+		this.threads = threads;
+
+		List<Node> nodeList = Lists.newArrayList(log.nodeBatches.keySet());
+		Collections.sort(nodeList, new Comparator<Node>() {
+
+			@Override
+			public int compare(Node o1, Node o2) {
+				return Integer.compare(o1.getProcessNum(), o2.getProcessNum());
+			}
+		});
+		nodes = nodeList.toArray(new Node[nodeList.size()]);
+		nodeSamples = new double[nodes.length][];
+		inProgressSizes = new int[nodes.length];
+		inProgressStarts = new long[nodes.length];
+
+		List<Double> gaps = Lists.newArrayList();
+		int numSamples = 0;
+		for (int n=0; n<nodes.length; n++) {
+			List<CalcBatch> batches = log.nodeBatches.get(nodes[n]);
+			double[] samples = new double[Integer.min(batches.size(), MAX_NODE_SAMPLES)];
+			int num = 0;
+			for (int i=batches.size(); --i>=0 && num<samples.length;) {
+				CalcBatch batch = batches.get(i);
+				if (batch.isCompleted() && batch.getSize() > 0)
+					samples[num++] = batch.getDurationMillisEach();
+				if (i > 0 && batches.get(i-1).isCompleted() && gaps.size() < MAX_NODE_SAMPLES*nodes.length)
+					gaps.add((double)(batch.getStartDate().getTime() - batches.get(i-1).getEndDate().getTime()));
+			}
+			nodeSamples[n] = Arrays.copyOf(samples, num);
+			numSamples += num;
+			CalcBatch last = batches.isEmpty() ? null : batches.get(batches.size()-1);
+			if (last != null && !last.isCompleted()) {
+				inProgressSizes[n] = last.getSize();
+				inProgressStarts[n] = last.getStartDate().getTime();
+			}
+		}
+		allSamples = new double[numSamples];
+		int index = 0;
+		for (double[] samples : nodeSamples) {
+			System.arraycopy(samples, 0, allSamples, index, samples.length);
+			index += samples.length;
+		}
+		Preconditions.checkState(allSamples.length > 0, "No completed batches");
+		if (gaps.isEmpty()) {
+			dispatchOverheadMillis = 0d;
+		} else {
+			Collections.sort(gaps);
+			dispatchOverheadMillis = Math.max(0d, gaps.get(gaps.size()/2));
+		}
+
+		numLeft = Integer.max(0, log.numLeft);
+		if (log.dispatchSize > 0) {
+			dispatchSize = log.dispatchSize;
+			minPerDispatch = log.minPerDispatch;
+			maxPerDispatch = log.maxPerDispatch;
+			exactDispatch = log.exactDispatch;
+		} else {
+			// older logs without the dispatcher settings, assume defaults
+			dispatchSize = nodes.length;
+			minPerDispatch = MPJTaskCalculator.MIN_DISPATCH_DEFAULT;
+			maxPerDispatch = MPJTaskCalculator.MAX_DISPATCH_DEFAULT;
+			exactDispatch = -1;
+		}
+	}
+
+	/**
+	 * Estimate results, all times are in milliseconds after the simulation start date
+	 */
+	static class Estimate {
+		final int numTrials;
+		// sorted
+		final double[] timesLeft;
+		final List<Straggler> stragglers;
+
+		private Estimate(int numTrials, double[] timesLeft, List<Straggler> stragglers) {
+			this.numTrials = numTrials;
+			this.timesLeft = timesLeft;
+			this.stragglers = stragglers;
+		}
+
+		double getPercentile(double percentile) {
+			int index = (int)Math.round(percentile*(timesLeft.length-1));
+			return timesLeft[index];
+		}
+	}
+
+	static class Straggler {
+		final Node node;
+		final double millisPerTask;
+		final double medianMillisPerTask;
+		final double fractLast;
+		// how long the current batch has been running, and how long it would be expected to take
+		final double inProgressElapsed;
+		final double inProgressExpected;
+
+		private Straggler(Node node, double millisPerTask, double medianMillisPerTask, double fractLast,
+				double inProgressElapsed, double inProgressExpected) {
+			this.node = node;
+			this.millisPerTask = millisPerTask;
+			this.medianMillisPerTask = medianMillisPerTask;
+			this.fractLast = fractLast;
+			this.inProgressElapsed = inProgressElapsed;
+			this.inProgressExpected = inProgressExpected;
+		}
+
+		boolean isOverdue() {
+			return inProgressElapsed > inProgressExpected;
+		}
+	}
+
+	String getDispatchRule() {
+		if (exactDispatch > 0)
+			return "size="+dispatchSize+", exactDispatch="+exactDispatch;
+		return "size="+dispatchSize+", minPerDispatch="+minPerDispatch+", maxPerDispatch="+maxPerDispatch;
+	}
+
+	/**
+	 * @return number of batches needed to dispatch the remaining tasks
+	 */
+	long countRemainingBatches() {
+		long count = 0;
+		int left = numLeft;
+		while (left > 0) {
+			left -= DispatcherThread.calcBatchSize(left, dispatchSize, minPerDispatch, maxPerDispatch, exactDispatch);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Runs the simulation, with the number of trials chosen based on the number of batches remaining
+	 *
+	 * @param simStartDate
+	 * @return estimate
+	 */
+	Estimate estimate(Date simStartDate) {
+		long batchesPerTrial = Long.max(1l, countRemainingBatches() + nodes.length);
+		int numTrials = (int)Long.max(MIN_TRIALS, Long.min(MAX_TRIALS, TARGET_SIM_BATCHES/batchesPerTrial));
+		return estimate(simStartDate, numTrials);
+	}
+
+	Estimate estimate(final Date simStartDate, int numTrials) {
+		Preconditions.checkArgument(numTrials > 0, "numTrials must be > 0");
+		final double[] timesLeft = new double[numTrials];
+		final int[] lastCounts = new int[nodes.length];
+
+		int numTasks = Integer.min(threads, numTrials);
+		ExecutorService exec = Executors.newFixedThreadPool(numTasks);
+		try {
+			List<Future<int[]>> futures = Lists.newArrayList();
+			for (int t=0; t<numTasks; t++) {
+				final int firstTrial = t;
+				final int trialStride = numTasks;
+				futures.add(exec.submit(new Callable<int[]>() {
+
+					@Override
+					public int[] call() throws Exception {
+						int[] myLastCounts = new int[nodes.length];
+						double[] nodeEnds = new double[nodes.length];
+						for (int trial=firstTrial; trial<timesLeft.length; trial+=trialStride) {
+							// seeded by trial so that results don't depend on the number of threads
+							SplittableRandom r = new SplittableRandom(trial);
+							timesLeft[trial] = simulate(simStartDate.getTime(), r, nodeEnds);
+							myLastCounts[argMax(nodeEnds)]++;
+						}
+						return myLastCounts;
+					}
+				}));
+			}
+			for (Future<int[]> future : futures) {
+				int[] counts = future.get();
+				for (int n=0; n<nodes.length; n++)
+					lastCounts[n] += counts[n];
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw asRuntimeException(e);
+		} finally {
+			exec.shutdownNow();
+		}
+		Arrays.sort(timesLeft);
+
+		// stragglers
+		double[] medians = new double[nodes.length];
+		for (int n=0; n<nodes.length; n++)
+			medians[n] = median(nodeSamples[n].length > 0 ? nodeSamples[n] : allSamples);
+		double medianRate = median(medians);
+		List<Straggler> stragglers = Lists.newArrayList();
+		for (int n=0; n<nodes.length; n++) {
+			double fractLast = (double)lastCounts[n]/(double)numTrials;
+			double elapsed = 0d;
+			double expected = 0d;
+			if (inProgressSizes[n] > 0) {
+				elapsed = simStartDate.getTime() - inProgressStarts[n];
+				// use the slowest recent rate for this node, so that only batches which are truly late are flagged
+				double[] samples = nodeSamples[n].length > 0 ? nodeSamples[n] : allSamples;
+				expected = inProgressSizes[n]*max(samples);
+			}
+			if (fractLast >= STRAGGLER_LAST_FRACT || elapsed > expected)
+				stragglers.add(new Straggler(nodes[n], medians[n], medianRate, fractLast, elapsed, expected));
+		}
+		Collections.sort(stragglers, new Comparator<Straggler>() {
+
+			@Override
+			public int compare(Straggler o1, Straggler o2) {
+				return Double.compare(o2.fractLast, o1.fractLast);
+			}
+		});
+		return new Estimate(numTrials, timesLeft, stragglers);
+	}
+
+	/**
+	 * Simulates a single trial
+	 *
+	 * @param simStart
+	 * @param r
+	 * @param nodeEnds filled in with the time that each node finishes its last batch
+	 * @return time until the last batch finishes
+	 */
+	private double simulate(long simStart, SplittableRandom r, double[] nodeEnds) {
+		// binary min heap of node indexes, keyed on the time that they'll next be ready for a batch
+		int[] heap = new int[nodes.length];
+		for (int n=0; n<nodes.length; n++) {
+			double end = 0d;
+			if (inProgressSizes[n] > 0) {
+				double elapsed = simStart - inProgressStarts[n];
+				double duration = inProgressSizes[n]*sample(n, r);
+				// condition on it already having run this long
+				for (int i=0; duration <= elapsed && i<20; i++)
+					duration = inProgressSizes[n]*sample(n, r);
+				if (duration <= elapsed)
+					// still not done, assume it's close
+					duration = elapsed + sample(n, r);
+				end = duration - elapsed + dispatchOverheadMillis;
+			}
+			nodeEnds[n] = end;
+			heap[n] = n;
+		}
+		for (int i=nodes.length/2; --i>=0;)
+			siftDown(heap, nodeEnds, i);
+
+		int left = numLeft;
+		while (left > 0) {
+			int n = heap[0];
+			int batchSize = DispatcherThread.calcBatchSize(left, dispatchSize,
+					minPerDispatch, maxPerDispatch, exactDispatch);
+			left -= batchSize;
+			nodeEnds[n] += batchSize*sample(n, r) + dispatchOverheadMillis;
+			siftDown(heap, nodeEnds, 0);
+		}
+		return max(nodeEnds);
+	}
+
+	/**
+	 * @return random time per task for the given node
+	 */
+	private double sample(int node, SplittableRandom r) {
+		double[] samples = nodeSamples[node];
+		if (samples.length < MIN_NODE_SAMPLES && r.nextInt(MIN_NODE_SAMPLES) >= samples.length)
+			samples = allSamples;
+		return samples[r.nextInt(samples.length)];
+	}
+
+	private static void siftDown(int[] heap, double[] keys, int i) {
+		int size = heap.length;
+		int val = heap[i];
+		while (true) {
+			int child = 2*i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && keys[heap[child+1]] < keys[heap[child]])
+				child++;
+			if (keys[heap[child]] >= keys[val])
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = val;
+	}
+
+	private static int argMax(double[] vals) {
+		int index = 0;
+		for (int i=1; i<vals.length; i++)
+			if (vals[i] > vals[index])
+				index = i;
+		return index;
+	}
+
+	private static double max(double[] vals) {
+		return vals[argMax(vals)];
+	}
+
+	private static double median(double[] vals) {
+		double[] sorted = Arrays.copyOf(vals, vals.length);
+		Arrays.sort(sorted);
+		return sorted[sorted.length/2];
+	}
+
+}
@@ -0,0 +1,168 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Persistent per-task cost (duration) profile, stored as a memory mapped file with one float per task index: the
+ * wall clock time in milliseconds of the batch that the task was last run in, divided by the batch size. Unknown
+ * costs are stored as NaN.
+ * <br>
+ * Written by the {@link DispatcherThread} on rank 0 as each batch is retired, and read at the start of later runs
+ * of the same (or a similar) task set to order tasks longest first and to size batches by cost rather than count.
+ * If the number of tasks has changed since the profile was written, costs for task indexes present in both are kept.
+ * An existing non-empty file which isn't a cost profile of this version is never overwritten.
+ *
+ * @author Kevin Milner
+ *
+ */
+class TaskCostProfile implements Closeable {
+
+	private static final int MAGIC = 0x4D504A43; // "MPJC"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 12;
+
+	private final int numTasks;
+	private RandomAccessFile raf;
+	private MappedByteBuffer buffer;
+
+	private int numKnown;
+	private double knownSum;
+
+	/**
+	 * Opens (or creates) the given cost profile
+	 *
+	 * @param file
+	 * @param numTasks
+	 * @throws IOException if the file exists, is not empty, and is not a cost profile of the current version
+	 */
+	TaskCostProfile(File file, int numTasks) throws IOException {
+		Preconditions.checkArgument(numTasks > 0, "numTasks must be > 0");
+		this.numTasks = numTasks;
+
+		int prevNumTasks = 0;
+		float[] prevCosts = null;
+		if (file.exists() && file.length() > 0) {
+			if (file.length() < HEADER_BYTES)
+				throw new IOException("Refusing to overwrite "+file.getAbsolutePath()
+						+", too short to be a cost profile ("+file.length()+" bytes)");
+			try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+				int magic = in.readInt();
+				int version = in.readInt();
+				if (magic != MAGIC)
+					throw new IOException("Refusing to overwrite "+file.getAbsolutePath()+", not a cost profile");
+				if (version != VERSION)
+					throw new IOException("Refusing to overwrite "+file.getAbsolutePath()
+							+", unsupported cost profile version "+version+" (expected "+VERSION+")");
+				prevNumTasks = in.readInt();
+				if (prevNumTasks != numTasks && file.length() >= HEADER_BYTES + 4l*prevNumTasks) {
+					// resized, read what we can keep before remapping
+					int keep = Integer.min(prevNumTasks, numTasks);
+					prevCosts = new float[keep];
+					for (int i=0; i<keep; i++)
+						prevCosts[i] = in.readFloat();
+				}
+			}
+		}
+		boolean reuse = prevNumTasks == numTasks && file.length() == HEADER_BYTES + 4l*numTasks;
+
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(HEADER_BYTES + 4l*numTasks);
+		buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + 4l*numTasks);
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, numTasks);
+		if (reuse) {
+			for (int i=0; i<numTasks; i++) {
+				float cost = getCost(i);
+				if (!Float.isNaN(cost)) {
+					numKnown++;
+					knownSum += cost;
+				}
+			}
+		} else {
+			for (int i=0; i<numTasks; i++) {
+				float cost = prevCosts != null && i < prevCosts.length ? prevCosts[i] : Float.NaN;
+				putCost(i, cost);
+				if (!Float.isNaN(cost)) {
+					numKnown++;
+					knownSum += cost;
+				}
+			}
+		}
+	}
+
+	int getNumTasks() {
+		return numTasks;
+	}
+
+	/**
+	 * @return number of tasks with a known cost
+	 */
+	synchronized int getNumKnown() {
+		return numKnown;
+	}
+
+	/**
+	 * @param index
+	 * @return cost in milliseconds of the given task, or NaN if unknown
+	 */
+	synchronized float getCost(int index) {
+		return buffer.getFloat(HEADER_BYTES + 4*index);
+	}
+
+	/**
+	 * @param index
+	 * @return cost in milliseconds of the given task, or the mean known cost if unknown (or NaN if none are known)
+	 */
+	synchronized double getCostOrMean(int index) {
+		float cost = getCost(index);
+		if (Float.isNaN(cost))
+			return numKnown > 0 ? knownSum/numKnown : Double.NaN;
+		return cost;
+	}
+
+	private void putCost(int index, float cost) {
+		buffer.putFloat(HEADER_BYTES + 4*index, cost);
+	}
+
+	/**
+	 * Records the cost of each task in the given batch as the batch duration divided by the batch size
+	 *
+	 * @param batch
+	 * @param durationMillis
+	 */
+	synchronized void recordBatch(int[] batch, long durationMillis) {
+		if (batch.length == 0 || buffer == null)
+			return;
+		float cost = (float)((double)durationMillis/(double)batch.length);
+		for (int index : batch) {
+			if (index < 0 || index >= numTasks)
+				continue;
+			float prev = getCost(index);
+			if (Float.isNaN(prev)) {
+				numKnown++;
+				knownSum += cost;
+			} else {
+				knownSum += cost - prev;
+			}
+			putCost(index, cost);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (buffer == null)
+			return;
+		buffer.force();
+		buffer = null;
+		raf.close();
+	}
+
+}
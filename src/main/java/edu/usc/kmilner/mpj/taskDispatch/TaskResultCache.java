@@ -0,0 +1,397 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * Content addressed on-disk cache of task results, keyed by the SHA-256 hash of a task key supplied by the
+ * {@link MPJTaskCalculator} subclass.
+ * <br>
+ * Each process appends the results that it calculates to its own shard files in the cache directory, so no locking is
+ * needed. Shards are rolled over once they reach {@link #DEFAULT_MAX_SHARD_BYTES}, so that each can be memory mapped. Before dispatching starts, rank 0 memory maps every shard to build an index, reads the results for any
+ * cached tasks (which are then never dispatched), and evicts entries if the cache is larger than the size bound.
+ * Eviction keeps entries used by this run first, then the most recently written, and rewrites them to rank 0's shards.
+ * Results calculated during the run are appended afterwards, so the cache can exceed the bound until the next run.
+ * <br>
+ * The cache directory must be visible to all processes (e.g. a shared file system) and must not be used by more
+ * than one job at a time.
+ *
+ * @author Kevin Milner
+ *
+ */
+class TaskResultCache implements Closeable {
+
+	private static final int MAGIC = 0x4D504A52; // "MPJR"
+	private static final int VERSION = 1;
+	private static final int FILE_HEADER_BYTES = 8;
+	private static final int HASH_BYTES = 32;
+	// hash, timestamp, value length
+	private static final int RECORD_HEADER_BYTES = HASH_BYTES + 8 + 4;
+
+	static final String SHARD_PREFIX = "shard-";
+	static final String SHARD_SUFFIX = ".dat";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	/**
+	 * Shards are rolled over once they reach this size. Must be less than 2 GB, the largest that can be memory mapped.
+	 */
+	static final long DEFAULT_MAX_SHARD_BYTES = 1024l*1024l*1024l;
+
+	private static final DecimalFormat percentDF = new DecimalFormat("0.00 %");
+	private static final DecimalFormat mbDF = new DecimalFormat("0.00");
+
+	private File dir;
+	private int rank;
+	private long maxBytes;
+	private long maxShardBytes = DEFAULT_MAX_SHARD_BYTES;
+
+	// only populated on rank 0 while loading
+	private Map<HashCode, Entry> index;
+	private Set<HashCode> used;
+
+	private ShardWriter out;
+
+	private int numHits;
+	private int numMisses;
+	private int numStored;
+	private long bytesStored;
+	private int numEvicted;
+
+	/**
+	 * @param dir cache directory, will be created if needed
+	 * @param rank rank of this process, which determines the shard that results are written to
+	 * @param maxBytes size bound, enforced by {@link #evict(long)}, or <= 0 for unbounded
+	 */
+	TaskResultCache(File dir, int rank, long maxBytes) {
+		Preconditions.checkArgument(rank >= 0);
+		this.dir = dir;
+		this.rank = rank;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Sets the size at which shards are rolled over (for testing)
+	 * 
+	 * @param maxShardBytes
+	 */
+	void setMaxShardBytes(long maxShardBytes) {
+		Preconditions.checkArgument(maxShardBytes > FILE_HEADER_BYTES && maxShardBytes <= Integer.MAX_VALUE);
+		Preconditions.checkState(out == null, "Can't change the shard size once results have been stored");
+		this.maxShardBytes = maxShardBytes;
+	}
+
+	static HashCode hashKey(String key) {
+		return Hashing.sha256().hashString(key, StandardCharsets.UTF_8);
+	}
+
+	private static class Entry {
+		private final MappedByteBuffer buffer;
+		private final int valueOffset;
+		private final int valueLength;
+		private final long timestamp;
+
+		private Entry(MappedByteBuffer buffer, int valueOffset, int valueLength, long timestamp) {
+			this.buffer = buffer;
+			this.valueOffset = valueOffset;
+			this.valueLength = valueLength;
+			this.timestamp = timestamp;
+		}
+
+		private byte[] read() {
+			byte[] value = new byte[valueLength];
+			ByteBuffer view = buffer.duplicate();
+			view.position(valueOffset);
+			view.get(value);
+			return value;
+		}
+	}
+
+	private File[] getShardFiles() {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return new File[0];
+		List<File> shards = new ArrayList<>();
+		for (File file : files)
+			if (file.getName().startsWith(SHARD_PREFIX) && file.getName().endsWith(SHARD_SUFFIX))
+				shards.add(file);
+		return shards.toArray(new File[0]);
+	}
+
+	/**
+	 * Memory maps all shards and builds the index. Should only be called on rank 0, before any results are stored.
+	 *
+	 * @return total size of all shards in bytes
+	 * @throws IOException
+	 */
+	long loadIndex() throws IOException {
+		index = Maps.newHashMap();
+		used = new HashSet<>();
+		long totalBytes = 0;
+		for (File shard : getShardFiles()) {
+			if (shard.length() > Integer.MAX_VALUE) {
+				// shards are rolled over well before this, so this can only be a single enormous result
+				MPJTaskCalculator.debug(rank, null, "skipping result cache shard larger than 2 GB: "+shard.getName());
+				continue;
+			}
+			totalBytes += shard.length();
+			MappedByteBuffer buffer;
+			try (RandomAccessFile raf = new RandomAccessFile(shard, "r")) {
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			}
+			if (buffer.limit() < FILE_HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				MPJTaskCalculator.debug(rank, null, "skipping unknown result cache shard: "+shard.getName());
+				continue;
+			}
+			buffer.position(FILE_HEADER_BYTES);
+			byte[] hash = new byte[HASH_BYTES];
+			try {
+				while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+					buffer.get(hash);
+					long timestamp = buffer.getLong();
+					int length = buffer.getInt();
+					if (length < 0 || length > buffer.remaining())
+						// truncated, e.g. if a previous job was killed mid-write
+						break;
+					Entry entry = new Entry(buffer, buffer.position(), length, timestamp);
+					buffer.position(buffer.position() + length);
+					HashCode key = HashCode.fromBytes(hash);
+					Entry prev = index.get(key);
+					if (prev == null || prev.timestamp <= timestamp)
+						index.put(key, entry);
+				}
+			} catch (BufferUnderflowException e) {
+				// truncated, keep what we have
+			}
+		}
+		return totalBytes;
+	}
+
+	/**
+	 * @param key
+	 * @return cached result for the given key, or null if not cached. Only valid on rank 0 after
+	 * {@link #loadIndex()} and before {@link #evict(long)}
+	 */
+	byte[] get(HashCode key) {
+		Preconditions.checkState(index != null, "Index not loaded");
+		Entry entry = index.get(key);
+		if (entry == null) {
+			numMisses++;
+			return null;
+		}
+		numHits++;
+		used.add(key);
+		return entry.read();
+	}
+
+	/**
+	 * Evicts entries if the total size of all shards is above the size bound, and releases the index. Should only be
+	 * called on rank 0, after all cached results have been read and before any results are stored.
+	 *
+	 * @param totalBytes total size of all shards, as returned by {@link #loadIndex()}
+	 * @throws IOException
+	 */
+	void evict(long totalBytes) throws IOException {
+		Preconditions.checkState(index != null, "Index not loaded");
+		if (maxBytes > 0 && totalBytes > maxBytes) {
+			List<Map.Entry<HashCode, Entry>> entries = new ArrayList<>(index.entrySet());
+			final Set<HashCode> used = this.used;
+			Collections.sort(entries, new Comparator<Map.Entry<HashCode, Entry>>() {
+
+				@Override
+				public int compare(Map.Entry<HashCode, Entry> o1, Map.Entry<HashCode, Entry> o2) {
+					boolean used1 = used.contains(o1.getKey());
+					boolean used2 = used.contains(o2.getKey());
+					if (used1 != used2)
+						return used1 ? -1 : 1;
+					return Long.compare(o2.getValue().timestamp, o1.getValue().timestamp);
+				}
+			});
+			File[] prevShards = getShardFiles();
+			long now = System.currentTimeMillis();
+			long keptBytes = 0;
+			int numKept = 0;
+			List<File> written;
+			try (ShardWriter tmpOut = new ShardWriter(0, TMP_SUFFIX, false)) {
+				for (Map.Entry<HashCode, Entry> e : entries) {
+					Entry entry = e.getValue();
+					long recordBytes = RECORD_HEADER_BYTES + entry.valueLength;
+					// header of the shard that this would be written to
+					long headerBytes = tmpOut.wouldRollOver(recordBytes) ? FILE_HEADER_BYTES : 0l;
+					if (keptBytes + headerBytes + recordBytes > maxBytes)
+						continue;
+					// entries used by this run count as recently written
+					long timestamp = used.contains(e.getKey()) ? now : entry.timestamp;
+					tmpOut.write(e.getKey(), timestamp, entry.read());
+					keptBytes += headerBytes + recordBytes;
+					numKept++;
+				}
+				written = tmpOut.getFiles();
+			}
+			for (File shard : prevShards)
+				Preconditions.checkState(shard.delete() || !shard.exists(), "Couldn't delete %s", shard);
+			for (File tmp : written) {
+				String name = tmp.getName();
+				File shard = new File(dir, name.substring(0, name.length()-TMP_SUFFIX.length()));
+				Preconditions.checkState(tmp.renameTo(shard), "Couldn't rename %s", tmp);
+			}
+			numEvicted = index.size() - numKept;
+		}
+		index = null;
+		used = null;
+	}
+
+	/**
+	 * Writes records to the shards for a single ID, rolling over to a new shard once the current one reaches the
+	 * maximum shard size. The first shard is named shard-[id].dat, subsequent ones shard-[id]-[n].dat.
+	 */
+	private class ShardWriter implements Closeable {
+
+		private final int id;
+		private final String suffix;
+		private final boolean append;
+
+		private int part = -1;
+		private long shardBytes;
+		private DataOutputStream out;
+		private List<File> files = new ArrayList<>();
+
+		private ShardWriter(int id, String suffix, boolean append) {
+			this.id = id;
+			this.suffix = suffix;
+			this.append = append;
+		}
+
+		private File getFile(int part) {
+			String name = part == 0 ? SHARD_PREFIX+id : SHARD_PREFIX+id+"-"+part;
+			return new File(dir, name+SHARD_SUFFIX+suffix);
+		}
+
+		/**
+		 * @param recordBytes
+		 * @return true if writing a record of the given size would start a new shard
+		 */
+		private boolean wouldRollOver(long recordBytes) {
+			// a single record larger than the maximum still gets its own shard
+			return out == null || (shardBytes > FILE_HEADER_BYTES && shardBytes + recordBytes > maxShardBytes);
+		}
+
+		private void rollOver() throws IOException {
+			if (out != null)
+				out.close();
+			File file;
+			do {
+				part++;
+				file = getFile(part);
+				// when appending, skip over shards that are already full from a previous run
+			} while (append && file.exists() && file.length() >= maxShardBytes);
+			boolean writeHeader = !append || !file.exists() || file.length() == 0;
+			shardBytes = append && file.exists() ? file.length() : 0l;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append)));
+			if (writeHeader) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				shardBytes += FILE_HEADER_BYTES;
+			}
+			files.add(file);
+		}
+
+		private void write(HashCode key, long timestamp, byte[] value) throws IOException {
+			long recordBytes = RECORD_HEADER_BYTES + value.length;
+			if (wouldRollOver(recordBytes))
+				rollOver();
+			out.write(key.asBytes());
+			out.writeLong(timestamp);
+			out.writeInt(value.length);
+			out.write(value);
+			shardBytes += recordBytes;
+		}
+
+		private List<File> getFiles() {
+			return files;
+		}
+
+		private void flush() throws IOException {
+			if (out != null)
+				out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		}
+	}
+
+	/**
+	 * Appends the given result to this process's shards. Call {@link #flush()} once a batch has been stored.
+	 *
+	 * @param key
+	 * @param value
+	 * @throws IOException
+	 */
+	void put(HashCode key, byte[] value) throws IOException {
+		Preconditions.checkState(index == null, "Can't store results while the index is loaded");
+		if (out == null) {
+			dir.mkdirs();
+			out = new ShardWriter(rank, "", true);
+		}
+		out.write(key, System.currentTimeMillis(), value);
+		numStored++;
+		bytesStored += RECORD_HEADER_BYTES + value.length;
+	}
+
+	void flush() throws IOException {
+		if (out != null)
+			out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	/**
+	 * @return String representation of cache hits/misses/evictions (rank 0) and results stored by this process
+	 */
+	String getStatsString() {
+		String str = "";
+		if (numHits + numMisses > 0) {
+			str += "hits="+numHits+", misses="+numMisses
+					+" ("+percentDF.format((double)numHits/(double)(numHits+numMisses))+" hit rate)";
+			if (numEvicted > 0)
+				str += ", evicted="+numEvicted;
+			str += ", ";
+		}
+		str += "stored="+numStored+" ("+mbDF.format(bytesStored/(1024d*1024d))+" MB)";
+		return str;
+	}
+
+}
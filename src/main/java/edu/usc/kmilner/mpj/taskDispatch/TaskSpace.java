@@ -0,0 +1,256 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Multi-dimensional task space, e.g. sites x sources, where each flat task index (as used by the dispatcher and
+ * passed to {@link MPJTaskCalculator#calculateBatch(int[])}) maps to one coordinate along each dimension. Flat indexes
+ * are row-major: the last dimension varies fastest.
+ * <br>
+ * The ordering policy controls the order that tasks are dispatched in, see
+ * {@link MPJTaskCalculator#getTaskSpace()}:
+ * <ul>
+ * <li>{@link Ordering#ROW_MAJOR}: flat index order</li>
+ * <li>{@link Ordering#BLOCKED}: the space is divided into tiles of the given size along each dimension, which are
+ * dispatched one at a time in row-major order, so that each batch covers few distinct values along each axis</li>
+ * <li>{@link Ordering#HILBERT}: as blocked, but tiles are visited along a Hilbert curve so that consecutive tiles are
+ * adjacent. Only supported for 2 dimensions</li>
+ * </ul>
+ *
+ * @author Kevin Milner
+ *
+ */
+public class TaskSpace {
+
+	public enum Ordering {
+		ROW_MAJOR,
+		BLOCKED,
+		HILBERT
+	}
+
+	private int[] dims;
+	// number of tasks per unit along each dimension in the flat index
+	private int[] strides;
+	private int numTasks;
+
+	private Ordering ordering;
+	private int[] tileSizes;
+	// number of tiles along each dimension
+	private int[] tileCounts;
+	private int tileVolume;
+	// side length of the (power of 2) Hilbert curve over the tile grid
+	private int hilbertSide;
+
+	/**
+	 * Task space with {@link Ordering#ROW_MAJOR} ordering
+	 *
+	 * @param dims size of each dimension
+	 */
+	public TaskSpace(int... dims) {
+		this(dims, Ordering.ROW_MAJOR, null);
+	}
+
+	/**
+	 * @param dims size of each dimension
+	 * @param ordering dispatch ordering policy
+	 * @param tileSizes tile size along each dimension, required unless ordering is {@link Ordering#ROW_MAJOR}
+	 */
+	public TaskSpace(int[] dims, Ordering ordering, int[] tileSizes) {
+		Preconditions.checkArgument(dims.length > 0, "Must have at least one dimension");
+		this.dims = dims.clone();
+		this.ordering = ordering;
+		strides = new int[dims.length];
+		long num = 1;
+		for (int d=dims.length; --d>=0;) {
+			Preconditions.checkArgument(dims[d] > 0, "Dimension sizes must be > 0");
+			strides[d] = (int)num;
+			num *= dims[d];
+			Preconditions.checkArgument(num <= Integer.MAX_VALUE, "Task space is too large: %s", num);
+		}
+		numTasks = (int)num;
+
+		if (ordering != Ordering.ROW_MAJOR) {
+			Preconditions.checkNotNull(tileSizes, "Must supply tile sizes for %s ordering", ordering);
+			Preconditions.checkArgument(tileSizes.length == dims.length, "Must supply a tile size for each dimension");
+			Preconditions.checkArgument(ordering != Ordering.HILBERT || dims.length == 2,
+					"Hilbert ordering is only supported for 2 dimensions");
+			this.tileSizes = tileSizes.clone();
+			tileCounts = new int[dims.length];
+			tileVolume = 1;
+			for (int d=0; d<dims.length; d++) {
+				Preconditions.checkArgument(tileSizes[d] > 0, "Tile sizes must be > 0");
+				this.tileSizes[d] = Integer.min(tileSizes[d], dims[d]);
+				tileCounts[d] = (dims[d] + this.tileSizes[d] - 1)/this.tileSizes[d];
+				tileVolume *= this.tileSizes[d];
+			}
+			if (ordering == Ordering.HILBERT) {
+				hilbertSide = 1;
+				while (hilbertSide < tileCounts[0] || hilbertSide < tileCounts[1])
+					hilbertSide *= 2;
+			}
+		}
+	}
+
+	public int getNumDimensions() {
+		return dims.length;
+	}
+
+	/**
+	 * @param dim
+	 * @return size of the given dimension
+	 */
+	public int getSize(int dim) {
+		return dims[dim];
+	}
+
+	/**
+	 * @return total number of tasks, the product of the dimension sizes
+	 */
+	public int getNumTasks() {
+		return numTasks;
+	}
+
+	public Ordering getOrdering() {
+		return ordering;
+	}
+
+	/**
+	 * @param index flat task index
+	 * @return coordinate along each dimension
+	 */
+	public int[] getCoordinates(int index) {
+		int[] coords = new int[dims.length];
+		getCoordinates(index, coords);
+		return coords;
+	}
+
+	/**
+	 * Decodes the given flat task index into the given array, to avoid allocation
+	 *
+	 * @param index flat task index
+	 * @param coords array to be filled in with the coordinate along each dimension
+	 */
+	public void getCoordinates(int index, int[] coords) {
+		Preconditions.checkElementIndex(index, numTasks);
+		for (int d=0; d<dims.length; d++) {
+			coords[d] = index / strides[d];
+			index -= coords[d]*strides[d];
+		}
+	}
+
+	/**
+	 * @param batch flat task indexes
+	 * @return coordinates of each task, indexed as [task][dimension]
+	 */
+	public int[][] getCoordinates(int[] batch) {
+		int[][] coords = new int[batch.length][];
+		for (int i=0; i<batch.length; i++)
+			coords[i] = getCoordinates(batch[i]);
+		return coords;
+	}
+
+	/**
+	 * @param coords coordinate along each dimension
+	 * @return flat task index
+	 */
+	public int getIndex(int... coords) {
+		Preconditions.checkArgument(coords.length == dims.length, "Expected %s coordinates", dims.length);
+		int index = 0;
+		for (int d=0; d<dims.length; d++) {
+			Preconditions.checkElementIndex(coords[d], dims[d]);
+			index += coords[d]*strides[d];
+		}
+		return index;
+	}
+
+	/**
+	 * @param index flat task index
+	 * @return identifier of the tile containing the given task (the flat index of the tile in the tile grid), or 0 if
+	 * the ordering isn't tiled
+	 */
+	public int getTile(int index) {
+		if (tileSizes == null)
+			return 0;
+		int tile = 0;
+		for (int d=0; d<dims.length; d++) {
+			int coord = index / strides[d];
+			index -= coord*strides[d];
+			tile = tile*tileCounts[d] + coord/tileSizes[d];
+		}
+		return tile;
+	}
+
+	/**
+	 * @param index flat task index
+	 * @return sort key which gives the dispatch order for this ordering policy: tiles in order, and tasks within each
+	 * tile in row-major order
+	 */
+	public long getOrderKey(int index) {
+		if (tileSizes == null)
+			return index;
+		int[] coords = getCoordinates(index);
+		long tileKey = 0;
+		long offset = 0;
+		for (int d=0; d<dims.length; d++) {
+			tileKey = tileKey*tileCounts[d] + coords[d]/tileSizes[d];
+			offset = offset*tileSizes[d] + coords[d] % tileSizes[d];
+		}
+		if (ordering == Ordering.HILBERT)
+			tileKey = hilbertIndex(hilbertSide, coords[0]/tileSizes[0], coords[1]/tileSizes[1]);
+		return tileKey*tileVolume + offset;
+	}
+
+	/**
+	 * @return maximum number of tasks in a tile, or 1 if the ordering isn't tiled
+	 */
+	public int getTileVolume() {
+		return tileSizes == null ? 1 : tileVolume;
+	}
+
+	/**
+	 * @param n side length of the curve, a power of 2
+	 * @param x
+	 * @param y
+	 * @return distance along the Hilbert curve of the given point
+	 */
+	static long hilbertIndex(int n, int x, int y) {
+		long d = 0;
+		for (int s=n/2; s>0; s/=2) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			d += (long)s * (long)s * ((3 * rx) ^ ry);
+			// rotate the quadrant
+			if (ry == 0) {
+				if (rx == 1) {
+					x = s-1 - x;
+					y = s-1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		for (int d=0; d<dims.length; d++) {
+			if (d > 0)
+				str.append("x");
+			str.append(dims[d]);
+		}
+		str.append(" ").append(ordering);
+		if (tileSizes != null) {
+			str.append(" tiles ");
+			for (int d=0; d<dims.length; d++) {
+				if (d > 0)
+					str.append("x");
+				str.append(tileSizes[d]);
+			}
+		}
+		return str.toString();
+	}
+
+}
@@ -0,0 +1,145 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Picks the number of calculation threads on a node by measuring task throughput of the first few batches at several
+ * concurrency levels. Each trial batch is calculated at the next level in round robin order, and once every level has
+ * been tried {@link #TRIAL_ROUNDS} times the level with the highest overall throughput (tasks per second) is kept for
+ * the rest of the run. This picks fewer threads than there are processors if tasks are memory or I/O bound.
+ * <br>
+ * Batches smaller than the level being tested can't keep that many threads busy, so they are calculated at the
+ * current best guess and not used as a trial.
+ *
+ * @author Kevin Milner
+ *
+ */
+class ThreadCountTuner {
+
+	static final int TRIAL_ROUNDS = 2;
+
+	private static final DecimalFormat rateDF = new DecimalFormat("0.00");
+
+	private int[] levels;
+	private int[] trialTasks;
+	private long[] trialMillis;
+	private int[] trialCounts;
+
+	private int nextLevel;
+	// level being tested by the current batch, or -1 if not a trial
+	private int currentTrial = -1;
+	private int chosen = -1;
+
+	/**
+	 * @param maxThreads maximum number of threads, e.g. from {@link Utils#getAvailableProcessors()}
+	 */
+	ThreadCountTuner(int maxThreads) {
+		Preconditions.checkArgument(maxThreads >= 1);
+		List<Integer> levels = new ArrayList<>();
+		// max, 3/4, 1/2, 1/4
+		for (int quarters=4; quarters>0; quarters--) {
+			int level = Integer.max(1, (int)Math.round(maxThreads*quarters/4d));
+			if (!levels.contains(level))
+				levels.add(level);
+		}
+		this.levels = new int[levels.size()];
+		for (int i=0; i<levels.size(); i++)
+			this.levels[i] = levels.get(i);
+		trialTasks = new int[this.levels.length];
+		trialMillis = new long[this.levels.length];
+		trialCounts = new int[this.levels.length];
+		if (this.levels.length == 1)
+			chosen = this.levels[0];
+	}
+
+	/**
+	 * @return true if a thread count has been chosen
+	 */
+	synchronized boolean isDone() {
+		return chosen > 0;
+	}
+
+	/**
+	 * @return thread count to use for the current batch
+	 */
+	synchronized int getNumThreads() {
+		if (chosen > 0)
+			return chosen;
+		if (currentTrial >= 0)
+			return levels[currentTrial];
+		return getBestLevel();
+	}
+
+	private int getBestLevel() {
+		int best = levels[0];
+		double bestRate = 0d;
+		for (int i=0; i<levels.length; i++) {
+			if (trialMillis[i] <= 0)
+				continue;
+			double rate = (double)trialTasks[i]/(double)trialMillis[i];
+			if (rate > bestRate) {
+				bestRate = rate;
+				best = levels[i];
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Must be called before each batch is calculated
+	 *
+	 * @param batchSize
+	 */
+	synchronized void batchStarting(int batchSize) {
+		currentTrial = -1;
+		if (chosen > 0)
+			return;
+		if (batchSize >= levels[nextLevel]) {
+			currentTrial = nextLevel;
+			nextLevel = (nextLevel + 1) % levels.length;
+		}
+	}
+
+	/**
+	 * Must be called after each batch is calculated
+	 *
+	 * @param batchSize
+	 * @param millis time taken to calculate the batch
+	 * @return true if this batch completed tuning
+	 */
+	synchronized boolean batchFinished(int batchSize, long millis) {
+		if (currentTrial < 0)
+			return false;
+		trialTasks[currentTrial] += batchSize;
+		trialMillis[currentTrial] += Long.max(1l, millis);
+		trialCounts[currentTrial]++;
+		currentTrial = -1;
+		for (int count : trialCounts)
+			if (count < TRIAL_ROUNDS)
+				return false;
+		chosen = getBestLevel();
+		return true;
+	}
+
+	/**
+	 * @return String representation of the throughput measured at each level
+	 */
+	synchronized String getTrialsString() {
+		StringBuilder str = new StringBuilder();
+		for (int i=0; i<levels.length; i++) {
+			if (i > 0)
+				str.append(", ");
+			str.append(levels[i]).append(" threads: ");
+			if (trialMillis[i] > 0)
+				str.append(rateDF.format(1000d*trialTasks[i]/trialMillis[i])).append(" tasks/s");
+			else
+				str.append("n/a");
+		}
+		return str.toString();
+	}
+
+}
@@ -0,0 +1,376 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.CalcBatch;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.Node;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.ParsedLog;
+
+/**
+ * Task throughput (tasks/s) over time for each rank and overall, computed in a single pass over the completed batches
+ * of a {@link ParsedLog}. The tasks in each batch are spread evenly over the time that the batch was running.
+ * <br>
+ * Also detects throughput regime changes: a sustained shift in overall throughput (e.g. filesystem contention), or a
+ * sustained shift in a single rank's throughput relative to the other ranks (e.g. thermal throttling on one node).
+ *
+ * @author Kevin Milner
+ *
+ */
+class ThroughputTimeSeries {
+
+	// regime changes must be at least this large a relative change...
+	private static final double MIN_REGIME_CHANGE = 0.25;
+	// ...significant to this many standard errors...
+	private static final double MIN_REGIME_T_STAT = 4d;
+	// ...and last at least this many windows on either side
+	private static final int MIN_REGIME_WINDOWS = 3;
+
+	private final long startMillis;
+	private final long windowMillis;
+	private final int numWindows;
+
+	private final Node[] nodes;
+	// tasks completed in each window, [node][window]
+	private final double[][] nodeTasks;
+	private final double[] totalTasks;
+	// time with a batch running in each window, used to exclude idle time from rank throughput, [node][window]
+	private final double[][] nodeBusyMillis;
+	// offset of the end of the last completed batch
+	private long endMillis;
+
+	ThroughputTimeSeries(ParsedLog log, long windowMillis) {
+		Preconditions.checkArgument(windowMillis > 0, "window must be > 0");
+		Preconditions.checkState(log.firstDate != null && log.prevDate != null, "Log is empty");
+		this.windowMillis = windowMillis;
+		this.startMillis = log.firstDate.getTime();
+		this.numWindows = (int)((log.prevDate.getTime() - startMillis)/windowMillis) + 1;
+
+		List<Node> nodeList = Lists.newArrayList(log.nodeBatches.keySet());
+		Collections.sort(nodeList, new Comparator<Node>() {
+
+			@Override
+			public int compare(Node o1, Node o2) {
+				return Integer.compare(o1.getProcessNum(), o2.getProcessNum());
+			}
+		});
+		nodes = nodeList.toArray(new Node[nodeList.size()]);
+		nodeTasks = new double[nodes.length][numWindows];
+		nodeBusyMillis = new double[nodes.length][numWindows];
+		totalTasks = new double[numWindows];
+
+		for (int n=0; n<nodes.length; n++) {
+			for (CalcBatch batch : log.nodeBatches.get(nodes[n])) {
+				if (!batch.isCompleted() || batch.getSize() == 0)
+					continue;
+				long start = batch.getStartDate().getTime() - startMillis;
+				long end = batch.getEndDate().getTime() - startMillis;
+				add(n, start, end, batch.getSize());
+			}
+		}
+	}
+
+	/**
+	 * Spreads the tasks of a single batch over each window which it overlaps
+	 */
+	private void add(int node, long start, long end, int size) {
+		endMillis = Long.max(endMillis, end);
+		int firstWindow = window(start);
+		int lastWindow = window(end);
+		if (firstWindow == lastWindow) {
+			nodeTasks[node][firstWindow] += size;
+			totalTasks[firstWindow] += size;
+			nodeBusyMillis[node][firstWindow] += end - start;
+			return;
+		}
+		double tasksPerMilli = (double)size/(double)(end - start);
+		for (int w=firstWindow; w<=lastWindow; w++) {
+			long overlapStart = Long.max(start, w*windowMillis);
+			long overlapEnd = Long.min(end, (w+1)*windowMillis);
+			double tasks = tasksPerMilli*(overlapEnd - overlapStart);
+			nodeTasks[node][w] += tasks;
+			totalTasks[w] += tasks;
+			nodeBusyMillis[node][w] += overlapEnd - overlapStart;
+		}
+	}
+
+	private int window(long millis) {
+		return (int)Long.max(0l, Long.min(numWindows-1, millis/windowMillis));
+	}
+
+	/**
+	 * @return overall task throughput in each window in tasks/s
+	 */
+	double[] getTotalRates() {
+		double[] rates = new double[numWindows];
+		for (int w=0; w<numWindows; w++)
+			rates[w] = 1000d*totalTasks[w]/getWindowDuration(w);
+		return rates;
+	}
+
+	/**
+	 * @param node
+	 * @return task throughput of the given node in each window in tasks/s
+	 */
+	double[] getNodeRates(int node) {
+		double[] rates = new double[numWindows];
+		for (int w=0; w<numWindows; w++)
+			rates[w] = 1000d*nodeTasks[node][w]/getWindowDuration(w);
+		return rates;
+	}
+
+	private double getWindowDuration(int window) {
+		// the last window is usually partial
+		if (window == numWindows-1)
+			return Math.max(1d, Math.min(windowMillis, (double)(endMillis - window*windowMillis)));
+		return windowMillis;
+	}
+
+	/**
+	 * A sustained change in throughput, either overall or for a single node relative to all nodes
+	 */
+	static class RegimeChange {
+		// null for overall throughput changes
+		final Node node;
+		// offset from the start of the log of the first window in the new regime
+		final long offsetMillis;
+		final double beforeRate;
+		final double afterRate;
+
+		RegimeChange(Node node, long offsetMillis, double beforeRate, double afterRate) {
+			this.node = node;
+			this.offsetMillis = offsetMillis;
+			this.beforeRate = beforeRate;
+			this.afterRate = afterRate;
+		}
+
+		double getRatio() {
+			return afterRate/beforeRate;
+		}
+
+		@Override
+		public String toString() {
+			return (node == null ? "Overall" : node.toString())+" at +"+Utils.smartTimePrint(offsetMillis)+": "
+					+(getRatio() < 1d ? "SLOWDOWN" : "speedup")+" "+Utils.smartTimePrint(1000d/beforeRate)
+					+" -> "+Utils.smartTimePrint(1000d/afterRate)+" per task";
+		}
+	}
+
+	/**
+	 * Detects throughput regime changes. Overall changes are detected on total throughput, and node changes are
+	 * detected on throughput relative to the median node in each window, so that changes affecting every node (e.g.
+	 * the job winding down) are only reported once.
+	 *
+	 * @return list of regime changes
+	 */
+	List<RegimeChange> detectRegimeChanges() {
+		List<RegimeChange> changes = Lists.newArrayList();
+
+		// only use full windows when nodes were almost all running batches for overall throughput, to avoid flagging
+		// the ramp up and the tail
+		double[] totalRates = getTotalRates();
+		boolean[] allBusy = new boolean[numWindows];
+		for (int w=0; w<numWindows-1; w++) {
+			double busy = 0d;
+			for (int n=0; n<nodes.length; n++)
+				busy += nodeBusyMillis[n][w];
+			allBusy[w] = busy >= 0.9*nodes.length*windowMillis;
+		}
+		RegimeChange overall = detectChange(null, totalRates, allBusy, totalRates);
+		if (overall != null)
+			changes.add(overall);
+
+		// per node, rate while busy relative to the median node
+		double[][] busyRates = new double[nodes.length][numWindows];
+		boolean[][] valid = new boolean[nodes.length][numWindows];
+		double[] medians = new double[numWindows];
+		double[] scratch = new double[nodes.length];
+		for (int w=0; w<numWindows; w++) {
+			int num = 0;
+			for (int n=0; n<nodes.length; n++) {
+				// require the node to be busy for most of the window, otherwise the rate is too noisy
+				valid[n][w] = nodeBusyMillis[n][w] >= 0.5*windowMillis && w < numWindows-1;
+				if (valid[n][w]) {
+					busyRates[n][w] = 1000d*nodeTasks[n][w]/nodeBusyMillis[n][w];
+					scratch[num++] = busyRates[n][w];
+				}
+			}
+			if (num > 0) {
+				Arrays.sort(scratch, 0, num);
+				medians[w] = scratch[num/2];
+			}
+		}
+		double[] relative = new double[numWindows];
+		for (int n=0; n<nodes.length; n++) {
+			for (int w=0; w<numWindows; w++) {
+				if (medians[w] > 0)
+					relative[w] = busyRates[n][w]/medians[w];
+				else
+					valid[n][w] = false;
+			}
+			RegimeChange change = detectChange(nodes[n], relative, valid[n], busyRates[n]);
+			if (change != null)
+				changes.add(change);
+		}
+		return changes;
+	}
+
+	/**
+	 * Finds the single split of the valid values which best separates them into two regimes with different means
+	 *
+	 * @param node
+	 * @param values values to detect the change on
+	 * @param valid which values to include
+	 * @param rates rates in tasks/s to report for each regime
+	 * @return regime change, or null if no significant change
+	 */
+	private RegimeChange detectChange(Node node, double[] values, boolean[] valid, double[] rates) {
+		int num = 0;
+		for (boolean v : valid)
+			if (v)
+				num++;
+		if (num < 2*MIN_REGIME_WINDOWS)
+			return null;
+		double[] vals = new double[num];
+		int[] windows = new int[num];
+		int index = 0;
+		for (int w=0; w<values.length; w++) {
+			if (valid[w]) {
+				vals[index] = values[w];
+				windows[index++] = w;
+			}
+		}
+		// prefix sums for O(1) segment means/variances
+		double[] sum = new double[num+1];
+		double[] sumSq = new double[num+1];
+		for (int i=0; i<num; i++) {
+			sum[i+1] = sum[i] + vals[i];
+			sumSq[i+1] = sumSq[i] + vals[i]*vals[i];
+		}
+		double bestT = 0d;
+		int bestSplit = -1;
+		for (int split=MIN_REGIME_WINDOWS; split<=num-MIN_REGIME_WINDOWS; split++) {
+			int n1 = split;
+			int n2 = num - split;
+			double mean1 = sum[split]/n1;
+			double mean2 = (sum[num]-sum[split])/n2;
+			double var1 = Math.max(0d, sumSq[split]/n1 - mean1*mean1);
+			double var2 = Math.max(0d, (sumSq[num]-sumSq[split])/n2 - mean2*mean2);
+			double se = Math.sqrt(var1/n1 + var2/n2);
+			double t = se > 0 ? Math.abs(mean2 - mean1)/se : 0d;
+			if (t > bestT) {
+				bestT = t;
+				bestSplit = split;
+			}
+		}
+		if (bestSplit < 0 || bestT < MIN_REGIME_T_STAT)
+			return null;
+		double mean1 = sum[bestSplit]/bestSplit;
+		double mean2 = (sum[num]-sum[bestSplit])/(num-bestSplit);
+		if (mean1 <= 0 || Math.abs(mean2/mean1 - 1d) < MIN_REGIME_CHANGE)
+			return null;
+		double rate1 = 0d, rate2 = 0d;
+		for (int i=0; i<num; i++) {
+			if (i < bestSplit)
+				rate1 += rates[windows[i]];
+			else
+				rate2 += rates[windows[i]];
+		}
+		rate1 /= bestSplit;
+		rate2 /= (num-bestSplit);
+		return new RegimeChange(node, windows[bestSplit]*windowMillis, rate1, rate2);
+	}
+
+	/**
+	 * Writes the time series in long CSV format: one row per window for overall throughput (rank "all") and each rank
+	 */
+	void writeCSV(File file) throws IOException {
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+			out.println("Window Start Offset (s),Window Start Time,Rank,Host,Tasks Completed,Tasks/s");
+			double[] totalRates = getTotalRates();
+			for (int w=0; w<numWindows; w++)
+				out.println(windowPrefix(w)+",all,,"+(float)totalTasks[w]+","+(float)totalRates[w]);
+			for (int n=0; n<nodes.length; n++) {
+				double[] rates = getNodeRates(n);
+				String host = nodes[n].getHostName() == null ? "" : nodes[n].getHostName();
+				for (int w=0; w<numWindows; w++)
+					out.println(windowPrefix(w)+","+nodes[n].getProcessNum()+","+host
+						+","+(float)nodeTasks[n][w]+","+(float)rates[w]);
+			}
+		}
+	}
+
+	private String windowPrefix(int window) {
+		long offset = window*windowMillis;
+		String time;
+		synchronized (MPJTaskCalculator.df) {
+			time = MPJTaskCalculator.df.format(new Date(startMillis + offset));
+		}
+		return (offset/1000d)+","+time;
+	}
+
+	/**
+	 * Writes the time series and any detected regime changes as JSON
+	 */
+	void writeJSON(File file, List<RegimeChange> changes) throws IOException {
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+			out.println("{");
+			out.println("  \"windowSeconds\": "+(windowMillis/1000d)+",");
+			out.println("  \"numWindows\": "+numWindows+",");
+			String startTime;
+			synchronized (MPJTaskCalculator.df) {
+				startTime = MPJTaskCalculator.df.format(new Date(startMillis));
+			}
+			out.println("  \"startTime\": \""+startTime+"\",");
+			out.println("  \"overall\": {\"tasks\": "+jsonArray(totalTasks)
+				+", \"tasksPerSec\": "+jsonArray(getTotalRates())+"},");
+			out.println("  \"ranks\": [");
+			for (int n=0; n<nodes.length; n++) {
+				out.print("    {\"rank\": "+nodes[n].getProcessNum()+", \"host\": "+jsonString(nodes[n].getHostName())
+					+", \"tasks\": "+jsonArray(nodeTasks[n])+", \"tasksPerSec\": "+jsonArray(getNodeRates(n))+"}");
+				out.println(n < nodes.length-1 ? "," : "");
+			}
+			out.println("  ],");
+			out.println("  \"regimeChanges\": [");
+			for (int i=0; i<changes.size(); i++) {
+				RegimeChange change = changes.get(i);
+				out.print("    {\"rank\": "+(change.node == null ? "null" : change.node.getProcessNum())
+					+", \"host\": "+jsonString(change.node == null ? null : change.node.getHostName())
+					+", \"offsetSeconds\": "+(change.offsetMillis/1000d)
+					+", \"beforeTasksPerSec\": "+(float)change.beforeRate
+					+", \"afterTasksPerSec\": "+(float)change.afterRate+"}");
+				out.println(i < changes.size()-1 ? "," : "");
+			}
+			out.println("  ]");
+			out.println("}");
+		}
+	}
+
+	private static String jsonArray(double[] vals) {
+		StringBuilder str = new StringBuilder("[");
+		for (int i=0; i<vals.length; i++) {
+			if (i > 0)
+				str.append(",");
+			str.append((float)vals[i]);
+		}
+		return str.append("]").toString();
+	}
+
+	private static String jsonString(String str) {
+		if (str == null)
+			return "null";
+		return "\""+str.replace("\\", "\\\\").replace("\"", "\\\"")+"\"";
+	}
+
+}
@@ -1,9 +1,19 @@
 package edu.usc.kmilner.mpj.taskDispatch;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.Collator;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.base.Joiner;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 
 class Utils {
 	
@@ -32,6 +42,212 @@ class Utils {
 		return split[split.length-1];
 	}
 	
+	/**
+	 * Returns the number of processors available to this JVM, additionally limited by any cgroup CPU quota (e.g. in a
+	 * Slurm allocation), which older JVMs don't account for.
+	 * 
+	 * @return number of available processors, at least 1
+	 */
+	static int getAvailableProcessors() {
+		int procs = Runtime.getRuntime().availableProcessors();
+		double quota = getCgroupCPUQuota();
+		if (quota > 0)
+			procs = Integer.min(procs, Integer.max(1, (int)Math.ceil(quota)));
+		return procs;
+	}
+	
+	/**
+	 * @return cgroup CPU quota in CPUs (cgroup v2 or v1) for this process's own cgroup, or -1 if not limited or unknown
+	 */
+	static double getCgroupCPUQuota() {
+		List<String> procCgroup;
+		try {
+			procCgroup = Files.readLines(new File("/proc/self/cgroup"), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			procCgroup = Collections.emptyList();
+		}
+		return getCgroupCPUQuota(new File("/sys/fs/cgroup"), procCgroup);
+	}
+	
+	/**
+	 * Resolves this process's cgroup from the contents of /proc/self/cgroup, and returns the smallest CPU quota set
+	 * on that cgroup or any of its ancestors (e.g. Slurm sets the quota on the job cgroup, but processes run in a
+	 * step cgroup below it).
+	 * 
+	 * @param root cgroup file system mount point, usually /sys/fs/cgroup
+	 * @param procCgroup lines of /proc/self/cgroup
+	 * @return CPU quota in CPUs, or -1 if not limited or unknown
+	 */
+	static double getCgroupCPUQuota(File root, List<String> procCgroup) {
+		String v2Path = null;
+		String v1Path = null;
+		String v1Controllers = null;
+		for (String line : procCgroup) {
+			// "<hierarchy-ID>:<controller-list>:<path>", v2 is "0::<path>"
+			String[] split = line.trim().split(":", 3);
+			if (split.length < 3)
+				continue;
+			if (split[0].equals("0") && split[1].isEmpty())
+				v2Path = split[2];
+			for (String controller : split[1].split(","))
+				if (controller.equals("cpu")) {
+					v1Path = split[2];
+					v1Controllers = split[1];
+				}
+		}
+		try {
+			if (v1Path != null) {
+				// cgroup v1 (possibly a hybrid hierarchy), usually mounted at cpu or cpu,cpuacct
+				File mount = new File(root, "cpu");
+				if (!mount.exists())
+					mount = new File(root, v1Controllers);
+				double quota = -1;
+				for (File dir : getCgroupHierarchy(mount, v1Path)) {
+					File quotaFile = new File(dir, "cpu.cfs_quota_us");
+					File periodFile = new File(dir, "cpu.cfs_period_us");
+					if (!quotaFile.exists() || !periodFile.exists())
+						continue;
+					double dirQuota = Double.parseDouble(Files.asCharSource(quotaFile, StandardCharsets.UTF_8).read().trim());
+					double period = Double.parseDouble(Files.asCharSource(periodFile, StandardCharsets.UTF_8).read().trim());
+					if (dirQuota > 0 && period > 0)
+						quota = minQuota(quota, dirQuota/period);
+				}
+				return quota;
+			}
+			// cgroup v2, or no /proc/self/cgroup in which case only the root is checked
+			double quota = -1;
+			for (File dir : getCgroupHierarchy(root, v2Path == null ? "/" : v2Path)) {
+				// "<quota> <period>" or "max <period>"
+				File cpuMax = new File(dir, "cpu.max");
+				if (!cpuMax.exists())
+					continue;
+				String[] split = Files.asCharSource(cpuMax, StandardCharsets.UTF_8).read().trim().split("\\s+");
+				if (split.length == 2 && !split[0].equals("max"))
+					quota = minQuota(quota, Double.parseDouble(split[0])/Double.parseDouble(split[1]));
+			}
+			return quota;
+		} catch (IOException | NumberFormatException e) {
+			// unknown
+		}
+		return -1;
+	}
+	
+	private static double minQuota(double quota, double newQuota) {
+		return quota < 0 ? newQuota : Math.min(quota, newQuota);
+	}
+	
+	/**
+	 * @param mount cgroup hierarchy mount point
+	 * @param path cgroup path relative to the mount point
+	 * @return the mount point and each directory down to the given cgroup. If the cgroup doesn't exist under the
+	 * mount point (e.g. in a container where only our own cgroup is mounted), only the mount point is returned.
+	 */
+	private static List<File> getCgroupHierarchy(File mount, String path) {
+		List<File> dirs = new ArrayList<>();
+		dirs.add(mount);
+		File dir = mount;
+		for (String name : path.split("/")) {
+			if (name.isEmpty())
+				continue;
+			dir = new File(dir, name);
+			dirs.add(dir);
+		}
+		if (!dir.exists())
+			return dirs.subList(0, 1);
+		return dirs;
+	}
+	
+	/**
+	 * Pins the calling thread to the given CPU with taskset. Only works on Linux (3.17+) with taskset installed.
+	 * 
+	 * @param cpu
+	 * @return true if successful
+	 */
+	static boolean pinCurrentThread(int cpu) {
+		try {
+			// resolves to /proc/<pid>/task/<tid>
+			String tid = new File("/proc/thread-self").getCanonicalFile().getName();
+			return taskset("-p", "-c", cpu+"", tid);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Restricts every current thread of this process to the given CPUs with taskset. Threads created afterwards
+	 * inherit the affinity of the thread which creates them. Only works on Linux with taskset installed.
+	 * 
+	 * @param cpus
+	 * @return true if successful
+	 */
+	static boolean restrictProcessAffinity(List<Integer> cpus) {
+		try {
+			// resolves to /proc/<pid>
+			String pid = new File("/proc/self").getCanonicalFile().getName();
+			return taskset("-a", "-p", "-c", Joiner.on(",").join(cpus), pid);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	private static boolean taskset(String... args) throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add("taskset");
+		command.addAll(Arrays.asList(args));
+		Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+		ByteStreams.exhaust(p.getInputStream());
+		try {
+			return p.waitFor() == 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * @return CPUs which this process is allowed to run on (Linux only), or null if unknown
+	 */
+	static List<Integer> getAllowedCPUs() {
+		try {
+			for (String line : Files.readLines(new File("/proc/self/status"), StandardCharsets.UTF_8))
+				if (line.startsWith("Cpus_allowed_list:"))
+					return parseCPUList(line.substring(line.indexOf(':')+1));
+		} catch (IOException | NumberFormatException e) {
+			// unknown
+		}
+		return null;
+	}
+	
+	/**
+	 * @param list CPU list in the Linux format, e.g. "0-3,8,10-11"
+	 * @return CPUs in the list
+	 */
+	static List<Integer> parseCPUList(String list) {
+		List<Integer> cpus = new ArrayList<>();
+		for (String range : list.trim().split(",")) {
+			range = range.trim();
+			if (range.isEmpty())
+				continue;
+			int dash = range.indexOf('-');
+			if (dash < 0) {
+				cpus.add(Integer.parseInt(range));
+			} else {
+				int end = Integer.parseInt(range.substring(dash+1));
+				for (int cpu=Integer.parseInt(range.substring(0, dash)); cpu<=end; cpu++)
+					cpus.add(cpu);
+			}
+		}
+		return cpus;
+	}
+	
+	/**
+	 * @param track latencies in milliseconds
+	 * @return summary of the given latencies, e.g. "n=10, avg=1.5 ms, max=3 ms"
+	 */
+	static String latencySummary(MinMaxAveTracker track) {
+		return "n="+track.getNum()+", avg="+smartTimePrint(track.getAverage())+", max="+smartTimePrint(track.getMax());
+	}
+	
 	/**
 	 * File name comparator utility
 	 * @author kevin
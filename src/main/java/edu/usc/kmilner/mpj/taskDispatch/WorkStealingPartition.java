@@ -0,0 +1,448 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+
+import mpi.MPI;
+import mpi.Request;
+import mpi.Status;
+
+/**
+ * Static pre-partitioned dispatching with end phase work stealing. Each participating process deterministically
+ * computes its own contiguous share of the tasks with no communication, and calculates it in chunks. Once a process
+ * runs out, it asks the other participants in turn to give it half of their unstarted tasks, and is done once none
+ * have any left. Balanced jobs need no messages at all other than the final steal attempts.
+ * <br>
+ * A participant which is itself in the middle of its first sweep of steal attempts has no tasks to give, but may be
+ * about to receive some. Thieves repeat their sweep until none of the participants that they asked were in that
+ * state. Participants which have already completed an empty sweep don't count, otherwise two idle participants would
+ * keep each other retrying forever.
+ * <br>
+ * Steal requests are answered by a responder thread on each process. Message protocol (all ints):
+ * <ul>
+ * <li>thief to victim, {@link MPJTaskCalculator#TAG_STEAL_REQUEST}: thief rank, or -1 once the sender will send no
+ * more steal requests. The responder stops once every other process has sent -1.</li>
+ * <li>victim to thief, {@link MPJTaskCalculator#TAG_STEAL_LENGTH}: 2 ints, the number of tasks given (possibly zero),
+ * and 1 if the victim is in its first sweep of steal attempts, else 0</li>
+ * <li>victim to thief, {@link MPJTaskCalculator#TAG_STEAL_BATCH}: the task indexes, if any</li>
+ * </ul>
+ * As in {@link MPJTaskCalculator}, MPJ calls from the responder and the calculation thread are never made
+ * concurrently: every call is made with {@link #commLock} held, and only non-blocking calls are used so that the
+ * lock is never held while waiting for another process.
+ *
+ * @author Kevin Milner
+ *
+ */
+class WorkStealingPartition {
+
+	private static final boolean D = true;
+
+	// how long to sleep between polls of outstanding messages
+	private static final long POLL_MILLIS = 1;
+	// how long the responder sleeps between polls for steal requests
+	private static final long RESPONDER_POLL_MILLIS = 10;
+	// how long to wait before repeating a sweep of steal attempts
+	private static final long RETRY_MILLIS = 50;
+
+	// steal states, see steal()
+	private static final int NOT_STEALING = 0;
+	private static final int FIRST_SWEEP = 1;
+	private static final int RETRYING = 2;
+
+	private int rank;
+	private int size;
+	private int[] participants;
+	private boolean participant;
+	private boolean noMPJ;
+
+	// local tasks, [head, tail) are unstarted. chunks are taken from the head and steals from the tail
+	private int[] tasks;
+	private int head;
+	private int tail;
+
+	private Thread responder;
+	// guards every MPJ call, see class docs
+	private final ReentrantLock commLock = new ReentrantLock();
+	private volatile int stealState = NOT_STEALING;
+
+	private int numOwned;
+	private int numStolen;
+	private int numStealRequests;
+	private int numGivenAway;
+
+	/**
+	 * @param rank rank of this process
+	 * @param size number of processes
+	 * @param excludeRoot if true, the process with rank 0 doesn't calculate any tasks
+	 * @param startIndex
+	 * @param endIndex
+	 * @param doneIndexes indexes to skip, must be identical on every process
+	 * @param noMPJ if true, MPJ is disabled and this must be the only process
+	 */
+	WorkStealingPartition(int rank, int size, boolean excludeRoot, int startIndex, int endIndex,
+			Collection<Integer> doneIndexes, boolean noMPJ) {
+		Preconditions.checkArgument(!noMPJ || size == 1, "Must be a single process if MPJ is disabled");
+		this.rank = rank;
+		this.size = size;
+		this.noMPJ = noMPJ;
+
+		int first = excludeRoot ? 1 : 0;
+		participants = new int[size - first];
+		int myIndex = -1;
+		for (int i=0; i<participants.length; i++) {
+			participants[i] = first + i;
+			if (participants[i] == rank)
+				myIndex = i;
+		}
+		participant = myIndex >= 0;
+
+		// this must be identical on every process
+		int[] done = getSortedDoneIndexes(doneIndexes, startIndex, endIndex);
+
+		if (participant)
+			tasks = getShare(myIndex, participants.length, startIndex, endIndex, done);
+		else
+			tasks = new int[0];
+		head = 0;
+		tail = tasks.length;
+		numOwned = tasks.length;
+		debug("static partition: "+tasks.length+"/"+(endIndex - startIndex - done.length)
+				+" tasks assigned to this process");
+	}
+
+	/**
+	 * @param doneIndexes
+	 * @param startIndex
+	 * @param endIndex
+	 * @return sorted, distinct done indexes within [startIndex, endIndex)
+	 */
+	static int[] getSortedDoneIndexes(Collection<Integer> doneIndexes, int startIndex, int endIndex) {
+		if (doneIndexes == null || doneIndexes.isEmpty())
+			return new int[0];
+		int[] done = new int[doneIndexes.size()];
+		int num = 0;
+		for (int index : doneIndexes)
+			if (index >= startIndex && index < endIndex)
+				done[num++] = index;
+		Arrays.sort(done, 0, num);
+		// remove duplicates
+		int distinct = 0;
+		for (int i=0; i<num; i++)
+			if (distinct == 0 || done[i] != done[distinct-1])
+				done[distinct++] = done[i];
+		return Arrays.copyOf(done, distinct);
+	}
+
+	/**
+	 * Computes the contiguous share of the remaining tasks for the given participant, without materializing the full
+	 * list of remaining tasks.
+	 *
+	 * @param participantIndex
+	 * @param numParticipants
+	 * @param startIndex
+	 * @param endIndex
+	 * @param done sorted, distinct done indexes within [startIndex, endIndex)
+	 * @return task indexes for the given participant
+	 */
+	static int[] getShare(int participantIndex, int numParticipants, int startIndex, int endIndex, int[] done) {
+		Preconditions.checkArgument(participantIndex >= 0 && participantIndex < numParticipants);
+		long num = endIndex - startIndex - done.length;
+		int shareStart = (int)(num*participantIndex/numParticipants);
+		int shareEnd = (int)(num*(participantIndex+1)/numParticipants);
+		int[] share = new int[shareEnd - shareStart];
+		if (share.length == 0)
+			return share;
+		// number of done indexes before the first task in our share: the largest d such that
+		// done[d-1] - startIndex - (d-1) <= shareStart, i.e. there are at most shareStart remaining tasks before it
+		int lo = 0;
+		int hi = done.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (done[mid] - startIndex - mid <= shareStart)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		int d = lo;
+		int index = startIndex + shareStart + d;
+		for (int i=0; i<share.length; i++) {
+			while (d < done.length && done[d] == index) {
+				index++;
+				d++;
+			}
+			share[i] = index++;
+		}
+		return share;
+	}
+
+	/**
+	 * Starts the thread which responds to steal requests from other processes
+	 */
+	void start() {
+		if (noMPJ)
+			return;
+		responder = new Thread("WorkStealingResponder") {
+
+			@Override
+			public void run() {
+				try {
+					respond();
+				} catch (Throwable t) {
+					MPJTaskCalculator.abortAndExit(t);
+				}
+			}
+		};
+		responder.setDaemon(true);
+		responder.start();
+	}
+
+	private void respond() throws InterruptedException {
+		int[] buf = new int[1];
+		// replies which have been posted but may not have been received yet
+		List<Request> pendingSends = new ArrayList<>();
+		int numFinished = 0;
+		while (numFinished < size - 1) {
+			Status status;
+			commLock.lock();
+			try {
+				status = MPI.COMM_WORLD.Iprobe(MPI.ANY_SOURCE, MPJTaskCalculator.TAG_STEAL_REQUEST);
+				if (status != null) {
+					MPI.COMM_WORLD.Recv(buf, 0, 1, MPI.INT, status.source, MPJTaskCalculator.TAG_STEAL_REQUEST);
+					int thief = buf[0];
+					if (thief < 0) {
+						numFinished++;
+					} else {
+						int stealing = stealState == FIRST_SWEEP ? 1 : 0;
+						int[] given = giveAway();
+						// each reply has its own buffers as they complete later
+						int[] length_buf = { given.length, stealing };
+						pendingSends.add(MPI.COMM_WORLD.Isend(length_buf, 0, 2, MPI.INT, thief,
+								MPJTaskCalculator.TAG_STEAL_LENGTH));
+						if (given.length > 0)
+							pendingSends.add(MPI.COMM_WORLD.Isend(given, 0, given.length, MPI.INT, thief,
+									MPJTaskCalculator.TAG_STEAL_BATCH));
+						debug("gave "+given.length+" tasks to process "+thief);
+					}
+				}
+				// release any replies which have completed
+				for (int i=pendingSends.size(); --i>=0;)
+					if (pendingSends.get(i).Test() != null)
+						pendingSends.remove(i);
+			} finally {
+				commLock.unlock();
+			}
+			if (status == null)
+				Thread.sleep(RESPONDER_POLL_MILLIS);
+		}
+		for (Request send : pendingSends)
+			waitFor(send);
+	}
+
+	/**
+	 * Waits for the given request to complete, without holding {@link #commLock} in between polls
+	 *
+	 * @param request
+	 * @throws InterruptedException
+	 */
+	private void waitFor(Request request) throws InterruptedException {
+		while (true) {
+			commLock.lock();
+			try {
+				if (request.Test() != null)
+					return;
+			} finally {
+				commLock.unlock();
+			}
+			Thread.sleep(POLL_MILLIS);
+		}
+	}
+
+	/**
+	 * @return half (rounded up) of the unstarted tasks, removed from the tail
+	 */
+	private synchronized int[] giveAway() {
+		int num = (tail - head + 1)/2;
+		int[] given = Arrays.copyOfRange(tasks, tail - num, tail);
+		tail -= num;
+		numGivenAway += num;
+		return given;
+	}
+
+	private synchronized int[] takeChunk(int minPerChunk, int maxPerChunk, int exactChunk) {
+		int left = tail - head;
+		if (left == 0)
+			return new int[0];
+		// take about half of what's left (within the bounds) so that the rest can be stolen
+		int num = DispatcherThread.calcBatchSize(left, 2, minPerChunk, maxPerChunk, exactChunk);
+		int[] chunk = Arrays.copyOfRange(tasks, head, head + num);
+		head += num;
+		return chunk;
+	}
+
+	private synchronized void setTasks(int[] stolen) {
+		Preconditions.checkState(head == tail);
+		tasks = stolen;
+		head = 0;
+		tail = stolen.length;
+	}
+
+	/**
+	 * Returns the next chunk of tasks to calculate, stealing from other processes if this process has run out.
+	 *
+	 * @param minPerChunk
+	 * @param maxPerChunk
+	 * @param exactChunk
+	 * @return next chunk, or an empty array if no tasks are left on any process
+	 * @throws InterruptedException
+	 */
+	int[] nextChunk(int minPerChunk, int maxPerChunk, int exactChunk) throws InterruptedException {
+		if (!participant)
+			// e.g. rank 0 with --root-dispatch-only, which never calculates or steals anything
+			return new int[0];
+		int[] chunk = takeChunk(minPerChunk, maxPerChunk, exactChunk);
+		if (chunk.length > 0 || noMPJ)
+			return chunk;
+		int[] stolen = steal();
+		if (stolen.length == 0)
+			return stolen;
+		setTasks(stolen);
+		return takeChunk(minPerChunk, maxPerChunk, exactChunk);
+	}
+
+	/**
+	 * Asks each other participant in turn (starting after this process) for tasks, repeating until some are stolen or
+	 * none of the participants asked were in their first sweep of steal attempts
+	 *
+	 * @return stolen tasks, or an empty array if none of them had any left
+	 * @throws InterruptedException
+	 */
+	private int[] steal() throws InterruptedException {
+		int myIndex = Arrays.binarySearch(participants, rank);
+		Preconditions.checkState(myIndex >= 0, "Only participants can steal");
+		stealState = FIRST_SWEEP;
+		try {
+			while (true) {
+				boolean anyStealing = false;
+				for (int i=1; i<=participants.length; i++) {
+					int victim = participants[(myIndex + i) % participants.length];
+					if (victim == rank)
+						continue;
+					numStealRequests++;
+					StealReply reply = requestSteal(victim);
+					if (reply.tasks.length > 0) {
+						numStolen += reply.tasks.length;
+						debug("stole "+reply.tasks.length+" tasks from process "+victim);
+						return reply.tasks;
+					}
+					anyStealing = anyStealing || reply.victimStealing;
+				}
+				if (!anyStealing)
+					return new int[0];
+				// a victim may be about to receive tasks that we could steal in turn
+				if (stealState == FIRST_SWEEP)
+					debug("another process is still stealing, will retry");
+				stealState = RETRYING;
+				Thread.sleep(RETRY_MILLIS);
+			}
+		} finally {
+			stealState = NOT_STEALING;
+		}
+	}
+
+	/**
+	 * Reply to a steal request
+	 */
+	static class StealReply {
+		final int[] tasks;
+		final boolean victimStealing;
+
+		/**
+		 * @param tasks tasks given, possibly none
+		 * @param victimStealing true if the victim was in its first sweep of steal attempts
+		 */
+		StealReply(int[] tasks, boolean victimStealing) {
+			this.tasks = tasks;
+			this.victimStealing = victimStealing;
+		}
+	}
+
+	/**
+	 * Asks the given process for tasks
+	 *
+	 * @param victim
+	 * @return reply from the given process
+	 * @throws InterruptedException
+	 */
+	StealReply requestSteal(int victim) throws InterruptedException {
+		Request send;
+		Request lengthRecv;
+		int[] length_buf = new int[2];
+		commLock.lock();
+		try {
+			send = MPI.COMM_WORLD.Isend(new int[] { rank }, 0, 1, MPI.INT, victim,
+					MPJTaskCalculator.TAG_STEAL_REQUEST);
+			lengthRecv = MPI.COMM_WORLD.Irecv(length_buf, 0, 2, MPI.INT, victim,
+					MPJTaskCalculator.TAG_STEAL_LENGTH);
+		} finally {
+			commLock.unlock();
+		}
+		waitFor(lengthRecv);
+		waitFor(send);
+		int[] stolen = new int[length_buf[0]];
+		if (stolen.length > 0) {
+			Request batchRecv;
+			commLock.lock();
+			try {
+				batchRecv = MPI.COMM_WORLD.Irecv(stolen, 0, stolen.length, MPI.INT, victim,
+						MPJTaskCalculator.TAG_STEAL_BATCH);
+			} finally {
+				commLock.unlock();
+			}
+			waitFor(batchRecv);
+		}
+		return new StealReply(stolen, length_buf[1] != 0);
+	}
+
+	/**
+	 * Waits for every process to finish stealing, then stops the responder thread. Must be called by every process
+	 * once {@link #nextChunk(int, int, int)} returns an empty array.
+	 *
+	 * @throws InterruptedException
+	 */
+	void finish() throws InterruptedException {
+		if (responder != null) {
+			// tell every other process that we won't send any more steal requests. messages between two processes
+			// arrive in order, so this arrives after our last steal request
+			List<Request> sends = new ArrayList<>();
+			commLock.lock();
+			try {
+				for (int other=0; other<size; other++)
+					if (other != rank)
+						sends.add(MPI.COMM_WORLD.Isend(new int[] { -1 }, 0, 1, MPI.INT, other,
+								MPJTaskCalculator.TAG_STEAL_REQUEST));
+			} finally {
+				commLock.unlock();
+			}
+			for (Request send : sends)
+				waitFor(send);
+			// the responder stops once every other process has done the same
+			responder.join();
+		}
+		debug("static partition: "+numOwned+" tasks assigned, stole "+numStolen+" in "+numStealRequests
+				+" requests, gave away "+numGivenAway);
+	}
+
+	private void debug(String message) {
+		if (!D)
+			return;
+
+		System.out.println("["+MPJTaskCalculator.df.format(new Date())+" WorkStealing "+rank+"]: "+message);
+	}
+
+}
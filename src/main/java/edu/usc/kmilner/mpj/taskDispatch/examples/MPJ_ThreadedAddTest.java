@@ -2,9 +2,9 @@ package edu.usc.kmilner.mpj.taskDispatch.examples;
 
 import java.util.ArrayList;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
@@ -19,20 +19,30 @@ import edu.usc.kmilner.mpj.taskDispatch.MPJTaskCalculator;
  */
 public class MPJ_ThreadedAddTest extends MPJ_AddTest {
 	
-	private ExecutorService exec;
+	private ThreadPoolExecutor exec;
 
 	public MPJ_ThreadedAddTest(CommandLine cmd) {
 		super(cmd);
 		
-		// uses parsed --num-threads command line argument,
-		// or Runtime.getRuntime().availableProcessors() if omitted
-		exec = Executors.newFixedThreadPool(getNumThreads());
+		// uses parsed --threads command line argument,
+		// or the number of available processors if omitted
+		exec = (ThreadPoolExecutor)Executors.newFixedThreadPool(getNumThreads());
 	}
 
 	@Override
 	protected void calculateBatch(int[] batch) throws Exception {
 		// this does the actual calculation for a batch.
 		
+		// the thread count can change between batches (e.g. with --threads auto), so resize the pool each batch
+		int threads = getNumThreads();
+		if (threads > exec.getMaximumPoolSize()) {
+			exec.setMaximumPoolSize(threads);
+			exec.setCorePoolSize(threads);
+		} else if (threads < exec.getMaximumPoolSize()) {
+			exec.setCorePoolSize(threads);
+			exec.setMaximumPoolSize(threads);
+		}
+		
 		ArrayList<Future<Double>> futures = new ArrayList<>();
 		
 		for (int i=0; i<batch.length; i++) {
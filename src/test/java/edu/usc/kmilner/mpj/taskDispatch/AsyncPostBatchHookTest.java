@@ -0,0 +1,84 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class AsyncPostBatchHookTest {
+
+	private static class LatchedHook extends AsyncPostBatchHook {
+
+		private CountDownLatch release = new CountDownLatch(1);
+
+		public LatchedHook(int threads, int maxQueuedBatches) {
+			super(threads, maxQueuedBatches);
+		}
+
+		@Override
+		protected void batchProcessedAsync(int[] batch, int processIndex) {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw Utils.asRuntimeException(e);
+			}
+			if (batch.length == 0)
+				throw new IllegalArgumentException("empty batch");
+		}
+	}
+
+	@Test
+	public void testBoundedQueueBlocks() throws InterruptedException {
+		final LatchedHook hook = new LatchedHook(1, 2);
+		// one running, two queued
+		for (int i=0; i<3; i++)
+			hook.batchProcessed(new int[] { i }, 1);
+
+		Thread blocked = new Thread() {
+
+			@Override
+			public void run() {
+				hook.batchProcessed(new int[] { 3 }, 1);
+			}
+		};
+		blocked.start();
+		blocked.join(200);
+		assertTrue("batchProcessed should block when the queue is full", blocked.isAlive());
+		assertEquals(2, hook.getNumQueued());
+
+		hook.release.countDown();
+		blocked.join(10000);
+		assertFalse("batchProcessed should unblock once space is available", blocked.isAlive());
+		hook.shutdown();
+		assertEquals(4, hook.getNumFinished());
+		assertTrue(hook.getMillisBlocked() > 0);
+	}
+
+	@Test
+	public void testFailFast() throws InterruptedException {
+		LatchedHook hook = new LatchedHook(2, 10);
+		hook.release.countDown();
+		hook.batchProcessed(new int[0], 1);
+		// the failure is recorded asynchronously
+		long end = System.currentTimeMillis() + 10000;
+		boolean failed = false;
+		while (!failed && System.currentTimeMillis() < end) {
+			try {
+				hook.batchProcessed(new int[] { 1 }, 1);
+				Thread.sleep(10);
+			} catch (IllegalStateException e) {
+				assertTrue(e.getCause() instanceof IllegalArgumentException);
+				failed = true;
+			}
+		}
+		assertTrue("Failure should be rethrown from the next batchProcessed call", failed);
+		try {
+			hook.shutdown();
+			fail("Failure should be rethrown from shutdown");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BatchEncodingTest {
+
+	private static final Random r = new Random();
+
+	private static int[] roundTrip(int[] batch) {
+		byte[] encoded = BatchEncoding.encode(batch);
+		int[] decoded = BatchEncoding.decode(encoded, batch.length);
+		assertArrayEquals("Decoded batch doesn't match", batch, decoded);
+		assertTrue("Encoded batch larger than raw", encoded.length <= 1 + 4*batch.length);
+		return decoded;
+	}
+
+	@Test
+	public void testContiguous() {
+		int start = r.nextInt(1000000);
+		int[] batch = new int[100 + r.nextInt(10000)];
+		for (int i=0; i<batch.length; i++)
+			batch[i] = start + i;
+		roundTrip(batch);
+		byte[] encoded = BatchEncoding.encode(batch);
+		assertEquals("Contiguous batch should be run encoded", BatchEncoding.RUNS, encoded[0]);
+		assertTrue("Contiguous batch should be a few bytes, was "+encoded.length, encoded.length <= 10);
+	}
+
+	@Test
+	public void testShuffled() {
+		int numTasks = 1000 + r.nextInt(100000);
+		List<Integer> indexes = new ArrayList<>();
+		for (int i=0; i<numTasks; i++)
+			indexes.add(i);
+		Collections.shuffle(indexes, r);
+		for (int trial=0; trial<10; trial++) {
+			int start = r.nextInt(numTasks);
+			int len = 1 + r.nextInt(Integer.min(1000, numTasks - start));
+			int[] batch = new int[len];
+			for (int i=0; i<len; i++)
+				batch[i] = indexes.get(start+i);
+			roundTrip(batch);
+		}
+	}
+
+	@Test
+	public void testMixedRuns() {
+		int[] batch = { 5, 6, 7, 8, 2, 3, 100, 101, 102, 0, 50 };
+		roundTrip(batch);
+	}
+
+	@Test
+	public void testEdgeValues() {
+		roundTrip(new int[0]);
+		roundTrip(new int[] { 0 });
+		roundTrip(new int[] { Integer.MAX_VALUE });
+		roundTrip(new int[] { Integer.MAX_VALUE-1, Integer.MAX_VALUE });
+		roundTrip(new int[] { Integer.MAX_VALUE, 0, Integer.MAX_VALUE, 1 });
+		int[] batch = new int[100];
+		for (int i=0; i<batch.length; i++)
+			batch[i] = r.nextInt(Integer.MAX_VALUE);
+		roundTrip(batch);
+	}
+
+}
@@ -0,0 +1,147 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.CalcBatch;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.Node;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.NodeGCStats;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.ParsedLog;
+
+public class BatchTelemetryTest {
+
+	private static class FakeCollector implements GarbageCollectorMXBean {
+
+		private final String name;
+		private long count;
+		private long millis;
+
+		FakeCollector(String name) {
+			this.name = name;
+		}
+
+		void collect(int collections, long collectionMillis) {
+			count += collections;
+			millis += collectionMillis;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public boolean isValid() {
+			return true;
+		}
+
+		@Override
+		public String[] getMemoryPoolNames() {
+			return new String[0];
+		}
+
+		@Override
+		public ObjectName getObjectName() {
+			return null;
+		}
+
+		@Override
+		public long getCollectionCount() {
+			return count;
+		}
+
+		@Override
+		public long getCollectionTime() {
+			return millis;
+		}
+	}
+
+	private static BatchTelemetry telemetry(List<? extends GarbageCollectorMXBean> collectors) {
+		return new BatchTelemetry(new ArrayList<GarbageCollectorMXBean>(collectors),
+				Collections.<MemoryPoolMXBean>emptyList());
+	}
+
+	@Test
+	public void testLogRoundTrip() throws IOException {
+		FakeCollector young = new FakeCollector("G1 Young Generation");
+		FakeCollector old = new FakeCollector("G1 Old Generation");
+		FakeCollector concurrent = new FakeCollector("G1 Concurrent GC");
+		// collections before the batch aren't counted
+		young.collect(10, 1000l);
+		BatchTelemetry aTelemetry = telemetry(Arrays.asList(young, old, concurrent));
+		aTelemetry.start();
+		young.collect(3, 200l);
+		old.collect(1, 100l);
+		// longer than the batch itself, would dominate if counted
+		concurrent.collect(4, 5000l);
+		aTelemetry.finish();
+		assertEquals(4l, aTelemetry.getGCCountDelta());
+		assertEquals(300l, aTelemetry.getGCMillisDelta());
+		assertEquals(0l, aTelemetry.getPeakHeapBytes());
+
+		BatchTelemetry bTelemetry = telemetry(Arrays.asList(new FakeCollector("PS Scavenge")));
+		bTelemetry.start();
+		bTelemetry.finish();
+
+		String log = "[10:00:00.000 (a) Process 0]: receiving batch of length 4\n"
+				+ "[10:00:00.000 (b) Process 1]: receiving batch of length 4\n"
+				+ "[10:00:01.000 (a) Process 0]: "+aTelemetry+"\n"
+				+ "[10:00:01.000 (a) Process 0]: sending READY message\n"
+				+ "[10:00:02.000 (b) Process 1]: "+bTelemetry+"\n"
+				+ "[10:00:02.000 (b) Process 1]: sending READY message\n";
+		ParsedLog parsed = new ParallelLogParser(1).parse(
+				new ByteArrayInputStream(log.getBytes(StandardCharsets.UTF_8)));
+
+		List<CalcBatch> aBatches = parsed.nodeBatches.get(parsed.getNode(new Node(0, "a")));
+		assertEquals(1, aBatches.size());
+		assertTrue(aBatches.get(0).hasTelemetry());
+		assertEquals(4, aBatches.get(0).getGCCount());
+		assertEquals(300, aBatches.get(0).getGCMillis());
+		assertEquals(0, aBatches.get(0).getPeakHeapMB());
+		assertEquals(0.3d, new NodeGCStats(aBatches).getGCFraction(), 1e-10);
+
+		NodeGCStats bStats = new NodeGCStats(parsed.nodeBatches.get(parsed.getNode(new Node(1, "b"))));
+		assertEquals(2000l, bStats.millis);
+		assertEquals(0d, bStats.getGCFraction(), 0d);
+	}
+
+	@Test
+	public void testConcurrentCollectorsExcluded() {
+		List<FakeCollector> collectors = new ArrayList<>();
+		for (String name : BatchTelemetry.CONCURRENT_COLLECTORS)
+			collectors.add(new FakeCollector(name));
+		FakeCollector stw = new FakeCollector("Copy");
+		collectors.add(stw);
+
+		BatchTelemetry telemetry = telemetry(collectors);
+		telemetry.start();
+		for (FakeCollector collector : collectors)
+			collector.collect(1, 50l);
+		telemetry.finish();
+		assertEquals("Only the stop-the-world collector should count", 1l, telemetry.getGCCountDelta());
+		assertEquals(50l, telemetry.getGCMillisDelta());
+		assertTrue(telemetry.toString().startsWith(BatchTelemetry.MESSAGE+" gcCount=1, gcMillis=50,"));
+	}
+
+	@Test
+	public void testNoTelemetry() {
+		List<CalcBatch> batches = new ArrayList<>();
+		batches.add(new CalcBatch(1, new Node(0, "a"), new Date(0l)));
+		assertTrue(Double.isNaN(new NodeGCStats(batches).getGCFraction()));
+	}
+
+}
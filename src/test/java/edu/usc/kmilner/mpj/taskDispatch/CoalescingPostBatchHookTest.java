@@ -0,0 +1,66 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CoalescingPostBatchHookTest {
+
+	private static class RecordingHook implements PostBatchHook {
+
+		private List<int[]> batches = new ArrayList<>();
+		private List<Integer> processIndexes = new ArrayList<>();
+
+		@Override
+		public synchronized void batchProcessed(int[] batch, int processIndex) {
+			batches.add(batch);
+			processIndexes.add(processIndex);
+		}
+
+		synchronized int getNumTasks() {
+			int num = 0;
+			for (int[] batch : batches)
+				num += batch.length;
+			return num;
+		}
+	}
+
+	@Test
+	public void testMergeAndFlushOnShutdown() {
+		RecordingHook recorder = new RecordingHook();
+		CoalescingPostBatchHook hook = new CoalescingPostBatchHook(recorder, 10, 0l);
+
+		hook.batchProcessed(new int[] { 0, 1, 2, 3 }, 1);
+		hook.batchProcessed(new int[] { 4, 5, 6, 7 }, 1);
+		assertTrue("Should hold batches until full", recorder.batches.isEmpty());
+		hook.batchProcessed(new int[] { 8, 9, 10 }, 2);
+		assertEquals("Should pass on once full", 1, recorder.batches.size());
+		assertArrayEquals(new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, recorder.batches.get(0));
+		assertEquals("Mixed processes should be passed on as -1", -1, (int)recorder.processIndexes.get(0));
+
+		hook.batchProcessed(new int[] { 11, 12 }, 3);
+		assertEquals(1, recorder.batches.size());
+		hook.shutdown();
+		assertEquals("Remaining tasks should be flushed on shutdown", 2, recorder.batches.size());
+		assertArrayEquals(new int[] { 11, 12 }, recorder.batches.get(1));
+		assertEquals(3, (int)recorder.processIndexes.get(1));
+	}
+
+	@Test
+	public void testFlushAfterDelay() throws InterruptedException {
+		RecordingHook recorder = new RecordingHook();
+		CoalescingPostBatchHook hook = new CoalescingPostBatchHook(recorder, 1000, 50l);
+
+		hook.batchProcessed(new int[] { 0, 1, 2 }, 1);
+		long end = System.currentTimeMillis() + 10000;
+		while (recorder.getNumTasks() == 0 && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		assertEquals("Expired tasks should be flushed in the background", 3, recorder.getNumTasks());
+		hook.shutdown();
+		assertEquals(1, recorder.batches.size());
+	}
+
+}
@@ -55,6 +55,61 @@ public class DispatcherThreadTest {
 		}
 	}
 	
+	@Test
+	public void testPriorityOrder() {
+		int numTasks = randomSize(50, 500);
+		int[] priorities = new int[numTasks];
+		for (int i=0; i<numTasks; i++)
+			priorities[i] = r.nextInt(3) - 1;
+		DispatcherThread dispatcher = new DispatcherThread(10, numTasks, 5, numTasks, true);
+		dispatcher.setTaskPriorities(priorities);
+
+		HashSet<Integer> processedIndexes = new HashSet<>();
+		int prevPriority = Integer.MAX_VALUE;
+		while (true) {
+			int[] batch = dispatcher.getNextBatch(0);
+			if (batch.length == 0)
+				break;
+
+			for (int index : batch) {
+				assertTrue("Duplicate index detected!", processedIndexes.add(index));
+				assertTrue("Lower priority task dispatched before a higher priority task",
+						priorities[index] <= prevPriority);
+				prevPriority = priorities[index];
+			}
+		}
+		assertEquals("Not all tasks dispatched!", numTasks, processedIndexes.size());
+	}
+
+	@Test
+	public void testCapacityWeighting() {
+		int numTasks = randomSize(5000, 10000);
+		DispatcherThread dispatcher = new DispatcherThread(2, numTasks, 1, numTasks, true);
+		dispatcher.setCapacityWeighted(true);
+		dispatcher.setProcessCapacity(0, 64, 0);
+		dispatcher.setProcessCapacity(1, 16, 0);
+
+		// by thread count, process 0 should get 4/5 of the tasks
+		int[] batch0 = dispatcher.getNextBatch(0);
+		assertEquals("Batch should be a multiple of the thread count", 0, batch0.length % 64);
+		assertTrue("Batch not weighted by thread count", Math.abs(batch0.length - 0.8*numTasks) <= 64);
+
+		// once measured, throughput takes precedence: process 1 is now 3x faster than process 0
+		dispatcher.setProcessCapacity(0, 64, 1000);
+		dispatcher.setProcessCapacity(1, 16, 3000);
+		int numLeft = numTasks - batch0.length;
+		int[] batch1 = dispatcher.getNextBatch(1);
+		assertEquals("Batch should be a multiple of the thread count", 0, batch1.length % 16);
+		assertTrue("Batch not weighted by throughput", Math.abs(batch1.length - 0.75*numLeft) <= 16);
+
+		// rounding to the thread count
+		assertEquals(64, DispatcherThread.calcWeightedBatchSize(1000, 0.05, 16, 1, 1000, -1));
+		// but not above the maximum
+		assertEquals(48, DispatcherThread.calcWeightedBatchSize(1000, 0.05, 16, 1, 60, -1));
+		// or the number left
+		assertEquals(10, DispatcherThread.calcWeightedBatchSize(10, 0.9, 16, 1, 100, -1));
+	}
+	
 	@Test
 	public void testPostBatchHook() {
 		int numTasks = randomSize(50, 500);
@@ -84,6 +139,50 @@ public class DispatcherThreadTest {
 		}
 	}
 	
+	@Test
+	public void testHookStageBounded() {
+		int numTasks = randomSize(200, 500);
+		int procs = randomSize(5, 20);
+		final int maxQueued = 3;
+		final DispatcherThread[] dispatcherRef = new DispatcherThread[1];
+		final int[] numHooked = new int[1];
+		final boolean[] overfull = new boolean[1];
+		PostBatchHook slowHook = new PostBatchHook() {
+			
+			@Override
+			public void batchProcessed(int[] batch, int processIndex) {
+				if (dispatcherRef[0].getNumQueuedHooks() > maxQueued)
+					overfull[0] = true;
+				try {
+					Thread.sleep(2);
+				} catch (InterruptedException e) {
+					throw Utils.asRuntimeException(e);
+				}
+				numHooked[0] += batch.length;
+			}
+		};
+		DispatcherThread dispatcher = new DispatcherThread(procs, numTasks, 1, 1, -1, true, 0, numTasks, slowHook, null);
+		dispatcherRef[0] = dispatcher;
+		dispatcher.setMaxQueuedHooks(maxQueued);
+		
+		// retire batches much faster than the hook can process them, without waiting for hooks (as the MPI dispatch
+		// loop does)
+		boolean[] dones = new boolean[procs];
+		while (!allDone(dones)) {
+			for (int p=0; p<procs; p++) {
+				if (dones[p])
+					continue;
+				if (dispatcher.getNextBatch(p, false).length == 0)
+					dones[p] = true;
+				assertTrue("Too many queued hooks", dispatcher.getNumQueuedHooks() <= maxQueued);
+			}
+		}
+		dispatcher.waitForPostBatchHooks();
+		assertFalse("Too many queued hooks", overfull[0]);
+		assertEquals("Not all batches hooked", numTasks, numHooked[0]);
+		assertEquals(0, dispatcher.getNumQueuedHooks());
+	}
+	
 	private static boolean allDone(boolean[] dones) {
 		for (boolean done : dones)
 			if (!done)
@@ -210,4 +309,32 @@ public class DispatcherThreadTest {
 		assertEquals("Not all tasks dispatched!", endIndex - startIndex, numProcessed);
 	}
 
+	@Test
+	public void testReadyServiceLatency() {
+		final long[] nanos = { 0l };
+		DispatcherThread dispatcher = new DispatcherThread(10, 100, 1, 100, true) {
+
+			@Override
+			long nanoTime() {
+				return nanos[0];
+			}
+		};
+		assertNull("Nothing to report before any READY messages", dispatcher.getServiceLatencyString());
+
+		// a single READY message serviced in 2 ms
+		nanos[0] = 1000000000l;
+		long readyNanos = dispatcher.nanoTime();
+		nanos[0] += 2000000l;
+		dispatcher.readyServiced(readyNanos, 1);
+
+		// 3 serviced together in 5 ms, each counts
+		readyNanos = dispatcher.nanoTime();
+		nanos[0] += 5000000l;
+		dispatcher.readyServiced(readyNanos, 3);
+
+		String latency = dispatcher.getServiceLatencyString();
+		assertEquals("READY service latency: n=4, avg="+Utils.smartTimePrint(17d/4d)
+				+", max="+Utils.smartTimePrint(5d), latency);
+	}
+
 }
@@ -0,0 +1,236 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ElasticWorkerTest {
+
+	private static final Random r = new Random();
+
+	private static final String TOKEN = "test-token";
+
+	private static int randomSize(int min, int max) {
+		return min + r.nextInt(max - min);
+	}
+
+	private class Worker extends Thread {
+
+		private ElasticWorkerClient client;
+		// if >= 0, leave after receiving this many batches, without completing the last one
+		private int leaveAfter;
+		private List<Integer> completed;
+		private Exception exception;
+
+		public Worker(int port, int leaveAfter, List<Integer> completed) throws IOException {
+			this.client = new ElasticWorkerClient("localhost", port, TOKEN);
+			this.leaveAfter = leaveAfter;
+			this.completed = completed;
+		}
+
+		@Override
+		public void run() {
+			try {
+				client.register();
+				int numBatches = 0;
+				while (true) {
+					int[] batch = client.nextBatch(1, 0);
+					if (batch.length == 0)
+						break;
+					if (++numBatches == leaveAfter) {
+						client.leave();
+						return;
+					}
+					Thread.sleep(r.nextInt(5));
+					for (int index : batch)
+						completed.add(index);
+				}
+				client.close();
+			} catch (Exception e) {
+				exception = e;
+			}
+		}
+	}
+
+	@Test
+	public void testAllTasksExecuted() throws Exception {
+		int numTasks = randomSize(500, 2000);
+		// a single MPI process, which only gets batches once elastic workers are done
+		DispatcherThread dispatcher = new DispatcherThread(1, numTasks, 1, 20, true);
+		ElasticWorkerServer server = new ElasticWorkerServer(dispatcher, TOKEN, 0);
+		server.start();
+
+		List<Integer> completed = Collections.synchronizedList(new ArrayList<Integer>());
+		List<Worker> workers = new ArrayList<>();
+		int numWorkers = randomSize(2, 6);
+		for (int i=0; i<numWorkers; i++)
+			// first worker departs mid-batch
+			workers.add(new Worker(server.getPort(), i == 0 ? 2 : -1, completed));
+		for (Worker worker : workers)
+			worker.start();
+		for (Worker worker : workers)
+			worker.join();
+		for (Worker worker : workers)
+			assertNull("Worker failed: "+worker.exception, worker.exception);
+
+		// anything left (e.g. the departed worker's batch) is calculated by rank 0
+		while (true) {
+			dispatcher.waitForElasticWorkers();
+			int[] batch = dispatcher.getNextBatch(0);
+			if (batch.length == 0) {
+				if (dispatcher.isElasticDone())
+					break;
+				continue;
+			}
+			for (int index : batch)
+				completed.add(index);
+		}
+		server.close();
+
+		boolean[] done = new boolean[numTasks];
+		for (int index : completed) {
+			assertFalse("Duplicate index detected!", done[index]);
+			done[index] = true;
+		}
+		assertEquals("Not all tasks executed!", numTasks, completed.size());
+	}
+
+	@Test
+	public void testHungWorkerRequeued() throws Exception {
+		int numTasks = randomSize(100, 500);
+		DispatcherThread dispatcher = new DispatcherThread(1, numTasks, 1, 20, true);
+		ElasticWorkerServer server = new ElasticWorkerServer(dispatcher, TOKEN, InetAddress.getLoopbackAddress(), 0, 200);
+		server.start();
+
+		// heartbeats are far apart, so the worker looks hung once it has a batch
+		ElasticWorkerClient hung = new ElasticWorkerClient("localhost", server.getPort(), TOKEN, 60000);
+		hung.register();
+		int[] hungBatch = hung.nextBatch(1, 0);
+		assertTrue(hungBatch.length > 0);
+
+		// rank 0 calculates everything else
+		int numCompleted = 0;
+		while (true) {
+			int[] batch = dispatcher.getNextBatch(0);
+			if (batch.length == 0)
+				break;
+			numCompleted += batch.length;
+		}
+		assertEquals(numTasks - hungBatch.length, numCompleted);
+		assertFalse(dispatcher.isElasticDone());
+
+		// woken once the worker times out and its batch is requeued
+		dispatcher.waitForElasticWorkers();
+		assertEquals(hungBatch.length, dispatcher.getNumLeftToDispatch());
+		List<Integer> requeued = new ArrayList<>();
+		while (true) {
+			int[] batch = dispatcher.getNextBatch(0);
+			if (batch.length == 0)
+				break;
+			for (int index : batch)
+				requeued.add(index);
+		}
+		Collections.sort(requeued);
+		Arrays.sort(hungBatch);
+		assertEquals(hungBatch.length, requeued.size());
+		for (int i=0; i<hungBatch.length; i++)
+			assertEquals(hungBatch[i], (int)requeued.get(i));
+		assertTrue(dispatcher.isElasticDone());
+		hung.close();
+		server.close();
+	}
+
+	@Test
+	public void testHeartbeatKeepsWorker() throws Exception {
+		DispatcherThread dispatcher = new DispatcherThread(1, 100, 1, 20, true);
+		ElasticWorkerServer server = new ElasticWorkerServer(dispatcher, TOKEN, InetAddress.getLoopbackAddress(), 0, 200);
+		server.start();
+
+		ElasticWorkerClient client = new ElasticWorkerClient("localhost", server.getPort(), TOKEN, 20);
+		client.register();
+		int[] batch = client.nextBatch(1, 0);
+		assertTrue(batch.length > 0);
+		// a long batch, but heartbeats are sent throughout
+		Thread.sleep(600);
+		assertEquals(100 - batch.length, dispatcher.getNumLeftToDispatch());
+		int[] next = client.nextBatch(1, 0);
+		assertTrue(next.length > 0);
+		client.leave();
+		server.close();
+	}
+
+	@Test
+	public void testWrongTokenRejected() throws Exception {
+		DispatcherThread dispatcher = new DispatcherThread(1, 100, 1, 20, true);
+		ElasticWorkerServer server = new ElasticWorkerServer(dispatcher, TOKEN,
+				InetAddress.getLoopbackAddress(), 0, 10000);
+		server.start();
+
+		for (String token : new String[] { "wrong-token", TOKEN+"x", "" }) {
+			ElasticWorkerClient client = new ElasticWorkerClient("localhost", server.getPort(), token);
+			try {
+				client.register();
+				fail("Registered with the wrong token: "+token);
+			} catch (IOException e) {
+				// expected
+			}
+			client.close();
+		}
+
+		// batches can't be taken or retired without registering
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeInt(ElasticWorkerServer.MSG_READY);
+			out.writeInt(1);
+			out.writeInt(0);
+			out.flush();
+			assertEquals("Connection should be closed", -1, new DataInputStream(socket.getInputStream()).read());
+		}
+		assertEquals(100, dispatcher.getNumLeftToDispatch());
+
+		// rejected workers never joined, so this is the first elastic worker
+		ElasticWorkerClient client = new ElasticWorkerClient("localhost", server.getPort(), TOKEN);
+		assertEquals(1, client.register());
+		client.leave();
+		server.close();
+	}
+
+	@Test
+	public void testTokenFile() throws IOException {
+		File dir = Files.createTempDirectory("elastic_token").toFile();
+		dir.deleteOnExit();
+		File tokenFile = new File(dir, "token");
+		tokenFile.deleteOnExit();
+
+		String token = ElasticWorkerServer.loadOrCreateToken(tokenFile);
+		assertTrue(tokenFile.exists());
+		assertEquals(64, token.length());
+		assertEquals(token, ElasticWorkerServer.readToken(tokenFile));
+		// reused once created
+		assertEquals(token, ElasticWorkerServer.loadOrCreateToken(tokenFile));
+		assertTrue(tokenFile.delete());
+		assertNotEquals(token, ElasticWorkerServer.loadOrCreateToken(tokenFile));
+
+		Files.write(tokenFile.toPath(), new byte[] { '\n' });
+		try {
+			ElasticWorkerServer.readToken(tokenFile);
+			fail("Empty token file should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
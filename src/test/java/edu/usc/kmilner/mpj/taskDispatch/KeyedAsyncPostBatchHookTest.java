@@ -0,0 +1,80 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class KeyedAsyncPostBatchHookTest {
+
+	private static final Random r = new Random();
+
+	private static final int NUM_KEYS = 3;
+
+	private static class RecordingHook extends KeyedAsyncPostBatchHook<Integer> {
+
+		private List<List<Integer>> processed = new ArrayList<>();
+		private AtomicInteger[] running = new AtomicInteger[NUM_KEYS];
+		private volatile boolean concurrentSameKey = false;
+
+		public RecordingHook() {
+			super(4, 5);
+			for (int i=0; i<NUM_KEYS; i++) {
+				processed.add(new ArrayList<Integer>());
+				running[i] = new AtomicInteger();
+			}
+		}
+
+		@Override
+		protected Integer getKey(int index) {
+			return index % NUM_KEYS;
+		}
+
+		@Override
+		protected void batchProcessedAsync(int[] batch, int processIndex) {
+			int key = getKey(batch[0]);
+			if (running[key].incrementAndGet() > 1)
+				concurrentSameKey = true;
+			try {
+				Thread.sleep(r.nextInt(3));
+			} catch (InterruptedException e) {
+				throw Utils.asRuntimeException(e);
+			}
+			for (int index : batch) {
+				assertEquals("Sub-batch should have a single key", key, (int)getKey(index));
+				processed.get(key).add(index);
+			}
+			running[key].decrementAndGet();
+		}
+	}
+
+	@Test
+	public void testPerKeyOrder() {
+		RecordingHook hook = new RecordingHook();
+		int index = 0;
+		for (int b=0; b<100; b++) {
+			int[] batch = new int[1 + r.nextInt(10)];
+			for (int i=0; i<batch.length; i++)
+				batch[i] = index++;
+			hook.batchProcessed(batch, 1);
+		}
+		hook.shutdown();
+
+		assertFalse("Sub-batches with the same key were processed concurrently", hook.concurrentSameKey);
+		int total = 0;
+		for (int key=0; key<NUM_KEYS; key++) {
+			List<Integer> keyProcessed = hook.processed.get(key);
+			for (int i=1; i<keyProcessed.size(); i++)
+				assertTrue("Tasks with the same key processed out of order",
+						keyProcessed.get(i) > keyProcessed.get(i-1));
+			total += keyProcessed.size();
+		}
+		assertEquals("Not all tasks processed", index, total);
+		assertEquals(index, hook.getNumFinished());
+	}
+
+}
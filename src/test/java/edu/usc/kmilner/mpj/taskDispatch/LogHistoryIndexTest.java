@@ -0,0 +1,215 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.usc.kmilner.mpj.taskDispatch.LogHistoryIndex.JobRecord;
+import edu.usc.kmilner.mpj.taskDispatch.LogHistoryIndex.RateTracker;
+
+public class LogHistoryIndexTest {
+
+	private static final Random r = new Random();
+
+	private static int randomSize(int min, int max) {
+		return min + r.nextInt(max - min + 1);
+	}
+
+	private static File tempDir() throws IOException {
+		File dir = Files.createTempDirectory("log_index").toFile();
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	private static File writeLog(File dir, String contents, boolean append) throws IOException {
+		File file = new File(dir, "sample.log");
+		file.deleteOnExit();
+		try (OutputStream out = new FileOutputStream(file, append)) {
+			out.write(contents.getBytes(StandardCharsets.UTF_8));
+		}
+		return file;
+	}
+
+	/**
+	 * @return record with the given tag, hosts and batches, each batch {host index, size, duration} (duration -1 if
+	 * still running)
+	 */
+	private static JobRecord record(String name, String tag, String[] hosts, int[]... batches) {
+		JobRecord record = new JobRecord();
+		record.name = name;
+		record.tag = tag;
+		record.sourcePath = "/logs/"+name;
+		record.sourceLength = randomSize(1, 100000);
+		record.sourceModified = r.nextInt(Integer.MAX_VALUE);
+		record.startEpochMillis = r.nextInt(Integer.MAX_VALUE);
+		record.hosts = hosts;
+		record.processNums = new int[batches.length];
+		record.hostIndexes = new int[batches.length];
+		record.sizes = new int[batches.length];
+		record.startOffsets = new long[batches.length];
+		record.durations = new long[batches.length];
+		for (int i=0; i<batches.length; i++) {
+			record.processNums[i] = randomSize(0, 100);
+			record.hostIndexes[i] = batches[i][0];
+			record.sizes[i] = batches[i][1];
+			record.durations[i] = batches[i][2];
+			record.startOffsets[i] = randomSize(0, 1000000);
+			record.numTasks += batches[i][1];
+			if (batches[i][2] >= 0)
+				record.numDone += batches[i][1];
+		}
+		return record;
+	}
+
+	private static void assertRecordEquals(JobRecord expected, JobRecord actual) {
+		assertEquals(expected.name, actual.name);
+		assertEquals(expected.tag, actual.tag);
+		assertEquals(expected.sourcePath, actual.sourcePath);
+		assertEquals(expected.sourceLength, actual.sourceLength);
+		assertEquals(expected.sourceModified, actual.sourceModified);
+		assertEquals(expected.startEpochMillis, actual.startEpochMillis);
+		assertEquals(expected.numTasks, actual.numTasks);
+		assertEquals(expected.numDone, actual.numDone);
+		assertArrayEquals(expected.hosts, actual.hosts);
+		assertArrayEquals(expected.processNums, actual.processNums);
+		assertArrayEquals(expected.hostIndexes, actual.hostIndexes);
+		assertArrayEquals(expected.sizes, actual.sizes);
+		assertArrayEquals(expected.startOffsets, actual.startOffsets);
+		assertArrayEquals(expected.durations, actual.durations);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		File dir = tempDir();
+		String[] hosts = { "a", "b", LogHistoryIndex.UNKNOWN_HOST };
+		int numBatches = randomSize(1, 1000);
+		int[][] batches = new int[numBatches][];
+		for (int i=0; i<numBatches; i++)
+			batches[i] = new int[] { r.nextInt(hosts.length), randomSize(1, 100),
+					r.nextInt(10) == 0 ? -1 : randomSize(0, 100000) };
+		for (String tag : new String[] { "v1", null }) {
+			JobRecord record = record("job.log", tag, hosts, batches);
+			File indexFile = new File(dir, "job"+LogHistoryIndex.INDEX_SUFFIX);
+			indexFile.deleteOnExit();
+			LogHistoryIndex.write(record, indexFile);
+			assertRecordEquals(record, LogHistoryIndex.read(indexFile));
+
+			JobRecord header = LogHistoryIndex.readHeader(indexFile);
+			assertEquals(record.tag, header.tag);
+			assertEquals(record.sourceModified, header.sourceModified);
+			assertNull("Header only read shouldn't load batches", header.sizes);
+
+			List<JobRecord> loaded = new LogHistoryIndex(dir).load(2);
+			assertEquals(1, loaded.size());
+			assertRecordEquals(record, loaded.get(0));
+		}
+	}
+
+	@Test
+	public void testIngest() throws IOException {
+		File indexDir = tempDir();
+		File logFile = writeLog(tempDir(), ParallelLogParserTest.SAMPLE_LOG, false);
+		List<File> logs = Arrays.asList(logFile);
+		LogHistoryIndex index = new LogHistoryIndex(indexDir);
+
+		assertEquals(1, index.ingest(logs, null, 2));
+		List<JobRecord> records = index.load(1);
+		assertEquals(1, records.size());
+		JobRecord record = records.get(0);
+		assertEquals("sample.log", record.name);
+		assertNull(record.tag);
+		assertEquals(10, record.numTasks);
+		assertEquals(7, record.numDone);
+		assertEquals(2, record.getNumBatches());
+		assertEquals(logFile.length(), record.sourceLength);
+		// first to last process message spans midnight: 23:59:58.100 to 00:00:01.500
+		assertEquals(logFile.lastModified() - 3400l, record.startEpochMillis);
+		for (File file : indexDir.listFiles())
+			file.deleteOnExit();
+
+		// unchanged
+		assertEquals(0, index.ingest(logs, null, 2));
+
+		// tag changed
+		assertEquals(1, index.ingest(logs, "v2", 2));
+		assertEquals("v2", index.load(1).get(0).tag);
+		assertEquals(0, index.ingest(logs, "v2", 2));
+		// no tag given matches any tag
+		assertEquals(0, index.ingest(logs, null, 2));
+
+		// modified time changed
+		assertTrue(logFile.setLastModified(logFile.lastModified() - 60000l));
+		assertEquals(1, index.ingest(logs, "v2", 2));
+		assertEquals(0, index.ingest(logs, "v2", 2));
+
+		// length changed, keeping the modified time
+		long modified = logFile.lastModified();
+		writeLog(logFile.getParentFile(), "[00:00:02.000 (a) Process 0]: receiving batch of length 2\n", true);
+		assertTrue(logFile.setLastModified(modified));
+		assertEquals(1, index.ingest(logs, "v2", 2));
+		records = index.load(1);
+		assertEquals("Reindexing should replace the old index", 1, records.size());
+		assertEquals(3, records.get(0).getNumBatches());
+		assertEquals(0, index.ingest(logs, "v2", 2));
+	}
+
+	@Test
+	public void testFilterTags() {
+		String[] hosts = { "a" };
+		JobRecord v1 = record("1.log", "v1", hosts);
+		JobRecord v2 = record("2.log", "v2", hosts);
+		JobRecord v1b = record("3.log", "v1", hosts);
+		JobRecord untagged = record("4.log", null, hosts);
+		List<JobRecord> records = Arrays.asList(v1, v2, v1b, untagged);
+
+		assertEquals(Arrays.asList(v1, v1b), LogHistoryIndex.filterTags(records, "v1"));
+		assertEquals(Arrays.asList(v1, v2, v1b), LogHistoryIndex.filterTags(records, "v2", "v1"));
+		assertTrue(LogHistoryIndex.filterTags(records, "v3").isEmpty());
+		assertTrue(LogHistoryIndex.filterTags(records).isEmpty());
+	}
+
+	@Test
+	public void testAggregateStats() {
+		String[] hosts = { "a", "b" };
+		JobRecord job1 = record("1.log", "v1", hosts,
+				new int[] { 0, 10, 1000 },
+				new int[] { 0, 10, 3000 },
+				new int[] { 1, 5, 5000 },
+				// still running, ignored
+				new int[] { 1, 5, -1 });
+		JobRecord job2 = record("2.log", null, hosts,
+				new int[] { 1, 10, 10000 });
+
+		Map<String, RateTracker> hostStats = LogHistoryIndex.getHostStats(Arrays.asList(job1, job2));
+		assertEquals(2, hostStats.size());
+		RateTracker a = hostStats.get("a");
+		assertEquals(1, a.jobs);
+		assertEquals(2, a.batches);
+		assertEquals(20, a.tasks);
+		assertEquals(4000d/20d, a.getMillisEach(), 1e-10);
+		RateTracker b = hostStats.get("b");
+		assertEquals(2, b.jobs);
+		assertEquals(2, b.batches);
+		assertEquals(15, b.tasks);
+		assertEquals(15000d/15d, b.getMillisEach(), 1e-10);
+
+		Map<String, RateTracker> tagStats = LogHistoryIndex.getTagStats(Arrays.asList(job1, job2));
+		assertEquals(2, tagStats.size());
+		assertEquals(25, tagStats.get("v1").tasks);
+		assertEquals(9000d/25d, tagStats.get("v1").getMillisEach(), 1e-10);
+		assertEquals(1, tagStats.get(LogHistoryIndex.NO_TAG).jobs);
+		assertEquals(1000d, tagStats.get(LogHistoryIndex.NO_TAG).getMillisEach(), 1e-10);
+	}
+
+}
@@ -0,0 +1,100 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongDispatcherThreadTest {
+
+	private static final Random r = new Random();
+
+	private static int randomSize(int min, int max) {
+		return min + r.nextInt(max - min + 1);
+	}
+
+	private static boolean isDone(long index, List<long[]> doneRanges) {
+		for (long[] range : doneRanges)
+			if (index >= range[0] && index < range[1])
+				return true;
+		return false;
+	}
+
+	@Test
+	public void testCursorAndDoneRanges() {
+		for (int trial=0; trial<20; trial++) {
+			// beyond the int range
+			long offset = (long)Integer.MAX_VALUE + r.nextInt(1000);
+			long startIndex = offset + randomSize(0, 100);
+			long endIndex = startIndex + randomSize(1, 5000);
+			long numTasks = endIndex + randomSize(0, 100);
+			List<long[]> doneRanges = new ArrayList<>();
+			int numDoneRanges = randomSize(0, 20);
+			for (int i=0; i<numDoneRanges; i++) {
+				// may overlap, or extend outside of [startIndex, endIndex)
+				long start = offset + r.nextInt((int)(endIndex - offset) + 50);
+				doneRanges.add(new long[] { start, start + randomSize(1, 300) });
+			}
+			int size = randomSize(1, 10);
+			int minDispatch = randomSize(1, 10);
+			int maxDispatch = randomSize(minDispatch, 200);
+			LongDispatcherThread dispatcher = new LongDispatcherThread(size, numTasks, minDispatch, maxDispatch, -1,
+					startIndex, endIndex, doneRanges);
+
+			long expected = startIndex;
+			int proc = 0;
+			while (true) {
+				LongTaskBatch batch = dispatcher.getNextBatch(proc);
+				proc = (proc + 1) % size;
+				if (batch.size() == 0)
+					break;
+				assertTrue("Batch larger than max dispatch", batch.size() <= maxDispatch);
+				for (int i=1; i<batch.getNumRanges(); i++)
+					assertTrue("Ranges should be separated by a done range",
+							batch.getRangeStart(i) > batch.getRangeEnd(i-1));
+				// should be dispatched in order, skipping only done tasks
+				for (long index : batch) {
+					while (isDone(expected, doneRanges))
+						expected++;
+					assertEquals(expected, index);
+					expected++;
+				}
+			}
+			while (expected < endIndex && isDone(expected, doneRanges))
+				expected++;
+			assertEquals("Not all tasks dispatched", endIndex, expected);
+			assertEquals(0, dispatcher.getNumLeftToDispatch());
+		}
+	}
+
+	@Test
+	public void testMergeRanges() {
+		List<long[]> ranges = new ArrayList<>();
+		ranges.add(new long[] { 50, 60 });
+		ranges.add(new long[] { 0, 10 });
+		ranges.add(new long[] { 5, 20 });
+		ranges.add(new long[] { 20, 25 });
+		ranges.add(new long[] { 90, 200 });
+		assertArrayEquals(new long[] { 5, 25, 50, 60, 90, 100 }, LongDispatcherThread.mergeRanges(ranges, 5, 100));
+	}
+
+	@Test
+	public void testRequeueFailed() {
+		LongDispatcherThread dispatcher = new LongDispatcherThread(2, 1000, 10, 10, -1, 0, 1000, null);
+		LongTaskBatch failed = dispatcher.getNextBatch(1);
+		assertEquals(0, failed.getRangeStart(0));
+		dispatcher.getNextBatch(2);
+		dispatcher.processFailed(1);
+		assertEquals(990, dispatcher.getNumLeftToDispatch());
+		assertTrue(dispatcher.getStateString().contains("process 2: batch [10,20)"));
+		// requeued tasks are dispatched first
+		LongTaskBatch batch = dispatcher.getNextBatch(2);
+		assertEquals(failed.toString(), batch.toString());
+		batch = dispatcher.getNextBatch(2);
+		assertEquals(20, batch.getRangeStart(0));
+	}
+
+}
@@ -0,0 +1,30 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MPJTaskCalculatorTest {
+
+	private static final Random r = new Random();
+
+	private static int randomSize(int min, int max) {
+		return min + r.nextInt(max - min + 1);
+	}
+
+	@Test
+	public void testReservedDispatchCoreThreads() {
+		int threads = randomSize(2, 64);
+		// one fewer on rank 0 when reserved
+		assertEquals(threads-1, MPJTaskCalculator.calcNumThreads(threads, 0, true));
+		assertEquals(threads, MPJTaskCalculator.calcNumThreads(threads, 0, false));
+		// other ranks don't run the dispatcher
+		int rank = randomSize(1, 100);
+		assertEquals(threads, MPJTaskCalculator.calcNumThreads(threads, rank, true));
+		// never below 1
+		assertEquals(1, MPJTaskCalculator.calcNumThreads(1, 0, true));
+	}
+
+}
@@ -0,0 +1,60 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MemoryAdmissionControllerTest {
+
+	private static Thread acquireAsync(final MemoryAdmissionController controller, final long bytes) {
+		Thread t = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					controller.acquire(bytes);
+				} catch (InterruptedException e) {
+					throw Utils.asRuntimeException(e);
+				}
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	@Test
+	public void testBlocksOverBudget() throws InterruptedException {
+		MemoryAdmissionController controller = new MemoryAdmissionController(100);
+		controller.acquire(60);
+		// unknown estimates are always admitted
+		controller.acquire(0);
+
+		Thread waiting = acquireAsync(controller, 50);
+		waiting.join(200);
+		assertTrue("Task over budget should wait", waiting.isAlive());
+		assertEquals(60, controller.getReservedBytes());
+
+		controller.release(60);
+		waiting.join(10000);
+		assertFalse("Task should be admitted once memory is released", waiting.isAlive());
+		assertEquals(50, controller.getReservedBytes());
+		controller.release(50);
+		controller.release(0);
+		assertEquals(0, controller.getReservedBytes());
+	}
+
+	@Test
+	public void testOversizedTask() throws InterruptedException {
+		MemoryAdmissionController controller = new MemoryAdmissionController(100);
+		controller.acquire(10);
+		Thread oversized = acquireAsync(controller, 500);
+		oversized.join(200);
+		assertTrue("Oversized task should wait until nothing else is running", oversized.isAlive());
+
+		controller.release(10);
+		oversized.join(10000);
+		assertFalse("Oversized task should be admitted once nothing else is running", oversized.isAlive());
+		assertEquals(500, controller.getReservedBytes());
+	}
+
+}
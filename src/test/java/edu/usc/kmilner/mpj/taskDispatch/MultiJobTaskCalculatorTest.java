@@ -0,0 +1,197 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.ParseException;
+import org.junit.Test;
+
+public class MultiJobTaskCalculatorTest {
+
+	private static final Random r = new Random();
+
+	private static int randomSize(int min, int max) {
+		return min + r.nextInt(max - min + 1);
+	}
+
+	private static class TestJob extends MPJTaskCalculator {
+
+		private final int numTasks;
+		private final Collection<Integer> doneIndexes;
+		private final List<int[]> hookBatches = new ArrayList<>();
+
+		TestJob(int numTasks, Collection<Integer> doneIndexes) {
+			super(1, 1, 100, false);
+			this.numTasks = numTasks;
+			this.doneIndexes = doneIndexes;
+			postBatchHook = new PostBatchHook() {
+
+				@Override
+				public void batchProcessed(int[] batch, int processIndex) {
+					hookBatches.add(batch);
+				}
+			};
+		}
+
+		TestJob(CommandLine cmd, int numTasks) {
+			super(cmd);
+			this.numTasks = numTasks;
+			this.doneIndexes = null;
+		}
+
+		@Override
+		protected int getNumTasks() {
+			return numTasks;
+		}
+
+		@Override
+		protected Collection<Integer> getDoneIndexes() {
+			return doneIndexes;
+		}
+
+		@Override
+		protected void calculateBatch(int[] batch) throws Exception {}
+
+		@Override
+		protected void doFinalAssembly() throws Exception {}
+	}
+
+	/**
+	 * Calculators can only be constructed in tests with MPJ disabled, which the build sets for tests
+	 */
+	private static void assumeMPJDisabled() {
+		assumeTrue("Requires -Dmpj.disable=true", MPJTaskCalculator.SINGLE_NODE_NO_MPJ);
+	}
+
+	private static CommandLine parse(String... args) throws ParseException {
+		return new DefaultParser().parse(MPJTaskCalculator.createOptions(), args);
+	}
+
+	@Test
+	public void testRejectBackgroundThreadJobs() throws ParseException {
+		assumeMPJDisabled();
+		TestJob plain = new TestJob(parse(), 10);
+		assertFalse(plain.hasBackgroundThreads());
+		new MultiJobTaskCalculator(1, 1, 100, false, Arrays.asList(plain, new TestJob(5, null)));
+
+		TestJob watched = new TestJob(parse("--watchdog-mins", "60"), 10);
+		try {
+			assertTrue(watched.hasBackgroundThreads());
+			try {
+				new MultiJobTaskCalculator(1, 1, 100, false, Arrays.asList(new TestJob(5, null), watched));
+				fail("Job with a progress watchdog should be rejected");
+			} catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("Job 1 has a progress watchdog"));
+			}
+		} finally {
+			MPJTaskCalculator.deadlock.kill();
+		}
+	}
+
+	@Test
+	public void testDoneCountsIdempotent() {
+		assumeMPJDisabled();
+		TestJob job0 = new TestJob(5, Arrays.asList(0, 1, 1));
+		TestJob job1 = new TestJob(3, null);
+		TestJob job2 = new TestJob(2, Arrays.asList(0, 1));
+		MultiJobTaskCalculator calc = new MultiJobTaskCalculator(1, 1, 100, false, Arrays.asList(job0, job1, job2));
+
+		for (int call=0; call<2; call++) {
+			Collection<Integer> done = calc.getDoneIndexes();
+			assertEquals(4, done.size());
+			assertTrue(done.containsAll(Arrays.asList(0, 1, 8, 9)));
+			// counted once, even when called again or listed twice
+			assertEquals(2, calc.getJobNumDone(0));
+			assertEquals(0, calc.getJobNumDone(1));
+			assertEquals(2, calc.getJobNumDone(2));
+		}
+		assertFalse(calc.isJobComplete(0));
+		assertTrue("Fully done at the start", calc.isJobComplete(2));
+
+		calc.postBatchHook.batchProcessed(new int[] { 2, 3, 4, 5 }, 1);
+		assertEquals(5, calc.getJobNumDone(0));
+		assertTrue(calc.isJobComplete(0));
+		assertEquals(1, calc.getJobNumDone(1));
+		assertFalse(calc.isJobComplete(1));
+		// each job's own hook gets its local indexes
+		assertEquals(1, job0.hookBatches.size());
+		assertArrayEquals(new int[] { 2, 3, 4 }, job0.hookBatches.get(0));
+		assertArrayEquals(new int[] { 0 }, job1.hookBatches.get(0));
+
+		calc.postBatchHook.batchProcessed(new int[] { 7, 6 }, 2);
+		assertTrue(calc.isJobComplete(1));
+		assertArrayEquals(new int[] { 2, 1 }, job1.hookBatches.get(1));
+	}
+
+	/**
+	 * @param jobSizes
+	 * @return offsets for the given job sizes, as in {@link MultiJobTaskCalculator}
+	 */
+	private static int[] getOffsets(int[] jobSizes) {
+		int[] offsets = new int[jobSizes.length+1];
+		for (int j=0; j<jobSizes.length; j++)
+			offsets[j+1] = offsets[j] + jobSizes[j];
+		return offsets;
+	}
+
+	@Test
+	public void testGetJobIndexEmptyJobs() {
+		// empty jobs at the start, middle (consecutive), and end
+		int[] offsets = getOffsets(new int[] { 0, 3, 0, 0, 2, 1, 0 });
+		int[] expected = { 1, 1, 1, 4, 4, 5 };
+		for (int index=0; index<expected.length; index++)
+			assertEquals("Wrong job for task "+index, expected[index],
+					MultiJobTaskCalculator.getJobIndex(offsets, index));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testGetJobIndexOutOfRange() {
+		int[] offsets = getOffsets(new int[] { 2, 0 });
+		MultiJobTaskCalculator.getJobIndex(offsets, 2);
+	}
+
+	@Test
+	public void testSplitBatch() {
+		for (int trial=0; trial<50; trial++) {
+			int[] jobSizes = new int[randomSize(1, 10)];
+			for (int j=0; j<jobSizes.length; j++)
+				// many empty jobs
+				jobSizes[j] = r.nextBoolean() ? 0 : randomSize(1, 50);
+			if (r.nextBoolean())
+				jobSizes[0] = 0;
+			jobSizes[r.nextInt(jobSizes.length)] = randomSize(1, 50);
+			int[] offsets = getOffsets(jobSizes);
+			int numTasks = offsets[jobSizes.length];
+
+			int[] batch = new int[randomSize(1, numTasks)];
+			for (int i=0; i<batch.length; i++)
+				batch[i] = r.nextInt(numTasks);
+
+			int[][] split = MultiJobTaskCalculator.splitBatch(offsets, batch);
+			assertEquals(jobSizes.length, split.length);
+			int[] counts = new int[jobSizes.length];
+			for (int index : batch) {
+				int job = MultiJobTaskCalculator.getJobIndex(offsets, index);
+				assertTrue("Task "+index+" assigned to empty job "+job, jobSizes[job] > 0);
+				assertTrue(index >= offsets[job] && index < offsets[job+1]);
+				// order within each job is kept
+				assertEquals(index - offsets[job], split[job][counts[job]++]);
+			}
+			for (int j=0; j<jobSizes.length; j++) {
+				if (counts[j] == 0)
+					assertNull("Expected null for job "+j+" with no tasks in the batch", split[j]);
+				else
+					assertEquals(counts[j], split[j].length);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ParallelGzipReaderTest {
+
+	private static final Random r = new Random();
+
+	private static byte[] randomText(int len) {
+		StringBuilder str = new StringBuilder();
+		while (str.length() < len)
+			str.append("line ").append(r.nextInt(1000)).append(" of some log output\n");
+		return str.substring(0, len).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+			out.write(data);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static File writeTemp(String suffix, byte[]... pieces) throws IOException {
+		File file = File.createTempFile("gzip_test", suffix);
+		file.deleteOnExit();
+		try (OutputStream out = new FileOutputStream(file)) {
+			for (byte[] piece : pieces)
+				out.write(piece);
+		}
+		return file;
+	}
+
+	private static void checkRead(byte[] expected, byte[]... members) throws IOException {
+		File file = writeTemp(".gz", members);
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new ParallelGzipReader(exec, 5).read(raf.getChannel(), out);
+			assertArrayEquals("Decompressed data doesn't match", expected, out.toByteArray());
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testSingleMember() throws IOException {
+		byte[] data = randomText(r.nextInt(1000000));
+		checkRead(data, gzip(data));
+	}
+
+	@Test
+	public void testMultiMember() throws IOException {
+		int num = 2 + r.nextInt(20);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		byte[][] members = new byte[num][];
+		for (int i=0; i<num; i++) {
+			byte[] data = randomText(r.nextInt(200000));
+			expected.write(data);
+			members[i] = gzip(data);
+		}
+		checkRead(expected.toByteArray(), members);
+	}
+
+	@Test
+	public void testBrokenChain() throws IOException {
+		// a member too large to buffer breaks the chain while later members are being inflated speculatively, and
+		// the rest is decompressed serially from the same channel
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		byte[][] members = new byte[6][];
+		for (int i=0; i<members.length; i++) {
+			// later members are large enough to still be inflating when the break is found
+			byte[] data = i == 1 ? new byte[33*1024*1024] : randomText(i < 2 ? 100000 : 8*1024*1024);
+			expected.write(data);
+			members[i] = gzip(data);
+		}
+		checkRead(expected.toByteArray(), members);
+	}
+
+	@Test
+	public void testConcatenatedLogs() throws IOException {
+		// compressed pieces of a log appended to each other, split mid line
+		byte[] log = ParallelLogParserTest.SAMPLE_LOG.getBytes(StandardCharsets.UTF_8);
+		int split = log.length/2;
+		byte[] first = new byte[split];
+		byte[] second = new byte[log.length - split];
+		System.arraycopy(log, 0, first, 0, split);
+		System.arraycopy(log, split, second, 0, second.length);
+		File file = writeTemp(".log"+ParallelLogParser.GZIP_SUFFIX, gzip(first), gzip(second));
+		ParallelLogParserTest.checkSampleLog(new ParallelLogParser(2).parse(file));
+	}
+
+	@Test
+	public void testZstdLog() throws IOException, InterruptedException {
+		File plain = writeTemp(".log", ParallelLogParserTest.SAMPLE_LOG.getBytes(StandardCharsets.UTF_8));
+		File file = new File(plain.getAbsolutePath()+ParallelLogParser.ZSTD_SUFFIX);
+		file.deleteOnExit();
+		int ret;
+		try {
+			ret = new ProcessBuilder("zstd", "-q", "-f", "-o", file.getAbsolutePath(), "--", plain.getAbsolutePath())
+					.inheritIO().start().waitFor();
+		} catch (IOException e) {
+			ret = -1;
+		}
+		Assume.assumeTrue("zstd isn't installed", ret == 0);
+		ParallelLogParserTest.checkSampleLog(new ParallelLogParser(2).parse(file));
+	}
+
+}
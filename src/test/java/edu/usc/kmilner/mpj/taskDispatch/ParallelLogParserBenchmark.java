@@ -0,0 +1,262 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.collect.Maps;
+
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.CalcBatch;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.Node;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.ParsedLog;
+
+/**
+ * Times {@link ParallelLogParser} on a large synthetic log, compared with the serial line based parser which it
+ * replaced (reproduced here as it was). Not run as part of the tests.
+ * <br>
+ * Usage: ParallelLogParserBenchmark [num processes] [batches per process] [threads]
+ *
+ * @author Kevin Milner
+ *
+ */
+public class ParallelLogParserBenchmark {
+
+	private static final int REPEATS = 3;
+
+	private static final long MILLISEC_PER_DAY = 1000l*60l*60l*24l;
+	private static final long HALF_DAY_MILLIS = MILLISEC_PER_DAY/2;
+
+	public static void main(String[] args) throws IOException {
+		int numProcs = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int numBatches = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		File file = File.createTempFile("benchmark", ".log");
+		file.deleteOnExit();
+		File gzFile = new File(file.getAbsolutePath()+ParallelLogParser.GZIP_SUFFIX);
+		gzFile.deleteOnExit();
+		long numLines = writeLog(file, gzFile, numProcs, numBatches);
+		double mb = file.length()/(1024d*1024d);
+		System.out.println("Synthetic log: "+numLines+" lines, "+(float)mb+" MB ("
+				+(float)(gzFile.length()/(1024d*1024d))+" MB gzipped), "+threads+" threads");
+
+		time("Serial line based parser", mb, numLines, new Timed() {
+
+			@Override
+			public long run() throws IOException {
+				return legacyParse(file);
+			}
+		});
+		time("ParallelLogParser, 1 thread", mb, numLines, new Timed() {
+
+			@Override
+			public long run() throws IOException {
+				return new ParallelLogParser(1).parse(file).numDone;
+			}
+		});
+		time("ParallelLogParser, "+threads+" threads", mb, numLines, new Timed() {
+
+			@Override
+			public long run() throws IOException {
+				return new ParallelLogParser(threads).parse(file).numDone;
+			}
+		});
+		time("ParallelLogParser, gzip, "+threads+" threads", mb, numLines, new Timed() {
+
+			@Override
+			public long run() throws IOException {
+				ParsedLog log = new ParallelLogParser(threads).parse(gzFile);
+				return log.numDone;
+			}
+		});
+	}
+
+	/**
+	 * The serial parser which {@link ParallelLogParser} replaced: a String for each line, String searches for each
+	 * message, and a SimpleDateFormat parse for each process line
+	 *
+	 * @return number of tasks done
+	 */
+	@SuppressWarnings("deprecation")
+	private static long legacyParse(File file) throws IOException {
+		Map<Node, Node> nodeSet = Maps.newHashMap();
+		Map<Node, Date> lastHeardFromMap = Maps.newHashMap();
+		Map<Node, List<CalcBatch>> nodeBatches = Maps.newHashMap();
+		Date prevDate = null;
+		int numLeft = -1;
+		long numDone = 0;
+		try (BufferedReader read = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 81920)) {
+			for (String line : new MPJTaskLogStatsGen.LogFileIterable(read)) {
+				if (line.contains("DispatcherThread]:")) {
+					if (line.contains("getting batch with ")) {
+						line = line.substring(line.indexOf("]:")+2, line.indexOf(" left"));
+						String[] split = line.split(" ");
+						numLeft = Integer.parseInt(split[split.length-1]);
+					} else if (line.contains("returning batch of size:")) {
+						String[] split = line.trim().split(" ");
+						numLeft -= Integer.parseInt(split[split.length-1]);
+					}
+				}
+				Node node = legacyParseNodeLine(line);
+				if (node == null)
+					continue;
+				if (nodeSet.containsKey(node)) {
+					node = nodeSet.get(node);
+				} else {
+					nodeSet.put(node, node);
+					nodeBatches.put(node, new ArrayList<CalcBatch>());
+				}
+				Date date = legacyParseDate(line, prevDate);
+				if (date == null)
+					continue;
+				lastHeardFromMap.put(node, date);
+				List<CalcBatch> batches = nodeBatches.get(node);
+				if (line.contains("receiving batch of length")) {
+					int size = Integer.parseInt(line.substring(line.indexOf("receiving batch of length")
+							+"receiving batch of length".length()).trim());
+					batches.add(new CalcBatch(size, node, date));
+				} else if (line.contains("sending READY message") || line.contains("getting next batch directly")) {
+					if (!batches.isEmpty()) {
+						CalcBatch batch = batches.get(batches.size()-1);
+						if (!batch.isCompleted()) {
+							batch.setEndDate(date);
+							numDone += batch.getSize();
+						}
+					}
+				}
+				prevDate = date;
+			}
+		}
+		return numDone;
+	}
+
+	private static Node legacyParseNodeLine(String line) {
+		if (!line.startsWith("["))
+			return null;
+		int endBracketIndex = line.indexOf("]:");
+		if (endBracketIndex < 0)
+			return null;
+		line = line.substring(0, endBracketIndex);
+		if (!line.contains("Process"))
+			return null;
+		String[] split = line.split(" ");
+		if (split.length < 2)
+			return null;
+		int processNum;
+		try {
+			processNum = Integer.parseInt(split[split.length-1]);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		String hostName = null;
+		if (split[1].startsWith("(") && split[1].endsWith(")"))
+			hostName = split[1].substring(1, split[1].length()-1);
+		return new Node(processNum, hostName);
+	}
+
+	private static Date legacyParseDate(String line, Date prevDate) {
+		line = line.substring(1).split(" ")[0];
+		try {
+			Date date = MPJTaskCalculator.df.parse(line);
+			if (prevDate != null)
+				while (date.getTime() < (prevDate.getTime() - HALF_DAY_MILLIS))
+					date = new Date(date.getTime()+MILLISEC_PER_DAY);
+			return date;
+		} catch (ParseException e) {
+			return null;
+		}
+	}
+
+	private interface Timed {
+		long run() throws IOException;
+	}
+
+	private static void time(String name, double mb, long numLines, Timed timed) throws IOException {
+		long best = Long.MAX_VALUE;
+		long result = 0;
+		for (int i=0; i<REPEATS; i++) {
+			long start = System.nanoTime();
+			result = timed.run();
+			best = Long.min(best, System.nanoTime() - start);
+		}
+		double secs = best/1e9;
+		System.out.println(name+": "+(float)secs+" s, "+(float)(mb/secs)+" MB/s, "
+				+(float)(numLines/secs/1e6)+" M lines/s (result: "+result+")");
+	}
+
+	/**
+	 * Writes a log in the {@link MPJTaskCalculator} format with the given number of processes and batches each,
+	 * including dispatcher lines, batch telemetry, merged lines, and a midnight transition
+	 *
+	 * @return number of lines written
+	 */
+	private static long writeLog(File file, File gzFile, int numProcs, int numBatches) throws IOException {
+		Random r = new Random(numProcs*numBatches);
+		long numLines = 0;
+		long time = 23l*3600000l + 50l*60000l;
+		int numLeft = numProcs*numBatches;
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+					StandardCharsets.UTF_8), 1024*1024);
+				Writer gzOut = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
+					new BufferedOutputStream(new FileOutputStream(gzFile), 1024*1024)), StandardCharsets.UTF_8))) {
+			StringBuilder str = new StringBuilder();
+			str.append("[").append(formatTime(time)).append(" DispatcherThread]: starting with ").append(numProcs)
+				.append(" processes and ").append(numLeft).append(" sites. minPerDispatch=1, maxPerDispatch=1\n");
+			numLines++;
+			for (int i=0; i<numBatches; i++) {
+				for (int p=0; p<numProcs; p++) {
+					String header = " (host"+(p/16)+") Process "+p+"]: ";
+					str.append("[").append(formatTime(time)).append(header).append("sending READY message");
+					if (r.nextInt(100) == 0) {
+						// written concurrently with the dispatcher
+						str.append("[").append(formatTime(time)).append(" DispatcherThread]: getting batch with ")
+							.append(numLeft).append(" left\n");
+					} else {
+						str.append("\n[").append(formatTime(time)).append(" DispatcherThread]: getting batch with ")
+							.append(numLeft).append(" left\n");
+					}
+					str.append("[").append(formatTime(time)).append(" DispatcherThread]: returning batch of size: 1\n");
+					numLeft--;
+					str.append("[").append(formatTime(time)).append(header).append("receiving batch of length 1\n");
+					time += r.nextInt(5);
+					str.append("[").append(formatTime(time)).append(header)
+						.append("batch telemetry: gcCount=").append(r.nextInt(3)).append(", gcMillis=")
+						.append(r.nextInt(100)).append(", allocMB=").append(r.nextInt(1000)).append(", peakHeapMB=")
+						.append(r.nextInt(4000)).append("\n");
+					numLines += 5;
+				}
+				if (str.length() > 1024*1024) {
+					out.append(str);
+					gzOut.append(str);
+					str.setLength(0);
+				}
+			}
+			out.append(str);
+			gzOut.append(str);
+		}
+		return numLines;
+	}
+
+	private static String formatTime(long millis) {
+		millis = millis % (24l*3600000l);
+		return String.format("%02d:%02d:%02d.%03d", millis/3600000l, (millis/60000l) % 60, (millis/1000l) % 60,
+				millis % 1000);
+	}
+
+}
@@ -0,0 +1,187 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.CalcBatch;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.Node;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.ParsedLog;
+
+public class ParallelLogParserTest {
+
+	static final String SAMPLE_LOG =
+			"[23:59:58.000 DispatcherThread]: starting with 2 processes and 10 sites. minPerDispatch=1, maxPerDispatch=5\n"
+			+ "[23:59:58.100 (a) Process 0]: sending READY message\n"
+			+ "[23:59:58.200 DispatcherThread]: getting batch with 10 left\n"
+			+ "[23:59:58.210 DispatcherThread]: returning batch of size: 4\n"
+			+ "[23:59:58.300 (a) Process 0]: receiving batch of length 4\n"
+			+ "some unrelated output\n"
+			// two lines written concurrently
+			+ "[23:59:58.400 (b) Process 1]: sending READY message[23:59:58.401 DispatcherThread]: getting batch with 6 left\n"
+			+ "[23:59:58.410 DispatcherThread]: returning batch of size: 3\n"
+			+ "[23:59:58.500 (b) Process 1]: receiving batch of length 3\n"
+			+ "[23:59:59.300 (a) Process 0]: batch telemetry: gcCount=2, gcMillis=50, allocMB=100, peakHeapMB=200\n"
+			+ "[23:59:59.300 (a) Process 0]: sending READY message\n"
+			// after midnight
+			+ "[00:00:01.500 (b) Process 1]: sending READY message\r\n";
+
+	static void checkSampleLog(ParsedLog log) {
+		assertEquals(2, log.dispatchSize);
+		assertEquals(1, log.minPerDispatch);
+		assertEquals(5, log.maxPerDispatch);
+		assertEquals(-1, log.exactDispatch);
+		assertEquals(10, log.numTasks);
+		assertEquals(3, log.numLeft);
+		assertEquals(7, log.numDone);
+
+		Node a = log.getNode(new Node(0, "a"));
+		Node b = log.getNode(new Node(1, "b"));
+		assertEquals(2, log.nodeBatches.size());
+
+		List<CalcBatch> aBatches = log.nodeBatches.get(a);
+		assertEquals(1, aBatches.size());
+		assertEquals(4, aBatches.get(0).getSize());
+		assertEquals(1000l, aBatches.get(0).getDurationMillis());
+		assertTrue(aBatches.get(0).hasTelemetry());
+		assertEquals(2, aBatches.get(0).getGCCount());
+		assertEquals(50, aBatches.get(0).getGCMillis());
+		assertEquals(200, aBatches.get(0).getPeakHeapMB());
+
+		List<CalcBatch> bBatches = log.nodeBatches.get(b);
+		assertEquals(1, bBatches.size());
+		assertEquals(3, bBatches.get(0).getSize());
+		assertEquals("Midnight transition not handled", 3000l, bBatches.get(0).getDurationMillis());
+		assertFalse(bBatches.get(0).hasTelemetry());
+
+		assertEquals(log.lastHeardFromMap.get(a).getTime() + 2200l, log.lastHeardFromMap.get(b).getTime());
+	}
+
+	@Test
+	public void testSampleLog() throws IOException {
+		byte[] bytes = SAMPLE_LOG.getBytes(StandardCharsets.UTF_8);
+		checkSampleLog(new ParallelLogParser(2).parse(new ByteArrayInputStream(bytes)));
+
+		File file = File.createTempFile("sample", ".log");
+		file.deleteOnExit();
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(bytes);
+		}
+		checkSampleLog(new ParallelLogParser(2).parse(file));
+	}
+
+	/**
+	 * Writes a log large enough to be split into several chunks, which crosses midnight
+	 */
+	static String buildLargeLog(int numProcs, int numBatches) {
+		StringBuilder str = new StringBuilder();
+		long time = 23l*3600000l + 58l*60000l;
+		int numLeft = numProcs*numBatches;
+		for (int i=0; i<numBatches; i++) {
+			for (int p=0; p<numProcs; p++) {
+				String header = " (host"+p+") Process "+p+"]: ";
+				str.append("[").append(formatTime(time)).append(" DispatcherThread]: getting batch with ")
+					.append(numLeft).append(" left\n");
+				str.append("[").append(formatTime(time)).append(" DispatcherThread]: returning batch of size: 1\n");
+				numLeft--;
+				str.append("[").append(formatTime(time)).append(header).append("receiving batch of length 1\n");
+				time += 7;
+				str.append("[").append(formatTime(time)).append(header).append("sending READY message\n");
+			}
+		}
+		return str.toString();
+	}
+
+	private static String formatTime(long millis) {
+		millis = millis % (24l*3600000l);
+		return String.format("%02d:%02d:%02d.%03d", millis/3600000l, (millis/60000l) % 60, (millis/1000l) % 60,
+				millis % 1000);
+	}
+
+	static void assertEquivalent(ParsedLog expected, ParsedLog actual) {
+		assertEquals(expected.numTasks, actual.numTasks);
+		assertEquals(expected.numLeft, actual.numLeft);
+		assertEquals(expected.numDone, actual.numDone);
+		assertEquals(expected.firstDate, actual.firstDate);
+		assertEquals(expected.lastHeardFromMap, actual.lastHeardFromMap);
+		assertEquals(expected.nodeBatches.keySet(), actual.nodeBatches.keySet());
+		for (Node node : expected.nodeBatches.keySet()) {
+			List<CalcBatch> expBatches = expected.nodeBatches.get(node);
+			List<CalcBatch> actBatches = actual.nodeBatches.get(node);
+			assertEquals(expBatches.size(), actBatches.size());
+			for (int i=0; i<expBatches.size(); i++) {
+				assertEquals(expBatches.get(i).getSize(), actBatches.get(i).getSize());
+				assertEquals(expBatches.get(i).getStartDate(), actBatches.get(i).getStartDate());
+				assertEquals(expBatches.get(i).getEndDate(), actBatches.get(i).getEndDate());
+			}
+		}
+	}
+
+	@Test
+	public void testChunkedLog() throws IOException {
+		int numProcs = 4;
+		int numBatches = 6000;
+		byte[] bytes = buildLargeLog(numProcs, numBatches).getBytes(StandardCharsets.UTF_8);
+		assertTrue("Log should span several chunks", bytes.length > 3*1024*1024);
+
+		File file = File.createTempFile("large", ".log");
+		file.deleteOnExit();
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(bytes);
+		}
+		// single threaded stream parse as the reference
+		ParsedLog reference = new ParallelLogParser(1).parse(new ByteArrayInputStream(bytes));
+		assertEquals(numProcs*numBatches, reference.numDone);
+		assertEquals(0, reference.numLeft);
+		for (List<CalcBatch> batches : reference.nodeBatches.values()) {
+			assertEquals(numBatches, batches.size());
+			for (CalcBatch batch : batches)
+				assertEquals("Midnight transition not handled", 7l, batch.getDurationMillis());
+		}
+
+		assertEquivalent(reference, new ParallelLogParser(4).parse(file));
+	}
+
+	@SuppressWarnings("deprecation")
+	@Test
+	public void testDeprecatedLineAPI() {
+		List<String> lines = new ArrayList<>();
+		for (String line : new MPJTaskLogStatsGen.LogFileIterable(new BufferedReader(new StringReader(SAMPLE_LOG))))
+			lines.add(line);
+		// one extra for the merged line
+		assertEquals(SAMPLE_LOG.split("\n").length+1, lines.size());
+		assertEquals("[23:59:58.400 (b) Process 1]: sending READY message", lines.get(6));
+		assertEquals("[23:59:58.401 DispatcherThread]: getting batch with 6 left", lines.get(7));
+		assertEquals("some unrelated output", lines.get(5));
+
+		Date prev = null;
+		Date first = null;
+		for (String line : lines) {
+			Date date = MPJTaskLogStatsGen.parseDate(line, prev);
+			if (!line.startsWith("[")) {
+				assertNull(date);
+				continue;
+			}
+			assertNotNull(date);
+			if (first == null)
+				first = date;
+			if (prev != null)
+				assertFalse("Midnight transition not handled", date.before(prev));
+			prev = date;
+		}
+		assertEquals(3500l, prev.getTime() - first.getTime());
+	}
+
+}
@@ -0,0 +1,208 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ProgressWatchdogThreadTest {
+
+	private static final Random r = new Random();
+
+	private static int randomSize(int min, int max) {
+		return min + r.nextInt(max - min + 1);
+	}
+
+	/**
+	 * Watchdog with a fake clock, which records log messages and failure reports instead of using a calculator
+	 */
+	private static class TestWatchdog extends ProgressWatchdogThread {
+
+		private long nanos;
+		private List<String> messages = new ArrayList<>();
+		private int numReports;
+		// results of successive report attempts, true once exhausted
+		private boolean[] reportResults = new boolean[0];
+
+		TestWatchdog(long windowMillis, double avgMultiple, boolean reportFailed) {
+			super(null, 1000l, false, windowMillis, avgMultiple, reportFailed);
+			// the constructor reads the clock before our fields are initialized
+			progress();
+		}
+
+		@Override
+		long nanoTime() {
+			return nanos;
+		}
+
+		void advance(long millis) {
+			nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+
+		@Override
+		void log(String message) {
+			messages.add(message);
+		}
+
+		@Override
+		boolean reportFailed() {
+			boolean ret = numReports < reportResults.length ? reportResults[numReports] : true;
+			numReports++;
+			return ret;
+		}
+
+		int getNumDumps() {
+			int count = 0;
+			for (String message : messages)
+				if (message.startsWith("progress watchdog: thread dump"))
+					count++;
+			return count;
+		}
+	}
+
+	@Test
+	public void testGetStallMillisFixedWindow() {
+		long window = randomSize(1000, 100000);
+		TestWatchdog watchdog = new TestWatchdog(window, -1, false);
+		assertEquals(window, watchdog.getStallMillis());
+		// the average is ignored without a multiple
+		watchdog.batchStarted(10);
+		watchdog.batchFinished(10, 10000000l);
+		assertEquals(window, watchdog.getStallMillis());
+	}
+
+	@Test
+	public void testGetStallMillisAvgMultiple() {
+		TestWatchdog watchdog = new TestWatchdog(-1, 3d, false);
+		// unknown until the first batch completes
+		assertEquals(Long.MAX_VALUE, watchdog.getStallMillis());
+
+		long perTask = 60l*1000l;
+		watchdog.batchStarted(5);
+		watchdog.batchFinished(5, 5*perTask);
+		// no batch in progress, expected time is a single task but never below the minimum
+		assertEquals(ProgressWatchdogThread.MIN_RELATIVE_STALL_MILLIS, watchdog.getStallMillis());
+		watchdog.batchStarted(10);
+		assertEquals(3l*10l*perTask, watchdog.getStallMillis());
+
+		// rolling average moves 20% toward the new per task time
+		watchdog.batchFinished(10, 10*2*perTask);
+		watchdog.batchStarted(10);
+		assertEquals((long)(3d*10d*1.2d*perTask), watchdog.getStallMillis());
+	}
+
+	@Test
+	public void testGetStallMillisBoth() {
+		long window = 20l*60l*1000l;
+		TestWatchdog watchdog = new TestWatchdog(window, 2d, false);
+		long perTask = 60l*1000l;
+		watchdog.batchStarted(4);
+		watchdog.batchFinished(4, 4*perTask);
+		// the smaller of the two
+		watchdog.batchStarted(5);
+		assertEquals(2l*5l*perTask, watchdog.getStallMillis());
+		watchdog.batchFinished(5, 5*perTask);
+		watchdog.batchStarted(50);
+		assertEquals(window, watchdog.getStallMillis());
+	}
+
+	@Test
+	public void testFixedWindowStall() {
+		long window = randomSize(1000, 100000);
+		TestWatchdog watchdog = new TestWatchdog(window, -1, false);
+		watchdog.advance(window-1);
+		watchdog.check();
+		assertEquals(0, watchdog.getNumDumps());
+		watchdog.advance(1);
+		watchdog.check();
+		assertEquals(1, watchdog.getNumDumps());
+		assertEquals("shouldn't report unless enabled", 0, watchdog.numReports);
+	}
+
+	@Test
+	public void testAvgMultipleStall() {
+		TestWatchdog watchdog = new TestWatchdog(-1, 2d, false);
+		long perTask = 10l*60l*1000l;
+		watchdog.batchStarted(3);
+		watchdog.advance(3*perTask);
+		watchdog.batchFinished(3, 3*perTask);
+		// never stalled before the average is known
+		assertEquals(0, watchdog.getNumDumps());
+
+		watchdog.batchStarted(3);
+		watchdog.advance(2*3*perTask - 1);
+		watchdog.check();
+		assertEquals(0, watchdog.getNumDumps());
+		watchdog.advance(1);
+		watchdog.check();
+		assertEquals(1, watchdog.getNumDumps());
+	}
+
+	@Test
+	public void testDumpOnce() {
+		long window = 1000l;
+		TestWatchdog watchdog = new TestWatchdog(window, -1, true);
+		watchdog.advance(window);
+		int numChecks = randomSize(2, 10);
+		for (int i=0; i<numChecks; i++) {
+			watchdog.check();
+			watchdog.advance(window);
+		}
+		assertEquals(1, watchdog.getNumDumps());
+		assertEquals(1, watchdog.numReports);
+	}
+
+	@Test
+	public void testRetryReport() {
+		long window = 1000l;
+		TestWatchdog watchdog = new TestWatchdog(window, -1, true);
+		// e.g. the dispatch lock couldn't be acquired the first two times
+		watchdog.reportResults = new boolean[] { false, false };
+		watchdog.advance(window);
+		watchdog.check();
+		assertEquals(1, watchdog.numReports);
+		watchdog.check();
+		assertEquals(2, watchdog.numReports);
+		watchdog.check();
+		assertEquals(3, watchdog.numReports);
+		// reported now
+		watchdog.check();
+		assertEquals(3, watchdog.numReports);
+		assertEquals(1, watchdog.getNumDumps());
+	}
+
+	@Test
+	public void testReportAgainAfterResume() {
+		long window = 1000l;
+		TestWatchdog watchdog = new TestWatchdog(window, -1, true);
+		watchdog.advance(window);
+		watchdog.check();
+		assertEquals(1, watchdog.getNumDumps());
+		assertEquals(1, watchdog.numReports);
+
+		watchdog.progress();
+		watchdog.check();
+		assertTrue(watchdog.messages.contains("progress watchdog: progress resumed"));
+
+		watchdog.advance(window);
+		watchdog.check();
+		assertEquals(2, watchdog.getNumDumps());
+		assertEquals(2, watchdog.numReports);
+	}
+
+	@Test
+	public void testStopProgressChecks() {
+		long window = 1000l;
+		TestWatchdog watchdog = new TestWatchdog(window, -1, true);
+		watchdog.stopProgressChecks();
+		watchdog.advance(10*window);
+		watchdog.check();
+		assertEquals(0, watchdog.getNumDumps());
+		assertEquals(0, watchdog.numReports);
+	}
+
+}
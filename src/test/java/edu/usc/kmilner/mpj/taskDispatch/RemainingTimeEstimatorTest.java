@@ -0,0 +1,152 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.CalcBatch;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.Node;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.ParsedLog;
+import edu.usc.kmilner.mpj.taskDispatch.RemainingTimeEstimator.Estimate;
+import edu.usc.kmilner.mpj.taskDispatch.RemainingTimeEstimator.Straggler;
+
+public class RemainingTimeEstimatorTest {
+
+	private static final int BATCH_SIZE = 10;
+	private static final int HISTORY_BATCHES = 20;
+	// simulation start, after all of the history batches
+	private static final long SIM_START = 10000000l;
+
+	/**
+	 * Builds a log where each node has completed {@link #HISTORY_BATCHES} batches back to back (no dispatch overhead)
+	 * ending at the simulation start, alternating between 80% and 120% of the node's time per task
+	 *
+	 * @param millisPerTask mean time per task for each node
+	 * @param numLeft
+	 * @return log
+	 */
+	private static ParsedLog buildLog(double[] millisPerTask, int numLeft) {
+		ParsedLog log = new ParsedLog();
+		log.dispatchSize = millisPerTask.length;
+		log.minPerDispatch = 1;
+		log.maxPerDispatch = BATCH_SIZE;
+		log.exactDispatch = BATCH_SIZE;
+		log.numLeft = numLeft;
+		for (int n=0; n<millisPerTask.length; n++) {
+			Node node = log.getNode(new Node(n, "host"+n));
+			List<CalcBatch> batches = log.nodeBatches.get(node);
+			long[] durations = new long[HISTORY_BATCHES];
+			long total = 0l;
+			for (int i=0; i<HISTORY_BATCHES; i++) {
+				durations[i] = Math.round(BATCH_SIZE*millisPerTask[n]*(i % 2 == 0 ? 0.8d : 1.2d));
+				total += durations[i];
+			}
+			long time = SIM_START - total;
+			for (int i=0; i<HISTORY_BATCHES; i++) {
+				CalcBatch batch = new CalcBatch(BATCH_SIZE, node, new Date(time));
+				time += durations[i];
+				batch.setEndDate(new Date(time));
+				batches.add(batch);
+			}
+		}
+		return log;
+	}
+
+	private static Straggler find(List<Straggler> stragglers, int processNum) {
+		for (Straggler straggler : stragglers)
+			if (straggler.node.getProcessNum() == processNum)
+				return straggler;
+		return null;
+	}
+
+	@Test
+	public void testHomogeneousDrainTime() {
+		int numNodes = 8;
+		double perTask = 1000d;
+		double[] rates = new double[numNodes];
+		for (int n=0; n<numNodes; n++)
+			rates[n] = perTask;
+		int numLeft = 8000;
+		ParsedLog log = buildLog(rates, numLeft);
+
+		RemainingTimeEstimator estimator = new RemainingTimeEstimator(log, 2);
+		assertEquals(numLeft/BATCH_SIZE, estimator.countRemainingBatches());
+		Estimate estimate = estimator.estimate(new Date(SIM_START), 200);
+		assertEquals(200, estimate.numTrials);
+
+		double analytic = numLeft*perTask/numNodes;
+		double p50 = estimate.getPercentile(0.5);
+		assertEquals("P50 should be close to the analytic drain time", analytic, p50, 0.05*analytic);
+		assertTrue(estimate.getPercentile(0.1) <= p50);
+		assertTrue(estimate.getPercentile(0.9) >= p50);
+		for (Straggler straggler : estimate.stragglers)
+			assertFalse(straggler.isOverdue());
+	}
+
+	@Test
+	public void testSlowNodeStraggler() {
+		double[] rates = { 1000d, 1000d, 2000d, 1000d };
+		// a single batch for each node, the slow node always finishes last
+		ParsedLog log = buildLog(rates, rates.length*BATCH_SIZE);
+
+		Estimate estimate = new RemainingTimeEstimator(log, 2).estimate(new Date(SIM_START), 100);
+		assertEquals(1, estimate.stragglers.size());
+		Straggler straggler = estimate.stragglers.get(0);
+		assertEquals(2, straggler.node.getProcessNum());
+		assertEquals(1d, straggler.fractLast, 0d);
+		assertEquals(2d*straggler.medianMillisPerTask, straggler.millisPerTask, 0.3d*straggler.millisPerTask);
+		assertFalse(straggler.isOverdue());
+		double p50 = estimate.getPercentile(0.5);
+		assertEquals(BATCH_SIZE*2000d, p50, 0.2d*BATCH_SIZE*2000d);
+	}
+
+	@Test
+	public void testOverdueStraggler() {
+		int numNodes = 20;
+		double[] rates = new double[numNodes];
+		for (int n=0; n<numNodes; n++)
+			rates[n] = 1000d;
+		ParsedLog log = buildLog(rates, 2000);
+		// node 5 has been running its current batch for 10x as long as its slowest recent batch
+		Node overdue = log.getNode(new Node(5, "host5"));
+		log.nodeBatches.get(overdue).add(new CalcBatch(BATCH_SIZE, overdue,
+				new Date(SIM_START - 10l*BATCH_SIZE*1200l)));
+		// node 7 just started one
+		Node running = log.getNode(new Node(7, "host7"));
+		log.nodeBatches.get(running).add(new CalcBatch(BATCH_SIZE, running, new Date(SIM_START - 1000l)));
+
+		Estimate estimate = new RemainingTimeEstimator(log, 2).estimate(new Date(SIM_START), 100);
+		Straggler straggler = find(estimate.stragglers, 5);
+		assertNotNull("Overdue batch should be flagged", straggler);
+		assertTrue(straggler.isOverdue());
+		assertEquals(10l*BATCH_SIZE*1200l, straggler.inProgressElapsed, 0d);
+		assertEquals(BATCH_SIZE*1200d, straggler.inProgressExpected, 1d);
+		for (Straggler other : estimate.stragglers)
+			if (other != straggler)
+				assertFalse(other.node.getProcessNum()+" isn't overdue", other.isOverdue());
+	}
+
+	@Test
+	public void testThreadIndependence() {
+		double[] rates = { 900d, 1000d, 1100d, 1500d, 1000d };
+		ParsedLog log = buildLog(rates, 3000);
+		Node node = log.getNode(new Node(3, "host3"));
+		log.nodeBatches.get(node).add(new CalcBatch(BATCH_SIZE, node, new Date(SIM_START - 5000l)));
+
+		int numTrials = 150;
+		Estimate reference = new RemainingTimeEstimator(log, 1).estimate(new Date(SIM_START), numTrials);
+		for (int threads : new int[] { 2, 3, 8 }) {
+			Estimate estimate = new RemainingTimeEstimator(log, threads).estimate(new Date(SIM_START), numTrials);
+			assertArrayEquals("threads="+threads, reference.timesLeft, estimate.timesLeft, 0d);
+			assertEquals(reference.stragglers.size(), estimate.stragglers.size());
+			for (int i=0; i<reference.stragglers.size(); i++) {
+				assertEquals(reference.stragglers.get(i).node, estimate.stragglers.get(i).node);
+				assertEquals(reference.stragglers.get(i).fractLast, estimate.stragglers.get(i).fractLast, 0d);
+			}
+		}
+	}
+
+}
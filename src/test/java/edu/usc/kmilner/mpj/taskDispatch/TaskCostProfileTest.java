@@ -0,0 +1,109 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class TaskCostProfileTest {
+
+	private static File tempProfile() throws IOException {
+		File file = File.createTempFile("cost_profile", ".bin");
+		file.delete();
+		file.deleteOnExit();
+		return file;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		File file = tempProfile();
+		int numTasks = 100;
+		try (TaskCostProfile profile = new TaskCostProfile(file, numTasks)) {
+			assertEquals(0, profile.getNumKnown());
+			assertTrue(Float.isNaN(profile.getCost(0)));
+			assertTrue(Double.isNaN(profile.getCostOrMean(0)));
+			profile.recordBatch(new int[] { 0, 1, 2, 3 }, 400l);
+			profile.recordBatch(new int[] { 10 }, 1000l);
+		}
+
+		try (TaskCostProfile profile = new TaskCostProfile(file, numTasks)) {
+			assertEquals(5, profile.getNumKnown());
+			assertEquals(100f, profile.getCost(2), 0f);
+			assertEquals(1000f, profile.getCost(10), 0f);
+			assertTrue(Float.isNaN(profile.getCost(50)));
+			assertEquals("Unknown costs should default to the mean", 1400d/5d, profile.getCostOrMean(50), 1e-6);
+			// later batches replace earlier costs
+			profile.recordBatch(new int[] { 10 }, 500l);
+			assertEquals(500f, profile.getCost(10), 0f);
+			assertEquals(5, profile.getNumKnown());
+		}
+
+		// resized: costs for indexes present in both are kept
+		try (TaskCostProfile profile = new TaskCostProfile(file, 5)) {
+			assertEquals(4, profile.getNumKnown());
+			assertEquals(100f, profile.getCost(3), 0f);
+			assertTrue(Float.isNaN(profile.getCost(4)));
+		}
+	}
+
+	@Test
+	public void testLongestFirst() throws IOException {
+		File file = tempProfile();
+		int numTasks = 50;
+		try (TaskCostProfile profile = new TaskCostProfile(file, numTasks)) {
+			for (int i=0; i<numTasks; i++)
+				profile.recordBatch(new int[] { i }, i == 17 ? 10000l : 10l);
+		}
+		try (TaskCostProfile profile = new TaskCostProfile(file, numTasks)) {
+			DispatcherThread dispatcher = new DispatcherThread(4, numTasks, 1, numTasks, -1, true, 0, numTasks,
+					null, null, profile);
+			int[] batch = dispatcher.getNextBatch(0);
+			assertEquals("Longest task should be dispatched first", 17, batch[0]);
+		}
+	}
+
+	private static void assertRefused(File file, int numTasks) throws IOException {
+		byte[] before = Files.readAllBytes(file.toPath());
+		try {
+			new TaskCostProfile(file, numTasks).close();
+			fail("Should have refused to overwrite "+file.getName());
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Refusing to overwrite"));
+		}
+		assertArrayEquals("File shouldn't have been modified", before, Files.readAllBytes(file.toPath()));
+	}
+
+	@Test
+	public void testRefuseOverwrite() throws IOException {
+		File file = tempProfile();
+		int numTasks = 10;
+
+		// some other file, e.g. a mistyped path
+		Files.write(file.toPath(), "not a cost profile, but long enough for a header".getBytes());
+		assertRefused(file, numTasks);
+
+		// too short for a header
+		Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+		assertRefused(file, numTasks);
+
+		// a later version
+		file.delete();
+		new TaskCostProfile(file, numTasks).close();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(4);
+			raf.writeInt(2);
+		}
+		assertRefused(file, numTasks);
+
+		// an empty file, e.g. from mktemp, is fine
+		Files.write(file.toPath(), new byte[0]);
+		try (TaskCostProfile profile = new TaskCostProfile(file, numTasks)) {
+			assertEquals(0, profile.getNumKnown());
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.hash.HashCode;
+
+public class TaskResultCacheTest {
+
+	private static final Random r = new Random();
+
+	private static File tempCacheDir() throws IOException {
+		File dir = Files.createTempDirectory("result_cache").toFile();
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	private static byte[] randomValue(int minSize, int maxSize) {
+		byte[] value = new byte[minSize + r.nextInt(maxSize - minSize + 1)];
+		r.nextBytes(value);
+		return value;
+	}
+
+	private static int countShards(File dir) {
+		int num = 0;
+		for (File file : dir.listFiles()) {
+			file.deleteOnExit();
+			if (file.getName().startsWith(TaskResultCache.SHARD_PREFIX)
+					&& file.getName().endsWith(TaskResultCache.SHARD_SUFFIX))
+				num++;
+		}
+		return num;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		File dir = tempCacheDir();
+		int numTasks = 50;
+		byte[][] values = new byte[numTasks][];
+		for (int rank=1; rank<=2; rank++) {
+			try (TaskResultCache cache = new TaskResultCache(dir, rank, 0l)) {
+				for (int i=rank-1; i<numTasks; i+=2) {
+					values[i] = randomValue(0, 100);
+					cache.put(TaskResultCache.hashKey("task"+i), values[i]);
+				}
+				cache.flush();
+			}
+		}
+		// newer results for the same key replace older ones, even from another shard
+		byte[] newer = randomValue(10, 10);
+		try (TaskResultCache cache = new TaskResultCache(dir, 2, 0l)) {
+			cache.put(TaskResultCache.hashKey("task0"), newer);
+		}
+		values[0] = newer;
+
+		TaskResultCache cache = new TaskResultCache(dir, 0, 0l);
+		cache.loadIndex();
+		for (int i=0; i<numTasks; i++)
+			assertArrayEquals("Cached result mismatch for task "+i, values[i], cache.get(TaskResultCache.hashKey("task"+i)));
+		assertNull(cache.get(TaskResultCache.hashKey("task"+numTasks)));
+		cache.evict(0l);
+		cache.close();
+	}
+
+	@Test
+	public void testRollOver() throws IOException {
+		File dir = tempCacheDir();
+		int numTasks = 200;
+		byte[][] values = new byte[numTasks][];
+		try (TaskResultCache cache = new TaskResultCache(dir, 1, 0l)) {
+			cache.setMaxShardBytes(1000);
+			for (int i=0; i<numTasks; i++) {
+				values[i] = randomValue(0, 200);
+				cache.put(TaskResultCache.hashKey("task"+i), values[i]);
+			}
+			// larger than a shard
+			cache.put(TaskResultCache.hashKey("big"), new byte[5000]);
+		}
+		int numShards = countShards(dir);
+		assertTrue("Shards should have been rolled over", numShards > 1);
+		for (File file : dir.listFiles())
+			assertTrue(file.length() <= 1000 || file.length() > 5000);
+
+		// appending resumes in the last shard rather than creating a new one per run
+		try (TaskResultCache cache = new TaskResultCache(dir, 1, 0l)) {
+			cache.setMaxShardBytes(1000);
+			cache.put(TaskResultCache.hashKey("task0"), values[0]);
+		}
+		assertTrue(countShards(dir) <= numShards+1);
+
+		TaskResultCache cache = new TaskResultCache(dir, 0, 0l);
+		cache.loadIndex();
+		for (int i=0; i<numTasks; i++)
+			assertArrayEquals(values[i], cache.get(TaskResultCache.hashKey("task"+i)));
+		assertEquals(5000, cache.get(TaskResultCache.hashKey("big")).length);
+		cache.evict(0l);
+		cache.close();
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+		File dir = tempCacheDir();
+		int numTasks = 100;
+		int valueSize = 100;
+		try (TaskResultCache cache = new TaskResultCache(dir, 1, 0l)) {
+			for (int i=0; i<numTasks; i++)
+				cache.put(TaskResultCache.hashKey("task"+i), randomValue(valueSize, valueSize));
+		}
+
+		long maxBytes = 3000;
+		TaskResultCache cache = new TaskResultCache(dir, 0, maxBytes);
+		cache.setMaxShardBytes(1000);
+		long totalBytes = cache.loadIndex();
+		assertTrue(totalBytes > maxBytes);
+		// use a few old entries, which should be kept
+		int[] usedTasks = { 0, 1, 2 };
+		for (int i : usedTasks)
+			assertNotNull(cache.get(TaskResultCache.hashKey("task"+i)));
+		cache.evict(totalBytes);
+		cache.close();
+		assertTrue(cache.getStatsString().contains("evicted="));
+
+		long evictedBytes = 0;
+		for (File file : dir.listFiles()) {
+			assertFalse("Temporary files should have been renamed", file.getName().endsWith(".tmp"));
+			evictedBytes += file.length();
+		}
+		assertTrue("Cache should be within bounds after eviction: "+evictedBytes, evictedBytes <= maxBytes);
+		assertTrue("Evicted cache should have been rolled over", countShards(dir) > 1);
+
+		cache = new TaskResultCache(dir, 0, maxBytes);
+		cache.loadIndex();
+		for (int i : usedTasks)
+			assertNotNull("Used entry was evicted", cache.get(TaskResultCache.hashKey("task"+i)));
+		int numKept = 0;
+		for (int i=0; i<numTasks; i++) {
+			HashCode key = TaskResultCache.hashKey("task"+i);
+			if (cache.get(key) != null)
+				numKept++;
+		}
+		assertTrue(numKept > usedTasks.length);
+		assertTrue(numKept < numTasks);
+		cache.evict(0l);
+		cache.close();
+	}
+
+	private static abstract class NoCacheCalc extends MPJTaskCalculator {
+
+		public NoCacheCalc() {
+			super(null);
+		}
+	}
+
+	private static abstract class PartialCacheCalc extends NoCacheCalc {
+
+		@Override
+		protected byte[] serializeTaskResult(int index) throws Exception {
+			return new byte[0];
+		}
+	}
+
+	private static abstract class CacheCalc extends PartialCacheCalc {
+
+		@Override
+		protected void loadCachedTaskResult(int index, byte[] result) throws Exception {}
+	}
+
+	@Test
+	public void testSupportCheck() {
+		assertFalse(MPJTaskCalculator.isResultCacheSupported(NoCacheCalc.class));
+		assertFalse(MPJTaskCalculator.isResultCacheSupported(PartialCacheCalc.class));
+		assertTrue(MPJTaskCalculator.isResultCacheSupported(CacheCalc.class));
+	}
+
+}
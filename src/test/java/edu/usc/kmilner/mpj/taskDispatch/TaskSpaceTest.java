@@ -0,0 +1,123 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.usc.kmilner.mpj.taskDispatch.TaskSpace.Ordering;
+
+public class TaskSpaceTest {
+
+	private static final Random r = new Random();
+
+	private static int randomSize(int min, int max) {
+		return min + r.nextInt(max - min);
+	}
+
+	@Test
+	public void testCoordinates() {
+		TaskSpace space = new TaskSpace(randomSize(1, 20), randomSize(1, 20), randomSize(1, 20));
+		assertEquals(space.getSize(0)*space.getSize(1)*space.getSize(2), space.getNumTasks());
+		int[] coords = new int[3];
+		for (int index=0; index<space.getNumTasks(); index++) {
+			space.getCoordinates(index, coords);
+			assertEquals("Coordinates don't round trip", index, space.getIndex(coords));
+			// last dimension varies fastest
+			assertEquals(index % space.getSize(2), coords[2]);
+		}
+	}
+
+	private static List<Integer> getOrder(final TaskSpace space) {
+		List<Integer> order = new ArrayList<>();
+		for (int index=0; index<space.getNumTasks(); index++)
+			order.add(index);
+		Collections.shuffle(order, r);
+		Collections.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Long.compare(space.getOrderKey(o1), space.getOrderKey(o2));
+			}
+		});
+		return order;
+	}
+
+	private static void checkTiledOrder(TaskSpace space) {
+		List<Integer> order = getOrder(space);
+		HashSet<Long> keys = new HashSet<>();
+		HashSet<Integer> finishedTiles = new HashSet<>();
+		for (int i=0; i<order.size(); i++) {
+			int index = order.get(i);
+			assertTrue("Duplicate order key", keys.add(space.getOrderKey(index)));
+			if (i > 0) {
+				int prevTile = space.getTile(order.get(i-1));
+				if (prevTile != space.getTile(index))
+					assertTrue("Each tile should be visited once", finishedTiles.add(prevTile));
+			}
+			assertFalse("Tile revisited", finishedTiles.contains(space.getTile(index)));
+		}
+	}
+
+	@Test
+	public void testBlockedOrdering() {
+		int[] dims = { randomSize(1, 50), randomSize(1, 50), randomSize(1, 10) };
+		int[] tiles = { randomSize(1, 10), randomSize(1, 10), randomSize(1, 20) };
+		checkTiledOrder(new TaskSpace(dims, Ordering.BLOCKED, tiles));
+	}
+
+	@Test
+	public void testHilbertOrdering() {
+		int[] dims = { randomSize(1, 100), randomSize(1, 100) };
+		int[] tiles = { randomSize(1, 10), randomSize(1, 10) };
+		TaskSpace space = new TaskSpace(dims, Ordering.HILBERT, tiles);
+		checkTiledOrder(space);
+
+		// consecutive cells along a full curve are adjacent
+		int n = 16;
+		HashSet<Long> dists = new HashSet<>();
+		long[][] points = new long[n*n][];
+		for (int x=0; x<n; x++) {
+			for (int y=0; y<n; y++) {
+				long d = TaskSpace.hilbertIndex(n, x, y);
+				assertTrue("Hilbert index out of range", d >= 0 && d < n*n);
+				assertTrue("Duplicate Hilbert index", dists.add(d));
+				points[(int)d] = new long[] { x, y };
+			}
+		}
+		for (int d=1; d<points.length; d++)
+			assertEquals("Hilbert curve isn't continuous", 1,
+					Math.abs(points[d][0] - points[d-1][0]) + Math.abs(points[d][1] - points[d-1][1]));
+	}
+
+	@Test
+	public void testDispatchByTile() {
+		int[] dims = { randomSize(10, 100), randomSize(10, 100) };
+		int[] tiles = { 5, 5 };
+		TaskSpace space = new TaskSpace(dims, Ordering.BLOCKED, tiles);
+		int minDispatch = 10;
+		DispatcherThread dispatcher = new DispatcherThread(4, space.getNumTasks(), minDispatch, 100, true);
+		dispatcher.setTaskSpace(space);
+
+		HashSet<Integer> processedIndexes = new HashSet<>();
+		while (true) {
+			int[] batch = dispatcher.getNextBatch(0);
+			if (batch.length == 0)
+				break;
+			for (int i=0; i<batch.length; i++) {
+				assertTrue("Duplicate index detected!", processedIndexes.add(batch[i]));
+				if (i >= minDispatch)
+					assertEquals("Batch should end at a tile boundary once past the minimum",
+							space.getTile(batch[i-1]), space.getTile(batch[i]));
+			}
+		}
+		assertEquals("Not all tasks dispatched!", space.getNumTasks(), processedIndexes.size());
+	}
+
+}
@@ -0,0 +1,155 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.CalcBatch;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.Node;
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskLogStatsGen.ParsedLog;
+import edu.usc.kmilner.mpj.taskDispatch.ThroughputTimeSeries.RegimeChange;
+
+public class ThroughputTimeSeriesTest {
+
+	private static final long WINDOW = 60000l;
+	private static final long START = 1000000l;
+
+	private static void addBatch(ParsedLog log, Node node, int size, long startOffset, long endOffset) {
+		CalcBatch batch = new CalcBatch(size, node, new Date(START + startOffset));
+		batch.setEndDate(new Date(START + endOffset));
+		log.nodeBatches.get(node).add(batch);
+		if (log.prevDate == null || log.prevDate.getTime() < START + endOffset)
+			log.prevDate = new Date(START + endOffset);
+	}
+
+	private static ParsedLog emptyLog() {
+		ParsedLog log = new ParsedLog();
+		log.firstDate = new Date(START);
+		return log;
+	}
+
+	/**
+	 * @param sizes [node][window] number of tasks in a batch which runs for exactly that window
+	 * @return log where each node runs one batch per window, back to back
+	 */
+	private static ParsedLog buildLog(double[][] sizes) {
+		ParsedLog log = emptyLog();
+		for (int n=0; n<sizes.length; n++) {
+			Node node = log.getNode(new Node(n, "host"+n));
+			for (int w=0; w<sizes[n].length; w++)
+				addBatch(log, node, (int)Math.round(sizes[n][w]), w*WINDOW, (w+1)*WINDOW);
+		}
+		return log;
+	}
+
+	/**
+	 * @return sizes with the given mean tasks per window and +/- 10% noise
+	 */
+	private static double[][] noisySizes(Random r, int numNodes, int numWindows, double mean) {
+		double[][] sizes = new double[numNodes][numWindows];
+		for (int n=0; n<numNodes; n++)
+			for (int w=0; w<numWindows; w++)
+				sizes[n][w] = mean*(0.9d + 0.2d*r.nextDouble());
+		return sizes;
+	}
+
+	@Test
+	public void testSpreadOverWindows() {
+		ParsedLog log = emptyLog();
+		Node a = log.getNode(new Node(0, "a"));
+		Node b = log.getNode(new Node(1, "b"));
+		// 120 tasks over 2 windows, starting half way through the first
+		addBatch(log, a, 120, WINDOW/2, 5*WINDOW/2);
+		// entirely within the second window
+		addBatch(log, b, 30, WINDOW + 1000l, 2*WINDOW - 1000l);
+		// still running, ignored
+		log.nodeBatches.get(b).add(new CalcBatch(1000, b, new Date(START + 2*WINDOW)));
+
+		ThroughputTimeSeries series = new ThroughputTimeSeries(log, WINDOW);
+		double[] aRates = series.getNodeRates(0);
+		assertEquals(3, aRates.length);
+		double perSec = 1000d/WINDOW;
+		assertEquals(30d*perSec, aRates[0], 1e-10);
+		assertEquals(60d*perSec, aRates[1], 1e-10);
+		// the last window is only half over
+		assertEquals(30d/(WINDOW/2000d), aRates[2], 1e-10);
+
+		double[] bRates = series.getNodeRates(1);
+		assertEquals(0d, bRates[0], 0d);
+		assertEquals(30d*perSec, bRates[1], 1e-10);
+		assertEquals(0d, bRates[2], 0d);
+
+		double[] totalRates = series.getTotalRates();
+		for (int w=0; w<totalRates.length; w++)
+			assertEquals(aRates[w] + bRates[w], totalRates[w], 1e-10);
+	}
+
+	@Test
+	public void testLastWindowDuration() {
+		ParsedLog log = emptyLog();
+		Node a = log.getNode(new Node(0, "a"));
+		long lastWindowMillis = 15000l;
+		addBatch(log, a, 60, 0l, WINDOW);
+		addBatch(log, a, 15, WINDOW, WINDOW + lastWindowMillis);
+
+		double[] rates = new ThroughputTimeSeries(log, WINDOW).getTotalRates();
+		assertEquals(2, rates.length);
+		assertEquals(1d, rates[0], 1e-10);
+		assertEquals("Last window rate should use the time covered", 1d, rates[1], 1e-10);
+	}
+
+	@Test
+	public void testOverallStep() {
+		Random r = new Random(12345l);
+		int numNodes = 4;
+		int numWindows = 20;
+		int stepWindow = 12;
+		double[][] sizes = noisySizes(r, numNodes, numWindows, 100d);
+		for (int n=0; n<numNodes; n++)
+			for (int w=stepWindow; w<numWindows; w++)
+				sizes[n][w] /= 2d;
+
+		List<RegimeChange> changes = new ThroughputTimeSeries(buildLog(sizes), WINDOW).detectRegimeChanges();
+		assertEquals(1, changes.size());
+		RegimeChange change = changes.get(0);
+		assertNull("Should be an overall change", change.node);
+		assertEquals(stepWindow*WINDOW, change.offsetMillis);
+		assertEquals(0.5d, change.getRatio(), 0.1d);
+	}
+
+	@Test
+	public void testNodeStep() {
+		Random r = new Random(54321l);
+		int numNodes = 8;
+		int numWindows = 20;
+		int stepWindow = 7;
+		int slowNode = 3;
+		double[][] sizes = noisySizes(r, numNodes, numWindows, 100d);
+		for (int w=stepWindow; w<numWindows; w++)
+			sizes[slowNode][w] /= 2d;
+
+		List<RegimeChange> changes = new ThroughputTimeSeries(buildLog(sizes), WINDOW).detectRegimeChanges();
+		assertEquals("Only the slow node should change: "+changes, 1, changes.size());
+		RegimeChange change = changes.get(0);
+		assertNotNull(change.node);
+		assertEquals(slowNode, change.node.getProcessNum());
+		assertEquals(stepWindow*WINDOW, change.offsetMillis);
+		assertEquals(0.5d, change.getRatio(), 0.1d);
+		assertTrue(change.toString().contains("SLOWDOWN"));
+	}
+
+	@Test
+	public void testFlatSeries() {
+		Random r = new Random();
+		for (int i=0; i<10; i++) {
+			double[][] sizes = noisySizes(r, 8, 30, 100d);
+			List<RegimeChange> changes = new ThroughputTimeSeries(buildLog(sizes), WINDOW).detectRegimeChanges();
+			assertTrue("False positive: "+changes, changes.isEmpty());
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class UtilsTest {
+
+	private static File tempCgroupRoot() throws IOException {
+		File dir = java.nio.file.Files.createTempDirectory("cgroup").toFile();
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	private static void write(File dir, String name, String contents) throws IOException {
+		dir.mkdirs();
+		File file = new File(dir, name);
+		Files.asCharSink(file, StandardCharsets.UTF_8).write(contents+"\n");
+	}
+
+	@Test
+	public void testCgroupV2() throws IOException {
+		File root = tempCgroupRoot();
+		write(root, "cpu.max", "max 100000");
+		File job = new File(root, "system.slice/slurmstepd.scope/job_1");
+		write(job, "cpu.max", "400000 100000");
+		File step = new File(job, "step_0");
+		write(step, "cpu.max", "max 100000");
+
+		assertEquals("Should use the quota from an ancestor of our own cgroup", 4d,
+				Utils.getCgroupCPUQuota(root, Arrays.asList("0::/system.slice/slurmstepd.scope/job_1/step_0")), 1e-10);
+		write(step, "cpu.max", "150000 100000");
+		assertEquals("Should use the smallest quota in the hierarchy", 1.5d,
+				Utils.getCgroupCPUQuota(root, Arrays.asList("0::/system.slice/slurmstepd.scope/job_1/step_0")), 1e-10);
+		// unlimited at the root
+		assertEquals(-1d, Utils.getCgroupCPUQuota(root, Arrays.asList("0::/")), 0d);
+		// our cgroup isn't visible (e.g. in a container), falls back to the root
+		write(root, "cpu.max", "200000 100000");
+		assertEquals(2d, Utils.getCgroupCPUQuota(root, Arrays.asList("0::/some/other/path")), 1e-10);
+		assertEquals(2d, Utils.getCgroupCPUQuota(root, Collections.<String>emptyList()), 1e-10);
+	}
+
+	@Test
+	public void testCgroupV1() throws IOException {
+		File root = tempCgroupRoot();
+		File mount = new File(root, "cpu,cpuacct");
+		write(mount, "cpu.cfs_quota_us", "-1");
+		write(mount, "cpu.cfs_period_us", "100000");
+		File job = new File(mount, "slurm/uid_1000/job_1");
+		write(job, "cpu.cfs_quota_us", "800000");
+		write(job, "cpu.cfs_period_us", "100000");
+
+		assertEquals(8d, Utils.getCgroupCPUQuota(root, Arrays.asList(
+				"12:memory:/slurm/uid_1000/job_1",
+				"4:cpu,cpuacct:/slurm/uid_1000/job_1",
+				"0::/user.slice")), 1e-10);
+		assertEquals(-1d, Utils.getCgroupCPUQuota(root, Arrays.asList("4:cpu,cpuacct:/")), 0d);
+	}
+
+	@Test
+	public void testParseCPUList() {
+		assertEquals(Arrays.asList(0), Utils.parseCPUList("0"));
+		assertEquals(Arrays.asList(0, 1, 2, 3), Utils.parseCPUList("0-3\n"));
+		assertEquals(Arrays.asList(0, 1, 2, 3, 8, 10, 11), Utils.parseCPUList(" 0-3,8,10-11"));
+		assertTrue(Utils.parseCPUList("").isEmpty());
+	}
+
+}
@@ -0,0 +1,154 @@
+package edu.usc.kmilner.mpj.taskDispatch;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class WorkStealingPartitionTest {
+
+	private static final Random r = new Random();
+
+	private static int randomSize(int min, int max) {
+		return min + r.nextInt(max - min + 1);
+	}
+
+	@Test
+	public void testShares() {
+		for (int trial=0; trial<100; trial++) {
+			int startIndex = randomSize(0, 50);
+			int endIndex = startIndex + randomSize(0, 1000);
+			HashSet<Integer> doneIndexes = new HashSet<>();
+			int numDone = randomSize(0, endIndex - startIndex);
+			for (int i=0; i<numDone; i++)
+				// includes some outside of the range, which should be ignored
+				doneIndexes.add(randomSize(0, endIndex + 10));
+			int numParticipants = randomSize(1, 20);
+
+			int[] done = WorkStealingPartition.getSortedDoneIndexes(doneIndexes, startIndex, endIndex);
+			for (int i=1; i<done.length; i++)
+				assertTrue(done[i] > done[i-1]);
+
+			List<Integer> expected = new ArrayList<>();
+			for (int i=startIndex; i<endIndex; i++)
+				if (!doneIndexes.contains(i))
+					expected.add(i);
+
+			List<Integer> actual = new ArrayList<>();
+			int minShare = Integer.MAX_VALUE;
+			int maxShare = 0;
+			for (int p=0; p<numParticipants; p++) {
+				int[] share = WorkStealingPartition.getShare(p, numParticipants, startIndex, endIndex, done);
+				for (int index : share)
+					actual.add(index);
+				minShare = Integer.min(minShare, share.length);
+				maxShare = Integer.max(maxShare, share.length);
+			}
+			// shares should be contiguous, in order, and cover every remaining task exactly once
+			assertEquals(expected, actual);
+			assertTrue("Shares should be balanced", maxShare - minShare <= 1);
+		}
+	}
+
+	@Test
+	public void testAllDone() {
+		HashSet<Integer> doneIndexes = new HashSet<>();
+		for (int i=0; i<10; i++)
+			doneIndexes.add(i);
+		int[] done = WorkStealingPartition.getSortedDoneIndexes(doneIndexes, 0, 10);
+		for (int p=0; p<3; p++)
+			assertEquals(0, WorkStealingPartition.getShare(p, 3, 0, 10, done).length);
+	}
+
+	@Test
+	public void testNonParticipant() throws InterruptedException {
+		// rank 0 excluded, as with --root-dispatch-only. MPJ isn't needed as non-participants never communicate
+		// outside of finish(), and the responder isn't started
+		WorkStealingPartition partition = new WorkStealingPartition(0, 4, true, 0, 100, null, false);
+		assertEquals("Non-participant should immediately get an empty chunk", 0, partition.nextChunk(1, 10, -1).length);
+		partition.finish();
+	}
+
+	@Test
+	public void testSingleProcess() throws InterruptedException {
+		int numTasks = 100;
+		HashSet<Integer> doneIndexes = new HashSet<>();
+		doneIndexes.add(5);
+		doneIndexes.add(50);
+		WorkStealingPartition partition = new WorkStealingPartition(0, 1, false, 0, numTasks, doneIndexes, true);
+		HashSet<Integer> calculated = new HashSet<>();
+		int[] chunk;
+		while ((chunk = partition.nextChunk(1, 10, -1)).length > 0)
+			for (int index : chunk)
+				assertTrue("Duplicate task", calculated.add(index));
+		partition.finish();
+		assertEquals(numTasks - doneIndexes.size(), calculated.size());
+		for (int index : doneIndexes)
+			assertFalse(calculated.contains(index));
+	}
+
+	/**
+	 * Partition with scripted steal replies instead of MPJ
+	 */
+	private static class ScriptedPartition extends WorkStealingPartition {
+
+		private List<WorkStealingPartition.StealReply> replies;
+		private List<Integer> victims = new ArrayList<>();
+
+		ScriptedPartition(int rank, int size, List<WorkStealingPartition.StealReply> replies) {
+			// no tasks of our own
+			super(rank, size, false, 0, 0, null, false);
+			this.replies = replies;
+		}
+
+		@Override
+		StealReply requestSteal(int victim) {
+			victims.add(victim);
+			assertFalse("Unexpected steal request", replies.isEmpty());
+			return replies.remove(0);
+		}
+	}
+
+	@Test
+	public void testStealRetriesWhileVictimStealing() throws InterruptedException {
+		List<WorkStealingPartition.StealReply> replies = new ArrayList<>();
+		// first sweep: process 2 is itself stealing, process 0 has nothing
+		replies.add(new WorkStealingPartition.StealReply(new int[0], true));
+		replies.add(new WorkStealingPartition.StealReply(new int[0], false));
+		// second sweep: process 2 has received tasks since
+		replies.add(new WorkStealingPartition.StealReply(new int[] { 7, 8, 9, 10 }, false));
+		ScriptedPartition partition = new ScriptedPartition(1, 3, replies);
+
+		HashSet<Integer> calculated = new HashSet<>();
+		int[] chunk = partition.nextChunk(1, 2, -1);
+		assertTrue("Should have stolen on the second sweep", chunk.length > 0);
+		for (int index : chunk)
+			assertTrue("Duplicate task", calculated.add(index));
+		assertEquals("Should have asked 2, 0, then 2 again", Arrays.asList(2, 0, 2), partition.victims);
+		// the rest of the stolen tasks are calculated before stealing again
+		while (calculated.size() < 4) {
+			chunk = partition.nextChunk(1, 2, -1);
+			assertTrue(chunk.length > 0);
+			for (int index : chunk)
+				assertTrue("Duplicate task", calculated.add(index));
+		}
+		assertEquals(3, partition.victims.size());
+	}
+
+	@Test
+	public void testStealStopsWithoutStealingVictims() throws InterruptedException {
+		int size = randomSize(2, 10);
+		List<WorkStealingPartition.StealReply> replies = new ArrayList<>();
+		for (int i=1; i<size; i++)
+			replies.add(new WorkStealingPartition.StealReply(new int[0], false));
+		ScriptedPartition partition = new ScriptedPartition(0, size, replies);
+		assertEquals(0, partition.nextChunk(1, 10, -1).length);
+		assertEquals("Should sweep once", size-1, partition.victims.size());
+	}
+
+}